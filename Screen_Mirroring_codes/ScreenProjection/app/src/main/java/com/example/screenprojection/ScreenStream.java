@@ -38,6 +38,7 @@ import java.util.Arrays;
 public class ScreenStream extends Service {
     private static final String TAG = "ScreenStreamService";
     private static final String CHANNEL_ID = "ScreenStreamChannel";
+    private static final long DEQUEUE_TIMEOUT_US = 100_000;
 
     private MediaProjection mediaProjection;
     private MediaCodec mediaCodec;
@@ -178,7 +179,8 @@ public class ScreenStream extends Service {
                 isStreaming = true;
 
                 while (isStreaming) {
-                    int outputIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, 1000);
+                    // Block in the codec until output is ready instead of sleeping between polls
+                    int outputIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, DEQUEUE_TIMEOUT_US);
                     if (outputIndex >= 0) {
                         ByteBuffer outputBuffer = mediaCodec.getOutputBuffer(outputIndex);
                         if (outputBuffer != null && bufferInfo.size > 0) {
@@ -215,8 +217,6 @@ public class ScreenStream extends Service {
                         }
                     } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                         Log.d(TAG, "MediaCodec format changed.");
-                    } else if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        Thread.sleep(10);
                     }
                 }
             } catch (Exception e) {
@@ -0,0 +1,23 @@
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+application {
+    mainClass.set("com.example.screenreceiver.ScreenReceiver")
+}
+
+// ./gradlew :app:runSender --args="--fps 60 --seconds 10"
+tasks.register<JavaExec>("runSender") {
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.example.screenreceiver.SyntheticSender")
+}
+
+dependencies {
+    implementation(project(":mirror-common"))
+    testImplementation(libs.junit)
+}
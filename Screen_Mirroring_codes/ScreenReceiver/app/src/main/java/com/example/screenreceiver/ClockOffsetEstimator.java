@@ -0,0 +1,77 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.ClockSync;
+
+/**
+ * Estimates the offset of the sender's clock from {@link ClockSync} samples
+ * the way NTP's clock filter does: of the recent samples, the one with the
+ * shortest round trip had the least queueing and is trusted. Its error is at
+ * most half its round trip.
+ */
+public class ClockOffsetEstimator {
+    private final long[] offsets;
+    private final long[] roundTrips;
+    private int count;
+    private int next;
+
+    /** @param window number of recent samples to choose from */
+    public ClockOffsetEstimator(int window) {
+        offsets = new long[window];
+        roundTrips = new long[window];
+    }
+
+    /**
+     * Adds one exchange. t1 and t4 are on the receiver's clock, t2 and t3 on
+     * the sender's, all in microseconds.
+     */
+    public synchronized void addSample(long t1, long t2, long t3, long t4) {
+        long roundTrip = (t4 - t1) - (t3 - t2);
+        if (roundTrip < 0) {
+            // Clocks went backwards or the sample is corrupt
+            return;
+        }
+        offsets[next] = ((t2 - t1) + (t3 - t4)) / 2;
+        roundTrips[next] = roundTrip;
+        next = (next + 1) % offsets.length;
+        if (count < offsets.length) {
+            count++;
+        }
+    }
+
+    /** Forgets all samples, e.g. when a different sender connects. */
+    public synchronized void reset() {
+        count = 0;
+        next = 0;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return count > 0;
+    }
+
+    /** Sender clock minus receiver clock in microseconds, 0 without samples. */
+    public synchronized long getOffsetUs() {
+        int best = bestSample();
+        return best < 0 ? 0 : offsets[best];
+    }
+
+    /** Round trip of the sample the offset comes from, -1 without samples. */
+    public synchronized long getRoundTripUs() {
+        int best = bestSample();
+        return best < 0 ? -1 : roundTrips[best];
+    }
+
+    /** Converts a time on the sender's clock to the receiver's clock. */
+    public long toReceiverTime(long senderTimeUs) {
+        return senderTimeUs - getOffsetUs();
+    }
+
+    private int bestSample() {
+        int best = -1;
+        for (int i = 0; i < count; i++) {
+            if (best < 0 || roundTrips[i] < roundTrips[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.screenreceiver;
+
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes frames on a small pool of worker threads and presents them in the
+ * order they arrived. At most {@code maxQueued} frames wait for a worker;
+ * when a new frame arrives on a full queue the oldest waiting one is skipped,
+ * so a slow decoder shows fresh frames instead of falling further behind.
+ *
+ * Frames a worker has started are always presented, in order, once done.
+ *
+ * @param <T> decoded frame
+ */
+public class DecodePipeline<T> {
+    private static final Logger LOG = Logger.getLogger("DecodePipeline");
+
+    public interface Decoder<T> {
+        T decode(ReceivedFrame frame) throws Exception;
+    }
+
+    public interface Presenter<T> {
+        /**
+         * Called on the presenter thread in arrival order. {@code decoded} is
+         * null for frames that were skipped or failed to decode.
+         */
+        void present(ReceivedFrame frame, T decoded, boolean skipped);
+    }
+
+    private static final int WAITING = 0;
+    private static final int DECODING = 1;
+    private static final int DONE = 2;
+    private static final int SKIPPED = 3;
+
+    private static final class Job<T> {
+        final ReceivedFrame frame;
+        int state = WAITING;
+        T decoded;
+
+        Job(ReceivedFrame frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final Decoder<T> decoder;
+    private final Presenter<T> presenter;
+    private final int maxQueued;
+    private final Thread[] workers;
+    private final Thread presenterThread;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Job<T>> waiting = new ArrayDeque<>();
+    // Every job not presented yet, oldest first
+    private final ArrayDeque<Job<T>> inOrder = new ArrayDeque<>();
+    private boolean stopped;
+
+    private long submitted;
+    private long skipped;
+    private long failed;
+
+    public DecodePipeline(int workerCount, int maxQueued, Decoder<T> decoder, Presenter<T> presenter) {
+        this.decoder = decoder;
+        this.presenter = presenter;
+        this.maxQueued = Math.max(1, maxQueued);
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::runWorker, "Decoder-" + i);
+            workers[i].setDaemon(true);
+        }
+        presenterThread = new Thread(this::runPresenter, "Presenter");
+        presenterThread.setDaemon(true);
+    }
+
+    public void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        presenterThread.start();
+    }
+
+    /** Decodes and presents the frames already queued, then stops all threads. */
+    public void stop() throws InterruptedException {
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        presenterThread.join();
+    }
+
+    public void submit(ReceivedFrame frame) {
+        Job<T> job = new Job<>(frame);
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+            submitted++;
+            if (waiting.size() >= maxQueued) {
+                Job<T> stale = waiting.pollFirst();
+                stale.state = SKIPPED;
+                skipped++;
+            }
+            waiting.addLast(job);
+            inOrder.addLast(job);
+            lock.notifyAll();
+        }
+    }
+
+    public long getSubmittedCount() {
+        synchronized (lock) {
+            return submitted;
+        }
+    }
+
+    /** Frames dropped because decoding fell behind. */
+    public long getSkippedCount() {
+        synchronized (lock) {
+            return skipped;
+        }
+    }
+
+    public long getFailedCount() {
+        synchronized (lock) {
+            return failed;
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            Job<T> job;
+            synchronized (lock) {
+                while (waiting.isEmpty() && !stopped) {
+                    waitQuietly();
+                }
+                if (waiting.isEmpty()) {
+                    return;
+                }
+                job = waiting.pollFirst();
+                job.state = DECODING;
+            }
+            T decoded = null;
+            try {
+                decoded = decoder.decode(job.frame);
+            } catch (Exception e) {
+                LOG.log(Level.FINE, "Decoding frame " + job.frame.index() + " failed", e);
+            }
+            synchronized (lock) {
+                job.decoded = decoded;
+                job.state = DONE;
+                if (decoded == null) {
+                    failed++;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void runPresenter() {
+        while (true) {
+            Job<T> job;
+            synchronized (lock) {
+                // Workers finish every queued job before they exit, so the head always completes
+                while (inOrder.isEmpty() ? !stopped : !isFinished(inOrder.peekFirst())) {
+                    waitQuietly();
+                }
+                job = inOrder.pollFirst();
+                if (job == null) {
+                    return;
+                }
+            }
+            presenter.present(job.frame, job.decoded, job.state == SKIPPED);
+        }
+    }
+
+    private static boolean isFinished(Job<?> job) {
+        return job.state == DONE || job.state == SKIPPED;
+    }
+
+    private void waitQuietly() {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.screenreceiver;
+
+import java.awt.image.BufferedImage;
+
+/** Result of decoding one {@link ReceivedFrame} on a worker. */
+public final class DecodedFrame {
+    private final BufferedImage image;
+    private final long decodeNs;
+    private final long decodedAtNs;
+
+    DecodedFrame(BufferedImage image, long decodeNs) {
+        this.image = image;
+        this.decodeNs = decodeNs;
+        this.decodedAtNs = System.nanoTime();
+    }
+
+    /** The picture, or null for tile delta frames, which are applied in order by the presenter. */
+    public BufferedImage image() {
+        return image;
+    }
+
+    public long decodeNs() {
+        return decodeNs;
+    }
+
+    /** System.nanoTime() when the worker finished. */
+    public long decodedAtNs() {
+        return decodedAtNs;
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.FrameHeader;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Worker side of the {@link DecodePipeline}. Full JPEG frames are decoded
+ * here in parallel; tile delta frames depend on the frames before them and
+ * are passed through to be applied in order.
+ */
+public class FrameDecoder implements DecodePipeline.Decoder<DecodedFrame> {
+
+    static {
+        // No temp files for every decoded frame
+        ImageIO.setUseCache(false);
+    }
+
+    @Override
+    public DecodedFrame decode(ReceivedFrame frame) throws IOException {
+        long start = System.nanoTime();
+        if (frame.codec() == FrameHeader.CODEC_TILES_JPEG || frame.codec() == FrameHeader.CODEC_TILES_RAW) {
+            return new DecodedFrame(null, 0);
+        }
+        if (frame.codec() != FrameHeader.CODEC_JPEG) {
+            throw new IOException("Unknown codec " + frame.codec());
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(frame.payload()));
+        if (image == null) {
+            throw new IOException("Not a JPEG");
+        }
+        return new DecodedFrame(image, System.nanoTime() - start);
+    }
+}
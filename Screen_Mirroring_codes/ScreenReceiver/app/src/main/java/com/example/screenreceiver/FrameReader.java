@@ -0,0 +1,69 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.FrameHeader;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from the port-5090 stream. Each frame is either a
+ * {@link FrameHeader} followed by its payload, or, from older senders, a bare
+ * 4-byte big-endian length followed by a JPEG. The format is detected per
+ * frame from the first two bytes.
+ */
+public class FrameReader {
+    private final DataInputStream in;
+    private final FrameHeader header = new FrameHeader();
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(255);
+    private long index;
+
+    public FrameReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * Blocks until the next frame has been read completely.
+     *
+     * @return the frame, or null at the end of the stream
+     * @throws IOException if the stream breaks or is malformed
+     */
+    public ReceivedFrame read() throws IOException {
+        byte[] start = headerBuffer.array();
+        try {
+            in.readFully(start, 0, 4);
+        } catch (EOFException e) {
+            return null;
+        }
+        headerBuffer.clear().limit(4);
+        ReceivedFrame frame;
+        if (FrameHeader.startsWithMagic(headerBuffer)) {
+            int headerLength = FrameHeader.peekLength(headerBuffer);
+            in.readFully(start, 4, headerLength - 4);
+            headerBuffer.limit(headerLength);
+            header.read(headerBuffer);
+            byte[] payload = readPayload(header.getPayloadLength());
+            frame = new ReceivedFrame(index, false, header.getFrameType(), header.getCodec(), header.getWidth(),
+                    header.getHeight(), header.getSequence(), header.getCaptureTimeUs(), header.getEncodeDoneUs(),
+                    header.getEnqueueUs(), header.getSendUs(), payload, System.nanoTime());
+        } else {
+            int length = headerBuffer.getInt(0);
+            if (length < 0 || length > FrameHeader.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("Bad legacy frame length " + length);
+            }
+            byte[] payload = readPayload(length);
+            frame = new ReceivedFrame(index, true, FrameHeader.TYPE_KEY, FrameHeader.CODEC_JPEG, 0, 0, index, 0,
+                    FrameHeader.NO_STAMP, FrameHeader.NO_STAMP, FrameHeader.NO_STAMP, payload, System.nanoTime());
+        }
+        index++;
+        return frame;
+    }
+
+    private byte[] readPayload(int length) throws IOException {
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.TileCodec;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** JPEG tiles through ImageIO, the JVM side of the app's JpegTileCodec. */
+public class ImageIoTileCodec implements TileCodec {
+
+    @Override
+    public int id() {
+        return ID_JPEG;
+    }
+
+    @Override
+    public void encode(ByteBuffer rgba, int width, int height, OutputStream out) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 4;
+                image.setRGB(x, y, (rgba.get(i) & 0xFF) << 16 | (rgba.get(i + 1) & 0xFF) << 8 | (rgba.get(i + 2) & 0xFF));
+            }
+        }
+        if (!ImageIO.write(image, "jpg", out)) {
+            throw new IOException("No JPEG writer");
+        }
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length, int width, int height, byte[] rgba) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data, offset, length));
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            throw new IOException("Bad JPEG tile");
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int argb = image.getRGB(x, y);
+                int i = (y * width + x) * 4;
+                rgba[i] = (byte) (argb >> 16);
+                rgba[i + 1] = (byte) (argb >> 8);
+                rgba[i + 2] = (byte) argb;
+                rgba[i + 3] = (byte) 0xFF;
+            }
+        }
+    }
+}
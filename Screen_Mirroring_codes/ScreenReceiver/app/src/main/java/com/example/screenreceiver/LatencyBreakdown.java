@@ -0,0 +1,88 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.FrameHeader;
+import com.example.mirror.stats.LatencyHistogram;
+
+import java.util.Locale;
+
+/**
+ * Splits the latency of every shown frame into stages, from the sender's
+ * stamps and the receiver's own times. Sender times are moved to the
+ * receiver's clock with a {@link ClockOffsetEstimator}; frames without stamps
+ * or before the first clock sample are not counted.
+ *
+ * <pre>
+ *   encode    capture -> compression done           (sender)
+ *   handoff   compression done -> sender mailbox    (sender)
+ *   queue     mailbox -> socket write               (sender)
+ *   network   socket write -> fully read            (clock offset)
+ *   decode    read -> decoded, including pool wait  (receiver)
+ *   present   decoded -> handed to the viewer       (receiver)
+ *   total     capture -> handed to the viewer       (clock offset)
+ * </pre>
+ */
+public class LatencyBreakdown {
+    private final LatencyHistogram encode = new LatencyHistogram("encode");
+    private final LatencyHistogram handoff = new LatencyHistogram("handoff");
+    private final LatencyHistogram queue = new LatencyHistogram("queue");
+    private final LatencyHistogram network = new LatencyHistogram("network");
+    private final LatencyHistogram decode = new LatencyHistogram("decode");
+    private final LatencyHistogram present = new LatencyHistogram("present");
+    private final LatencyHistogram total = new LatencyHistogram("total");
+    private final LatencyHistogram[] all = {encode, handoff, queue, network, decode, present, total};
+
+    private final ClockOffsetEstimator clock;
+
+    public LatencyBreakdown(ClockOffsetEstimator clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Records a frame that was just handed to the viewer.
+     *
+     * @return false if the frame had no stamps or the clocks are not synced yet
+     */
+    public boolean record(ReceivedFrame frame, DecodedFrame decoded, long presentedNs) {
+        if (frame.isLegacy() || frame.sendUs() == FrameHeader.NO_STAMP || !clock.hasEstimate()) {
+            return false;
+        }
+        long captureUs = clock.toReceiverTime(frame.captureTimeUs());
+        long arrivalUs = frame.arrivalNs() / 1000;
+        long decodedUs = decoded.decodedAtNs() / 1000;
+        long presentedUs = presentedNs / 1000;
+
+        if (frame.encodeDoneUs() != FrameHeader.NO_STAMP) {
+            encode.record(frame.encodeDoneUs());
+            handoff.record(frame.enqueueUs() - frame.encodeDoneUs());
+        }
+        queue.record(frame.sendUs() - frame.enqueueUs());
+        network.record(arrivalUs - (captureUs + frame.sendUs()));
+        decode.record(decodedUs - arrivalUs);
+        present.record(presentedUs - decodedUs);
+        total.record(presentedUs - captureUs);
+        return true;
+    }
+
+    public LatencyHistogram getStage(String name) {
+        for (LatencyHistogram histogram : all) {
+            if (histogram.getName().equals(name)) {
+                return histogram;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US, "latency, clock offset %.2fms +/- %.2fms",
+                clock.getOffsetUs() / 1000.0, clock.getRoundTripUs() / 2000.0));
+        for (LatencyHistogram histogram : all) {
+            sb.append("\n    ").append(histogram);
+        }
+        return sb.toString();
+    }
+}
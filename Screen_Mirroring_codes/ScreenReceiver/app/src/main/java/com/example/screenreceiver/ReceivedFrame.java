@@ -0,0 +1,105 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.FrameHeader;
+
+/** One frame as read from the stream, before decoding. */
+public final class ReceivedFrame {
+    private final long index;
+    private final boolean legacy;
+    private final int frameType;
+    private final int codec;
+    private final int width;
+    private final int height;
+    private final long sequence;
+    private final long captureTimeUs;
+    private final int encodeDoneUs;
+    private final int enqueueUs;
+    private final int sendUs;
+    private final byte[] payload;
+    private final long arrivalNs;
+
+    ReceivedFrame(long index, boolean legacy, int frameType, int codec, int width, int height, long sequence,
+                  long captureTimeUs, int encodeDoneUs, int enqueueUs, int sendUs, byte[] payload, long arrivalNs) {
+        this.index = index;
+        this.legacy = legacy;
+        this.frameType = frameType;
+        this.codec = codec;
+        this.width = width;
+        this.height = height;
+        this.sequence = sequence;
+        this.captureTimeUs = captureTimeUs;
+        this.encodeDoneUs = encodeDoneUs;
+        this.enqueueUs = enqueueUs;
+        this.sendUs = sendUs;
+        this.payload = payload;
+        this.arrivalNs = arrivalNs;
+    }
+
+    /** Position in the stream on this connection, starting at 0. */
+    public long index() {
+        return index;
+    }
+
+    /** True for the old format, a bare length before a JPEG. */
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    public int frameType() {
+        return frameType;
+    }
+
+    public boolean isKeyFrame() {
+        return frameType == FrameHeader.TYPE_KEY;
+    }
+
+    public int codec() {
+        return codec;
+    }
+
+    /** Width from the header, 0 for legacy frames. */
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /** Sender's capture sequence number, the stream index for legacy frames. */
+    public long sequence() {
+        return sequence;
+    }
+
+    public long captureTimeUs() {
+        return captureTimeUs;
+    }
+
+    /** Microseconds after capture when compression finished, or {@link FrameHeader#NO_STAMP}. */
+    public int encodeDoneUs() {
+        return encodeDoneUs;
+    }
+
+    /** Microseconds after capture when the frame was handed to the sender thread, or {@link FrameHeader#NO_STAMP}. */
+    public int enqueueUs() {
+        return enqueueUs;
+    }
+
+    /** Microseconds after capture when the frame was written to the socket, or {@link FrameHeader#NO_STAMP}. */
+    public int sendUs() {
+        return sendUs;
+    }
+
+    public boolean isControl() {
+        return frameType == FrameHeader.TYPE_CONTROL;
+    }
+
+    public byte[] payload() {
+        return payload;
+    }
+
+    /** System.nanoTime() when the last byte of the frame was read. */
+    public long arrivalNs() {
+        return arrivalNs;
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.stats.LatencyHistogram;
+
+import java.util.Locale;
+
+/**
+ * Measurements of one receiving session. Arrival figures are recorded by the
+ * reader thread, decode and presentation figures by the pipeline. Histograms
+ * are in microseconds.
+ *
+ * Jitter is how much the gap between two arrivals differs from the gap between
+ * their capture times. Legacy frames carry no capture time, for them it is
+ * the change from one arrival gap to the next.
+ */
+public class ReceiverStats {
+    private final LatencyHistogram interArrival = new LatencyHistogram("interArrival");
+    private final LatencyHistogram jitter = new LatencyHistogram("jitter");
+    private final LatencyHistogram decodeTime = new LatencyHistogram("decode");
+
+    private long lastArrivalNs;
+    private long lastCaptureUs;
+    private long lastGapUs = -1;
+
+    private long received;
+    private long receivedBytes;
+    private long presented;
+    private long skipped;
+    private long failed;
+    private long sequenceGaps;
+    private long lastSequence = -1;
+
+    private long windowStartNs = System.nanoTime();
+    private long windowReceived;
+    private long windowBytes;
+    private long windowPresented;
+
+    public synchronized void onReceived(ReceivedFrame frame) {
+        received++;
+        windowReceived++;
+        receivedBytes += frame.payload().length;
+        windowBytes += frame.payload().length;
+        if (!frame.isLegacy()) {
+            if (lastSequence >= 0 && frame.sequence() > lastSequence + 1) {
+                sequenceGaps += frame.sequence() - lastSequence - 1;
+            }
+            lastSequence = frame.sequence();
+        }
+        if (lastArrivalNs != 0) {
+            long gapUs = (frame.arrivalNs() - lastArrivalNs) / 1000;
+            interArrival.record(gapUs);
+            if (!frame.isLegacy()) {
+                jitter.record(Math.abs(gapUs - (frame.captureTimeUs() - lastCaptureUs)));
+            } else if (lastGapUs >= 0) {
+                jitter.record(Math.abs(gapUs - lastGapUs));
+            }
+            lastGapUs = gapUs;
+        }
+        lastArrivalNs = frame.arrivalNs();
+        lastCaptureUs = frame.captureTimeUs();
+    }
+
+    /** A frame was decoded and shown, {@code decodeNs} is the time spent decoding it. */
+    public synchronized void onPresented(long decodeNs) {
+        presented++;
+        windowPresented++;
+        decodeTime.record(decodeNs / 1000);
+    }
+
+    /** A frame was dropped because decoding fell behind. */
+    public synchronized void onSkipped() {
+        skipped++;
+    }
+
+    /** A frame could not be decoded or applied. */
+    public synchronized void onFailed() {
+        failed++;
+    }
+
+    public LatencyHistogram getInterArrival() {
+        return interArrival;
+    }
+
+    public LatencyHistogram getJitter() {
+        return jitter;
+    }
+
+    public LatencyHistogram getDecodeTime() {
+        return decodeTime;
+    }
+
+    public synchronized long getReceivedCount() {
+        return received;
+    }
+
+    public synchronized long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public synchronized long getPresentedCount() {
+        return presented;
+    }
+
+    public synchronized long getSkippedCount() {
+        return skipped;
+    }
+
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    /** Frames the sender captured but replaced before sending. */
+    public synchronized long getSequenceGaps() {
+        return sequenceGaps;
+    }
+
+    /** Rates since the last call, followed by the histograms so far. */
+    public synchronized String report() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - windowStartNs) / 1e9);
+        String line = String.format(Locale.US,
+                "recv %.1f fps, shown %.1f fps, %.2f Mbit/s, skipped=%d failed=%d senderDropped=%d%n  %s%n  %s%n  %s",
+                windowReceived / seconds, windowPresented / seconds, windowBytes * 8 / seconds / 1e6,
+                skipped, failed, sequenceGaps, decodeTime, interArrival, jitter);
+        windowStartNs = now;
+        windowReceived = 0;
+        windowBytes = 0;
+        windowPresented = 0;
+        return line;
+    }
+}
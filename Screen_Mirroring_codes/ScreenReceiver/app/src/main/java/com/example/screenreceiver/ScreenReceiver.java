@@ -0,0 +1,318 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.ClockSync;
+import com.example.mirror.protocol.FrameHeader;
+import com.example.mirror.protocol.RawTileCodec;
+import com.example.mirror.protocol.TileDeltaDecoder;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receiving end of the ScreenStreaming app's port-5090 stream. Accepts one
+ * sender at a time, reads frames on the connection thread, decodes them on a
+ * {@link DecodePipeline} and shows them in a {@link ViewerWindow}, or only
+ * measures in headless mode.
+ *
+ * While connected it sends {@link ClockSync} requests back to the sender, so
+ * the stamps in each frame header can be turned into a per-stage
+ * {@link LatencyBreakdown}. Older senders never answer and only get the
+ * receiver side measurements.
+ *
+ * <pre>
+ *   ScreenReceiver [--port 5090] [--workers 2] [--headless] [--seconds N] [--report S]
+ * </pre>
+ */
+public class ScreenReceiver {
+    private static final Logger LOG = Logger.getLogger("ScreenReceiver");
+    public static final int DEFAULT_PORT = 5090;
+    private static final int CLOCK_SAMPLES = 16;
+    private static final int CLOCK_BURST = 5;
+    private static final long CLOCK_BURST_INTERVAL_MS = 50;
+    private static final long CLOCK_INTERVAL_MS = 1000;
+
+    private final int requestedPort;
+    private final int workers;
+    private final ViewerWindow viewer;
+    private final ReceiverStats stats = new ReceiverStats();
+    private final ClockOffsetEstimator clock = new ClockOffsetEstimator(CLOCK_SAMPLES);
+    private final LatencyBreakdown latency = new LatencyBreakdown(clock);
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running;
+    private volatile Socket connection;
+
+    // Presenter thread only
+    private final TileDeltaDecoder jpegTiles = new TileDeltaDecoder(new ImageIoTileCodec());
+    private final TileDeltaDecoder rawTiles = new TileDeltaDecoder(new RawTileCodec());
+    private boolean waitingForTileKeyFrame;
+    private BufferedImage tileImage;
+    private int[] tileRow;
+
+    /**
+     * @param port TCP port to listen on, or 0 to pick any free port
+     * @param viewer window to show frames in, or null to only measure
+     */
+    public ScreenReceiver(int port, int workers, ViewerWindow viewer) {
+        this.requestedPort = port;
+        this.workers = workers;
+        this.viewer = viewer;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(requestedPort));
+        running = true;
+        acceptThread = new Thread(this::runAccept, "ScreenReceiver");
+        acceptThread.start();
+        LOG.info("Waiting for a sender on port " + getPort());
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeQuietly(serverSocket);
+        closeQuietly(connection);
+        try {
+            acceptThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public ReceiverStats getStats() {
+        return stats;
+    }
+
+    public LatencyBreakdown getLatency() {
+        return latency;
+    }
+
+    public ClockOffsetEstimator getClock() {
+        return clock;
+    }
+
+    private void runAccept() {
+        while (running) {
+            try (Socket socket = serverSocket.accept()) {
+                connection = socket;
+                socket.setTcpNoDelay(true);
+                LOG.info("Sender connected: " + socket.getRemoteSocketAddress());
+                receive(socket);
+            } catch (IOException e) {
+                if (running) {
+                    LOG.log(Level.INFO, "Connection ended: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                connection = null;
+            }
+        }
+    }
+
+    private void receive(Socket socket) throws IOException, InterruptedException {
+        DecodePipeline<DecodedFrame> pipeline = new DecodePipeline<>(workers, workers,
+                new FrameDecoder(), this::present);
+        waitingForTileKeyFrame = false;
+        clock.reset();
+        pipeline.start();
+        Thread probe = new Thread(() -> sendClockRequests(socket), "ClockProbe");
+        probe.setDaemon(true);
+        probe.start();
+        try {
+            FrameReader reader = new FrameReader(socket.getInputStream());
+            ReceivedFrame frame;
+            while ((frame = reader.read()) != null) {
+                if (frame.isControl()) {
+                    onControl(frame);
+                    continue;
+                }
+                stats.onReceived(frame);
+                pipeline.submit(frame);
+            }
+            LOG.info("Sender closed the stream");
+        } finally {
+            probe.interrupt();
+            pipeline.stop();
+        }
+    }
+
+    // A quick burst for a first estimate, then a steady trickle to follow drift
+    private void sendClockRequests(Socket socket) {
+        ByteBuffer request = ByteBuffer.allocate(ClockSync.REQUEST_SIZE);
+        try {
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                request.clear();
+                ClockSync.writeRequest(request, System.nanoTime() / 1000);
+                out.write(request.array(), 0, request.position());
+                out.flush();
+                Thread.sleep(i < CLOCK_BURST ? CLOCK_BURST_INTERVAL_MS : CLOCK_INTERVAL_MS);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Clock requests stopped", e);
+        } catch (InterruptedException e) {
+            // Connection ended
+        }
+    }
+
+    private void onControl(ReceivedFrame frame) {
+        if (frame.codec() != FrameHeader.CODEC_CLOCK_SYNC || frame.payload().length < ClockSync.REPLY_SIZE) {
+            return;
+        }
+        ByteBuffer reply = ByteBuffer.wrap(frame.payload());
+        long t1 = reply.getLong();
+        long t2 = reply.getLong();
+        long t3 = reply.getLong();
+        clock.addSample(t1, t2, t3, frame.arrivalNs() / 1000);
+    }
+
+    // Presenter thread of the pipeline, frames arrive in stream order
+    private void present(ReceivedFrame frame, DecodedFrame decoded, boolean skipped) {
+        boolean tiles = frame.codec() == FrameHeader.CODEC_TILES_JPEG || frame.codec() == FrameHeader.CODEC_TILES_RAW;
+        if (skipped || decoded == null) {
+            if (skipped) {
+                stats.onSkipped();
+            } else {
+                stats.onFailed();
+            }
+            // Later deltas build on the lost one
+            waitingForTileKeyFrame |= tiles;
+            return;
+        }
+        if (!tiles) {
+            stats.onPresented(decoded.decodeNs());
+            show(decoded.image());
+            latency.record(frame, decoded, System.nanoTime());
+            return;
+        }
+
+        if (waitingForTileKeyFrame && !frame.isKeyFrame()) {
+            stats.onSkipped();
+            return;
+        }
+        long start = System.nanoTime();
+        TileDeltaDecoder decoder = frame.codec() == FrameHeader.CODEC_TILES_JPEG ? jpegTiles : rawTiles;
+        try {
+            if (!decoder.decode(frame.payload(), 0, frame.payload().length)) {
+                stats.onSkipped();
+                return;
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Bad tile frame " + frame.sequence(), e);
+            stats.onFailed();
+            waitingForTileKeyFrame = true;
+            return;
+        }
+        waitingForTileKeyFrame = false;
+        BufferedImage image = toImage(decoder);
+        stats.onPresented(System.nanoTime() - start);
+        show(image);
+        latency.record(frame, decoded, System.nanoTime());
+    }
+
+    private BufferedImage toImage(TileDeltaDecoder decoder) {
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        if (tileImage == null || tileImage.getWidth() != width || tileImage.getHeight() != height) {
+            tileImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        if (tileRow == null || tileRow.length != width) {
+            tileRow = new int[width];
+        }
+        byte[] rgba = decoder.getFrame();
+        int[] row = tileRow;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 4;
+                row[x] = (rgba[i] & 0xFF) << 16 | (rgba[i + 1] & 0xFF) << 8 | (rgba[i + 2] & 0xFF);
+            }
+            tileImage.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return tileImage;
+    }
+
+    private void show(BufferedImage image) {
+        if (viewer != null) {
+            viewer.show(image);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        int workers = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+        boolean headless = false;
+        int seconds = 0;
+        int reportSeconds = 5;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--headless":
+                    headless = true;
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--report":
+                    reportSeconds = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: ScreenReceiver [--port 5090] [--workers N] [--headless]"
+                            + " [--seconds N] [--report S]");
+                    System.exit(2);
+            }
+        }
+
+        ViewerWindow viewer = headless ? null : new ViewerWindow("Screen stream :" + port);
+        ScreenReceiver receiver = new ScreenReceiver(port, workers, viewer);
+        receiver.start();
+        if (viewer != null) {
+            viewer.open();
+        }
+        long end = seconds > 0 ? System.currentTimeMillis() + seconds * 1000L : Long.MAX_VALUE;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(reportSeconds * 1000L, Math.max(1, end - System.currentTimeMillis())));
+            System.out.println(receiver.getStats().report());
+            System.out.println("  " + receiver.getLatency());
+        }
+        receiver.stop();
+        ReceiverStats stats = receiver.getStats();
+        System.out.println("Total: received=" + stats.getReceivedCount() + " presented=" + stats.getPresentedCount()
+                + " skipped=" + stats.getSkippedCount() + " failed=" + stats.getFailedCount()
+                + " bytes=" + stats.getReceivedBytes());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.ClockSync;
+import com.example.mirror.protocol.FrameHeader;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Stands in for the phone when benchmarking the receiver over loopback. Sends
+ * a loop of pre-encoded JPEG frames at a fixed rate, in the current framing or
+ * the legacy length-prefixed one. In the current framing it stamps frames and
+ * answers clock requests like the app does, with its clock shifted by
+ * {@code --clock-offset-ms} to exercise the receiver's clock sync.
+ *
+ * <pre>
+ *   SyntheticSender [--host 127.0.0.1] [--port 5090] [--fps 30] [--seconds 10]
+ *                   [--width 480] [--height 720] [--legacy] [--clock-offset-ms 0]
+ * </pre>
+ */
+public class SyntheticSender {
+    private static final int DISTINCT_FRAMES = 60;
+
+    private final byte[][] frames;
+    private final int width;
+    private final int height;
+    private final boolean legacy;
+    private final long clockOffsetUs;
+    private final Object writeLock = new Object();
+
+    public SyntheticSender(int width, int height, boolean legacy, long clockOffsetUs) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.legacy = legacy;
+        this.clockOffsetUs = clockOffsetUs;
+        frames = new byte[DISTINCT_FRAMES][];
+        for (int i = 0; i < DISTINCT_FRAMES; i++) {
+            frames[i] = render(i);
+        }
+    }
+
+    // A moving bar and a frame counter, roughly the size of a real UI frame
+    private byte[] render(int index) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(0x202830));
+        g.fillRect(0, 0, width, height);
+        g.setColor(new Color(0x3DDC84));
+        g.fillRect(0, index * height / DISTINCT_FRAMES, width, height / 20);
+        g.setColor(Color.WHITE);
+        g.setFont(new Font(Font.MONOSPACED, Font.BOLD, 32));
+        g.drawString("frame " + index, 20, 60);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private long now() {
+        return System.nanoTime() / 1000 + clockOffsetUs;
+    }
+
+    /** Sends frames over {@code socket} at {@code fps} until {@code count} frames were written. */
+    public void send(Socket socket, int fps, int count) throws IOException, InterruptedException {
+        OutputStream out = socket.getOutputStream();
+        Thread control = null;
+        if (!legacy) {
+            control = new Thread(() -> answerClockRequests(socket), "SyntheticSenderControl");
+            control.setDaemon(true);
+            control.start();
+        }
+        FrameHeader header = new FrameHeader();
+        ByteBuffer headerBuffer = ByteBuffer.allocate(FrameHeader.SIZE);
+        long intervalNs = 1_000_000_000L / fps;
+        long next = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            byte[] jpeg = frames[i % DISTINCT_FRAMES];
+            long captureUs = now();
+            synchronized (writeLock) {
+                headerBuffer.clear();
+                if (legacy) {
+                    headerBuffer.putInt(jpeg.length);
+                } else {
+                    header.set(FrameHeader.TYPE_KEY, FrameHeader.CODEC_JPEG, 0, width, height, i, captureUs,
+                            jpeg.length).setStamps(0, 0, (int) (now() - captureUs)).write(headerBuffer);
+                }
+                out.write(headerBuffer.array(), 0, headerBuffer.position());
+                out.write(jpeg);
+                out.flush();
+            }
+
+            next += intervalNs;
+            long sleepNs = next - System.nanoTime();
+            if (sleepNs > 0) {
+                Thread.sleep(sleepNs / 1_000_000, (int) (sleepNs % 1_000_000));
+            }
+        }
+        if (control != null) {
+            control.interrupt();
+        }
+    }
+
+    private void answerClockRequests(Socket socket) {
+        byte[] request = new byte[ClockSync.REQUEST_SIZE];
+        ByteBuffer reply = ByteBuffer.allocate(FrameHeader.SIZE + ClockSync.REPLY_SIZE);
+        FrameHeader header = new FrameHeader();
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                in.readFully(request);
+                long t2 = now();
+                long t1 = ClockSync.readRequest(ByteBuffer.wrap(request));
+                synchronized (writeLock) {
+                    long t3 = now();
+                    reply.clear();
+                    header.set(FrameHeader.TYPE_CONTROL, FrameHeader.CODEC_CLOCK_SYNC, 0, 0, 0, 0, t3,
+                            ClockSync.REPLY_SIZE).write(reply);
+                    ClockSync.writeReply(reply, t1, t2, t3);
+                    out.write(reply.array(), 0, reply.position());
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = ScreenReceiver.DEFAULT_PORT;
+        int fps = 30;
+        int seconds = 10;
+        int width = 480;
+        int height = 720;
+        boolean legacy = false;
+        long clockOffsetMs = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host":
+                    host = args[++i];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--fps":
+                    fps = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--width":
+                    width = Integer.parseInt(args[++i]);
+                    break;
+                case "--height":
+                    height = Integer.parseInt(args[++i]);
+                    break;
+                case "--legacy":
+                    legacy = true;
+                    break;
+                case "--clock-offset-ms":
+                    clockOffsetMs = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: SyntheticSender [--host H] [--port P] [--fps N] [--seconds N]"
+                            + " [--width W] [--height H] [--legacy] [--clock-offset-ms N]");
+                    System.exit(2);
+            }
+        }
+        SyntheticSender sender = new SyntheticSender(width, height, legacy, clockOffsetMs * 1000);
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            sender.send(socket, fps, fps * seconds);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.screenreceiver;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/** Window that shows the latest frame, scaled to fit and centred. */
+public class ViewerWindow {
+    private final JFrame frame;
+    private final Canvas canvas = new Canvas();
+    private volatile BufferedImage image;
+
+    private final class Canvas extends JComponent {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            BufferedImage current = image;
+            if (current == null) {
+                return;
+            }
+            double scale = Math.min((double) getWidth() / current.getWidth(),
+                    (double) getHeight() / current.getHeight());
+            int w = (int) (current.getWidth() * scale);
+            int h = (int) (current.getHeight() * scale);
+            ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, (getWidth() - w) / 2, (getHeight() - h) / 2, w, h, null);
+        }
+    }
+
+    public ViewerWindow(String title) {
+        frame = new JFrame(title);
+        canvas.setPreferredSize(new Dimension(480, 720));
+        frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+        frame.add(canvas);
+        frame.pack();
+    }
+
+    public void open() {
+        SwingUtilities.invokeLater(() -> frame.setVisible(true));
+    }
+
+    /**
+     * Shows {@code next}. Only the latest image is kept, so the window never
+     * queues up frames when painting is slower than the stream.
+     */
+    public void show(BufferedImage next) {
+        image = next;
+        canvas.repaint();
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.screenreceiver;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClockOffsetEstimatorTest {
+
+    @Test
+    public void symmetricExchangeGivesExactOffset() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator(8);
+        assertFalse(estimator.hasEstimate());
+        // Sender is 1000 us ahead, 200 us each way, 50 us to answer
+        estimator.addSample(10_000, 11_200, 11_250, 10_450);
+        assertEquals(1000, estimator.getOffsetUs());
+        assertEquals(400, estimator.getRoundTripUs());
+        assertEquals(9_000, estimator.toReceiverTime(10_000));
+    }
+
+    @Test
+    public void shortestRoundTripWinsOverQueuedSamples() {
+        Random random = new Random(21);
+        long offset = -3_456_789;
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator(16);
+        long t = 1_000_000;
+        for (int i = 0; i < 16; i++) {
+            // Asymmetric delays, one direction often waits behind a frame
+            long up = 200 + random.nextInt(20_000);
+            long down = 200 + random.nextInt(20_000);
+            long t1 = t;
+            long t2 = t1 + up + offset;
+            long t3 = t2 + 30;
+            long t4 = t3 - offset + down;
+            estimator.addSample(t1, t2, t3, t4);
+            t += 1_000_000;
+        }
+        long error = Math.abs(estimator.getOffsetUs() - offset);
+        assertTrue(error <= estimator.getRoundTripUs() / 2);
+        assertTrue(estimator.getRoundTripUs() < 20_000);
+    }
+
+    @Test
+    public void oldSamplesLeaveTheWindow() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator(2);
+        estimator.addSample(0, 100, 100, 0);
+        estimator.addSample(0, 700, 700, 1000);
+        estimator.addSample(0, 800, 800, 1000);
+        // The zero round trip sample is gone
+        assertEquals(1000, estimator.getRoundTripUs());
+    }
+
+    @Test
+    public void negativeRoundTripIsIgnored() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator(4);
+        estimator.addSample(1000, 0, 5000, 1000);
+        assertFalse(estimator.hasEstimate());
+        estimator.addSample(0, 0, 0, 10);
+        estimator.reset();
+        assertFalse(estimator.hasEstimate());
+    }
+}
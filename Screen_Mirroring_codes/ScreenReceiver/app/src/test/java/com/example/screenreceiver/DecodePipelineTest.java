@@ -0,0 +1,90 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.FrameHeader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DecodePipelineTest {
+
+    private static ReceivedFrame frame(long index) {
+        return new ReceivedFrame(index, true, FrameHeader.TYPE_KEY, FrameHeader.CODEC_JPEG, 0, 0, index, 0,
+                FrameHeader.NO_STAMP, FrameHeader.NO_STAMP, FrameHeader.NO_STAMP, new byte[0], System.nanoTime());
+    }
+
+    @Test
+    public void presentsInArrivalOrder() throws Exception {
+        Random random = new Random(1);
+        List<Long> presented = Collections.synchronizedList(new ArrayList<>());
+        DecodePipeline<Long> pipeline = new DecodePipeline<>(4, 1000, frame -> {
+            // Later frames often finish first
+            Thread.sleep(random.nextInt(3));
+            return frame.index();
+        }, (frame, decoded, skipped) -> {
+            assertFalse(skipped);
+            assertEquals(frame.index(), (long) decoded);
+            presented.add(decoded);
+        });
+        pipeline.start();
+        for (int i = 0; i < 200; i++) {
+            pipeline.submit(frame(i));
+        }
+        pipeline.stop();
+        assertEquals(200, presented.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, (long) presented.get(i));
+        }
+    }
+
+    @Test
+    public void skipsStaleFramesWhenDecodeFallsBehind() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> presented = Collections.synchronizedList(new ArrayList<>());
+        List<Long> skipped = Collections.synchronizedList(new ArrayList<>());
+        DecodePipeline<Long> pipeline = new DecodePipeline<>(1, 2, frame -> {
+            release.await(5, TimeUnit.SECONDS);
+            return frame.index();
+        }, (frame, decoded, wasSkipped) -> (wasSkipped ? skipped : presented).add(frame.index()));
+        pipeline.start();
+        pipeline.submit(frame(0));
+        // Let the worker pick up frame 0 and block in decode
+        Thread.sleep(100);
+        for (int i = 1; i <= 10; i++) {
+            pipeline.submit(frame(i));
+        }
+        release.countDown();
+        pipeline.stop();
+
+        // Only the two newest waiting frames survive
+        assertEquals(List.of(0L, 9L, 10L), presented);
+        assertEquals(8, skipped.size());
+        assertEquals(8, pipeline.getSkippedCount());
+        assertEquals(11, pipeline.getSubmittedCount());
+    }
+
+    @Test
+    public void failedDecodeIsPresentedAsNull() throws Exception {
+        List<Object> results = Collections.synchronizedList(new ArrayList<>());
+        DecodePipeline<Long> pipeline = new DecodePipeline<>(2, 10, frame -> {
+            if (frame.index() == 1) {
+                throw new IllegalStateException("corrupt");
+            }
+            return frame.index();
+        }, (frame, decoded, skipped) -> results.add(decoded));
+        pipeline.start();
+        for (int i = 0; i < 3; i++) {
+            pipeline.submit(frame(i));
+        }
+        pipeline.stop();
+        assertEquals(java.util.Arrays.asList(0L, null, 2L), results);
+        assertEquals(1, pipeline.getFailedCount());
+    }
+}
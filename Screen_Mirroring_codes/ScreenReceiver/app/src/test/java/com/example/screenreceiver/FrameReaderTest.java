@@ -0,0 +1,70 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.protocol.FrameHeader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameReaderTest {
+
+    private static void writeFrame(ByteArrayOutputStream out, long sequence, byte[] payload) {
+        ByteBuffer header = ByteBuffer.allocate(FrameHeader.SIZE);
+        new FrameHeader().set(FrameHeader.TYPE_DELTA, FrameHeader.CODEC_TILES_JPEG, 0, 480, 720, sequence,
+                1000 + sequence, payload.length).write(header);
+        out.write(header.array(), 0, FrameHeader.SIZE);
+        out.write(payload, 0, payload.length);
+    }
+
+    private static void writeLegacy(ByteArrayOutputStream out, byte[] payload) {
+        out.write(ByteBuffer.allocate(4).putInt(payload.length).array(), 0, 4);
+        out.write(payload, 0, payload.length);
+    }
+
+    @Test
+    public void readsBothFormatsFromOneStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeLegacy(out, new byte[]{1, 2, 3});
+        writeFrame(out, 42, new byte[]{4, 5});
+        writeLegacy(out, new byte[0]);
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        ReceivedFrame first = reader.read();
+        assertTrue(first.isLegacy());
+        assertEquals(FrameHeader.CODEC_JPEG, first.codec());
+        assertArrayEquals(new byte[]{1, 2, 3}, first.payload());
+
+        ReceivedFrame second = reader.read();
+        assertFalse(second.isLegacy());
+        assertEquals(42, second.sequence());
+        assertEquals(1042, second.captureTimeUs());
+        assertEquals(FrameHeader.CODEC_TILES_JPEG, second.codec());
+        assertFalse(second.isKeyFrame());
+        assertEquals(480, second.width());
+        assertArrayEquals(new byte[]{4, 5}, second.payload());
+        assertEquals(1, second.index());
+
+        assertEquals(0, reader.read().payload().length);
+        assertNull(reader.read());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedPayloadFails() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeFrame(out, 1, new byte[100]);
+        byte[] bytes = out.toByteArray();
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes, 0, bytes.length - 1);
+        new FrameReader(in).read();
+    }
+
+    @Test(expected = IOException.class)
+    public void absurdLegacyLengthFails() throws Exception {
+        byte[] bytes = ByteBuffer.allocate(4).putInt(0x7F000000).array();
+        new FrameReader(new ByteArrayInputStream(bytes)).read();
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.screenreceiver;
+
+import com.example.mirror.stats.LatencyHistogram;
+
+import org.junit.Test;
+
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+public class ScreenReceiverTest {
+
+    private static void waitFor(ReceiverStats stats, long presented) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (stats.getPresentedCount() + stats.getSkippedCount() < presented
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static ScreenReceiver sendOverLoopback(boolean legacy, long clockOffsetUs) throws Exception {
+        ScreenReceiver receiver = new ScreenReceiver(0, 2, null);
+        receiver.start();
+        try {
+            SyntheticSender sender = new SyntheticSender(160, 240, legacy, clockOffsetUs);
+            try (Socket socket = new Socket("127.0.0.1", receiver.getPort())) {
+                sender.send(socket, 200, 40);
+            }
+            ReceiverStats stats = receiver.getStats();
+            waitFor(stats, 40);
+            assertEquals(40, stats.getReceivedCount());
+            assertEquals(0, stats.getFailedCount());
+            assertEquals(40, stats.getPresentedCount() + stats.getSkippedCount());
+            assertTrue(stats.getPresentedCount() > 0);
+            assertEquals(0, stats.getSequenceGaps());
+            assertTrue(stats.getDecodeTime().getCount() > 0);
+            assertEquals(39, stats.getInterArrival().getCount());
+        } finally {
+            receiver.stop();
+        }
+        return receiver;
+    }
+
+    @Test
+    public void receivesCurrentFraming() throws Exception {
+        sendOverLoopback(false, 0);
+    }
+
+    @Test
+    public void receivesLegacyFraming() throws Exception {
+        ScreenReceiver receiver = sendOverLoopback(true, 0);
+        assertEquals(0, receiver.getLatency().getTotal().getCount());
+    }
+
+    @Test
+    public void syncsToSkewedSenderClock() throws Exception {
+        // Sender clock runs 5 s ahead of ours
+        ScreenReceiver receiver = sendOverLoopback(false, 5_000_000);
+        ClockOffsetEstimator clock = receiver.getClock();
+        assertTrue(clock.hasEstimate());
+        assertEquals(5_000_000, clock.getOffsetUs(), 1000 + clock.getRoundTripUs());
+        LatencyHistogram total = receiver.getLatency().getTotal();
+        assertTrue(total.getCount() > 0);
+        // Loopback glass-to-glass is milliseconds, not the 5 s skew
+        assertTrue(total.getPercentile(50) < 500_000);
+    }
+}
@@ -0,0 +1 @@
+// Top-level build file where you can add configuration options common to all sub-projects/modules.
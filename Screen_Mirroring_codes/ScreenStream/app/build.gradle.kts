@@ -32,8 +32,8 @@ android {
 }
 
 dependencies {
+    implementation(project(":mirror-common"))
 
-    implementation("com.arthenica:ffmpeg-kit-full-gpl:4.5.1-1")
     implementation(libs.appcompat)
     implementation(libs.material)
     implementation(libs.activity)
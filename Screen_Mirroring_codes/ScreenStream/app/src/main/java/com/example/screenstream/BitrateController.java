@@ -0,0 +1,192 @@
+package com.example.screenstream;
+
+/**
+ * Picks the encoder bitrate from network feedback with additive increase and
+ * multiplicative decrease between a floor and a ceiling.
+ *
+ * Feedback is reported as it arrives: frames waiting in the send queue, frames
+ * the queue had to drop, bytes stuck behind a stalled socket write and the
+ * loss and round trip time from RTCP receiver reports. {@link #update} is
+ * called on a fixed interval, looks at the worst values reported since the
+ * previous call and moves the target.
+ *
+ * Any sign of congestion cuts the rate by the back-off factor, at most once per
+ * {@link #BACK_OFF_HOLD_MS} so a single episode that shows up in several
+ * signals is not counted twice. The rate only grows again after
+ * {@link #RAMP_UP_DELAY_MS} without congestion, by a fixed step per update.
+ *
+ * No clocks or threads of its own: the caller passes the time, which keeps the
+ * controller deterministic under test.
+ */
+public class BitrateController {
+
+    public interface Listener {
+        void onBitrateChanged(int bitrateBps);
+    }
+
+    /** Frames queued for sending beyond this many mean the link does not keep up. */
+    static final int QUEUE_THRESHOLD_FRAMES = 3;
+    /** Bytes stuck behind a socket write beyond this mean the client stopped reading. */
+    static final int STALL_THRESHOLD_BYTES = 64 * 1024;
+    /** Loss fraction reported by a receiver that counts as congestion. */
+    static final float LOSS_THRESHOLD = 0.02f;
+    /** Queueing delay on top of the smallest round trip seen that counts as congestion. */
+    static final long RTT_INFLATION_MS = 100;
+    static final long BACK_OFF_HOLD_MS = 1000;
+    static final long RAMP_UP_DELAY_MS = 2000;
+    public static final double DEFAULT_BACK_OFF_FACTOR = 0.7;
+
+    private final int floorBps;
+    private final int ceilingBps;
+    private final int increaseStepBps;
+    private final double backOffFactor;
+    private volatile Listener listener;
+
+    private int bitrateBps;
+    private long lastBackOffMs = Long.MIN_VALUE / 2;
+    private long lastCongestionMs = Long.MIN_VALUE / 2;
+    private long minRttMs = -1;
+
+    // Worst values reported since the last update
+    private int maxQueuedFrames;
+    private long droppedFrames;
+    private int maxPendingBytes;
+    private float maxLossFraction;
+    private long maxRttMs = -1;
+
+    private long backOffCount;
+    private long increaseCount;
+
+    /** Uses a step of 5% of the ceiling and {@link #DEFAULT_BACK_OFF_FACTOR}. */
+    public BitrateController(int floorBps, int ceilingBps, int initialBps) {
+        this(floorBps, ceilingBps, initialBps, ceilingBps / 20, DEFAULT_BACK_OFF_FACTOR);
+    }
+
+    /**
+     * @param increaseStepBps added per update once the link has been clean for a while
+     * @param backOffFactor   multiplier applied on congestion, between 0 and 1
+     */
+    public BitrateController(int floorBps, int ceilingBps, int initialBps, int increaseStepBps, double backOffFactor) {
+        if (floorBps <= 0 || ceilingBps < floorBps) {
+            throw new IllegalArgumentException("Bad bitrate range " + floorBps + "-" + ceilingBps);
+        }
+        if (increaseStepBps <= 0 || backOffFactor <= 0 || backOffFactor >= 1) {
+            throw new IllegalArgumentException("Bad step " + increaseStepBps + " or factor " + backOffFactor);
+        }
+        this.floorBps = floorBps;
+        this.ceilingBps = ceilingBps;
+        this.increaseStepBps = increaseStepBps;
+        this.backOffFactor = backOffFactor;
+        this.bitrateBps = clamp(initialBps);
+    }
+
+    /** Called from {@link #update} whenever the target changes. */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized int getBitrate() {
+        return bitrateBps;
+    }
+
+    public int getFloor() {
+        return floorBps;
+    }
+
+    public int getCeiling() {
+        return ceilingBps;
+    }
+
+    public synchronized long getBackOffCount() {
+        return backOffCount;
+    }
+
+    public synchronized long getIncreaseCount() {
+        return increaseCount;
+    }
+
+    /** Frames currently waiting to be sent. */
+    public synchronized void onQueueDepth(int frames) {
+        maxQueuedFrames = Math.max(maxQueuedFrames, frames);
+    }
+
+    /** Frames discarded by the send queue since the last report. */
+    public synchronized void onFramesDropped(long count) {
+        droppedFrames += count;
+    }
+
+    /** Bytes a client socket did not accept yet. */
+    public synchronized void onPendingBytes(int bytes) {
+        maxPendingBytes = Math.max(maxPendingBytes, bytes);
+    }
+
+    /**
+     * Feedback from a receiver report.
+     *
+     * @param lossFraction fraction of packets lost since the previous report
+     * @param rttMs        round trip time, or a negative value if unknown
+     */
+    public synchronized void onReceiverReport(float lossFraction, long rttMs) {
+        maxLossFraction = Math.max(maxLossFraction, lossFraction);
+        if (rttMs >= 0) {
+            maxRttMs = Math.max(maxRttMs, rttMs);
+            if (minRttMs < 0 || rttMs < minRttMs) {
+                minRttMs = rttMs;
+            }
+        }
+    }
+
+    /**
+     * Moves the target according to the feedback since the previous call and
+     * resets it.
+     *
+     * @return the new target bitrate
+     */
+    public int update(long nowMs) {
+        int previous;
+        int updated;
+        synchronized (this) {
+            previous = bitrateBps;
+            if (isCongested()) {
+                lastCongestionMs = nowMs;
+                if (nowMs - lastBackOffMs >= BACK_OFF_HOLD_MS && bitrateBps > floorBps) {
+                    bitrateBps = clamp((int) Math.round(bitrateBps * backOffFactor));
+                    lastBackOffMs = nowMs;
+                    backOffCount++;
+                }
+            } else if (nowMs - lastCongestionMs >= RAMP_UP_DELAY_MS && bitrateBps < ceilingBps) {
+                bitrateBps = clamp(bitrateBps + increaseStepBps);
+                increaseCount++;
+            }
+            maxQueuedFrames = 0;
+            droppedFrames = 0;
+            maxPendingBytes = 0;
+            maxLossFraction = 0;
+            maxRttMs = -1;
+            updated = bitrateBps;
+        }
+        Listener listener = this.listener;
+        if (updated != previous && listener != null) {
+            listener.onBitrateChanged(updated);
+        }
+        return updated;
+    }
+
+    private boolean isCongested() {
+        return maxQueuedFrames > QUEUE_THRESHOLD_FRAMES
+                || droppedFrames > 0
+                || maxPendingBytes > STALL_THRESHOLD_BYTES
+                || maxLossFraction > LOSS_THRESHOLD
+                || (maxRttMs >= 0 && maxRttMs > minRttMs + RTT_INFLATION_MS);
+    }
+
+    private int clamp(int bps) {
+        return Math.max(floorBps, Math.min(ceilingBps, bps));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Bitrate " + bitrateBps + " bps (" + floorBps + "-" + ceilingBps + ")"
+                + " backOffs=" + backOffCount + " increases=" + increaseCount;
+    }
+}
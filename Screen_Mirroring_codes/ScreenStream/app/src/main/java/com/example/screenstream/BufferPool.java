@@ -0,0 +1,171 @@
+package com.example.screenstream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reference-counted direct buffers in power-of-two size classes.
+ * Encoded frames are copied once into a pooled buffer and then shared by
+ * reference; the buffer returns to its class when the last holder releases it.
+ * Once warmed up, acquiring and releasing allocates nothing.
+ *
+ * Requests larger than the biggest class get a one-off buffer that is not
+ * pooled.
+ */
+public class BufferPool {
+
+    public static final class PooledBuffer {
+        private final BufferPool pool;
+        private final int sizeClass;
+        private final ByteBuffer buffer;
+        private final AtomicInteger refCount = new AtomicInteger();
+
+        private PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+            this.pool = pool;
+            this.sizeClass = sizeClass;
+            this.buffer = buffer;
+        }
+
+        /** The underlying buffer. Holders must not change its contents once shared. */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        public int capacity() {
+            return buffer.capacity();
+        }
+
+        public PooledBuffer retain() {
+            if (refCount.getAndIncrement() <= 0) {
+                refCount.getAndDecrement();
+                throw new IllegalStateException("Buffer already released");
+            }
+            return this;
+        }
+
+        public void release() {
+            int remaining = refCount.decrementAndGet();
+            if (remaining == 0) {
+                pool.recycle(this);
+            } else if (remaining < 0) {
+                throw new IllegalStateException("Buffer released too often");
+            }
+        }
+
+        public int refCount() {
+            return refCount.get();
+        }
+    }
+
+    private final int minShift;
+    private final int maxShift;
+    private final int maxPooledPerClass;
+    // One free list per size class, smallest first
+    private final List<ArrayDeque<PooledBuffer>> freeLists;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesInUse = new AtomicLong();
+    private final AtomicLong bytesPooled = new AtomicLong();
+
+    /**
+     * @param minSize smallest size class, rounded up to a power of two
+     * @param maxSize largest size class, rounded up to a power of two
+     * @param maxPooledPerClass free buffers kept per class, extra ones are left to the GC
+     */
+    public BufferPool(int minSize, int maxSize, int maxPooledPerClass) {
+        this.minShift = shiftFor(minSize);
+        this.maxShift = shiftFor(maxSize);
+        this.maxPooledPerClass = maxPooledPerClass;
+        freeLists = new ArrayList<>(maxShift - minShift + 1);
+        for (int shift = minShift; shift <= maxShift; shift++) {
+            freeLists.add(new ArrayDeque<>(maxPooledPerClass));
+        }
+    }
+
+    private static int shiftFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Returns a buffer of at least {@code size} bytes with a reference count of
+     * one, position 0 and limit {@code size}.
+     */
+    public PooledBuffer acquire(int size) {
+        int shift = Math.max(minShift, shiftFor(size));
+        PooledBuffer pooled = null;
+        if (shift <= maxShift) {
+            ArrayDeque<PooledBuffer> freeList = freeLists.get(shift - minShift);
+            synchronized (freeList) {
+                pooled = freeList.pollFirst();
+            }
+            if (pooled != null) {
+                hits.incrementAndGet();
+                bytesPooled.addAndGet(-pooled.capacity());
+            } else {
+                misses.incrementAndGet();
+                pooled = new PooledBuffer(this, shift, ByteBuffer.allocateDirect(1 << shift));
+            }
+        } else {
+            misses.incrementAndGet();
+            pooled = new PooledBuffer(this, -1, ByteBuffer.allocateDirect(size));
+        }
+        pooled.refCount.set(1);
+        pooled.buffer.clear();
+        pooled.buffer.limit(size);
+        bytesInUse.addAndGet(pooled.capacity());
+        return pooled;
+    }
+
+    /** Acquires a buffer and copies the bytes between position and limit of {@code src} into it. */
+    public PooledBuffer copyOf(ByteBuffer src) {
+        PooledBuffer pooled = acquire(src.remaining());
+        int position = src.position();
+        pooled.buffer.put(src);
+        pooled.buffer.flip();
+        src.position(position);
+        return pooled;
+    }
+
+    private void recycle(PooledBuffer pooled) {
+        bytesInUse.addAndGet(-pooled.capacity());
+        if (pooled.sizeClass < 0) {
+            return;
+        }
+        ArrayDeque<PooledBuffer> freeList = freeLists.get(pooled.sizeClass - minShift);
+        synchronized (freeList) {
+            if (freeList.size() < maxPooledPerClass) {
+                freeList.addFirst(pooled);
+                bytesPooled.addAndGet(pooled.capacity());
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Capacity of all buffers currently held by someone. */
+    public long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    /** Capacity of all free buffers waiting in the pool. */
+    public long getBytesPooled() {
+        return bytesPooled.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool hits=" + hits.get() + " misses=" + misses.get()
+                + " inUse=" + bytesInUse.get() + "B pooled=" + bytesPooled.get() + "B";
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives encoded access units, H.264 or HEVC as {@link VideoCodec} chose,
+ * from the encoder drain. The buffer and the scan result are only valid during
+ * the call; the codec buffer is released as soon as the sink returns.
+ */
+public interface EncodedFrameSink {
+    void onFrame(ByteBuffer frame, NalScanner nals, long presentationTimeUs, boolean keyFrame);
+}
@@ -0,0 +1,167 @@
+package com.example.screenstream;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.example.mirror.media.NalScanner;
+import com.example.mirror.stats.LatencyHistogram;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Drains the encoder through {@link MediaCodec.Callback} on its own
+ * HandlerThread. Each output buffer is scanned once and passed to the sink as
+ * soon as the codec signals it, instead of polling dequeueOutputBuffer().
+ *
+ * Set it with {@code mediaCodec.setCallback(drain, drain.getHandler())} before
+ * configure().
+ */
+public class EncoderDrain extends MediaCodec.Callback {
+    private static final String TAG = "EncoderDrain";
+    private static final long STATS_INTERVAL_US = 5_000_000;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final ParameterSets parameterSets;
+    private final NalScanner nalScanner = new NalScanner();
+    private volatile EncodedFrameSink sink;
+    private volatile Runnable nextKeyFrameAction;
+    private volatile StartupReport startupReport;
+
+    // Capture timestamp to the moment the frame reaches the sink, encode time included
+    private final LatencyHistogram captureToSink = new LatencyHistogram("capture->sink");
+    // Time spent inside the sink per frame
+    private final LatencyHistogram sinkTime = new LatencyHistogram("sink");
+    private long framesInInterval;
+    private long intervalStartUs;
+
+    public EncoderDrain(ParameterSets parameterSets) {
+        this.parameterSets = parameterSets;
+        thread = new HandlerThread("EncoderDrain", android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    public void setSink(EncodedFrameSink sink) {
+        this.sink = sink;
+    }
+
+    /** Marks when the parameter sets and the first frame come out of the encoder. */
+    public void setStartupReport(StartupReport startupReport) {
+        this.startupReport = startupReport;
+    }
+
+    /** Runs the action once on the drain thread when the next key frame comes out of the encoder. */
+    public void runOnNextKeyFrame(Runnable action) {
+        nextKeyFrameAction = action;
+    }
+
+    public LatencyHistogram getCaptureToSink() {
+        return captureToSink;
+    }
+
+    public LatencyHistogram getSinkTime() {
+        return sinkTime;
+    }
+
+    public void quit() {
+        thread.quitSafely();
+        Log.d(TAG, captureToSink + ", " + sinkTime);
+    }
+
+    @Override
+    public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        // Input comes from the surface
+    }
+
+    @Override
+    public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+        try {
+            ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+            if (outputBuffer == null || info.size <= 0) {
+                return;
+            }
+            outputBuffer.position(info.offset);
+            outputBuffer.limit(info.offset + info.size);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // SPS/PPS only change with the output format, no need to send them as a frame
+                if (parameterSets.update(outputBuffer, null)) {
+                    markStreamHeader();
+                }
+                return;
+            }
+
+            StartupReport report = startupReport;
+            if (report != null) {
+                report.mark(StartupReport.Phase.FIRST_OUTPUT);
+            }
+            boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            Runnable keyFrameAction = nextKeyFrameAction;
+            if (keyFrame && keyFrameAction != null) {
+                nextKeyFrameAction = null;
+                keyFrameAction.run();
+            }
+            EncodedFrameSink sink = this.sink;
+            if (sink == null) {
+                return;
+            }
+            // One scan per frame, shared by everything that consumes it
+            nalScanner.scan(outputBuffer);
+            long handoffUs = System.nanoTime() / 1000;
+            captureToSink.record(handoffUs - info.presentationTimeUs);
+            sink.onFrame(outputBuffer, nalScanner, info.presentationTimeUs, keyFrame);
+            long doneUs = System.nanoTime() / 1000;
+            sinkTime.record(doneUs - handoffUs);
+            logRate(doneUs);
+        } finally {
+            codec.releaseOutputBuffer(index, false);
+        }
+    }
+
+    private void logRate(long nowUs) {
+        framesInInterval++;
+        if (intervalStartUs == 0) {
+            intervalStartUs = nowUs;
+        } else if (nowUs - intervalStartUs >= STATS_INTERVAL_US) {
+            double fps = framesInInterval * 1_000_000.0 / (nowUs - intervalStartUs);
+            Log.d(TAG, String.format(Locale.US, "%.1f fps, %s, %s", fps, captureToSink, sinkTime));
+            framesInInterval = 0;
+            intervalStartUs = nowUs;
+        }
+    }
+
+    @Override
+    public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+        Log.e(TAG, "Encoder error", e);
+    }
+
+    @Override
+    public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        Log.d(TAG, "Output format changed: " + format);
+        // H.264 has SPS in csd-0 and PPS in csd-1, HEVC has VPS, SPS and PPS all in csd-0
+        ByteBuffer csd0 = format.getByteBuffer("csd-0");
+        ByteBuffer csd1 = format.getByteBuffer("csd-1");
+        if (csd0 != null && parameterSets.update(csd0, csd1)) {
+            Log.d(TAG, "Cached parameter sets " + parameterSets.getFormatParameters());
+            markStreamHeader();
+        }
+    }
+
+    private void markStreamHeader() {
+        StartupReport report = startupReport;
+        if (report != null && parameterSets.isComplete()) {
+            report.mark(StartupReport.Phase.STREAM_HEADER);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.screenstream;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Android side of {@link EncoderSelector}: reads the candidates from
+ * MediaCodecList, keeps the selection cached in the app's files, creates the
+ * codec and sets the keys that keep its output latency low.
+ */
+final class EncoderProbe {
+    private static final String TAG = "EncoderProbe";
+    private static final String CACHE_FILE_PREFIX = "encoder-selection-";
+    // A static screen still produces a frame this often, so receivers keep their clocks running
+    private static final long REPEAT_PREVIOUS_FRAME_AFTER_US = 500_000;
+
+    private EncoderProbe() {
+    }
+
+    /** Returns the cached selection for the codec and size, probing and caching it on a miss. Null if nothing fits. */
+    static EncoderSelector.Selection select(Context context, VideoCodec codec, int width, int height) {
+        String mimeType = codec.getMimeType();
+        File cache = cacheFile(context, codec);
+        String key = EncoderSelector.cacheKey(Build.FINGERPRINT, mimeType, width, height);
+        EncoderSelector.Selection selection = EncoderSelector.load(cache, key);
+        if (selection != null) {
+            Log.d(TAG, "Cached encoder " + selection);
+            return selection;
+        }
+        long startNs = System.nanoTime();
+        int[] profiles = codec == VideoCodec.HEVC ? EncoderSelector.HEVC_PROFILES : EncoderSelector.AVC_PROFILES;
+        selection = EncoderSelector.select(enumerate(mimeType), width, height, profiles);
+        Log.d(TAG, "Probed encoders in " + (System.nanoTime() - startNs) / 1_000_000 + " ms: " + selection);
+        if (selection != null) {
+            try {
+                EncoderSelector.save(cache, key, selection);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot cache encoder selection", e);
+            }
+        }
+        return selection;
+    }
+
+    /** Drops the cached selection, for when the chosen encoder turned out not to work. */
+    static void forget(Context context, VideoCodec codec) {
+        if (!cacheFile(context, codec).delete()) {
+            Log.d(TAG, "No cached " + codec + " encoder selection");
+        }
+    }
+
+    private static File cacheFile(Context context, VideoCodec codec) {
+        return new File(context.getFilesDir(), CACHE_FILE_PREFIX + codec.name().toLowerCase(Locale.US) + ".properties");
+    }
+
+    static List<EncoderSelector.Candidate> enumerate(String mimeType) {
+        List<EncoderSelector.Candidate> candidates = new ArrayList<>();
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder() || !supportsType(info, mimeType)) {
+                continue;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && info.isAlias()) {
+                // Same encoder under another name
+                continue;
+            }
+            MediaCodecInfo.CodecCapabilities capabilities;
+            try {
+                capabilities = info.getCapabilitiesForType(mimeType);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+            MediaCodecInfo.EncoderCapabilities encoder = capabilities.getEncoderCapabilities();
+            if (video == null || encoder == null) {
+                continue;
+            }
+            EncoderSelector.Candidate candidate = new EncoderSelector.Candidate(info.getName(), isHardware(info))
+                    .sizes(video.getSupportedWidths().getLower(), video.getSupportedWidths().getUpper(),
+                            video.getSupportedHeights().getLower(), video.getSupportedHeights().getUpper(),
+                            video.getWidthAlignment(), video.getHeightAlignment())
+                    .bitrateModes(encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR),
+                            encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR));
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+                candidate.profileLevel(profileLevel.profile, profileLevel.level);
+            }
+            candidates.add(candidate);
+        }
+        return candidates;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mimeType) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated() && !info.isSoftwareOnly();
+        }
+        // Before Android 10 the platform's software codecs are only known by name
+        String name = info.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.contains(".sw.");
+    }
+
+    /** Creates the selected encoder, or the platform default if there is no selection or it fails. */
+    static MediaCodec createEncoder(EncoderSelector.Selection selection, String mimeType) throws IOException {
+        if (selection != null) {
+            try {
+                return MediaCodec.createByCodecName(selection.getCodecName());
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Cannot create " + selection.getCodecName() + ", using the default encoder", e);
+            }
+        }
+        return MediaCodec.createEncoderByType(mimeType);
+    }
+
+    /** Sets the selected bitrate mode and profile and the keys that keep output latency low. */
+    static void applyLowLatency(MediaFormat format, EncoderSelector.Selection selection, int frameRate) {
+        if (selection != null) {
+            if (selection.getBitrateMode() != 0) {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, selection.getBitrateMode());
+            }
+            if (selection.getProfile() != 0) {
+                format.setInteger(MediaFormat.KEY_PROFILE, selection.getProfile());
+                if (selection.getLevel() != 0) {
+                    format.setInteger(MediaFormat.KEY_LEVEL, selection.getLevel());
+                }
+            }
+        }
+        // 0 is realtime: the codec keeps up with frameRate rather than saving power
+        format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+        format.setInteger(MediaFormat.KEY_OPERATING_RATE, frameRate);
+        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, REPEAT_PREVIOUS_FRAME_AFTER_US);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // Output each frame before the next one goes in
+            format.setInteger(MediaFormat.KEY_LATENCY, 1);
+        }
+    }
+}
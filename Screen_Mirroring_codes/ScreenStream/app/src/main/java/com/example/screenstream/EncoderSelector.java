@@ -0,0 +1,261 @@
+package com.example.screenstream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Picks the encoder for a stream from a table of candidates, as enumerated from
+ * MediaCodecList by {@link EncoderProbe}. Candidates that cannot encode the
+ * size are skipped; of the rest, hardware encoders beat software ones, then
+ * encoders with constant bitrate beat those with only variable bitrate, then
+ * the better profile wins. Ties keep the platform's order, which lists the
+ * preferred codec first.
+ *
+ * Bitrate modes and profiles use the values of MediaCodecInfo so the table can
+ * be built without Android in tests.
+ *
+ * The result is cached in a properties file keyed on the build fingerprint
+ * and the size, so later starts skip enumerating codecs.
+ */
+public class EncoderSelector {
+    // MediaCodecInfo.EncoderCapabilities
+    public static final int BITRATE_MODE_VBR = 1;
+    public static final int BITRATE_MODE_CBR = 2;
+    // MediaCodecInfo.CodecProfileLevel
+    public static final int AVC_PROFILE_BASELINE = 0x01;
+    public static final int AVC_PROFILE_MAIN = 0x02;
+    public static final int AVC_PROFILE_HIGH = 0x08;
+    public static final int AVC_PROFILE_CONSTRAINED_BASELINE = 0x10000;
+    public static final int AVC_PROFILE_CONSTRAINED_HIGH = 0x80000;
+    public static final int HEVC_PROFILE_MAIN = 0x01;
+
+    // Best first. None of them needs B-frames, which a low latency stream does not use
+    public static final int[] AVC_PROFILES = {
+            AVC_PROFILE_CONSTRAINED_HIGH,
+            AVC_PROFILE_HIGH,
+            AVC_PROFILE_MAIN,
+            AVC_PROFILE_CONSTRAINED_BASELINE,
+            AVC_PROFILE_BASELINE
+    };
+    // The screen is 8-bit, Main 10 would only cost bandwidth
+    public static final int[] HEVC_PROFILES = {HEVC_PROFILE_MAIN};
+
+    /** What one encoder reports about itself. */
+    public static final class Candidate {
+        private final String name;
+        private final boolean hardware;
+        private int minWidth = 1;
+        private int maxWidth = Integer.MAX_VALUE;
+        private int minHeight = 1;
+        private int maxHeight = Integer.MAX_VALUE;
+        private int widthAlignment = 1;
+        private int heightAlignment = 1;
+        private boolean cbr;
+        private boolean vbr;
+        private final List<int[]> profileLevels = new ArrayList<>();
+
+        public Candidate(String name, boolean hardware) {
+            this.name = name;
+            this.hardware = hardware;
+        }
+
+        public Candidate sizes(int minWidth, int maxWidth, int minHeight, int maxHeight,
+                               int widthAlignment, int heightAlignment) {
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+            this.minHeight = minHeight;
+            this.maxHeight = maxHeight;
+            this.widthAlignment = Math.max(1, widthAlignment);
+            this.heightAlignment = Math.max(1, heightAlignment);
+            return this;
+        }
+
+        public Candidate bitrateModes(boolean cbr, boolean vbr) {
+            this.cbr = cbr;
+            this.vbr = vbr;
+            return this;
+        }
+
+        public Candidate profileLevel(int profile, int level) {
+            profileLevels.add(new int[]{profile, level});
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isHardware() {
+            return hardware;
+        }
+
+        public boolean isSizeSupported(int width, int height) {
+            return width >= minWidth && width <= maxWidth && height >= minHeight && height <= maxHeight
+                    && width % widthAlignment == 0 && height % heightAlignment == 0;
+        }
+
+        // Index in the preference of the best supported profile, or the length if none
+        int bestProfileRank(int[] preference) {
+            int best = preference.length;
+            for (int[] profileLevel : profileLevels) {
+                for (int rank = 0; rank < best; rank++) {
+                    if (preference[rank] == profileLevel[0]) {
+                        best = rank;
+                    }
+                }
+            }
+            return best;
+        }
+
+        // Highest level listed for the profile, or 0
+        int maxLevel(int profile) {
+            int level = 0;
+            for (int[] profileLevel : profileLevels) {
+                if (profileLevel[0] == profile) {
+                    level = Math.max(level, profileLevel[1]);
+                }
+            }
+            return level;
+        }
+    }
+
+    /** The chosen encoder and how to configure it. */
+    public static final class Selection {
+        private final String codecName;
+        private final boolean hardware;
+        private final int bitrateMode;
+        private final int profile;
+        private final int level;
+
+        /**
+         * @param bitrateMode one of the BITRATE_MODE constants, or 0 to leave the encoder's default
+         * @param profile     an AVC_PROFILE constant, or 0 to leave the encoder's default
+         */
+        public Selection(String codecName, boolean hardware, int bitrateMode, int profile, int level) {
+            this.codecName = codecName;
+            this.hardware = hardware;
+            this.bitrateMode = bitrateMode;
+            this.profile = profile;
+            this.level = level;
+        }
+
+        public String getCodecName() {
+            return codecName;
+        }
+
+        public boolean isHardware() {
+            return hardware;
+        }
+
+        public int getBitrateMode() {
+            return bitrateMode;
+        }
+
+        public int getProfile() {
+            return profile;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public String toString() {
+            return codecName + (hardware ? " (hardware)" : " (software)")
+                    + " mode=" + (bitrateMode == BITRATE_MODE_CBR ? "CBR" : bitrateMode == BITRATE_MODE_VBR ? "VBR" : "default")
+                    + " profile=0x" + Integer.toHexString(profile) + " level=0x" + Integer.toHexString(level);
+        }
+    }
+
+    private EncoderSelector() {
+    }
+
+    /** Selects an H.264 encoder, see {@link #select(List, int, int, int[])}. */
+    public static Selection select(List<Candidate> candidates, int width, int height) {
+        return select(candidates, width, height, AVC_PROFILES);
+    }
+
+    /**
+     * @param candidates         encoders in the platform's order
+     * @param profilePreference  profiles of the codec, best first, such as {@link #AVC_PROFILES}
+     * @return the best encoder for the size, or null if none can encode it
+     */
+    public static Selection select(List<Candidate> candidates, int width, int height, int[] profilePreference) {
+        Candidate best = null;
+        for (Candidate candidate : candidates) {
+            if (candidate.isSizeSupported(width, height) && (best == null || isBetter(candidate, best, profilePreference))) {
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        int bitrateMode = best.cbr ? BITRATE_MODE_CBR : best.vbr ? BITRATE_MODE_VBR : 0;
+        int rank = best.bestProfileRank(profilePreference);
+        int profile = rank < profilePreference.length ? profilePreference[rank] : 0;
+        return new Selection(best.name, best.hardware, bitrateMode, profile, profile != 0 ? best.maxLevel(profile) : 0);
+    }
+
+    private static boolean isBetter(Candidate candidate, Candidate best, int[] profilePreference) {
+        if (candidate.hardware != best.hardware) {
+            return candidate.hardware;
+        }
+        if (candidate.cbr != best.cbr) {
+            // Constant bitrate keeps frame sizes steady, which is what the send queues need
+            return candidate.cbr;
+        }
+        return candidate.bestProfileRank(profilePreference) < best.bestProfileRank(profilePreference);
+    }
+
+    /** Cache key: a new build or another size probes again. */
+    public static String cacheKey(String buildFingerprint, String mimeType, int width, int height) {
+        return buildFingerprint + "|" + mimeType + "|" + width + "x" + height;
+    }
+
+    /** Returns the selection cached under the key, or null if there is none or it is for another key. */
+    public static Selection load(File file, String key) {
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            if (!key.equals(properties.getProperty("key")) || properties.getProperty("codec") == null) {
+                return null;
+            }
+            return new Selection(properties.getProperty("codec"),
+                    Boolean.parseBoolean(properties.getProperty("hardware")),
+                    Integer.parseInt(properties.getProperty("bitrateMode", "0")),
+                    Integer.parseInt(properties.getProperty("profile", "0")),
+                    Integer.parseInt(properties.getProperty("level", "0")));
+        } catch (IOException | IllegalArgumentException e) {
+            // A damaged cache only costs a probe
+            return null;
+        }
+    }
+
+    public static void save(File file, String key, Selection selection) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("key", key);
+        properties.setProperty("codec", selection.codecName);
+        properties.setProperty("hardware", String.valueOf(selection.hardware));
+        properties.setProperty("bitrateMode", String.valueOf(selection.bitrateMode));
+        properties.setProperty("profile", String.valueOf(selection.profile));
+        properties.setProperty("level", String.valueOf(selection.level));
+        // Written aside and renamed, so a crash never leaves half a file behind
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "Encoder selection");
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Shares every encoded frame with any number of {@link FramePump}s, one per
+ * viewer. The frame is copied once into a pooled buffer and each pump queues a
+ * reference to it, so the encoder thread pays one copy however many viewers
+ * there are. Each pump has its own bounded ring, overflow policy and thread, so
+ * a slow viewer drops its own frames without holding up the encoder or the
+ * other viewers.
+ *
+ * With a {@link GopCache} every frame is also kept until the next key frame,
+ * and {@link #join} starts a new pump from the cached group.
+ */
+public class FrameFanOut implements EncodedFrameSink {
+    private final BufferPool pool;
+    private final GopCache gopCache;
+    // NAL units shifted to the start of the pooled copy
+    private final NalScanner sharedNals = new NalScanner();
+    // Copy-on-write so the frame path can iterate without allocating
+    private volatile FramePump[] pumps = new FramePump[0];
+
+    public FrameFanOut(BufferPool pool) {
+        this(pool, null);
+    }
+
+    /** @param gopCache keeps the current group of pictures for joining pumps, may be null */
+    public FrameFanOut(BufferPool pool, GopCache gopCache) {
+        this.pool = pool;
+        this.gopCache = gopCache;
+    }
+
+    public synchronized void add(FramePump pump) {
+        FramePump[] current = pumps;
+        FramePump[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = pump;
+        pumps = updated;
+    }
+
+    /** Builds the pump for {@link #join} once the number of cached frames it will be offered is known. */
+    public interface PumpFactory {
+        FramePump create(int cachedFrames);
+    }
+
+    /**
+     * Adds a pump and first offers it the cached group of pictures, so no live
+     * frame can slip in between. The pump is created under the same lock that
+     * replays the cache, so its ring can be sized for exactly the frames the
+     * cache holds on top of its live queue.
+     *
+     * @return true if the pump starts with a key frame, false if it has to
+     * wait for the encoder to produce one
+     */
+    public synchronized boolean join(PumpFactory factory) {
+        int cached = gopCache != null && gopCache.isUsable() ? gopCache.size() : 0;
+        FramePump pump = factory.create(cached);
+        int replayed = cached > 0 ? gopCache.replayTo(pump) : 0;
+        pump.setReplayedFrames(replayed);
+        add(pump);
+        return replayed > 0;
+    }
+
+    /**
+     * Detaches a pump. Once this returns the pump is not offered any more
+     * frames, so it can be stopped and its ring drained.
+     */
+    public synchronized void remove(FramePump pump) {
+        FramePump[] current = pumps;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == pump) {
+                FramePump[] updated = new FramePump[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                pumps = updated;
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return pumps.length;
+    }
+
+    /** The buffer position is left unchanged. */
+    @Override
+    public synchronized void onFrame(ByteBuffer frame, NalScanner nals, long presentationTimeUs, boolean keyFrame) {
+        FramePump[] current = pumps;
+        if (current.length == 0 && gopCache == null) {
+            return;
+        }
+        BufferPool.PooledBuffer shared = pool.copyOf(frame);
+        try {
+            if (nals != null) {
+                sharedNals.copyFrom(nals, shared.buffer(), -frame.position());
+            } else {
+                sharedNals.scan(shared.buffer());
+            }
+            if (gopCache != null) {
+                gopCache.add(shared, sharedNals, presentationTimeUs, keyFrame);
+            }
+            for (FramePump pump : current) {
+                pump.onSharedFrame(shared, sharedNals, presentationTimeUs, keyFrame);
+            }
+        } finally {
+            // Each ring and the cache hold their own reference now
+            shared.release();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+import com.example.mirror.stats.LatencyHistogram;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves frames from the encoder callback to a downstream sink on a separate
+ * thread through a {@link FrameRing}. The encoder thread only pays for one copy
+ * into the ring and can release its codec buffer right away, however slow the
+ * sink is.
+ *
+ * Several pumps can be fed the same pooled frame through {@link #onSharedFrame},
+ * each with its own ring and thread, so one slow sink only fills its own ring.
+ */
+public class FramePump implements EncodedFrameSink {
+    private static final Logger LOG = Logger.getLogger("FramePump");
+
+    private final FrameRing ring;
+    private final EncodedFrameSink downstream;
+    private final Runnable keyFrameRequest;
+    private final LatencyHistogram queueDelay = new LatencyHistogram("queue");
+    private final LatencyHistogram sendTime = new LatencyHistogram("send");
+    // Presentation times of a surface input encoder are on the System.nanoTime() clock
+    private final LatencyHistogram captureToSent = new LatencyHistogram("capture->sent");
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean keyFrameRequested;
+    // Frames offered from a GOP cache when the pump joined, ahead of the live ones
+    private volatile int replayedFrames;
+
+    /**
+     * @param keyFrameRequest called once when the ring starts discarding frames
+     *                        until the next key frame, may be null
+     */
+    public FramePump(FrameRing ring, EncodedFrameSink downstream, Runnable keyFrameRequest) {
+        this(ring, downstream, keyFrameRequest, "FramePump");
+    }
+
+    /** @param threadName name of the thread that feeds {@code downstream} */
+    public FramePump(FrameRing ring, EncodedFrameSink downstream, Runnable keyFrameRequest, String threadName) {
+        this.ring = ring;
+        this.downstream = downstream;
+        this.keyFrameRequest = keyFrameRequest;
+        thread = new Thread(this::run, threadName);
+        thread.start();
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, NalScanner nals, long presentationTimeUs, boolean keyFrame) {
+        offered(ring.offer(frame, nals, presentationTimeUs, 0, keyFrame), keyFrame);
+    }
+
+    /**
+     * Queues a frame that other pumps may hold as well, without copying it.
+     *
+     * @param nals NAL units of {@code frame}, relative to the start of its buffer
+     */
+    public void onSharedFrame(BufferPool.PooledBuffer frame, NalScanner nals, long presentationTimeUs, boolean keyFrame) {
+        offered(ring.offer(frame, nals, presentationTimeUs, 0, keyFrame), keyFrame);
+    }
+
+    private void offered(boolean queued, boolean keyFrame) {
+        if (queued) {
+            if (keyFrame) {
+                keyFrameRequested = false;
+            }
+        } else if (ring.isSkippingToKeyFrame() && !keyFrameRequested && keyFrameRequest != null) {
+            keyFrameRequested = true;
+            keyFrameRequest.run();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            FrameRing.Frame frame;
+            try {
+                frame = ring.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (frame == null) {
+                continue;
+            }
+            try {
+                long startNs = System.nanoTime();
+                queueDelay.record((startNs - frame.enqueueTimeNs()) / 1000);
+                downstream.onFrame(frame.data(), frame.nals(), frame.presentationTimeUs(), frame.isKeyFrame());
+                long sentUs = System.nanoTime() / 1000;
+                sendTime.record(sentUs - startNs / 1000);
+                captureToSent.record(sentUs - frame.presentationTimeUs());
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Sink failed", e);
+            } finally {
+                ring.release(frame);
+            }
+        }
+        // Hand back the buffers of frames that were never sent
+        FrameRing.Frame frame;
+        while ((frame = ring.poll()) != null) {
+            ring.release(frame);
+        }
+    }
+
+    public FrameRing getRing() {
+        return ring;
+    }
+
+    /** Called by {@link FrameFanOut#join} with the number of cached frames offered before any live one. */
+    void setReplayedFrames(int frames) {
+        replayedFrames = frames;
+    }
+
+    /**
+     * Live frames waiting in the ring. A replayed group of pictures is a
+     * backlog by design and says nothing about the link, so it only counts
+     * once live frames queue up behind it. An upper bound while the replay
+     * drains, exact after.
+     */
+    public int getLiveQueuedFrames() {
+        return (int) Math.min(ring.size(), Math.max(0, ring.getOfferedCount() - replayedFrames));
+    }
+
+    public LatencyHistogram getQueueDelay() {
+        return queueDelay;
+    }
+
+    public LatencyHistogram getSendTime() {
+        return sendTime;
+    }
+
+    public LatencyHistogram getCaptureToSent() {
+        return captureToSent;
+    }
+
+    /** Stops the thread, may also be called from the sink to stop after the current frame. */
+    public void stop() {
+        running = false;
+        if (Thread.currentThread() != thread) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOG.info(thread.getName() + ": " + queueDelay + ", " + sendTime + ", " + captureToSent
+                + ", dropped " + ring.getDroppedCount() + " of " + ring.getOfferedCount());
+    }
+}
@@ -0,0 +1,331 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer queue of encoded frames. A frame is
+ * copied exactly once into a buffer from the {@link BufferPool} and the
+ * consumer reads it in place, or retains it to keep it past {@link #release}.
+ *
+ * Slots carry a sequence number as in Vyukov's bounded queue: a slot at index
+ * i may be written when its sequence is i and read when it is i + 1. The
+ * consumer claims frames with a CAS on the read index, which lets the producer
+ * discard queued frames the same way when the ring is full and the
+ * {@link OverflowPolicy} allows it. No locks are taken on either side.
+ *
+ * A buffer that is already pooled can also be queued by reference, which is
+ * how one encoded frame is shared by the rings of several viewers.
+ */
+public class FrameRing {
+
+    public enum OverflowPolicy {
+        /** Wait for the consumer to free a slot. */
+        BLOCK,
+        /**
+         * Discard the oldest queued frame unless it is a key frame. If the oldest
+         * frame is a key frame the incoming non-key frame is discarded instead.
+         */
+        DROP_OLDEST_NON_KEY,
+        /**
+         * Discard everything queued and every following frame up to the next
+         * key frame, so the consumer never sees a broken reference chain.
+         */
+        DROP_TO_NEXT_IDR
+    }
+
+    /** A queued frame. Valid from {@link #poll} until {@link #release}. */
+    public static final class Frame {
+        private volatile long sequence;
+        private BufferPool.PooledBuffer data;
+        // The pooled buffer itself, or a view of it when the buffer is shared with other rings
+        private ByteBuffer view;
+        private final NalScanner nals = new NalScanner();
+        private long presentationTimeUs;
+        private int flags;
+        private boolean keyFrame;
+        private long enqueueTimeNs;
+
+        /** Frame bytes from position 0 to limit. Do not modify. */
+        public ByteBuffer data() {
+            return view;
+        }
+
+        /** The pooled buffer behind {@link #data()}, retain it to use the frame after release. */
+        public BufferPool.PooledBuffer buffer() {
+            return data;
+        }
+
+        /** NAL units of {@link #data()}, carried over from the producer's scan. */
+        public NalScanner nals() {
+            return nals;
+        }
+
+        public long presentationTimeUs() {
+            return presentationTimeUs;
+        }
+
+        public int flags() {
+            return flags;
+        }
+
+        public boolean isKeyFrame() {
+            return keyFrame;
+        }
+
+        public long enqueueTimeNs() {
+            return enqueueTimeNs;
+        }
+    }
+
+    private final Frame[] slots;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final BufferPool pool;
+
+    private final AtomicLong readIndex = new AtomicLong();
+    // Only written by the producer
+    private volatile long writeIndex;
+    private boolean skippingToKeyFrame;
+
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong offered = new AtomicLong();
+
+    /**
+     * @param capacity number of frames, rounded up to a power of two
+     * @param pool source of the buffers frames are copied into, may be null if
+     *             the ring only queues shared buffers
+     */
+    public FrameRing(int capacity, BufferPool pool, OverflowPolicy policy) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Frame[size];
+        this.mask = size - 1;
+        this.policy = policy;
+        this.pool = pool;
+        for (int i = 0; i < size; i++) {
+            Frame frame = new Frame();
+            frame.sequence = i;
+            slots[i] = frame;
+        }
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public int size() {
+        return (int) Math.max(0, writeIndex - readIndex.get());
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getOfferedCount() {
+        return offered.get();
+    }
+
+    /** True while DROP_TO_NEXT_IDR discards frames until the next key frame. */
+    public boolean isSkippingToKeyFrame() {
+        return skippingToKeyFrame;
+    }
+
+    /**
+     * Copies the frame between position and limit of {@code src} into the ring.
+     * Producer thread only.
+     *
+     * @return false if the frame was discarded by the overflow policy
+     */
+    public boolean offer(ByteBuffer src, NalScanner nals, long presentationTimeUs, int flags, boolean keyFrame) {
+        Frame slot = claim(keyFrame);
+        if (slot == null) {
+            return false;
+        }
+        slot.data = pool.copyOf(src);
+        slot.view = slot.data.buffer();
+        if (nals != null) {
+            slot.nals.copyFrom(nals, slot.view, -src.position());
+        } else {
+            slot.nals.scan(slot.view);
+        }
+        publish(slot, presentationTimeUs, flags, keyFrame);
+        return true;
+    }
+
+    /**
+     * Queues a pooled buffer without copying it. The ring takes its own
+     * reference and reads through its own view, so consumers of different
+     * rings sharing the buffer never move each other's position. Producer
+     * thread only.
+     *
+     * @param nals NAL units of {@code shared}, or null to scan it
+     * @return false if the frame was discarded by the overflow policy
+     */
+    public boolean offer(BufferPool.PooledBuffer shared, NalScanner nals, long presentationTimeUs, int flags, boolean keyFrame) {
+        Frame slot = claim(keyFrame);
+        if (slot == null) {
+            return false;
+        }
+        slot.data = shared.retain();
+        slot.view = shared.buffer().duplicate();
+        if (nals != null) {
+            slot.nals.copyFrom(nals, slot.view, 0);
+        } else {
+            slot.nals.scan(slot.view);
+        }
+        publish(slot, presentationTimeUs, flags, keyFrame);
+        return true;
+    }
+
+    // Returns the slot for the next frame, or null if the overflow policy discards it
+    private Frame claim(boolean keyFrame) {
+        offered.incrementAndGet();
+        if (skippingToKeyFrame) {
+            if (!keyFrame) {
+                dropped.incrementAndGet();
+                return null;
+            }
+            skippingToKeyFrame = false;
+        }
+
+        long index = writeIndex;
+        Frame slot = slots[(int) index & mask];
+        if (slot.sequence != index && !makeRoom(index, slot, keyFrame)) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        return slot;
+    }
+
+    private void publish(Frame slot, long presentationTimeUs, int flags, boolean keyFrame) {
+        long index = writeIndex;
+        slot.presentationTimeUs = presentationTimeUs;
+        slot.flags = flags;
+        slot.keyFrame = keyFrame;
+        slot.enqueueTimeNs = System.nanoTime();
+
+        slot.sequence = index + 1;
+        writeIndex = index + 1;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // Frees the slot for index according to the overflow policy, returns false if the new frame must be dropped
+    private boolean makeRoom(long index, Frame slot, boolean incomingKeyFrame) {
+        switch (policy) {
+            case BLOCK:
+                // Waits as long as the consumer holds on to the slot
+                waitingProducer = Thread.currentThread();
+                try {
+                    while (slot.sequence != index) {
+                        LockSupport.parkNanos(this, 50_000);
+                    }
+                } finally {
+                    waitingProducer = null;
+                }
+                return true;
+            case DROP_OLDEST_NON_KEY:
+                // Only the oldest frame shares the slot we need, unless the consumer still holds it
+                if (readIndex.get() == index - slots.length && (!slot.keyFrame || incomingKeyFrame)) {
+                    discardOldest();
+                }
+                return slot.sequence == index;
+            case DROP_TO_NEXT_IDR:
+            default:
+                while (discardOldest()) {
+                    // Empty the ring
+                }
+                if (!incomingKeyFrame || slot.sequence != index) {
+                    skippingToKeyFrame = true;
+                    return false;
+                }
+                return true;
+        }
+    }
+
+    private boolean discardOldest() {
+        long read = readIndex.get();
+        if (read >= writeIndex) {
+            return false;
+        }
+        Frame frame = slots[(int) read & mask];
+        if (frame.sequence != read + 1 || !readIndex.compareAndSet(read, read + 1)) {
+            // The consumer claimed it first
+            return read + 1 < writeIndex;
+        }
+        frame.data.release();
+        frame.data = null;
+        frame.view = null;
+        frame.sequence = read + slots.length;
+        dropped.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Takes the oldest frame, or returns null if the ring is empty. The frame
+     * must be handed back with {@link #release} before the next poll.
+     * Consumer thread only.
+     */
+    public Frame poll() {
+        while (true) {
+            long read = readIndex.get();
+            Frame frame = slots[(int) read & mask];
+            if (frame.sequence != read + 1) {
+                return null;
+            }
+            if (readIndex.compareAndSet(read, read + 1)) {
+                return frame;
+            }
+            // The producer discarded it, try the next one
+        }
+    }
+
+    /** Like {@link #poll} but waits up to the given time for a frame. */
+    public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Frame frame = poll();
+        if (frame != null) {
+            return frame;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((frame = poll()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return frame;
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /** Returns the slot of a polled frame to the producer. */
+    public void release(Frame frame) {
+        frame.data.release();
+        frame.data = null;
+        frame.view = null;
+        frame.sequence += slots.length - 1;
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the current group of pictures: the last key frame and every frame
+ * since, by reference to their pooled buffers. A viewer that joins is fed the
+ * cache before live frames and can start decoding right away, so the encoder
+ * does not need a short key frame interval for late joiners.
+ *
+ * The cache is only handed out while it spans at most {@code maxAgeUs} of
+ * stream time and fits in {@code maxFrames} and {@code maxBytes}; past that a
+ * joiner would take too long to catch up and a fresh key frame is cheaper.
+ * Age is measured between presentation times, so on a static screen where the
+ * encoder emits nothing the cache stays valid as long as it needs to.
+ *
+ * Also counts key frame and delta frame bytes to estimate what the long GOP
+ * saves against a key frame every {@link #BASELINE_KEY_FRAME_INTERVAL_US}.
+ */
+public class GopCache {
+    /** The one second interval the encoder used before the cache. */
+    static final long BASELINE_KEY_FRAME_INTERVAL_US = 1_000_000;
+
+    private static final class Entry {
+        BufferPool.PooledBuffer buffer;
+        final NalScanner nals = new NalScanner();
+        long presentationTimeUs;
+        boolean keyFrame;
+    }
+
+    private final long maxAgeUs;
+    private final int maxFrames;
+    private final long maxBytes;
+    // Entries are reused, only the first size are in use
+    private final List<Entry> entries = new ArrayList<>();
+    private int size;
+    private long bytes;
+
+    private long firstPresentationTimeUs = -1;
+    private long lastPresentationTimeUs;
+    private long keyFrames;
+    private long keyFrameBytes;
+    private long deltaFrames;
+    private long deltaFrameBytes;
+    private long overflows;
+
+    public GopCache(long maxAgeUs, int maxFrames, long maxBytes) {
+        this.maxAgeUs = maxAgeUs;
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Takes a reference to the frame. A key frame starts a new group, anything
+     * before the first key frame or after an overflow is not kept.
+     *
+     * @param nals NAL units of {@code frame}, relative to the start of its buffer
+     */
+    public synchronized void add(BufferPool.PooledBuffer frame, NalScanner nals, long presentationTimeUs, boolean keyFrame) {
+        int length = frame.buffer().remaining();
+        if (firstPresentationTimeUs < 0) {
+            firstPresentationTimeUs = presentationTimeUs;
+        }
+        lastPresentationTimeUs = presentationTimeUs;
+        if (keyFrame) {
+            keyFrames++;
+            keyFrameBytes += length;
+            clear();
+        } else {
+            deltaFrames++;
+            deltaFrameBytes += length;
+            if (size == 0) {
+                return;
+            }
+            if (size >= maxFrames || bytes + length > maxBytes) {
+                // Replaying this much would leave a joiner far behind
+                overflows++;
+                clear();
+                return;
+            }
+        }
+        if (size == entries.size()) {
+            entries.add(new Entry());
+        }
+        Entry entry = entries.get(size++);
+        entry.buffer = frame.retain();
+        entry.nals.copyFrom(nals, entry.buffer.buffer(), 0);
+        entry.presentationTimeUs = presentationTimeUs;
+        entry.keyFrame = keyFrame;
+        bytes += length;
+    }
+
+    /** True if a joiner can start from the cache instead of waiting for a new key frame. */
+    public synchronized boolean isUsable() {
+        return size > 0 && lastPresentationTimeUs - entries.get(0).presentationTimeUs <= maxAgeUs;
+    }
+
+    /**
+     * Offers the cached frames to a pump, oldest first.
+     *
+     * @return the number of frames offered, 0 if the cache is not usable
+     */
+    public synchronized int replayTo(FramePump pump) {
+        if (!isUsable()) {
+            return 0;
+        }
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries.get(i);
+            pump.onSharedFrame(entry.buffer, entry.nals, entry.presentationTimeUs, entry.keyFrame);
+        }
+        return size;
+    }
+
+    /** Releases every cached frame. */
+    public synchronized void clear() {
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries.get(i);
+            entry.buffer.release();
+            entry.buffer = null;
+        }
+        size = 0;
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /** Presentation time of the cached key frame, or -1 if the cache is not usable. */
+    public synchronized long getStartPresentationTimeUs() {
+        return isUsable() ? entries.get(0).presentationTimeUs : -1;
+    }
+
+    public synchronized long getKeyFrameCount() {
+        return keyFrames;
+    }
+
+    /** Times a group grew past the limits and was dropped. */
+    public synchronized long getOverflowCount() {
+        return overflows;
+    }
+
+    /**
+     * Estimated bytes saved against a key frame every second: each key frame
+     * the baseline would have sent on top of ours costs the difference between
+     * an average key frame and an average delta frame.
+     */
+    public synchronized long getSavedBytes() {
+        if (keyFrames == 0 || deltaFrames == 0) {
+            return 0;
+        }
+        long durationUs = lastPresentationTimeUs - firstPresentationTimeUs;
+        long baselineKeyFrames = durationUs / BASELINE_KEY_FRAME_INTERVAL_US + 1;
+        long extraKeyFrames = baselineKeyFrames - keyFrames;
+        long difference = keyFrameBytes / keyFrames - deltaFrameBytes / deltaFrames;
+        return Math.max(0, extraKeyFrames * difference);
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = keyFrameBytes + deltaFrameBytes;
+        long saved = getSavedBytes();
+        return "GOP cache " + size + " frames/" + bytes + "B, keyFrames=" + keyFrames
+                + " (" + (total == 0 ? 0 : keyFrameBytes * 100 / total) + "% of bytes)"
+                + " overflows=" + overflows + " saved~" + saved + "B ("
+                + (total + saved == 0 ? 0 : saved * 100 / (total + saved)) + "% vs 1s interval)";
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits Annex-B H.264 access units into RTP packets as described in RFC 6184.
+ * NAL units that fit into one packet are sent as single NAL unit packets, larger
+ * ones are fragmented into FU-A packets. The marker bit is set on the last packet
+ * of every access unit.
+ *
+ * The packet buffer handed to the {@link PacketSink} is reused for every packet,
+ * so sinks must consume it before returning.
+ */
+public class H264Packetizer extends RtpPacketizer {
+    private static final int NAL_TYPE_FU_A = 28;
+
+    public H264Packetizer(int ssrc) {
+        this(ssrc, DEFAULT_MAX_PACKET_SIZE);
+    }
+
+    public H264Packetizer(int ssrc, int maxPacketSize) {
+        super(ssrc, maxPacketSize, 2);
+    }
+
+    @Override
+    protected void sendAccessUnit(ByteBuffer accessUnit, NalScanner nals, long rtpTimestamp, PacketSink sink) {
+        int count = nals.count();
+        for (int i = 0; i < count; i++) {
+            sendNal(accessUnit, nals.offset(i), nals.length(i), rtpTimestamp, i == count - 1, sink);
+        }
+    }
+
+    private void sendNal(ByteBuffer src, int offset, int length, long rtpTimestamp,
+                         boolean lastOfAccessUnit, PacketSink sink) {
+        if (length <= maxPayloadSize) {
+            writeHeader(rtpTimestamp, lastOfAccessUnit);
+            copy(src, offset, packet, RTP_HEADER_SIZE, length);
+            sink.onPacket(packet, RTP_HEADER_SIZE + length);
+            return;
+        }
+
+        // FU-A: the original NAL header is rebuilt from the FU indicator and header
+        int nalHeader = src.get(offset) & 0xFF;
+        int fuIndicator = (nalHeader & 0xE0) | NAL_TYPE_FU_A;
+        int nalType = nalHeader & 0x1F;
+        int fragmentSize = maxPayloadSize - 2;
+        int pos = offset + 1;
+        int end = offset + length;
+        boolean first = true;
+        while (pos < end) {
+            int size = Math.min(fragmentSize, end - pos);
+            boolean lastFragment = pos + size == end;
+            writeHeader(rtpTimestamp, lastOfAccessUnit && lastFragment);
+            packet[RTP_HEADER_SIZE] = (byte) fuIndicator;
+            packet[RTP_HEADER_SIZE + 1] = (byte) ((first ? 0x80 : 0) | (lastFragment ? 0x40 : 0) | nalType);
+            copy(src, pos, packet, RTP_HEADER_SIZE + 2, size);
+            sink.onPacket(packet, RTP_HEADER_SIZE + 2 + size);
+            pos += size;
+            first = false;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.FragmentedMp4Writer;
+import com.example.mirror.media.NalScanner;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * SPS and PPS of the running encoder, copied once when the output format
+ * changes instead of on every frame. Stored without start codes.
+ */
+public class H264ParameterSets implements ParameterSets {
+    private final NalScanner scanner = new NalScanner();
+    private volatile byte[] sps;
+    private volatile byte[] pps;
+
+    @Override
+    public VideoCodec getCodec() {
+        return VideoCodec.H264;
+    }
+
+    /**
+     * Updates from the encoder's csd-0/csd-1 buffers, or from a codec config
+     * buffer holding both (pass null as {@code csd1}). Buffer positions are not
+     * changed.
+     *
+     * @return true if both parameter sets are known afterwards
+     */
+    @Override
+    public synchronized boolean update(ByteBuffer csd0, ByteBuffer csd1) {
+        collect(csd0);
+        if (csd1 != null) {
+            collect(csd1);
+        }
+        return isComplete();
+    }
+
+    private void collect(ByteBuffer buffer) {
+        if (scanner.scan(buffer) == 0) {
+            // Some encoders hand out csd without a start code
+            ByteBuffer view = buffer.duplicate();
+            byte[] nal = new byte[view.remaining()];
+            view.get(nal);
+            store(nal);
+            return;
+        }
+        for (int i = 0; i < scanner.count(); i++) {
+            int type = scanner.avcType(i);
+            if (type == NalScanner.AVC_TYPE_SPS || type == NalScanner.AVC_TYPE_PPS) {
+                store(scanner.copy(i));
+            }
+        }
+    }
+
+    private void store(byte[] nal) {
+        if (nal.length == 0) {
+            return;
+        }
+        int type = nal[0] & 0x1F;
+        if (type == NalScanner.AVC_TYPE_SPS) {
+            sps = nal;
+        } else if (type == NalScanner.AVC_TYPE_PPS) {
+            pps = nal;
+        }
+    }
+
+    @Override
+    public boolean isComplete() {
+        return sps != null && pps != null;
+    }
+
+    public byte[] getSps() {
+        return sps;
+    }
+
+    public byte[] getPps() {
+        return pps;
+    }
+
+    @Override
+    public FragmentedMp4Writer.Track newMp4Track(int width, int height) {
+        return FragmentedMp4Writer.Track.avcInBand(width, height, sps, pps);
+    }
+
+    /** profile_idc, constraint flags and level_idc as six hex digits, used in SDP. */
+    public String getProfileLevelId() {
+        byte[] sps = this.sps;
+        if (sps == null || sps.length < 4) {
+            return null;
+        }
+        return String.format(Locale.US, "%02x%02x%02x", sps[1] & 0xFF, sps[2] & 0xFF, sps[3] & 0xFF);
+    }
+
+    /** Value of the sprop-parameter-sets SDP attribute. */
+    public String getSpropParameterSets() {
+        byte[] sps = this.sps;
+        byte[] pps = this.pps;
+        if (sps == null || pps == null) {
+            return null;
+        }
+        Base64.Encoder base64 = Base64.getEncoder();
+        return base64.encodeToString(sps) + "," + base64.encodeToString(pps);
+    }
+
+    /** Non-interleaved mode with profile and parameter sets, as RFC 6184 defines them for SDP. */
+    @Override
+    public String getFormatParameters() {
+        String profileLevelId = getProfileLevelId();
+        String spropParameterSets = getSpropParameterSets();
+        if (profileLevelId == null || spropParameterSets == null) {
+            return null;
+        }
+        return "packetization-mode=1;profile-level-id=" + profileLevelId + ";sprop-parameter-sets=" + spropParameterSets;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits Annex-B HEVC access units into RTP packets as described in RFC 7798,
+ * without decoding order numbers (sprop-max-don-diff 0).
+ *
+ * Consecutive NAL units that fit into one packet together, typically the
+ * VPS, SPS, PPS and SEI in front of a key frame, go out as one aggregation
+ * packet. A NAL unit that fits alone is sent as a single NAL unit packet and
+ * larger ones are split into fragmentation units. The marker bit is set on the
+ * last packet of every access unit.
+ */
+public class HevcPacketizer extends RtpPacketizer {
+    static final int NAL_TYPE_AP = 48;
+    static final int NAL_TYPE_FU = 49;
+    static final int NAL_HEADER_SIZE = 2;
+    private static final int FU_HEADER_SIZE = 1;
+    // Each aggregated NAL unit is preceded by its 16-bit size
+    private static final int AP_LENGTH_SIZE = 2;
+
+    public HevcPacketizer(int ssrc) {
+        this(ssrc, DEFAULT_MAX_PACKET_SIZE);
+    }
+
+    public HevcPacketizer(int ssrc, int maxPacketSize) {
+        super(ssrc, maxPacketSize, NAL_HEADER_SIZE + FU_HEADER_SIZE);
+    }
+
+    @Override
+    protected void sendAccessUnit(ByteBuffer accessUnit, NalScanner nals, long rtpTimestamp, PacketSink sink) {
+        int count = nals.count();
+        int i = 0;
+        while (i < count) {
+            int aggregated = aggregatable(nals, i);
+            if (aggregated > 1) {
+                sendAggregation(accessUnit, nals, i, aggregated, rtpTimestamp, i + aggregated == count, sink);
+                i += aggregated;
+            } else {
+                sendNal(accessUnit, nals.offset(i), nals.length(i), rtpTimestamp, i == count - 1, sink);
+                i++;
+            }
+        }
+    }
+
+    // Number of NAL units from index on that fit into one aggregation packet
+    private int aggregatable(NalScanner nals, int index) {
+        int size = NAL_HEADER_SIZE;
+        int count = 0;
+        for (int i = index; i < nals.count(); i++) {
+            int length = nals.length(i);
+            if (length < NAL_HEADER_SIZE || size + AP_LENGTH_SIZE + length > maxPayloadSize) {
+                break;
+            }
+            size += AP_LENGTH_SIZE + length;
+            count++;
+        }
+        return count;
+    }
+
+    private void sendAggregation(ByteBuffer src, NalScanner nals, int first, int count, long rtpTimestamp,
+                                 boolean lastOfAccessUnit, PacketSink sink) {
+        writeHeader(rtpTimestamp, lastOfAccessUnit);
+        // F is set if any unit has it, LayerId and TID are the lowest of all units
+        int forbidden = 0;
+        int layerId = 0x3F;
+        int temporalId = 0x7;
+        int pos = RTP_HEADER_SIZE + NAL_HEADER_SIZE;
+        for (int i = first; i < first + count; i++) {
+            int offset = nals.offset(i);
+            int length = nals.length(i);
+            int header = ((src.get(offset) & 0xFF) << 8) | (src.get(offset + 1) & 0xFF);
+            forbidden |= header & 0x8000;
+            layerId = Math.min(layerId, (header >> 3) & 0x3F);
+            temporalId = Math.min(temporalId, header & 0x7);
+            packet[pos] = (byte) (length >> 8);
+            packet[pos + 1] = (byte) length;
+            copy(src, offset, packet, pos + AP_LENGTH_SIZE, length);
+            pos += AP_LENGTH_SIZE + length;
+        }
+        int payloadHeader = forbidden | (NAL_TYPE_AP << 9) | (layerId << 3) | temporalId;
+        packet[RTP_HEADER_SIZE] = (byte) (payloadHeader >> 8);
+        packet[RTP_HEADER_SIZE + 1] = (byte) payloadHeader;
+        sink.onPacket(packet, pos);
+    }
+
+    private void sendNal(ByteBuffer src, int offset, int length, long rtpTimestamp,
+                         boolean lastOfAccessUnit, PacketSink sink) {
+        if (length <= maxPayloadSize) {
+            writeHeader(rtpTimestamp, lastOfAccessUnit);
+            copy(src, offset, packet, RTP_HEADER_SIZE, length);
+            sink.onPacket(packet, RTP_HEADER_SIZE + length);
+            return;
+        }
+
+        // The payload header keeps F, LayerId and TID of the NAL unit, the FU header carries its type
+        int header0 = src.get(offset) & 0xFF;
+        int header1 = src.get(offset + 1) & 0xFF;
+        int nalType = (header0 >> 1) & 0x3F;
+        int payloadHeader0 = (header0 & 0x81) | (NAL_TYPE_FU << 1);
+        int fragmentSize = maxPayloadSize - NAL_HEADER_SIZE - FU_HEADER_SIZE;
+        int pos = offset + NAL_HEADER_SIZE;
+        int end = offset + length;
+        boolean first = true;
+        while (pos < end) {
+            int size = Math.min(fragmentSize, end - pos);
+            boolean lastFragment = pos + size == end;
+            writeHeader(rtpTimestamp, lastOfAccessUnit && lastFragment);
+            packet[RTP_HEADER_SIZE] = (byte) payloadHeader0;
+            packet[RTP_HEADER_SIZE + 1] = (byte) header1;
+            packet[RTP_HEADER_SIZE + 2] = (byte) ((first ? 0x80 : 0) | (lastFragment ? 0x40 : 0) | nalType);
+            copy(src, pos, packet, RTP_HEADER_SIZE + NAL_HEADER_SIZE + FU_HEADER_SIZE, size);
+            sink.onPacket(packet, RTP_HEADER_SIZE + NAL_HEADER_SIZE + FU_HEADER_SIZE + size);
+            pos += size;
+            first = false;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.FragmentedMp4Writer;
+import com.example.mirror.media.NalScanner;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * VPS, SPS and PPS of a running HEVC encoder, which hands all three out in
+ * csd-0. Stored without start codes.
+ */
+public class HevcParameterSets implements ParameterSets {
+    public static final int TYPE_VPS = 32;
+    public static final int TYPE_SPS = 33;
+    public static final int TYPE_PPS = 34;
+
+    // Offsets in the SPS without emulation prevention bytes: the NAL header,
+    // one byte of ids and flags, then profile_tier_level
+    private static final int SPS_PROFILE_OFFSET = 3;
+    private static final int SPS_LEVEL_OFFSET = 14;
+
+    private final NalScanner scanner = new NalScanner();
+    private volatile byte[] vps;
+    private volatile byte[] sps;
+    private volatile byte[] pps;
+
+    /** nal_unit_type of a NAL unit starting with {@code firstByte}. */
+    public static int nalType(byte firstByte) {
+        return (firstByte >> 1) & 0x3F;
+    }
+
+    @Override
+    public VideoCodec getCodec() {
+        return VideoCodec.HEVC;
+    }
+
+    @Override
+    public synchronized boolean update(ByteBuffer csd0, ByteBuffer csd1) {
+        collect(csd0);
+        if (csd1 != null) {
+            collect(csd1);
+        }
+        return isComplete();
+    }
+
+    private void collect(ByteBuffer buffer) {
+        scanner.scan(buffer);
+        for (int i = 0; i < scanner.count(); i++) {
+            byte[] nal = scanner.copy(i);
+            if (nal.length < HevcPacketizer.NAL_HEADER_SIZE) {
+                continue;
+            }
+            switch (nalType(nal[0])) {
+                case TYPE_VPS:
+                    vps = nal;
+                    break;
+                case TYPE_SPS:
+                    sps = nal;
+                    break;
+                case TYPE_PPS:
+                    pps = nal;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public boolean isComplete() {
+        return vps != null && sps != null && pps != null;
+    }
+
+    public byte[] getVps() {
+        return vps;
+    }
+
+    public byte[] getSps() {
+        return sps;
+    }
+
+    public byte[] getPps() {
+        return pps;
+    }
+
+    @Override
+    public FragmentedMp4Writer.Track newMp4Track(int width, int height) {
+        return FragmentedMp4Writer.Track.hevcInBand(width, height, vps, sps, pps, getProfileTierLevel());
+    }
+
+    /**
+     * profile-id, tier-flag and level-id from the SPS followed by the three
+     * parameter sets, as RFC 7798 defines them for SDP.
+     */
+    @Override
+    public String getFormatParameters() {
+        byte[] vps = this.vps;
+        byte[] sps = this.sps;
+        byte[] pps = this.pps;
+        if (vps == null || sps == null || pps == null) {
+            return null;
+        }
+        StringBuilder fmtp = new StringBuilder();
+        byte[] head = unescape(sps, SPS_LEVEL_OFFSET + 1);
+        if (head.length > SPS_LEVEL_OFFSET) {
+            int profileByte = head[SPS_PROFILE_OFFSET] & 0xFF;
+            fmtp.append("profile-id=").append(profileByte & 0x1F)
+                    .append(";tier-flag=").append((profileByte >> 5) & 1)
+                    .append(";level-id=").append(head[SPS_LEVEL_OFFSET] & 0xFF)
+                    .append(';');
+        }
+        Base64.Encoder base64 = Base64.getEncoder();
+        return fmtp.append("sprop-vps=").append(base64.encodeToString(vps))
+                .append(";sprop-sps=").append(base64.encodeToString(sps))
+                .append(";sprop-pps=").append(base64.encodeToString(pps))
+                .toString();
+    }
+
+    /**
+     * The twelve general_profile_space to general_level_idc bytes of the SPS,
+     * as an hvcC box repeats them, or null before the SPS is known.
+     */
+    public byte[] getProfileTierLevel() {
+        byte[] sps = this.sps;
+        if (sps == null) {
+            return null;
+        }
+        byte[] head = unescape(sps, SPS_LEVEL_OFFSET + 1);
+        if (head.length == 0) {
+            return null;
+        }
+        byte[] profileTierLevel = new byte[SPS_LEVEL_OFFSET + 1 - SPS_PROFILE_OFFSET];
+        System.arraycopy(head, SPS_PROFILE_OFFSET, profileTierLevel, 0, profileTierLevel.length);
+        return profileTierLevel;
+    }
+
+    // The first count bytes of a NAL unit with emulation prevention bytes (00 00 03) removed
+    private static byte[] unescape(byte[] nal, int count) {
+        byte[] out = new byte[count];
+        int n = 0;
+        int zeros = 0;
+        for (int i = 0; i < nal.length && n < count; i++) {
+            if (zeros >= 2 && nal[i] == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = nal[i] == 0 ? zeros + 1 : 0;
+            out[n++] = nal[i];
+        }
+        return n == count ? out : new byte[0];
+    }
+}
@@ -0,0 +1,395 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.BoxBuffer;
+import com.example.mirror.media.FragmentedMp4Writer;
+import com.example.mirror.media.NalScanner;
+import com.example.mirror.stats.LatencyHistogram;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Cuts the encoded stream into Low-Latency HLS (RFC 8216bis): CMAF partial
+ * segments of about a third of a second, grouped into segments that start
+ * with a key frame. Everything stays in memory. The last
+ * {@link #DEFAULT_SEGMENT_COUNT} segments are kept and older ones are dropped,
+ * so the footprint is bounded by the bitrate and not by the session length.
+ *
+ * Meant to run behind its own {@link FramePump}, see {@link RtspServer#attach}.
+ * A part is built once, when the frame after it arrives, and is then immutable;
+ * {@link LlHlsServer} reads the parts and playlists from its selector thread.
+ *
+ * The encoder's key frames are rare, so a key frame is requested once a
+ * segment reaches its target duration.
+ */
+public class LlHlsSegmenter implements EncodedFrameSink {
+    private static final Logger LOG = Logger.getLogger("LlHlsSegmenter");
+    public static final long DEFAULT_PART_TARGET_US = 333_333;
+    public static final long DEFAULT_SEGMENT_TARGET_US = 2_000_000;
+    public static final int DEFAULT_SEGMENT_COUNT = 6;
+    // Segments whose parts are still listed, besides the open one
+    private static final int PART_LISTED_SEGMENTS = 2;
+
+    /** One CMAF partial segment, a moof and its mdat. */
+    public static final class Part {
+        private final int index;
+        private final byte[] data;
+        private final long durationUs;
+        private final boolean independent;
+
+        Part(int index, byte[] data, long durationUs, boolean independent) {
+            this.index = index;
+            this.data = data;
+            this.durationUs = durationUs;
+            this.independent = independent;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /** Shared with every request, must not be modified. */
+        public byte[] getData() {
+            return data;
+        }
+
+        public long getDurationUs() {
+            return durationUs;
+        }
+
+        /** Whether the part starts with a key frame. */
+        public boolean isIndependent() {
+            return independent;
+        }
+    }
+
+    /** One segment, its parts concatenated. */
+    private static final class Segment {
+        final int sequence;
+        final long startUs;
+        final List<Part> parts = new ArrayList<>();
+        long durationUs;
+        int bytes;
+        boolean complete;
+
+        Segment(int sequence, long startUs) {
+            this.sequence = sequence;
+            this.startUs = startUs;
+        }
+    }
+
+    private final ParameterSets parameterSets;
+    private final int width;
+    private final int height;
+    private final Runnable keyFrameRequest;
+    private final long partTargetUs;
+    private final long segmentTargetUs;
+    private final int segmentCount;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final LatencyHistogram partBuildTime = new LatencyHistogram("part build");
+    // Frame thread only: samples of the open part
+    private final BoxBuffer media = new BoxBuffer(256 * 1024);
+    private final BoxBuffer box = new BoxBuffer(4096);
+    private final NalScanner scanner = new NalScanner();
+    private long[] samplePtsUs = new long[64];
+    private int[] sampleSizes = new int[64];
+    private boolean[] sampleKeys = new boolean[64];
+    private int sampleCount;
+    private long lastFrameIntervalUs;
+    private boolean keyFrameRequested;
+    private VideoCodec codec;
+
+    private byte[] initSegment;
+    private long startUs;
+    private int fragmentSequence;
+    private int nextSegmentSequence;
+    private long retainedBytes;
+    private long maxRetainedBytes;
+    private long maxSegmentDurationUs;
+    private volatile Runnable listener;
+
+    /** @param keyFrameRequest asks the encoder for a key frame, may be null */
+    public LlHlsSegmenter(ParameterSets parameterSets, int width, int height, Runnable keyFrameRequest) {
+        this(parameterSets, width, height, keyFrameRequest,
+                DEFAULT_PART_TARGET_US, DEFAULT_SEGMENT_TARGET_US, DEFAULT_SEGMENT_COUNT);
+    }
+
+    public LlHlsSegmenter(ParameterSets parameterSets, int width, int height, Runnable keyFrameRequest,
+                          long partTargetUs, long segmentTargetUs, int segmentCount) {
+        this.parameterSets = parameterSets;
+        this.width = width;
+        this.height = height;
+        this.keyFrameRequest = keyFrameRequest;
+        this.partTargetUs = partTargetUs;
+        this.segmentTargetUs = segmentTargetUs;
+        this.segmentCount = segmentCount;
+    }
+
+    /** Called on the frame thread whenever a part or segment was published. */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, NalScanner nals, long presentationTimeUs, boolean keyFrame) {
+        Segment open;
+        synchronized (this) {
+            if (initSegment == null) {
+                if (!keyFrame || !parameterSets.isComplete()) {
+                    return;
+                }
+                codec = parameterSets.getCodec();
+                initSegment = FragmentedMp4Writer.initSegment(parameterSets.newMp4Track(width, height));
+                startUs = presentationTimeUs;
+                segments.addLast(new Segment(nextSegmentSequence++, presentationTimeUs));
+            }
+            open = segments.peekLast();
+        }
+        if (sampleCount > 0) {
+            long partStartUs = samplePtsUs[0];
+            long lastUs = samplePtsUs[sampleCount - 1];
+            if (presentationTimeUs <= lastUs) {
+                // Out of order or repeated, a part's samples must be in decoding order
+                return;
+            }
+            lastFrameIntervalUs = presentationTimeUs - lastUs;
+            boolean endSegment = keyFrame && presentationTimeUs - open.startUs >= segmentTargetUs / 2;
+            // Cut before the part would outgrow its target, judged by the frame rate so far
+            boolean endPart = keyFrame
+                    || presentationTimeUs + lastFrameIntervalUs - partStartUs > partTargetUs;
+            if (endPart || endSegment) {
+                publishPart(open, presentationTimeUs, endSegment);
+            }
+            if (endSegment) {
+                keyFrameRequested = false;
+            }
+        }
+        synchronized (this) {
+            open = segments.peekLast();
+        }
+        if (!keyFrameRequested && presentationTimeUs - open.startUs >= segmentTargetUs && keyFrameRequest != null) {
+            keyFrameRequested = true;
+            keyFrameRequest.run();
+        }
+        if (nals == null) {
+            scanner.scan(frame);
+            nals = scanner;
+        }
+        appendSample(frame, nals, presentationTimeUs, keyFrame);
+    }
+
+    private void appendSample(ByteBuffer frame, NalScanner nals, long presentationTimeUs, boolean keyFrame) {
+        if (sampleCount == samplePtsUs.length) {
+            int capacity = sampleCount * 2;
+            long[] pts = new long[capacity];
+            int[] sizes = new int[capacity];
+            boolean[] keys = new boolean[capacity];
+            System.arraycopy(samplePtsUs, 0, pts, 0, sampleCount);
+            System.arraycopy(sampleSizes, 0, sizes, 0, sampleCount);
+            System.arraycopy(sampleKeys, 0, keys, 0, sampleCount);
+            samplePtsUs = pts;
+            sampleSizes = sizes;
+            sampleKeys = keys;
+        }
+        int start = media.size();
+        for (int i = 0; i < nals.count(); i++) {
+            int offset = nals.offset(i);
+            int length = nals.length(i);
+            if (length <= 0 || FragmentedMp4Writer.isDelimiter(codec == VideoCodec.HEVC, frame.get(offset))) {
+                continue;
+            }
+            media.putInt(length);
+            media.put(frame, offset, length);
+        }
+        samplePtsUs[sampleCount] = presentationTimeUs;
+        sampleSizes[sampleCount] = media.size() - start;
+        sampleKeys[sampleCount] = keyFrame;
+        sampleCount++;
+    }
+
+    // Builds the moof and mdat of the pending samples, the last one ends at endUs
+    private void publishPart(Segment open, long endUs, boolean endSegment) {
+        long buildStartNs = System.nanoTime();
+        box.clear();
+        int moof = box.start("moof");
+        int mfhd = box.startFull("mfhd", 0, 0);
+        box.putInt(++fragmentSequence);
+        box.end(mfhd);
+        int traf = box.start("traf");
+        int tfhd = box.startFull("tfhd", 0, FragmentedMp4Writer.TFHD_DEFAULT_BASE_IS_MOOF);
+        box.putInt(1);
+        box.end(tfhd);
+        int tfdt = box.startFull("tfdt", 1, 0);
+        box.putLong(ticks(samplePtsUs[0]));
+        box.end(tfdt);
+        int trun = box.startFull("trun", 0, FragmentedMp4Writer.TRUN_DATA_OFFSET_DURATION_SIZE_FLAGS);
+        box.putInt(sampleCount);
+        int dataOffsetField = box.size();
+        box.putInt(0);
+        for (int s = 0; s < sampleCount; s++) {
+            long next = s + 1 < sampleCount ? samplePtsUs[s + 1] : endUs;
+            box.putInt((int) Math.max(1, ticks(next) - ticks(samplePtsUs[s])));
+            box.putInt(sampleSizes[s]);
+            box.putInt(sampleKeys[s] ? FragmentedMp4Writer.SAMPLE_FLAGS_SYNC : FragmentedMp4Writer.SAMPLE_FLAGS_NON_SYNC);
+        }
+        box.end(trun);
+        box.end(traf);
+        box.end(moof);
+        box.setInt(dataOffsetField, box.size() + 8);
+        box.putInt(8 + media.size());
+        box.putType("mdat");
+        byte[] data = new byte[box.size() + media.size()];
+        box.copyTo(data, 0);
+        media.copyTo(data, box.size());
+        long durationUs = endUs - samplePtsUs[0];
+        boolean independent = sampleKeys[0];
+        media.clear();
+        sampleCount = 0;
+
+        synchronized (this) {
+            Part part = new Part(open.parts.size(), data, durationUs, independent);
+            open.parts.add(part);
+            open.durationUs += durationUs;
+            open.bytes += data.length;
+            retainedBytes += data.length;
+            if (endSegment) {
+                open.complete = true;
+                maxSegmentDurationUs = Math.max(maxSegmentDurationUs, open.durationUs);
+                segments.addLast(new Segment(nextSegmentSequence++, endUs));
+                while (segments.size() > segmentCount + 1) {
+                    retainedBytes -= segments.removeFirst().bytes;
+                }
+            }
+            maxRetainedBytes = Math.max(maxRetainedBytes, retainedBytes);
+            if (endSegment && open.durationUs > getTargetDurationSeconds() * 1_000_000L) {
+                LOG.warning("Segment " + open.sequence + " ran " + open.durationUs / 1000
+                        + " ms, longer than the target duration");
+            }
+        }
+        partBuildTime.record((System.nanoTime() - buildStartNs) / 1000);
+        Runnable l = listener;
+        if (l != null) {
+            l.run();
+        }
+    }
+
+    private long ticks(long ptsUs) {
+        return (Math.max(0, ptsUs - startUs) * FragmentedMp4Writer.VIDEO_TIMESCALE + 500_000) / 1_000_000;
+    }
+
+    // Fixed for the whole session as the playlist requires, with room for a late key frame
+    private int getTargetDurationSeconds() {
+        return (int) ((2 * segmentTargetUs + 999_999) / 1_000_000);
+    }
+
+    /** The ftyp and moov, or null before the first key frame. */
+    public synchronized byte[] getInitSegment() {
+        return initSegment;
+    }
+
+    /**
+     * Whether the playlist already lists segment {@code sequence}, or with
+     * {@code part} >= 0 that part of it, as a blocking playlist reload waits for.
+     */
+    public synchronized boolean isAvailable(int sequence, int part) {
+        Segment last = segments.peekLast();
+        if (last == null) {
+            return false;
+        }
+        if (sequence < last.sequence) {
+            return true;
+        }
+        return sequence == last.sequence && part >= 0 && part < last.parts.size();
+    }
+
+    /** Sequence number of the segment still being cut, -1 before the first key frame. */
+    public synchronized int getOpenSequence() {
+        Segment last = segments.peekLast();
+        return last != null ? last.sequence : -1;
+    }
+
+    /** A part that is still kept, or null. */
+    public synchronized Part getPart(int sequence, int index) {
+        Segment segment = find(sequence);
+        return segment != null && index >= 0 && index < segment.parts.size() ? segment.parts.get(index) : null;
+    }
+
+    /** The parts of a complete segment that is still kept, or null. */
+    public synchronized List<Part> getSegment(int sequence) {
+        Segment segment = find(sequence);
+        return segment != null && segment.complete ? new ArrayList<>(segment.parts) : null;
+    }
+
+    private Segment find(int sequence) {
+        for (Segment segment : segments) {
+            if (segment.sequence == sequence) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The media playlist with the kept segments, the parts of the most recent
+     * ones and a preload hint for the next part. Null before the first key frame.
+     *
+     * @param prefix prepended to every URI
+     */
+    public synchronized String getPlaylist(String prefix) {
+        if (initSegment == null) {
+            return null;
+        }
+        double partTarget = partTargetUs / 1e6;
+        StringBuilder m3u8 = new StringBuilder(2048);
+        m3u8.append("#EXTM3U\n#EXT-X-VERSION:9\n")
+                .append("#EXT-X-TARGETDURATION:").append(getTargetDurationSeconds()).append('\n')
+                .append(String.format(Locale.US, "#EXT-X-PART-INF:PART-TARGET=%.3f\n", partTarget))
+                .append(String.format(Locale.US,
+                        "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=%.3f\n", 3 * partTarget))
+                .append("#EXT-X-MEDIA-SEQUENCE:").append(segments.peekFirst().sequence).append('\n')
+                .append("#EXT-X-MAP:URI=\"").append(prefix).append("init.mp4\"\n");
+        int firstListedParts = segments.peekLast().sequence - PART_LISTED_SEGMENTS;
+        for (Segment segment : segments) {
+            if (segment.sequence >= firstListedParts) {
+                for (Part part : segment.parts) {
+                    m3u8.append(String.format(Locale.US, "#EXT-X-PART:DURATION=%.3f,URI=\"%spart-%d.%d.m4s\"%s\n",
+                            part.durationUs / 1e6, prefix, segment.sequence, part.index,
+                            part.independent ? ",INDEPENDENT=YES" : ""));
+                }
+            }
+            if (segment.complete) {
+                m3u8.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationUs / 1e6))
+                        .append(prefix).append("segment-").append(segment.sequence).append(".m4s\n");
+            }
+        }
+        Segment open = segments.peekLast();
+        m3u8.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"").append(prefix).append("part-")
+                .append(open.sequence).append('.').append(open.parts.size()).append(".m4s\"\n");
+        return m3u8.toString();
+    }
+
+    /** Time to build each part from its samples. */
+    public LatencyHistogram getPartBuildTime() {
+        return partBuildTime;
+    }
+
+    /** Bytes of all parts kept, the init segment aside. */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public synchronized long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LlHlsSegmenter: " + segments.size() + " segments kept, next " + nextSegmentSequence
+                + ", " + retainedBytes / 1024 + " KB (max " + maxRetainedBytes / 1024 + " KB)"
+                + ", longest segment " + maxSegmentDurationUs / 1000 + " ms, " + partBuildTime;
+    }
+}
@@ -0,0 +1,419 @@
+package com.example.screenstream;
+
+import com.example.mirror.stats.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal HTTP/1.1 server for the output of a {@link LlHlsSegmenter}, so
+ * browsers can play the stream with any LL-HLS player. Serves GET and HEAD of
+ * the playlist, the init segment, segments and parts, all from memory.
+ *
+ * Everything runs on one selector thread. A playlist request with
+ * {@code _HLS_msn} (and {@code _HLS_part}), or a request for the part the
+ * playlist hints at, is held until the segmenter publishes it, then answered
+ * right away. It gets 503 if nothing arrives within {@link #HOLD_TIMEOUT_MS},
+ * and 400 if it asks for a segment too far ahead to ever be waited for.
+ */
+public class LlHlsServer {
+    private static final Logger LOG = Logger.getLogger("LlHlsServer");
+    public static final int DEFAULT_PORT = 8080;
+    public static final String PLAYLIST_PATH = "/live.m3u8";
+    private static final int MAX_REQUEST_BYTES = 8 * 1024;
+    // A blocking reload may ask for at most this many segments ahead of the open one
+    private static final int MAX_SEQUENCES_AHEAD = 2;
+    static final long HOLD_TIMEOUT_MS = 3_000;
+    private static final long SELECT_TIMEOUT_MS = 100;
+    private static final byte[] END_OF_HEADERS = {'\r', '\n', '\r', '\n'};
+
+    /** One client connection and the request it is being answered. */
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        ByteBuffer[] out;
+        long requestStartNs;
+        boolean head;
+        boolean close;
+        // A held request waits for this segment, and part if >= 0
+        String heldPath;
+        int heldSequence;
+        int heldPart;
+        long heldUntilMs;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final int requestedPort;
+    private final LlHlsSegmenter segmenter;
+    private final LatencyHistogram requestTime = new LatencyHistogram("request");
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong heldRequests = new AtomicLong();
+    // Selector thread only
+    private final List<Connection> held = new ArrayList<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    /** @param port TCP port, or 0 to pick any free port */
+    public LlHlsServer(int port, LlHlsSegmenter segmenter) {
+        this.requestedPort = port;
+        this.segmenter = segmenter;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(requestedPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        // Held requests are retried as soon as something new is published
+        segmenter.setListener(selector::wakeup);
+        selectorThread = new Thread(this::runSelector, "LlHlsServer");
+        selectorThread.start();
+        LOG.info("LL-HLS server listening on port " + getPort());
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        segmenter.setListener(null);
+        try {
+            selector.wakeup();
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            LOG.log(Level.WARNING, "Error closing LL-HLS server", e);
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /** Time from a complete request to the last byte of its response, holds included. */
+    public LatencyHistogram getRequestTime() {
+        return requestTime;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /** Requests that had to wait for a part or segment to be published. */
+    public long getHeldRequestCount() {
+        return heldRequests.get();
+    }
+
+    private void runSelector() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                retryHeld();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                LOG.log(Level.WARNING, "LL-HLS selector failed", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.in) < 0) {
+            close(connection);
+            return;
+        }
+        nextRequest(connection);
+    }
+
+    // Answers the next complete request in the input buffer, if no response is in progress
+    private void nextRequest(Connection connection) throws IOException {
+        if (connection.out != null || connection.heldPath != null) {
+            return;
+        }
+        ByteBuffer in = connection.in;
+        int end = indexOf(in, END_OF_HEADERS);
+        if (end < 0) {
+            if (!in.hasRemaining()) {
+                connection.close = true;
+                respond(connection, "431 Request Header Fields Too Large");
+            }
+            return;
+        }
+        String headers = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+        // Keep whatever the client pipelined behind this request
+        in.flip().position(end + END_OF_HEADERS.length);
+        in.compact();
+
+        connection.requestStartNs = System.nanoTime();
+        requests.incrementAndGet();
+        String[] requestLine = headers.split("\r\n", 2)[0].split(" ");
+        if (requestLine.length != 3) {
+            connection.close = true;
+            respond(connection, "400 Bad Request");
+            return;
+        }
+        connection.close = requestLine[2].equals("HTTP/1.0")
+                || headers.toLowerCase().contains("\r\nconnection: close");
+        connection.head = requestLine[0].equals("HEAD");
+        if (!connection.head && !requestLine[0].equals("GET")) {
+            respond(connection, "405 Method Not Allowed");
+            return;
+        }
+        serve(connection, requestLine[1]);
+    }
+
+    private void serve(Connection connection, String target) throws IOException {
+        int query = target.indexOf('?');
+        String path = query >= 0 ? target.substring(0, query) : target;
+        if (path.equals(PLAYLIST_PATH) || path.equals("/")) {
+            int sequence = queryInt(target, "_HLS_msn", -1);
+            int part = queryInt(target, "_HLS_part", -1);
+            if (sequence >= 0 && !segmenter.isAvailable(sequence, part)) {
+                if (sequence > segmenter.getOpenSequence() + MAX_SEQUENCES_AHEAD) {
+                    respond(connection, "400 Bad Request");
+                } else {
+                    hold(connection, target, sequence, part);
+                }
+                return;
+            }
+            String playlist = segmenter.getPlaylist("");
+            if (playlist == null) {
+                respond(connection, "503 Service Unavailable");
+            } else {
+                respond(connection, "200 OK", "application/vnd.apple.mpegurl",
+                        ByteBuffer.wrap(playlist.getBytes(StandardCharsets.UTF_8)));
+            }
+        } else if (path.equals("/init.mp4")) {
+            byte[] init = segmenter.getInitSegment();
+            if (init == null) {
+                respond(connection, "404 Not Found");
+            } else {
+                respond(connection, "200 OK", "video/mp4", ByteBuffer.wrap(init));
+            }
+        } else if (path.startsWith("/segment-") && path.endsWith(".m4s")) {
+            List<LlHlsSegmenter.Part> parts = segmenter.getSegment(parseInt(path, 9, path.length() - 4));
+            if (parts == null) {
+                respond(connection, "404 Not Found");
+                return;
+            }
+            ByteBuffer[] body = new ByteBuffer[parts.size()];
+            for (int i = 0; i < body.length; i++) {
+                body[i] = ByteBuffer.wrap(parts.get(i).getData());
+            }
+            respond(connection, "200 OK", "video/mp4", body);
+        } else if (path.startsWith("/part-") && path.endsWith(".m4s")) {
+            int dot = path.indexOf('.', 6);
+            int sequence = parseInt(path, 6, dot);
+            int index = dot > 0 ? parseInt(path, dot + 1, path.length() - 4) : -1;
+            LlHlsSegmenter.Part part = segmenter.getPart(sequence, index);
+            if (part != null) {
+                respond(connection, "200 OK", "video/mp4", ByteBuffer.wrap(part.getData()));
+            } else if (sequence == segmenter.getOpenSequence() && index >= 0 && !segmenter.isAvailable(sequence, index)) {
+                // The preload hint, or a part just behind it
+                hold(connection, target, sequence, index);
+            } else {
+                respond(connection, "404 Not Found");
+            }
+        } else {
+            respond(connection, "404 Not Found");
+        }
+    }
+
+    private void hold(Connection connection, String target, int sequence, int part) {
+        if (connection.heldPath == null) {
+            heldRequests.incrementAndGet();
+            connection.heldUntilMs = System.currentTimeMillis() + HOLD_TIMEOUT_MS;
+        }
+        connection.heldPath = target;
+        connection.heldSequence = sequence;
+        connection.heldPart = part;
+        held.add(connection);
+    }
+
+    private void retryHeld() {
+        if (held.isEmpty()) {
+            return;
+        }
+        long nowMs = System.currentTimeMillis();
+        List<Connection> waiting = new ArrayList<>(held);
+        held.clear();
+        for (Connection connection : waiting) {
+            try {
+                if (segmenter.isAvailable(connection.heldSequence, connection.heldPart)) {
+                    String target = connection.heldPath;
+                    connection.heldPath = null;
+                    serve(connection, target);
+                } else if (nowMs >= connection.heldUntilMs) {
+                    connection.heldPath = null;
+                    respond(connection, "503 Service Unavailable");
+                } else {
+                    held.add(connection);
+                }
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+    }
+
+    /** A status with an empty plain text body. */
+    private void respond(Connection connection, String status) throws IOException {
+        respond(connection, status, "text/plain");
+    }
+
+    private void respond(Connection connection, String status, String contentType, ByteBuffer... body)
+            throws IOException {
+        long length = 0;
+        for (ByteBuffer buffer : body) {
+            length += buffer.remaining();
+        }
+        // Parts and segments never change once published, playlists always do
+        boolean media = contentType.equals("video/mp4") && status.startsWith("200");
+        String header = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "Cache-Control: " + (media ? "max-age=60" : "no-cache") + "\r\n"
+                + "Access-Control-Allow-Origin: *\r\n"
+                + (connection.close ? "Connection: close\r\n" : "")
+                + "\r\n";
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1));
+        if (body.length == 0 || connection.head) {
+            connection.out = new ByteBuffer[]{headerBuffer};
+        } else {
+            connection.out = new ByteBuffer[body.length + 1];
+            connection.out[0] = headerBuffer;
+            System.arraycopy(body, 0, connection.out, 1, body.length);
+        }
+        flush(connection);
+    }
+
+    private void flush(Connection connection) throws IOException {
+        ByteBuffer[] out = connection.out;
+        if (out == null) {
+            return;
+        }
+        connection.channel.write(out);
+        SelectionKey key = connection.channel.keyFor(selector);
+        if (out[out.length - 1].hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        connection.out = null;
+        requestTime.record((System.nanoTime() - connection.requestStartNs) / 1000);
+        if (connection.close) {
+            close(connection);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        nextRequest(connection);
+    }
+
+    private void close(Connection connection) {
+        held.remove(connection);
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Error closing connection", e);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        byte[] data = buffer.array();
+        for (int i = 0; i + pattern.length <= buffer.position(); i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int queryInt(String target, String name, int missing) {
+        int query = target.indexOf('?');
+        if (query < 0) {
+            return missing;
+        }
+        for (String parameter : target.substring(query + 1).split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return parseInt(parameter, name.length() + 1, parameter.length());
+            }
+        }
+        return missing;
+    }
+
+    private static int parseInt(String text, int from, int to) {
+        if (from < 0 || to <= from) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(text.substring(from, to));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
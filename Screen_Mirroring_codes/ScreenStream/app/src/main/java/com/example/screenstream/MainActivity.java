@@ -9,6 +9,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
@@ -20,6 +21,8 @@ public class MainActivity extends Activity {
     private static final int PERMISSION_REQUEST_CODE = 1;
     private static final String TAG = "MainActivity";
     private MediaProjectionManager mediaProjectionManager;
+    private long startTapNs;
+    private CheckBox recordCheckBox;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -28,12 +31,14 @@ public class MainActivity extends Activity {
 
         Button startButton = findViewById(R.id.start_button);
         Button stopButton = findViewById(R.id.stop_button);
+        recordCheckBox = findViewById(R.id.record_checkbox);
 
         // Initialize MediaProjectionManager
         mediaProjectionManager = (MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE);
 
         startButton.setOnClickListener(v -> {
             Log.d(TAG, "Start button clicked. Checking permissions...");
+            startTapNs = System.nanoTime();
             requestPermissionsAndStartRecording();
         });
 
@@ -99,6 +104,9 @@ public class MainActivity extends Activity {
                 Intent serviceIntent = new Intent(this, ScreenStreaming.class);
                 serviceIntent.putExtra("resultCode", resultCode);
                 serviceIntent.putExtra("data", data);
+                serviceIntent.putExtra(ScreenStreaming.EXTRA_TAP_NS, startTapNs);
+                serviceIntent.putExtra(ScreenStreaming.EXTRA_GRANTED_NS, System.nanoTime());
+                serviceIntent.putExtra(ScreenStreaming.EXTRA_RECORD, recordCheckBox.isChecked());
 
                 startForegroundService(serviceIntent);
             } else {
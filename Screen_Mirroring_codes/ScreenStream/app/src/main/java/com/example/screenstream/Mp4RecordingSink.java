@@ -0,0 +1,81 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.FragmentedMp4Writer;
+import com.example.mirror.media.NalScanner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the frames the viewers are sent to a {@link FragmentedMp4Writer}.
+ * Meant to run behind its own {@link FramePump} on the server's
+ * {@link FrameFanOut}, so the recording shares the single encode and the single
+ * pooled copy of each frame, while a slow disk only fills the recorder's ring.
+ *
+ * The track is added on the first key frame after the parameter sets are
+ * known. A write error ends the recording, the stream carries on.
+ */
+public class Mp4RecordingSink implements EncodedFrameSink, Closeable {
+    private static final Logger LOG = Logger.getLogger("Mp4RecordingSink");
+
+    private final FragmentedMp4Writer writer;
+    private final ParameterSets parameterSets;
+    private final int width;
+    private final int height;
+    private int track = -1;
+    private volatile boolean failed;
+    private long framesWritten;
+    private long framesSkipped;
+
+    /** @param width size the stream starts with, the track keeps later changes in band */
+    public Mp4RecordingSink(FragmentedMp4Writer writer, ParameterSets parameterSets, int width, int height) {
+        this.writer = writer;
+        this.parameterSets = parameterSets;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, NalScanner nals, long presentationTimeUs, boolean keyFrame) {
+        if (failed) {
+            return;
+        }
+        if (track < 0) {
+            if (!keyFrame || !parameterSets.isComplete()) {
+                framesSkipped++;
+                return;
+            }
+            track = writer.addTrack(parameterSets.newMp4Track(width, height));
+        }
+        try {
+            writer.writeSample(track, frame, nals, presentationTimeUs, keyFrame);
+            framesWritten++;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Recording stopped", e);
+            failed = true;
+        }
+    }
+
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /** Writes the last fragment, call once the pump feeding this sink has stopped. */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    @Override
+    public String toString() {
+        return "recording " + framesWritten + " frames, skipped " + framesSkipped
+                + (failed ? ", failed" : "") + ", " + writer;
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.FragmentedMp4Writer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Out-of-band parameter sets of the running encoder, copied once when the
+ * output format changes and advertised in the SDP of every viewer.
+ */
+public interface ParameterSets {
+
+    VideoCodec getCodec();
+
+    /**
+     * Updates from the encoder's csd buffers, or from a codec config buffer
+     * holding all of them (pass null as {@code csd1}). Buffer positions are not
+     * changed.
+     *
+     * @return true if every parameter set is known afterwards
+     */
+    boolean update(ByteBuffer csd0, ByteBuffer csd1);
+
+    boolean isComplete();
+
+    /** Value of the SDP fmtp attribute after the payload type, or null until complete. */
+    String getFormatParameters();
+
+    /**
+     * An MP4 track that keeps these parameter sets in its key frames, for a
+     * stream that starts at the given size. Only valid once complete.
+     */
+    FragmentedMp4Writer.Track newMp4Track(int width, int height);
+}
@@ -0,0 +1,169 @@
+package com.example.screenstream;
+
+/**
+ * Chooses the capture resolution and frame rate from a fixed ladder of
+ * levels. The {@link BitrateController} handles short congestion on its own;
+ * the ladder only steps down when the bitrate has been stuck at the floor, or
+ * the CPU has been saturated, for {@link #STEP_DOWN_AFTER_MS}. It steps back up
+ * after the bitrate has been at the ceiling with an idle CPU for a while.
+ *
+ * A step up that is followed by a step down soon after was a failed probe. The
+ * delay before the next attempt doubles each time, so a link that only carries
+ * the lower level does not flip between the two.
+ *
+ * Like the bitrate controller it has no clock of its own.
+ */
+public class QualityLadder {
+
+    /** One rung of the ladder. */
+    public static final class Level {
+        private final float scale;
+        private final int frameRate;
+
+        public Level(float scale, int frameRate) {
+            this.scale = scale;
+            this.frameRate = frameRate;
+        }
+
+        public float getScale() {
+            return scale;
+        }
+
+        public int getFrameRate() {
+            return frameRate;
+        }
+
+        /**
+         * Scales a native dimension. Anything below full size is rounded to a
+         * multiple of 16, the macroblock size every H.264 encoder accepts.
+         */
+        public int scale(int nativeSize) {
+            if (scale >= 1f) {
+                return nativeSize;
+            }
+            return Math.max(16, Math.round(nativeSize * scale / 16) * 16);
+        }
+
+        @Override
+        public String toString() {
+            return Math.round(scale * 100) + "%@" + frameRate + "fps";
+        }
+    }
+
+    public interface Listener {
+        void onLevelChanged(Level level);
+    }
+
+    public static final Level[] DEFAULT_LEVELS = {
+            new Level(1f, 30),
+            new Level(0.75f, 20),
+            new Level(0.5f, 15)
+    };
+
+    static final long STEP_DOWN_AFTER_MS = 3000;
+    static final long STEP_UP_AFTER_MS = 10_000;
+    static final long MAX_STEP_UP_DELAY_MS = 5 * 60_000;
+    // A step down this soon after a step up means the higher level did not fit
+    static final long FAILED_PROBE_WINDOW_MS = 30_000;
+    static final float CPU_HIGH = 0.85f;
+    static final float CPU_LOW = 0.5f;
+
+    private final Level[] levels;
+    private final int floorBps;
+    private final int ceilingBps;
+    private volatile Listener listener;
+
+    private int index;
+    private long pressureSinceMs = -1;
+    private long headroomSinceMs = -1;
+    private long lastStepUpMs = Long.MIN_VALUE / 2;
+    private long stepUpDelayMs = STEP_UP_AFTER_MS;
+    private long stepDownCount;
+    private long stepUpCount;
+
+    /**
+     * @param levels     best quality first
+     * @param floorBps   bitrate floor of the controller, being stuck there means congestion
+     * @param ceilingBps bitrate ceiling of the controller, reaching it means headroom
+     */
+    public QualityLadder(Level[] levels, int floorBps, int ceilingBps) {
+        if (levels.length == 0) {
+            throw new IllegalArgumentException("No levels");
+        }
+        this.levels = levels.clone();
+        this.floorBps = floorBps;
+        this.ceilingBps = ceilingBps;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized Level getLevel() {
+        return levels[index];
+    }
+
+    public synchronized int getLevelIndex() {
+        return index;
+    }
+
+    public synchronized long getStepDownCount() {
+        return stepDownCount;
+    }
+
+    public synchronized long getStepUpCount() {
+        return stepUpCount;
+    }
+
+    /** Current delay before probing the next level up. */
+    public synchronized long getStepUpDelay() {
+        return stepUpDelayMs;
+    }
+
+    /**
+     * @param bitrateBps current target of the bitrate controller
+     * @param cpuLoad    process CPU use over the last interval, 1 for all cores busy
+     * @return the level to use
+     */
+    public Level update(long nowMs, int bitrateBps, float cpuLoad) {
+        Level changed = null;
+        synchronized (this) {
+            boolean pressure = bitrateBps <= floorBps || cpuLoad > CPU_HIGH;
+            boolean headroom = bitrateBps >= ceilingBps && cpuLoad < CPU_LOW;
+            pressureSinceMs = pressure ? (pressureSinceMs < 0 ? nowMs : pressureSinceMs) : -1;
+            headroomSinceMs = headroom ? (headroomSinceMs < 0 ? nowMs : headroomSinceMs) : -1;
+
+            if (pressureSinceMs >= 0 && nowMs - pressureSinceMs >= STEP_DOWN_AFTER_MS && index < levels.length - 1) {
+                index++;
+                stepDownCount++;
+                if (nowMs - lastStepUpMs < FAILED_PROBE_WINDOW_MS) {
+                    stepUpDelayMs = Math.min(stepUpDelayMs * 2, MAX_STEP_UP_DELAY_MS);
+                }
+                changed = levels[index];
+            } else if (headroomSinceMs >= 0 && nowMs - headroomSinceMs >= stepUpDelayMs && index > 0) {
+                index--;
+                stepUpCount++;
+                lastStepUpMs = nowMs;
+                changed = levels[index];
+            } else if (nowMs - lastStepUpMs >= FAILED_PROBE_WINDOW_MS + MAX_STEP_UP_DELAY_MS) {
+                // Conditions may have changed since the last failed probe
+                stepUpDelayMs = STEP_UP_AFTER_MS;
+            }
+            if (changed != null) {
+                // Let the encoder settle at the new level before judging it
+                pressureSinceMs = -1;
+                headroomSinceMs = -1;
+            }
+        }
+        Listener listener = this.listener;
+        if (changed != null && listener != null) {
+            listener.onLevelChanged(changed);
+        }
+        return changed != null ? changed : getLevel();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Quality " + levels[index] + " stepDowns=" + stepDownCount + " stepUps=" + stepUpCount;
+    }
+}
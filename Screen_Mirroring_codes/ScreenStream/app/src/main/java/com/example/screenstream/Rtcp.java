@@ -0,0 +1,128 @@
+package com.example.screenstream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of RTCP (RFC 3550 section 6.4) the server needs: writing sender
+ * reports, and reading the report block about our stream out of the receiver
+ * reports a client sends back. The round trip time follows from the sender
+ * report time the client echoes in LSR and the delay it adds in DLSR.
+ */
+final class Rtcp {
+    static final int PT_SENDER_REPORT = 200;
+    static final int PT_RECEIVER_REPORT = 201;
+    static final int SENDER_REPORT_SIZE = 28;
+    private static final int REPORT_BLOCK_SIZE = 24;
+    // Seconds from the NTP epoch (1900) to the Unix epoch
+    private static final long NTP_UNIX_OFFSET_SECONDS = 2208988800L;
+
+    /** What a receiver reported about one source. */
+    static final class ReportBlock {
+        int fractionLost;
+        int cumulativeLost;
+        long highestSequence;
+        long jitter;
+        long lastSenderReport;
+        long delaySinceLastSenderReport;
+
+        /** Packets lost since the previous report, between 0 and 1. */
+        float lossFraction() {
+            return fractionLost / 256f;
+        }
+
+        /**
+         * @param nowNtp current time as a 64-bit NTP timestamp
+         * @return round trip time in milliseconds, or -1 if the receiver has no sender report yet
+         */
+        long roundTripMs(long nowNtp) {
+            if (lastSenderReport == 0) {
+                return -1;
+            }
+            long rtt = (middle32(nowNtp) - lastSenderReport - delaySinceLastSenderReport) & 0xFFFFFFFFL;
+            // A clock step or a bogus report wraps around to a huge value
+            if (rtt > 0x7FFFFFFFL) {
+                return -1;
+            }
+            return rtt * 1000 / 65536;
+        }
+    }
+
+    private Rtcp() {
+    }
+
+    /** Converts wall clock milliseconds to a 64-bit NTP timestamp. */
+    static long toNtp(long wallTimeMs) {
+        long seconds = wallTimeMs / 1000 + NTP_UNIX_OFFSET_SECONDS;
+        long fraction = ((wallTimeMs % 1000) << 32) / 1000;
+        return (seconds << 32) | fraction;
+    }
+
+    private static long middle32(long ntp) {
+        return (ntp >>> 16) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Writes a sender report without report blocks.
+     *
+     * @return the number of bytes written, {@link #SENDER_REPORT_SIZE}
+     */
+    static int writeSenderReport(byte[] out, int ssrc, long ntp, long rtpTimestamp, long packetCount, long octetCount) {
+        ByteBuffer buffer = ByteBuffer.wrap(out, 0, SENDER_REPORT_SIZE);
+        buffer.put((byte) 0x80)
+                .put((byte) PT_SENDER_REPORT)
+                .putShort((short) (SENDER_REPORT_SIZE / 4 - 1))
+                .putInt(ssrc)
+                .putLong(ntp)
+                .putInt((int) rtpTimestamp)
+                .putInt((int) packetCount)
+                .putInt((int) octetCount);
+        return SENDER_REPORT_SIZE;
+    }
+
+    /**
+     * Looks through a compound RTCP packet between position and limit for a
+     * report block about {@code ssrc}. The buffer position is left unchanged.
+     *
+     * @return true if {@code out} was filled in
+     */
+    static boolean findReportBlock(ByteBuffer packet, int ssrc, ReportBlock out) {
+        int offset = packet.position();
+        int end = packet.limit();
+        while (offset + 8 <= end) {
+            int first = packet.get(offset) & 0xFF;
+            if ((first >> 6) != 2) {
+                return false;
+            }
+            int reportCount = first & 0x1F;
+            int type = packet.get(offset + 1) & 0xFF;
+            int length = ((packet.getShort(offset + 2) & 0xFFFF) + 1) * 4;
+            if (offset + length > end) {
+                return false;
+            }
+            int blocks = -1;
+            if (type == PT_RECEIVER_REPORT) {
+                blocks = offset + 8;
+            } else if (type == PT_SENDER_REPORT) {
+                blocks = offset + 28;
+            }
+            if (blocks >= 0) {
+                for (int i = 0; i < reportCount && blocks + (i + 1) * REPORT_BLOCK_SIZE <= offset + length; i++) {
+                    int block = blocks + i * REPORT_BLOCK_SIZE;
+                    if (packet.getInt(block) == ssrc) {
+                        int lost = packet.getInt(block + 4);
+                        out.fractionLost = lost >>> 24;
+                        // 24-bit signed count
+                        out.cumulativeLost = (lost << 8) >> 8;
+                        out.highestSequence = packet.getInt(block + 8) & 0xFFFFFFFFL;
+                        out.jitter = packet.getInt(block + 12) & 0xFFFFFFFFL;
+                        out.lastSenderReport = packet.getInt(block + 16) & 0xFFFFFFFFL;
+                        out.delaySinceLastSenderReport = packet.getInt(block + 20) & 0xFFFFFFFFL;
+                        return true;
+                    }
+                }
+            }
+            offset += length;
+        }
+        return false;
+    }
+}
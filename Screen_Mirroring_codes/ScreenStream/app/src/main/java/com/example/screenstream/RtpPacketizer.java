@@ -0,0 +1,107 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Common part of the RTP packetizers: the RTP header, sequence numbers and the
+ * reused packet buffer. Subclasses split scanned Annex-B access units into
+ * payloads following their codec's payload format and set the marker bit on
+ * the last packet of every access unit.
+ *
+ * The packet buffer handed to the {@link PacketSink} is reused for every packet,
+ * so sinks must consume it before returning.
+ */
+public abstract class RtpPacketizer {
+    public static final int PAYLOAD_TYPE = 96;
+    public static final int CLOCK_RATE = 90000;
+    public static final int RTP_HEADER_SIZE = 12;
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1400;
+
+    public interface PacketSink {
+        void onPacket(byte[] packet, int length);
+    }
+
+    private final int ssrc;
+    protected final int maxPayloadSize;
+    protected final byte[] packet;
+    private final NalScanner scanner = new NalScanner();
+    private int sequenceNumber;
+
+    /** @param minPayloadSize smallest payload the format can make progress with */
+    protected RtpPacketizer(int ssrc, int maxPacketSize, int minPayloadSize) {
+        if (maxPacketSize <= RTP_HEADER_SIZE + minPayloadSize) {
+            throw new IllegalArgumentException("Packet size too small: " + maxPacketSize);
+        }
+        this.ssrc = ssrc;
+        this.maxPayloadSize = maxPacketSize - RTP_HEADER_SIZE;
+        this.packet = new byte[maxPacketSize];
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    /** Sequence number that will be used by the next packet. */
+    public synchronized int getSequenceNumber() {
+        return sequenceNumber & 0xFFFF;
+    }
+
+    public static long toRtpTimestamp(long presentationTimeUs) {
+        return presentationTimeUs * (CLOCK_RATE / 1000) / 1000;
+    }
+
+    /**
+     * Packetizes the bytes between position and limit of {@code accessUnit}
+     * without changing its position.
+     */
+    public synchronized void packetize(ByteBuffer accessUnit, long rtpTimestamp, PacketSink sink) {
+        scanner.scan(accessUnit);
+        packetize(accessUnit, scanner, rtpTimestamp, sink);
+    }
+
+    /**
+     * Packetizes an access unit that has already been scanned, so the NAL
+     * boundaries found by the caller are not searched for again.
+     */
+    public synchronized void packetize(ByteBuffer accessUnit, NalScanner nals, long rtpTimestamp, PacketSink sink) {
+        int position = accessUnit.position();
+        int limit = accessUnit.limit();
+        try {
+            sendAccessUnit(accessUnit, nals, rtpTimestamp, sink);
+        } finally {
+            accessUnit.limit(limit);
+            accessUnit.position(position);
+        }
+    }
+
+    /** Sends every NAL unit of the access unit, the buffer window may be moved freely. */
+    protected abstract void sendAccessUnit(ByteBuffer accessUnit, NalScanner nals, long rtpTimestamp, PacketSink sink);
+
+    protected final void writeHeader(long rtpTimestamp, boolean marker) {
+        int seq = sequenceNumber++ & 0xFFFF;
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) ((marker ? 0x80 : 0) | PAYLOAD_TYPE);
+        packet[2] = (byte) (seq >> 8);
+        packet[3] = (byte) seq;
+        packet[4] = (byte) (rtpTimestamp >> 24);
+        packet[5] = (byte) (rtpTimestamp >> 16);
+        packet[6] = (byte) (rtpTimestamp >> 8);
+        packet[7] = (byte) rtpTimestamp;
+        packet[8] = (byte) (ssrc >> 24);
+        packet[9] = (byte) (ssrc >> 16);
+        packet[10] = (byte) (ssrc >> 8);
+        packet[11] = (byte) ssrc;
+    }
+
+    // Moves the source window instead of duplicating it. The limit is put back so absolute
+    // reads of later NAL headers stay in bounds, packetize() restores the position
+    protected static void copy(ByteBuffer src, int offset, byte[] dst, int dstOffset, int length) {
+        int limit = src.limit();
+        src.limit(offset + length);
+        src.position(offset);
+        src.get(dst, dstOffset, length);
+        src.limit(limit);
+    }
+}
@@ -0,0 +1,890 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+import com.example.mirror.stats.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal RTSP server (RFC 2326) for a single live H.264 or HEVC track, as
+ * given by the {@link ParameterSets} of the encoder. Supports
+ * OPTIONS, DESCRIBE, SETUP, PLAY, GET_PARAMETER and TEARDOWN with RTP over UDP
+ * or interleaved in the RTSP TCP connection.
+ *
+ * Control traffic is handled on one selector thread. Encoded frames are pushed
+ * with {@link #sendFrame} from the encoder thread and shared through a
+ * {@link FrameFanOut}: every playing client has its own bounded queue and
+ * thread that packetizes and writes its frames. A client whose socket stops
+ * draining waits on its own queue, which drops frames up to the next key frame
+ * once full, and is disconnected if it stays stuck. A {@link GopCache} keeps
+ * the frames since the last key frame so a client that starts playing gets a
+ * decodable picture right away; a key frame is only requested from the encoder
+ * when the cache is empty or too old. Other consumers of the stream, such as
+ * a recording, get their own pump on the same fan-out with {@link #attach}.
+ * Sender reports go out once a second so clients can report loss and round
+ * trip time back, see {@link ReceiverReportListener}.
+ */
+public class RtspServer {
+    private static final Logger LOG = Logger.getLogger("RtspServer");
+    static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+    public static final int DEFAULT_PORT = 8554;
+    private static final String TRACK_ID = "trackID=0";
+    private static final int SESSION_TIMEOUT_SECONDS = 60;
+    // Receivers need sender reports to measure the round trip time they report back
+    private static final long SENDER_REPORT_INTERVAL_MS = 1000;
+    // Frames queued per viewer, about half a second at 30 fps
+    static final int VIEWER_QUEUE_FRAMES = 16;
+    // A viewer's thread stops writing above this backlog and lets its queue absorb the rest
+    static final int VIEWER_PENDING_LIMIT = 256 * 1024;
+    private static final long VIEWER_STALL_TIMEOUT_MS = 10_000;
+    // A joiner replays at most this much of the current GOP before catching up with live frames
+    static final long GOP_CACHE_MAX_AGE_US = 5_000_000;
+    static final int GOP_CACHE_MAX_FRAMES = 300;
+    static final long GOP_CACHE_MAX_BYTES = 2 * 1024 * 1024;
+
+    /** Receives the feedback in each RTCP receiver report a client sends. */
+    public interface ReceiverReportListener {
+        /**
+         * @param lossFraction fraction of packets lost since the client's previous report
+         * @param rttMs        round trip time, or -1 until the client has seen a sender report
+         */
+        void onReceiverReport(String sessionId, float lossFraction, long rttMs);
+    }
+
+    /** Told when a client asks for a codec other than the one being streamed. */
+    public interface CodecMismatchListener {
+        void onCodecMismatch(VideoCodec requested, VideoCodec streamed);
+    }
+
+    /** Counters of one playing client. */
+    public static final class ViewerStats {
+        private final String id;
+        private final long bytesSent;
+        private final long framesSent;
+        private final long framesDropped;
+        private final int queuedFrames;
+        private final long lagP50Us;
+        private final long lagP99Us;
+        private final long joinLatencyUs;
+
+        ViewerStats(RtspSession session, FramePump pump) {
+            id = session.id;
+            bytesSent = session.bytesSent;
+            framesSent = session.framesSent;
+            framesDropped = pump.getRing().getDroppedCount();
+            queuedFrames = pump.getRing().size();
+            lagP50Us = pump.getQueueDelay().getPercentile(50);
+            lagP99Us = pump.getQueueDelay().getPercentile(99);
+            joinLatencyUs = session.joinLatencyUs;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /** RTP bytes written to the client, headers included. */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getFramesSent() {
+            return framesSent;
+        }
+
+        /** Frames this client's queue discarded because it fell behind. */
+        public long getFramesDropped() {
+            return framesDropped;
+        }
+
+        public int getQueuedFrames() {
+            return queuedFrames;
+        }
+
+        /** Median time frames waited in this client's queue. */
+        public long getLagP50Us() {
+            return lagP50Us;
+        }
+
+        public long getLagP99Us() {
+            return lagP99Us;
+        }
+
+        /** Time from PLAY until the first frame was sent, or -1 if none was yet. */
+        public long getJoinLatencyUs() {
+            return joinLatencyUs;
+        }
+
+        @Override
+        public String toString() {
+            return "Viewer " + id + " sent=" + framesSent + " frames/" + bytesSent + "B dropped=" + framesDropped
+                    + " queued=" + queuedFrames + " lag p50=" + lagP50Us + "us p99=" + lagP99Us + "us"
+                    + " join=" + joinLatencyUs + "us";
+        }
+    }
+
+    private final int requestedPort;
+    private final SecureRandom random = new SecureRandom();
+    private final BufferPool pool;
+    private final GopCache gopCache = new GopCache(GOP_CACHE_MAX_AGE_US, GOP_CACHE_MAX_FRAMES, GOP_CACHE_MAX_BYTES);
+    private final FrameFanOut fanOut;
+    private final LatencyHistogram joinTime = new LatencyHistogram("join->first frame");
+    private final AtomicLong cachedJoins = new AtomicLong();
+    private final AtomicLong keyFrameRequests = new AtomicLong();
+    // Copy-on-write array so stats and reports can iterate without allocating
+    private volatile RtspSession[] sessions = new RtspSession[0];
+    private final Object sessionLock = new Object();
+    private final Queue<RtspSession> writeRequests = new ConcurrentLinkedQueue<>();
+    // Frames dropped by the queues of viewers that are gone
+    private final AtomicLong departedDrops = new AtomicLong();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+    private volatile ParameterSets parameterSets;
+    private volatile CodecMismatchListener codecMismatchListener;
+    private volatile Runnable keyFrameRequestListener;
+    private volatile ReceiverReportListener receiverReportListener;
+    private volatile StartupReport startupReport;
+
+    // Selector thread only
+    private final ByteBuffer rtcpReadBuffer = ByteBuffer.allocate(1500);
+    private final Rtcp.ReportBlock reportBlock = new Rtcp.ReportBlock();
+
+    public RtspServer() {
+        this(DEFAULT_PORT);
+    }
+
+    /** @param port TCP port for RTSP, or 0 to pick any free port */
+    public RtspServer(int port) {
+        this(port, new BufferPool(16 * 1024, 4 * 1024 * 1024, VIEWER_QUEUE_FRAMES * 2));
+    }
+
+    /**
+     * @param port TCP port for RTSP, or 0 to pick any free port
+     * @param pool where frames are copied once and shared by all viewers
+     */
+    public RtspServer(int port, BufferPool pool) {
+        this.requestedPort = port;
+        this.pool = pool;
+        this.fanOut = new FrameFanOut(pool, gopCache);
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(requestedPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::runSelector, "RtspServer");
+        selectorThread.start();
+        LOG.info("RTSP server listening on port " + getPort());
+        StartupReport report = startupReport;
+        if (report != null) {
+            report.mark(StartupReport.Phase.TRANSPORT_READY);
+        }
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (RtspSession session : sessions) {
+            closeSession(session);
+        }
+        gopCache.clear();
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error closing RTSP server", e);
+        }
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getPlayingSessionCount() {
+        int count = 0;
+        for (RtspSession session : sessions) {
+            if (session.playing) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Largest number of bytes any client socket has not accepted yet. */
+    public int getMaxPendingBytes() {
+        int max = 0;
+        for (RtspSession session : sessions) {
+            max = Math.max(max, session.pendingBytes());
+        }
+        return max;
+    }
+
+    /** Number of live frames queued for the client that is furthest behind, not counting a GOP cache replay. */
+    public int getMaxQueuedFrames() {
+        int max = 0;
+        for (RtspSession session : sessions) {
+            FramePump pump = session.pump;
+            if (pump != null) {
+                max = Math.max(max, pump.getLiveQueuedFrames());
+            }
+        }
+        return max;
+    }
+
+    /** Frames dropped by all client queues since the server started, including closed ones. */
+    public long getDroppedFrameCount() {
+        long dropped = departedDrops.get();
+        for (RtspSession session : sessions) {
+            FramePump pump = session.pump;
+            if (pump != null) {
+                dropped += pump.getRing().getDroppedCount();
+            }
+        }
+        return dropped;
+    }
+
+    public List<ViewerStats> getViewerStats() {
+        List<ViewerStats> stats = new ArrayList<>();
+        for (RtspSession session : sessions) {
+            FramePump pump = session.pump;
+            if (pump != null) {
+                stats.add(new ViewerStats(session, pump));
+            }
+        }
+        return stats;
+    }
+
+    public GopCache getGopCache() {
+        return gopCache;
+    }
+
+    /** Time from PLAY to the first frame sent, over all clients. */
+    public LatencyHistogram getJoinTime() {
+        return joinTime;
+    }
+
+    /** Clients that started from the GOP cache without waiting for a new key frame. */
+    public long getCachedJoinCount() {
+        return cachedJoins.get();
+    }
+
+    /** Key frames requested from the encoder, for joining clients and for queues that overflowed. */
+    public long getKeyFrameRequestCount() {
+        return keyFrameRequests.get();
+    }
+
+    /** Marks when the server listens and when the first frame goes out to any client. */
+    public void setStartupReport(StartupReport startupReport) {
+        this.startupReport = startupReport;
+    }
+
+    /** Called on the selector thread for each receiver report about our stream. */
+    public void setReceiverReportListener(ReceiverReportListener listener) {
+        receiverReportListener = listener;
+    }
+
+    /** Called when a new viewer needs an IDR frame to start decoding. */
+    public void setKeyFrameRequestListener(Runnable listener) {
+        keyFrameRequestListener = listener;
+    }
+
+    /** Sets the codec and the parameter sets advertised in the SDP. */
+    public void setParameterSets(ParameterSets parameterSets) {
+        this.parameterSets = parameterSets;
+    }
+
+    /**
+     * Called on the selector thread when a DESCRIBE asks for another codec
+     * with {@code ?codec=}. Only clients that know this query send it, a
+     * standard player is described whatever is streamed and cannot report a
+     * mismatch.
+     */
+    public void setCodecMismatchListener(CodecMismatchListener listener) {
+        codecMismatchListener = listener;
+    }
+
+    private VideoCodec getCodec() {
+        ParameterSets parameterSets = this.parameterSets;
+        return parameterSets != null ? parameterSets.getCodec() : VideoCodec.H264;
+    }
+
+    /** Sets H.264 SPS and PPS from the encoder's csd-0 and csd-1 buffers. */
+    public void setParameterSets(ByteBuffer sps, ByteBuffer pps) {
+        H264ParameterSets parameterSets = new H264ParameterSets();
+        parameterSets.update(sps, pps);
+        this.parameterSets = parameterSets;
+    }
+
+    /**
+     * Queues one encoded access unit for every playing client. The frame is
+     * copied once, the buffer position is left unchanged.
+     */
+    public void sendFrame(ByteBuffer accessUnit, long presentationTimeUs, boolean keyFrame) {
+        fanOut.onFrame(accessUnit, null, presentationTimeUs, keyFrame);
+    }
+
+    /** Same as {@link #sendFrame(ByteBuffer, long, boolean)} for a frame the caller already scanned. */
+    public void sendFrame(ByteBuffer accessUnit, NalScanner nals, long presentationTimeUs, boolean keyFrame) {
+        fanOut.onFrame(accessUnit, nals, presentationTimeUs, keyFrame);
+    }
+
+    /**
+     * Feeds another consumer of the stream, such as a recording, the same
+     * pooled frames as the viewers, starting from the GOP cache. The factory
+     * is told how many cached frames the pump's ring needs room for on top of
+     * its own queue.
+     *
+     * @return true if the pump starts with a key frame
+     */
+    public boolean attach(FrameFanOut.PumpFactory factory) {
+        return fanOut.join(factory);
+    }
+
+    /** Stops offering frames to a pump given to {@link #attach}, which can then be stopped. */
+    public void detach(FramePump pump) {
+        fanOut.remove(pump);
+    }
+
+    /**
+     * Gives a client that starts playing its own queue and thread, seeded from
+     * the GOP cache. Returns false if the client has to wait for a new key frame.
+     */
+    private boolean startViewer(RtspSession session) {
+        session.packetSink = (packet, length) -> deliverPacket(session, packet, length);
+        return fanOut.join(cachedFrames -> {
+            // Room for the cached frames on top of the live queue, which they drain ahead of
+            FrameRing ring = new FrameRing(VIEWER_QUEUE_FRAMES + cachedFrames, pool, FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR);
+            session.pump = new FramePump(ring,
+                    (frame, nals, presentationTimeUs, keyFrame) -> deliverFrame(session, frame, nals, presentationTimeUs, keyFrame),
+                    this::requestKeyFrame, "RtspViewer-" + session.id);
+            return session.pump;
+        });
+    }
+
+    private void requestKeyFrame() {
+        keyFrameRequests.incrementAndGet();
+        Runnable listener = keyFrameRequestListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    // Runs on the session's pump thread
+    private void deliverFrame(RtspSession session, ByteBuffer accessUnit, NalScanner nals,
+                              long presentationTimeUs, boolean keyFrame) {
+        if (keyFrame) {
+            session.waitingForKeyFrame = false;
+        }
+        if (session.closed || session.waitingForKeyFrame) {
+            return;
+        }
+        try {
+            // Only this viewer waits for its socket, its queue absorbs the backlog meanwhile
+            if (!session.awaitPendingBelow(VIEWER_PENDING_LIMIT, VIEWER_STALL_TIMEOUT_MS)) {
+                LOG.info("Dropping client " + session.id + ": stalled for " + VIEWER_STALL_TIMEOUT_MS + " ms");
+                closeSession(session);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        session.packetizer.packetize(accessUnit, nals, RtpPacketizer.toRtpTimestamp(presentationTimeUs), session.packetSink);
+        session.framesSent++;
+        if (session.joinLatencyUs < 0) {
+            session.joinLatencyUs = (System.nanoTime() - session.playStartNs) / 1000;
+            joinTime.record(session.joinLatencyUs);
+            StartupReport report = startupReport;
+            if (report != null) {
+                report.mark(StartupReport.Phase.FIRST_FRAME_SENT);
+            }
+        }
+        long nowMs = System.currentTimeMillis();
+        if (nowMs - session.lastSenderReportMs >= SENDER_REPORT_INTERVAL_MS) {
+            session.lastSenderReportMs = nowMs;
+            sendSenderReport(session, nowMs);
+        }
+    }
+
+    private void sendSenderReport(RtspSession session, long wallTimeMs) {
+        // Presentation times are on the System.nanoTime() clock, as in the RTP-Info of PLAY
+        long rtpTime = RtpPacketizer.toRtpTimestamp(System.nanoTime() / 1000);
+        long octets = session.bytesSent - session.packetsSent * RtpPacketizer.RTP_HEADER_SIZE;
+        int length = Rtcp.writeSenderReport(session.senderReport, session.packetizer.getSsrc(),
+                Rtcp.toNtp(wallTimeMs), rtpTime, session.packetsSent, octets);
+        try {
+            if (!session.sendRtcp(session.senderReport, length)) {
+                requestWrite(session);
+            }
+        } catch (IOException e) {
+            LOG.info("Dropping client " + session.id + ": " + e.getMessage());
+            closeSession(session);
+        }
+    }
+
+    private void deliverPacket(RtspSession session, byte[] packet, int length) {
+        try {
+            if (!session.sendRtp(packet, length)) {
+                requestWrite(session);
+            }
+        } catch (IOException e) {
+            LOG.info("Dropping client " + session.id + ": " + e.getMessage());
+            closeSession(session);
+        }
+    }
+
+    private void requestWrite(RtspSession session) {
+        writeRequests.add(session);
+        selector.wakeup();
+    }
+
+    private void runSelector() {
+        try {
+            while (running) {
+                selector.select();
+                RtspSession pendingWrite;
+                while ((pendingWrite = writeRequests.poll()) != null) {
+                    SelectionKey key = pendingWrite.channel.keyFor(selector);
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    RtspSession session = (RtspSession) key.attachment();
+                    try {
+                        if (key.channel() == session.rtcpChannel) {
+                            readRtcp(session);
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            read(session);
+                        }
+                        if (key.isValid() && key.isWritable() && session.flushPending()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    } catch (IOException e) {
+                        closeSession(session);
+                    } catch (RuntimeException e) {
+                        // One client's bad input must not stop the selector for everyone
+                        LOG.log(Level.WARNING, "Closing session " + session.id, e);
+                        closeSession(session);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                LOG.log(Level.WARNING, "RTSP selector failed", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        RtspSession session = new RtspSession(channel, Long.toHexString(random.nextLong() & Long.MAX_VALUE),
+                getCodec().newPacketizer(random.nextInt()));
+        channel.register(selector, SelectionKey.OP_READ, session);
+        addSession(session);
+        LOG.info("RTSP client connected: " + channel.getRemoteAddress());
+    }
+
+    private void addSession(RtspSession session) {
+        synchronized (sessionLock) {
+            RtspSession[] current = sessions;
+            RtspSession[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = session;
+            sessions = updated;
+        }
+    }
+
+    private void closeSession(RtspSession session) {
+        session.close();
+        synchronized (sessionLock) {
+            RtspSession[] current = sessions;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == session) {
+                    RtspSession[] updated = new RtspSession[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    sessions = updated;
+                    break;
+                }
+            }
+        }
+        FramePump pump;
+        synchronized (session) {
+            pump = session.pump;
+            session.pump = null;
+        }
+        if (pump != null) {
+            fanOut.remove(pump);
+            pump.stop();
+            departedDrops.addAndGet(pump.getRing().getDroppedCount());
+            LOG.info(new ViewerStats(session, pump).toString());
+        }
+    }
+
+    private void read(RtspSession session) throws IOException {
+        ByteBuffer in = session.readBuffer;
+        if (session.channel.read(in) < 0) {
+            throw new IOException("Connection closed");
+        }
+        in.flip();
+        while (in.hasRemaining()) {
+            if (session.skipBytes > 0) {
+                int skip = Math.min(session.skipBytes, in.remaining());
+                in.position(in.position() + skip);
+                session.skipBytes -= skip;
+                continue;
+            }
+            if (in.get(in.position()) == '$') {
+                if (in.remaining() < 4) {
+                    break;
+                }
+                int start = in.position();
+                int channel = in.get(start + 1) & 0xFF;
+                int length = in.getShort(start + 2) & 0xFFFF;
+                if (session.interleaved && channel == session.rtpChannel + 1 && 4 + length <= in.capacity()) {
+                    // Interleaved RTCP from the client, wait until the whole packet is buffered
+                    if (in.remaining() < 4 + length) {
+                        break;
+                    }
+                    int limit = in.limit();
+                    in.position(start + 4);
+                    in.limit(start + 4 + length);
+                    handleRtcp(session, in);
+                    in.limit(limit);
+                    in.position(start + 4 + length);
+                    continue;
+                }
+                session.skipBytes = 4 + length;
+                continue;
+            }
+            int headerEnd = findHeaderEnd(in);
+            if (headerEnd < 0) {
+                if (in.position() == 0 && in.limit() == in.capacity()) {
+                    throw new IOException("RTSP request too large");
+                }
+                break;
+            }
+            String head = new String(in.array(), in.position(), headerEnd - in.position(), CHARSET);
+            in.position(headerEnd + 4);
+            Map<String, String> headers = new HashMap<>();
+            String[] lines = head.split("\r\n");
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+            String contentLength = headers.get("content-length");
+            if (contentLength != null) {
+                int length = parseContentLength(contentLength);
+                if (length < 0) {
+                    // Without the body length nothing after it can be framed, so only this client is dropped
+                    reply(session, headers.get("cseq"), "400 Bad Request", "", null);
+                    throw new IOException("Bad Content-Length: " + contentLength);
+                }
+                session.skipBytes = length;
+            }
+            handleRequest(session, lines[0], headers);
+        }
+        in.compact();
+    }
+
+    private void readRtcp(RtspSession session) throws IOException {
+        while (true) {
+            rtcpReadBuffer.clear();
+            if (session.rtcpChannel.receive(rtcpReadBuffer) == null) {
+                return;
+            }
+            rtcpReadBuffer.flip();
+            handleRtcp(session, rtcpReadBuffer);
+        }
+    }
+
+    private void handleRtcp(RtspSession session, ByteBuffer packet) {
+        ReceiverReportListener listener = receiverReportListener;
+        if (listener == null || !Rtcp.findReportBlock(packet, session.packetizer.getSsrc(), reportBlock)) {
+            return;
+        }
+        long rttMs = reportBlock.roundTripMs(Rtcp.toNtp(System.currentTimeMillis()));
+        listener.onReceiverReport(session.id, reportBlock.lossFraction(), rttMs);
+    }
+
+    // -1 unless the header is a non-negative int
+    private static int parseContentLength(String value) {
+        try {
+            return Math.max(Integer.parseInt(value), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int findHeaderEnd(ByteBuffer in) {
+        for (int i = in.position(); i + 3 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void handleRequest(RtspSession session, String requestLine, Map<String, String> headers) throws IOException {
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 3) {
+            throw new IOException("Malformed RTSP request: " + requestLine);
+        }
+        String method = parts[0];
+        String url = parts[1];
+        String cseq = headers.get("cseq");
+        LOG.fine("RTSP " + method + " " + url);
+
+        switch (method) {
+            case "OPTIONS":
+                reply(session, cseq, "200 OK", "Public: OPTIONS, DESCRIBE, SETUP, PLAY, TEARDOWN, GET_PARAMETER\r\n", null);
+                break;
+            case "DESCRIBE":
+                VideoCodec requested = requestedCodec(url);
+                if (requested != null && requested != getCodec()) {
+                    // A player that cannot decode the stream should fail clearly rather than show garbage
+                    LOG.info("Client " + session.id + " asked for " + requested + ", streaming " + getCodec());
+                    CodecMismatchListener listener = codecMismatchListener;
+                    if (listener != null) {
+                        listener.onCodecMismatch(requested, getCodec());
+                    }
+                    reply(session, cseq, "415 Unsupported Media Type", "", null);
+                    break;
+                }
+                String sdp = buildSdp(session);
+                if (sdp == null) {
+                    reply(session, cseq, "503 Service Unavailable", "", null);
+                } else {
+                    reply(session, cseq, "200 OK",
+                            "Content-Base: " + (url.endsWith("/") ? url : url + "/") + "\r\n"
+                                    + "Content-Type: application/sdp\r\n", sdp);
+                }
+                break;
+            case "SETUP":
+                setup(session, cseq, headers.get("transport"));
+                break;
+            case "PLAY":
+                if (!session.hasTransport()) {
+                    reply(session, cseq, "455 Method Not Valid in This State", "", null);
+                    break;
+                }
+                // A client starting from the cache first gets frames from the start of the GOP
+                long startUs = gopCache.getStartPresentationTimeUs();
+                long rtpTime = RtpPacketizer.toRtpTimestamp(startUs >= 0 ? startUs : System.nanoTime() / 1000);
+                String trackUrl = url.endsWith(TRACK_ID) ? url : (url.endsWith("/") ? url : url + "/") + TRACK_ID;
+                reply(session, cseq, "200 OK",
+                        "Session: " + session.id + "\r\n"
+                                + "Range: npt=0.000-\r\n"
+                                + "RTP-Info: url=" + trackUrl + ";seq=" + session.packetizer.getSequenceNumber()
+                                + ";rtptime=" + (rtpTime & 0xFFFFFFFFL) + "\r\n", null);
+                if (!session.playing) {
+                    session.waitingForKeyFrame = true;
+                    session.playStartNs = System.nanoTime();
+                    // Counted as playing once frames reach its queue
+                    boolean cached = startViewer(session);
+                    session.playing = true;
+                    if (cached) {
+                        cachedJoins.incrementAndGet();
+                    } else {
+                        requestKeyFrame();
+                    }
+                }
+                break;
+            case "GET_PARAMETER":
+                reply(session, cseq, "200 OK", "Session: " + session.id + "\r\n", null);
+                break;
+            case "TEARDOWN":
+                reply(session, cseq, "200 OK", "Session: " + session.id + "\r\n", null);
+                closeSession(session);
+                break;
+            default:
+                reply(session, cseq, "405 Method Not Allowed", "", null);
+                break;
+        }
+    }
+
+    private void setup(RtspSession session, String cseq, String transport) throws IOException {
+        if (transport == null) {
+            reply(session, cseq, "461 Unsupported Transport", "", null);
+            return;
+        }
+        String sessionHeader = "Session: " + session.id + ";timeout=" + SESSION_TIMEOUT_SECONDS + "\r\n";
+        if (transport.contains("RTP/AVP/TCP")) {
+            int[] interleaved = parseRange(transport, "interleaved=");
+            session.interleaved = true;
+            session.rtpChannel = interleaved != null ? interleaved[0] : 0;
+            reply(session, cseq, "200 OK", sessionHeader
+                    + "Transport: RTP/AVP/TCP;unicast;interleaved=" + session.rtpChannel + "-" + (session.rtpChannel + 1) + "\r\n", null);
+            return;
+        }
+        int[] clientPorts = parseRange(transport, "client_port=");
+        if (clientPorts == null) {
+            reply(session, cseq, "461 Unsupported Transport", "", null);
+            return;
+        }
+        openUdpChannels(session);
+        SocketAddress remote = session.channel.getRemoteAddress();
+        session.udpTarget = new InetSocketAddress(((InetSocketAddress) remote).getAddress(), clientPorts[0]);
+        session.rtcpTarget = new InetSocketAddress(((InetSocketAddress) remote).getAddress(), clientPorts[1]);
+        // Receiver reports come back on the RTCP port
+        session.rtcpChannel.configureBlocking(false);
+        session.rtcpChannel.register(selector, SelectionKey.OP_READ, session);
+        int serverPort = session.udpChannel.socket().getLocalPort();
+        reply(session, cseq, "200 OK", sessionHeader
+                + "Transport: RTP/AVP;unicast;client_port=" + clientPorts[0] + "-" + clientPorts[1]
+                + ";server_port=" + serverPort + "-" + (serverPort + 1) + "\r\n", null);
+    }
+
+    // RTP goes out on an even port, RTCP uses the following odd port
+    private static void openUdpChannels(RtspSession session) throws IOException {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            DatagramChannel rtp = DatagramChannel.open();
+            rtp.bind(new InetSocketAddress(0));
+            int port = rtp.socket().getLocalPort();
+            if ((port & 1) == 0) {
+                DatagramChannel rtcp = DatagramChannel.open();
+                try {
+                    rtcp.bind(new InetSocketAddress(port + 1));
+                    session.udpChannel = rtp;
+                    session.rtcpChannel = rtcp;
+                    return;
+                } catch (IOException e) {
+                    rtcp.close();
+                }
+            }
+            rtp.close();
+        }
+        throw new IOException("No free RTP/RTCP port pair");
+    }
+
+    // The codec= query parameter of a request URL, or null
+    private static VideoCodec requestedCodec(String url) {
+        int query = url.indexOf('?');
+        if (query < 0) {
+            return null;
+        }
+        for (String parameter : url.substring(query + 1).split("&")) {
+            if (parameter.startsWith("codec=")) {
+                return VideoCodec.fromName(parameter.substring(6));
+            }
+        }
+        return null;
+    }
+
+    private static int[] parseRange(String transport, String key) {
+        int start = transport.indexOf(key);
+        if (start < 0) {
+            return null;
+        }
+        start += key.length();
+        int end = start;
+        while (end < transport.length() && transport.charAt(end) != ';') {
+            end++;
+        }
+        String[] range = transport.substring(start, end).split("-");
+        try {
+            int first = Integer.parseInt(range[0].trim());
+            int second = range.length > 1 ? Integer.parseInt(range[1].trim()) : first + 1;
+            return new int[]{first, second};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private String buildSdp(RtspSession session) throws IOException {
+        ParameterSets parameterSets = this.parameterSets;
+        String formatParameters = parameterSets != null ? parameterSets.getFormatParameters() : null;
+        if (formatParameters == null) {
+            return null;
+        }
+        String address = ((InetSocketAddress) session.channel.getLocalAddress()).getAddress().getHostAddress();
+        return "v=0\r\n"
+                + "o=- " + session.id + " 1 IN IP4 " + address + "\r\n"
+                + "s=ScreenStream\r\n"
+                + "c=IN IP4 0.0.0.0\r\n"
+                + "t=0 0\r\n"
+                + "a=control:*\r\n"
+                + "a=range:npt=0-\r\n"
+                + "m=video 0 RTP/AVP " + RtpPacketizer.PAYLOAD_TYPE + "\r\n"
+                + "a=rtpmap:" + RtpPacketizer.PAYLOAD_TYPE + " " + parameterSets.getCodec().getEncodingName()
+                + "/" + RtpPacketizer.CLOCK_RATE + "\r\n"
+                + "a=fmtp:" + RtpPacketizer.PAYLOAD_TYPE + " " + formatParameters + "\r\n"
+                + "a=control:" + TRACK_ID + "\r\n";
+    }
+
+    private void reply(RtspSession session, String cseq, String status, String headers, String body) throws IOException {
+        StringBuilder response = new StringBuilder();
+        response.append("RTSP/1.0 ").append(status).append("\r\n");
+        if (cseq != null) {
+            response.append("CSeq: ").append(cseq).append("\r\n");
+        }
+        response.append("Server: ScreenStream\r\n").append(headers);
+        if (body != null) {
+            response.append("Content-Length: ").append(body.getBytes(CHARSET).length).append("\r\n\r\n").append(body);
+        } else {
+            response.append("\r\n");
+        }
+        if (!session.sendText(response.toString())) {
+            requestWrite(session);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.screenstream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One RTSP client connection. Request parsing happens on the server's selector
+ * thread, RTP packets are delivered from the session's own {@link FramePump}
+ * thread once it plays.
+ */
+class RtspSession {
+    // A client that falls this far behind is disconnected instead of growing memory
+    static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    final SocketChannel channel;
+    final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    final String id;
+    // Own sequence numbers, so frames dropped from this viewer's queue do not look like loss to others
+    final RtpPacketizer packetizer;
+    final byte[] senderReport = new byte[Rtcp.SENDER_REPORT_SIZE];
+    long lastSenderReportMs;
+    // Set on PLAY, the pump thread packetizes into this session's sink
+    volatile FramePump pump;
+    RtpPacketizer.PacketSink packetSink;
+    volatile long packetsSent;
+    volatile long bytesSent;
+    volatile long framesSent;
+    long playStartNs;
+    // From PLAY until the first frame went out, -1 before that
+    volatile long joinLatencyUs = -1;
+
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer interleavedHeader = ByteBuffer.allocate(4);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // Wraps the packetizer's packet array, which stays the same for every packet
+    private byte[] wrappedPacket;
+    private ByteBuffer packetBuffer;
+
+    volatile boolean playing;
+    volatile boolean waitingForKeyFrame;
+    volatile boolean closed;
+    // Bytes of an interleaved packet or request body still to be discarded
+    int skipBytes;
+
+    // Transport chosen in SETUP
+    boolean interleaved;
+    int rtpChannel;
+    InetSocketAddress udpTarget;
+    InetSocketAddress rtcpTarget;
+    DatagramChannel udpChannel;
+    DatagramChannel rtcpChannel;
+
+    RtspSession(SocketChannel channel, String id, RtpPacketizer packetizer) {
+        this.channel = channel;
+        this.id = id;
+        this.packetizer = packetizer;
+        pending.flip();
+    }
+
+    /** True once SETUP chose interleaved TCP or UDP ports. */
+    boolean hasTransport() {
+        return interleaved || udpChannel != null;
+    }
+
+    /** Sends one RTP packet, returns false if bytes were left queued for the selector. */
+    synchronized boolean sendRtp(byte[] packet, int length) throws IOException {
+        if (closed) {
+            return true;
+        }
+        if (wrappedPacket != packet) {
+            wrappedPacket = packet;
+            packetBuffer = ByteBuffer.wrap(packet);
+        }
+        packetBuffer.limit(length);
+        packetBuffer.position(0);
+        packetsSent++;
+        bytesSent += length;
+        if (!interleaved) {
+            udpChannel.send(packetBuffer, udpTarget);
+            return true;
+        }
+        interleavedHeader.clear();
+        interleavedHeader.put((byte) '$').put((byte) rtpChannel).putShort((short) length).flip();
+        return write(interleavedHeader, packetBuffer);
+    }
+
+    /** Sends one RTCP packet on the channel or port that follows the RTP one, same return value as {@link #sendRtp}. */
+    synchronized boolean sendRtcp(byte[] packet, int length) throws IOException {
+        if (closed) {
+            return true;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packet, 0, length);
+        if (!interleaved) {
+            rtcpChannel.send(buffer, rtcpTarget);
+            return true;
+        }
+        interleavedHeader.clear();
+        interleavedHeader.put((byte) '$').put((byte) (rtpChannel + 1)).putShort((short) length).flip();
+        return write(interleavedHeader, buffer);
+    }
+
+    synchronized boolean sendText(String text) throws IOException {
+        return write(ByteBuffer.wrap(text.getBytes(RtspServer.CHARSET)), null);
+    }
+
+    private boolean write(ByteBuffer first, ByteBuffer second) throws IOException {
+        if (!pending.hasRemaining()) {
+            gather[0] = first;
+            gather[1] = second != null ? second : EMPTY;
+            channel.write(gather);
+        }
+        if (!first.hasRemaining() && (second == null || !second.hasRemaining())) {
+            return true;
+        }
+        int needed = first.remaining() + (second != null ? second.remaining() : 0);
+        if (pending.remaining() + needed > MAX_PENDING_BYTES) {
+            throw new IOException("Client " + id + " is too slow, " + pending.remaining() + " bytes pending");
+        }
+        ensurePendingCapacity(needed);
+        pending.compact();
+        pending.put(first);
+        if (second != null) {
+            pending.put(second);
+        }
+        pending.flip();
+        return false;
+    }
+
+    private void ensurePendingCapacity(int extra) {
+        if (pending.capacity() - pending.remaining() >= extra) {
+            return;
+        }
+        int capacity = pending.capacity();
+        while (capacity - pending.remaining() < extra) {
+            capacity *= 2;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        larger.put(pending).flip();
+        pending = larger;
+    }
+
+    /** Bytes the socket has not accepted yet. */
+    synchronized int pendingBytes() {
+        return pending.remaining();
+    }
+
+    /**
+     * Waits until fewer than {@code bytes} are queued for the socket.
+     *
+     * @return false if the socket did not drain in time
+     */
+    synchronized boolean awaitPendingBelow(int bytes, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!closed && pending.remaining() >= bytes) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /** Called on the selector thread when the socket is writable, returns true once drained. */
+    synchronized boolean flushPending() throws IOException {
+        if (pending.hasRemaining()) {
+            channel.write(pending);
+            notifyAll();
+        }
+        return !pending.hasRemaining();
+    }
+
+    synchronized void close() {
+        closed = true;
+        playing = false;
+        notifyAll();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        closeQuietly(udpChannel);
+        closeQuietly(rtcpChannel);
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
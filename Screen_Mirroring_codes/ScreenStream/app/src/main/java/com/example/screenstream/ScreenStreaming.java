@@ -1,20 +1,26 @@
 package com.example.screenstream;
 
-import android.annotation.SuppressLint;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
@@ -24,30 +30,94 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 
-import com.arthenica.ffmpegkit.FFmpegKit;
-import com.arthenica.ffmpegkit.ReturnCode;
+import com.example.mirror.media.FragmentedMp4Writer;
+import com.example.mirror.stats.LatencyHistogram;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.io.RandomAccessFile;
 
 public class ScreenStreaming extends Service {
+    // System.nanoTime() of the tap on Start and of the projection grant, for the startup report
+    public static final String EXTRA_TAP_NS = "tapNs";
+    public static final String EXTRA_GRANTED_NS = "grantedNs";
+    // Also record the stream to an MP4 while it is live
+    public static final String EXTRA_RECORD = "record";
     private static final String TAG = "ScreenStreaming";
     private static final String CHANNEL_ID = "ScreenStreamingChannel";
+    // Frames are pooled in power-of-two classes from 16 KB to 4 MB
+    private static final int POOL_MIN_BUFFER = 16 * 1024;
+    private static final int POOL_MAX_BUFFER = 4 * 1024 * 1024;
+    // The encoder starts at the old fixed rate and adapts between floor and ceiling
+    private static final int BITRATE_FLOOR = 1_000_000;
+    private static final int BITRATE_CEILING = 8_000_000;
+    private static final int BITRATE_INITIAL = 5_000_000;
+    private static final long BITRATE_UPDATE_INTERVAL_MS = 500;
+    // Switching quality levels should look like a brief glitch, not a reconnect
+    private static final long RECONFIGURE_BUDGET_MS = 250;
+    // Joining viewers start from the server's GOP cache, so key frames are rare and otherwise on demand
+    private static final int KEY_FRAME_INTERVAL_SECONDS = 10;
+    private static final String PREFS_NAME = "ScreenStreaming";
+    // Set when a viewer asks for H.264 while HEVC is streamed. Later starts stay on H.264 for
+    // HEVC_RETRY_AFTER_MS and then try HEVC again, the viewer that needed H.264 may be gone
+    private static final String PREF_HEVC_REFUSED_AT_MS = "hevcRefusedAtMs";
+    private static final long HEVC_RETRY_AFTER_MS = 24 * 60 * 60 * 1000L;
+    // About two seconds of frames the recording may fall behind before it skips to the next key frame
+    private static final int RECORDING_QUEUE_FRAMES = 64;
+    // About a second of frames the segmenter may fall behind before it skips to the next key frame
+    private static final int HLS_QUEUE_FRAMES = 32;
+    // A recording keeps this suffix until it is closed, one left behind is recovered on the next start
+    private static final String PARTIAL_SUFFIX = ".part";
     private MediaProjection mediaProjection;
     private MediaCodec mediaCodec;
+    private Surface inputSurface;
+    private VirtualDisplay virtualDisplay;
     private int displayWidth, displayHeight, densityDpi;
     private final boolean configSent = false;
-    private PipedOutputStream pipedOutputStream;
+    private RtspServer rtspServer;
+    // Null when the platform default encoder is used
+    private EncoderSelector.Selection encoderSelection;
+    private VideoCodec videoCodec = VideoCodec.H264;
+    private Thread transportThread;
+    private final StartupReport startupReport = new StartupReport();
+    private ParameterSets parameterSets;
+    private EncoderDrain encoderDrain;
+    // Viewers share each pooled frame, so the pool only needs about one queue's worth
+    private final BufferPool bufferPool = new BufferPool(POOL_MIN_BUFFER, POOL_MAX_BUFFER, RtspServer.VIEWER_QUEUE_FRAMES * 2);
     private FileOutputStream fileOutputStream;
+    private boolean recordRequested;
+    private File recordingFile;
+    private Mp4RecordingSink recordingSink;
+    private FramePump recordingPump;
+    private LlHlsSegmenter hlsSegmenter;
+    private LlHlsServer hlsServer;
+    private FramePump hlsPump;
+    private final BitrateController bitrateController =
+            new BitrateController(BITRATE_FLOOR, BITRATE_CEILING, BITRATE_INITIAL);
+    private final Handler bitrateHandler = new Handler(Looper.getMainLooper());
+    private final QualityLadder qualityLadder =
+            new QualityLadder(QualityLadder.DEFAULT_LEVELS, BITRATE_FLOOR, BITRATE_CEILING);
+    // Time from stopping the encoder to the first key frame at the new level
+    private final LatencyHistogram reconfigureTime = new LatencyHistogram("reconfigure");
+    private long lastDroppedFrames;
+    private long lastCpuTimeMs;
+    private long lastCpuSampleMs;
 
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "ScreenStreamingService started.");
+        startupReport.mark(StartupReport.Phase.SERVICE_STARTED);
+        if (intent.hasExtra(EXTRA_TAP_NS)) {
+            startupReport.mark(StartupReport.Phase.TAP, intent.getLongExtra(EXTRA_TAP_NS, 0));
+        }
+        if (intent.hasExtra(EXTRA_GRANTED_NS)) {
+            startupReport.mark(StartupReport.Phase.PROJECTION_GRANTED, intent.getLongExtra(EXTRA_GRANTED_NS, 0));
+        }
+        startupReport.setListener(report -> Log.i(TAG, report.toString()));
+        recordRequested = intent.getBooleanExtra(EXTRA_RECORD, false);
 
         createNotificationChannel();
 
@@ -79,6 +149,12 @@ public class ScreenStreaming extends Service {
                 Log.e(TAG, "MediaProjection is null. Initialization failed.");
             }
 
+            // The server describes the stream in the codec's payload format, so pick it first
+            chooseCodec();
+
+            // The RTSP socket binds on its own thread while the codec is created and configured
+            startTransport();
+
             // Setup MediaCodec and start streaming after it's ready
             Log.d(TAG,"Setting up the MediaCodec and later starting the stream!!! ");
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
@@ -131,32 +207,68 @@ public class ScreenStreaming extends Service {
         Log.d(TAG, "MediaProjection callback registered.");
     }
 
+    // Probed once per build and size, later starts read the cached choices
+    private void chooseCodec() {
+        EncoderSelector.Selection hevc = EncoderProbe.select(this, VideoCodec.HEVC, displayWidth, displayHeight);
+        EncoderSelector.Selection avc = EncoderProbe.select(this, VideoCodec.H264, displayWidth, displayHeight);
+        long refusedAtMs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getLong(PREF_HEVC_REFUSED_AT_MS, 0);
+        long sinceRefusedMs = System.currentTimeMillis() - refusedAtMs;
+        // A clock set back counts as expired too
+        boolean viewersSupportHevc = refusedAtMs == 0 || sinceRefusedMs < 0 || sinceRefusedMs > HEVC_RETRY_AFTER_MS;
+        videoCodec = VideoCodec.choose(hevc, avc, viewersSupportHevc);
+        encoderSelection = videoCodec == VideoCodec.HEVC ? hevc : avc;
+        parameterSets = videoCodec.newParameterSets();
+        Log.d(TAG, "Streaming " + videoCodec + " with " + encoderSelection);
+    }
+
+    // The running encoder is not switched, the viewer gets a 415 and starts within the next day use H.264
+    private void onCodecMismatch(VideoCodec requested, VideoCodec streamed) {
+        Log.w(TAG, "A viewer asked for " + requested + " while streaming " + streamed);
+        if (streamed == VideoCodec.HEVC) {
+            SharedPreferences.Editor editor = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit();
+            editor.putLong(PREF_HEVC_REFUSED_AT_MS, System.currentTimeMillis()).apply();
+        }
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.Q)
     private void setupMediaCodec(Runnable onComplete) {
         try {
             Log.d(TAG, "Setting up MediaCodec...");
-            mediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
-            MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, displayWidth, displayHeight);
-            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-            format.setInteger(MediaFormat.KEY_BIT_RATE, 5000000);
-            format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
-            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-            // Ensure SPS/PPS are prepended to sync (key) frames
-            format.setInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES, 1);
-            format.setInteger(MediaFormat.KEY_WIDTH,displayWidth);
-            format.setInteger(MediaFormat.KEY_HEIGHT,displayHeight);
+            mediaCodec = EncoderProbe.createEncoder(encoderSelection, videoCodec.getMimeType());
+            startupReport.mark(StartupReport.Phase.CODEC_CREATED);
+            QualityLadder.Level level = qualityLadder.getLevel();
+            MediaFormat format = createFormat(level);
 
+            // Output is drained by callbacks, which must be set before configure()
+            encoderDrain = new EncoderDrain(parameterSets);
+            encoderDrain.setStartupReport(startupReport);
+            mediaCodec.setCallback(encoderDrain, encoderDrain.getHandler());
 
-            mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            try {
+                mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // Also covers CodecException: the encoder refused the selected mode or profile
+                Log.w(TAG, "Encoder rejected " + encoderSelection + ", falling back to the default", e);
+                EncoderProbe.forget(this, videoCodec);
+                encoderSelection = null;
+                mediaCodec.release();
+                mediaCodec = MediaCodec.createEncoderByType(videoCodec.getMimeType());
+                mediaCodec.setCallback(encoderDrain, encoderDrain.getHandler());
+                format = createFormat(level);
+                mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
+            startupReport.mark(StartupReport.Phase.CODEC_CONFIGURED);
 
-            Surface inputSurface = mediaCodec.createInputSurface();
+            // Outlives the encoder configuration, so the virtual display keeps it across quality levels
+            inputSurface = MediaCodec.createPersistentInputSurface();
+            mediaCodec.setInputSurface(inputSurface);
 
             if (mediaProjection != null) {
-                mediaProjection.createVirtualDisplay(
+                virtualDisplay = mediaProjection.createVirtualDisplay(
                         "ScreenStreaming",
-                        displayWidth,
-                        displayHeight,
-                        densityDpi,
+                        level.scale(displayWidth),
+                        level.scale(displayHeight),
+                        scaledDensity(level),
                         DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
                         inputSurface,
                         null,
@@ -167,7 +279,16 @@ public class ScreenStreaming extends Service {
                 Log.e(TAG, "Cannot create virtual display. MediaProjection is null.");
             }
 
+            // The encoder callback copies each frame once and queues it for every viewer,
+            // each viewer's own thread packetizes and sends so slow clients never hold up the codec.
+            // Set before start() so the very first output lands in the GOP cache.
+            encoderDrain.setSink(rtspServer::sendFrame);
+            if (recordRequested) {
+                startRecording(level.scale(displayWidth), level.scale(displayHeight));
+            }
+
             mediaCodec.start();
+            startupReport.mark(StartupReport.Phase.CODEC_STARTED);
             Log.d(TAG, "MediaCodec started successfully with configuration: " + format);
 
             // Notify completion
@@ -181,188 +302,258 @@ public class ScreenStreaming extends Service {
         }
     }
 
-    private void startStreaming() {
-        Log.d(TAG, "Starting streaming...");
-
-        String ipAddress = "192.168.246.151"; // Replace with your server IP
-        String rtspUrl = "rtsp://" + ipAddress + ":8554/stream";
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private MediaFormat createFormat(QualityLadder.Level level) {
+        MediaFormat format = MediaFormat.createVideoFormat(videoCodec.getMimeType(),
+                level.scale(displayWidth), level.scale(displayHeight));
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrateController.getBitrate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, level.getFrameRate());
+        // The virtual display renders at the screen's rate, the encoder drops what is above the level's
+        format.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, level.getFrameRate());
+        EncoderProbe.applyLowLatency(format, encoderSelection, level.getFrameRate());
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL_SECONDS);
+        // Ensure the parameter sets are prepended to sync (key) frames
+        format.setInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES, 1);
+        return format;
+    }
 
-        Log.d(TAG, "RTSP URL: " + rtspUrl);
+    private int scaledDensity(QualityLadder.Level level) {
+        return Math.max(1, Math.round(densityDpi * level.getScale()));
+    }
 
+    /**
+     * Moves the running encoder and virtual display to another quality level.
+     * Only the codec is reconfigured, the projection, display, surface and RTSP
+     * sessions stay up. The first frame after start() is an IDR with the new
+     * SPS/PPS in front, and the new output format updates the parameter sets.
+     * Runs on the drain thread so no output callback sees the codec half stopped.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void reconfigureEncoder(QualityLadder.Level level) {
+        if (mediaCodec == null || virtualDisplay == null) {
+            return;
+        }
+        long startNs = System.nanoTime();
         try {
-            // Create a pipe for inter-thread communication
-            pipedOutputStream = new PipedOutputStream();
-            PipedInputStream pipedInputStream = new PipedInputStream(pipedOutputStream);
-
-//            String ffmpegCommand = String.format(
-//                    "-loglevel verbose -analyzeduration 5000000 -probesize 5000000 -f h264 -i pipe:0 -vf scale=ceil(1080/2)*2:ceil(2340/2)*2 -rtsp_transport tcp -c:v libx264 -preset ultrafast -tune zerolatency -f rtsp %s",
-//                    rtspUrl
-//            );
-
-//            String ffmpegCommand = String.format(
-//                    "-loglevel debug -f h264 -analyzeduration 10000000 -probesize 10000000 -s -video_size 1080x2340 -i pipe:0 -vf scale=ceil(1080/2)*2:ceil(2340/2)*2 -rtsp_transport tcp -c:v libx264 -preset ultrafast -tune zerolatency  -f rtsp %s",
-//                    rtspUrl
-//            );
-
-//            String ffmpegCommand = String.format(
-//                    "-loglevel verbose -f rawvideo -pix_fmt yuv420p -f h264 -s -video_size = 1080x2340 -i pipe:0 -c:v copy -preset ultrafast -tune zerolatency -b:v 1500k rtsp %s",
-//                    rtspUrl
-//            );
-
-//            String ffmpegCommand = String.format(
-//                    "-f", "h264",
-//                    "-i", "pipe:0", // Input from the previous step (replace pipe with the actual source)
-//                    "-vcodec", "copy",
-//                    "-f", "rtsp",
-//                    "rtsp://192.168.246.151:8554/stream" // Use your real RTSP server here
-//            );
-
-//            @SuppressLint("DefaultLocale") String ffmpegCommand = String.format(
-//                    "-loglevel verbose -f rawvideo  -s %dx%d -r 30 -i pipe:0 -c:v copy -preset ultrafast -tune zerolatency -b:v 1500k " +
-//                            "-f rtsp -rtsp_transport tcp %s",
-//                    displayWidth, displayHeight, rtspUrl
-//            );
-
-
-//            String ffmpegCommand = String.format(
-//                    "-f h264 -s:v video_size 1280x720 -r 30 -i pipe:0 " +
-//                            "-rtsp_transport tcp -c:v libx264 -preset ultrafast -tune zerolatency " +
-//                            "-vf \"scale=ceil(iw/2)*2:ceil(ih/2)*2\" -f rtsp %s",
-//                    rtspUrl
-//            );
-
-//            String ffmpegCommand = String.format(
-//                    "-f h264 -i pipe:0 " +
-//                            "-c:v copy -f rtsp -rtsp_transport tcp " +
-//                            "-preset ultrafast -tune zerolatency " +
-//                            "%s",
-//                    rtspUrl
-//
-//            );
-
-            @SuppressLint("DefaultLocale") String ffmpegCommand = String.format(
-                    "-loglevel verbose -f h264 -s -video_size %dx%d -r 30 -i pipe:0 " +
-                            "-c:v copy -f rtsp -rtsp_transport tcp " +
-                            "-preset ultrafast -tune zerolatency " +
-                            "%s",
-                    displayWidth, displayHeight, rtspUrl
-            );
-
-
-            Log.d(TAG, "FFmpeg Command: " + ffmpegCommand);
-
-            // Start FFmpeg immediately after setup
-            new Thread(() -> {
-                try {
-                    Thread.sleep(5000);
-                } catch (InterruptedException e) {
+            mediaCodec.stop();
+            mediaCodec.setCallback(encoderDrain, encoderDrain.getHandler());
+            mediaCodec.configure(createFormat(level), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mediaCodec.setInputSurface(inputSurface);
+            virtualDisplay.resize(level.scale(displayWidth), level.scale(displayHeight), scaledDensity(level));
+            encoderDrain.runOnNextKeyFrame(() -> onReconfigured(level, startNs));
+            mediaCodec.start();
+        } catch (IllegalStateException e) {
+            // Also covers CodecException, the service cannot stream without its encoder
+            Log.e(TAG, "Failed to switch encoder to " + level, e);
+            stopSelf();
+        }
+    }
 
+    private void onReconfigured(QualityLadder.Level level, long startNs) {
+        long elapsedUs = (System.nanoTime() - startNs) / 1000;
+        reconfigureTime.record(elapsedUs);
+        if (elapsedUs > RECONFIGURE_BUDGET_MS * 1000) {
+            Log.w(TAG, "Switch to " + level + " took " + elapsedUs / 1000 + " ms, budget " + RECONFIGURE_BUDGET_MS + " ms");
+        } else {
+            Log.d(TAG, "Switched to " + level + " in " + elapsedUs / 1000 + " ms");
+        }
+    }
 
-                    throw new RuntimeException(e);
-                }
-                Log.d(TAG, "Starting FFmpeg...");
-                FFmpegKit.executeAsync(ffmpegCommand, session -> {
-                    String output = session.getOutput();
-                    String error = session.getFailStackTrace();
-                    ReturnCode returnCode = session.getReturnCode();
-                    if (ReturnCode.isSuccess(returnCode)){
-                        Log.d(TAG, "Streaming started successfully on " + rtspUrl);
-                        Log.d(TAG, "FFMPEG OUTPUT: " + output);
-                    } else {
-                        // Log detailed error for debugging
-                        Log.e(TAG, "FFmpeg execution failed with return code: " + returnCode);
-                        if (output != null && !output.isEmpty()) {
-                            Log.e(TAG, "FFmpeg Output: " + output);
-                        }
-                        if (error != null && !error.isEmpty()) {
-                            Log.e(TAG, "FFmpeg Error Stack Trace: " + error);
-                        }
-                    }
-                });
-            }).start();
-
-            // Start a thread to feed MediaCodec output to the pipe
-            new Thread(() -> {
-                MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    // Encoded frames go straight from MediaCodec to the in-process RTSP server, which shares them with the LL-HLS segmenter
+    private void startTransport() {
+        RtspServer server = new RtspServer(RtspServer.DEFAULT_PORT, bufferPool);
+        server.setStartupReport(startupReport);
+        server.setKeyFrameRequestListener(this::requestSyncFrame);
+        server.setParameterSets(parameterSets);
+        server.setCodecMismatchListener(this::onCodecMismatch);
+        server.setReceiverReportListener((sessionId, lossFraction, rttMs) ->
+                bitrateController.onReceiverReport(lossFraction, rttMs));
+        rtspServer = server;
+
+        // LL-HLS for browsers, cut in memory from the same frames the RTSP viewers get
+        QualityLadder.Level level = qualityLadder.getLevel();
+        LlHlsSegmenter segmenter = new LlHlsSegmenter(parameterSets,
+                level.scale(displayWidth), level.scale(displayHeight), this::requestSyncFrame);
+        LlHlsServer httpServer = new LlHlsServer(LlHlsServer.DEFAULT_PORT, segmenter);
+        hlsSegmenter = segmenter;
+        hlsServer = httpServer;
+        server.attach(cachedFrames -> hlsPump = new FramePump(new FrameRing(HLS_QUEUE_FRAMES + cachedFrames, bufferPool,
+                FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR), segmenter, this::requestSyncFrame, "LlHls"));
+
+        transportThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start RTSP server", e);
+                bitrateHandler.post(this::stopSelf);
+                return;
+            }
+            try {
+                httpServer.start();
+            } catch (IOException e) {
+                // RTSP viewers can still watch
+                Log.e(TAG, "Failed to start LL-HLS server", e);
+            }
+        }, "RtspStart");
+        transportThread.start();
+    }
+
+    // The recording is one more consumer of the encoded stream, with its own queue and thread
+    // so a slow disk only makes the recording skip to the next key frame, never the viewers wait
+    private void startRecording(int width, int height) {
+        File directory = new File("/storage/self/primary/Movies", "ScreenRecordings");
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Failed to create directory for recordings.");
+            return;
+        }
+        recoverPartialRecordings(directory);
+        File file = new File(directory, "ScreenStream_" + System.currentTimeMillis() + ".mp4");
+        try {
+            RandomAccessFile output = new RandomAccessFile(file.getPath() + PARTIAL_SUFFIX, "rw");
+            FileDescriptor fd = output.getFD();
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(output.getChannel(), 1);
+            // Real allocation where the file system supports it, so forcing a fragment never has to grow the file
+            writer.setPreallocation((channel, offset, length) -> {
                 try {
-                    while (true) {
-                        int outputIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, 1000);
-                        if (outputIndex >= 0) {
-
-                            ByteBuffer outputBuffer = mediaCodec.getOutputBuffer(outputIndex);
-
-                            if (outputBuffer != null && bufferInfo.size > 0) {
-                                Log.d(TAG, "Encoded frame size: " + bufferInfo.size + " bytes");
-                                byte[] buffer = new byte[bufferInfo.size];
-
-                                MediaFormat format1 = mediaCodec.getOutputFormat();
-                                ByteBuffer sps1 = format1.getByteBuffer("csd-0");
-                                ByteBuffer pps1 = format1.getByteBuffer("csd-1");
-
-                                if(sps1 != null && pps1 != null) {
-
-                                    byte[] spsBytes1 = new byte[sps1.remaining()];
-                                    sps1.get(spsBytes1);
-
-                                    Log.d(TAG, "Sps data before adding  :" + Arrays.toString(spsBytes1));
-
-                                    byte[] ppsBytes1 = new byte[pps1.remaining()];
-                                    pps1.get(ppsBytes1);
-
-                                    Log.d(TAG, "Pps data before adding  :" + Arrays.toString(ppsBytes1));
-
-                                }
-                                outputBuffer.get(buffer);
-
-                                // Log the size of the encoded data being written to the pipe
-                                Log.d(TAG, "Encoded buffer size: " + buffer.length + " bytes");
-
-                                Log.d(TAG, "Encoded buffer : " + Arrays.toString(buffer));
-
-
-                                int bufferSize = bufferInfo.size;
-                                Log.d(TAG, "Output buffer size: " + bufferSize + " bytes, output buffer capacity:" + outputBuffer.capacity() + " bytes, output buffer limit: " + outputBuffer.limit() + " bytes");
-
-                                // Write encoded data to the pipe
-                                if (buffer.length > 0) {
-                                    pipedOutputStream.write(buffer);
-                                    pipedOutputStream.flush();
-                                    outputBuffer.clear();
-                                    Log.d(TAG, "Written " + buffer.length + " bytes to pipe.");
-                                } else {
-                                    Log.d(TAG, "Buffer is empty, skipping...");
-                                }
-                            }
-
-                            mediaCodec.releaseOutputBuffer(outputIndex, false);
-
-                        } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                            // Handle codec format change
-                            MediaFormat newFormat = mediaCodec.getOutputFormat();
-                            Log.d(TAG, "Output format changed: " + newFormat);
-                        } else {
-                            Log.d(TAG, "No output available from MediaCodec, retrying...");
-                        }
-                        // Sleep briefly to allow buffers to fill
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException e) {
-                            Log.e(TAG, "Error during sleep", e);
-                        }
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Error writing to pipe", e);
-                } finally {
-                    try {
-                        pipedOutputStream.close();
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error closing pipe", e);
-                    }
+                    Os.posix_fallocate(fd, offset, length);
+                } catch (ErrnoException e) {
+                    FragmentedMp4Writer.EXTEND.allocate(channel, offset, length);
                 }
-            }).start();
+            }, FragmentedMp4Writer.DEFAULT_PREALLOCATE_BYTES);
+            recordingSink = new Mp4RecordingSink(writer, parameterSets, width, height);
         } catch (IOException e) {
-            Log.e(TAG, "Failed to create pipe for FFmpeg", e);
-            stopSelf();
+            Log.e(TAG, "Cannot record to " + file, e);
+            return;
+        }
+        recordingFile = file;
+        rtspServer.attach(cachedFrames -> recordingPump = new FramePump(new FrameRing(RECORDING_QUEUE_FRAMES + cachedFrames,
+                bufferPool, FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR), recordingSink, this::requestSyncFrame, "Recorder"));
+        Log.d(TAG, "Recording to " + file);
+    }
+
+    private void stopRecording() {
+        if (recordingPump == null) {
+            return;
+        }
+        rtspServer.detach(recordingPump);
+        recordingPump.stop();
+        recordingPump = null;
+        Log.d(TAG, recordingSink.toString());
+        try {
+            recordingSink.close();
+        } catch (IOException e) {
+            // Left as .part, recovered to its last complete fragment on the next start
+            Log.e(TAG, "Failed to finish the recording", e);
+            return;
+        }
+        File partial = new File(recordingFile.getPath() + PARTIAL_SUFFIX);
+        if (partial.renameTo(recordingFile)) {
+            Log.d(TAG, "Recording saved to " + recordingFile);
+        }
+    }
+
+    private void stopHls() {
+        if (hlsPump == null) {
+            return;
+        }
+        rtspServer.detach(hlsPump);
+        hlsPump.stop();
+        hlsPump = null;
+        hlsServer.stop();
+        Log.d(TAG, hlsSegmenter + ", " + hlsServer.getRequestTime()
+                + ", held requests=" + hlsServer.getHeldRequestCount());
+    }
+
+    // Trims recordings of a service that was killed to their last complete fragment
+    private void recoverPartialRecordings(File directory) {
+        File[] partials = directory.listFiles((dir, name) -> name.endsWith(PARTIAL_SUFFIX));
+        if (partials == null) {
+            return;
+        }
+        for (File partial : partials) {
+            long size;
+            try (RandomAccessFile file = new RandomAccessFile(partial, "rw")) {
+                size = FragmentedMp4Writer.recover(file.getChannel());
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot recover " + partial, e);
+                continue;
+            }
+            String name = partial.getPath();
+            File recovered = new File(name.substring(0, name.length() - PARTIAL_SUFFIX.length()));
+            if (size == 0) {
+                Log.w(TAG, "Nothing to recover in " + partial);
+                if (!partial.delete()) {
+                    Log.e(TAG, "Cannot delete " + partial);
+                }
+            } else if (partial.renameTo(recovered)) {
+                Log.d(TAG, "Recovered " + size + " bytes into " + recovered);
+            }
+        }
+    }
+
+    private void startStreaming() {
+        Log.d(TAG, "Starting streaming...");
+
+        // Codec calls are serialized with reconfiguration on the drain thread
+        bitrateController.setListener(bitrateBps ->
+                encoderDrain.getHandler().post(() -> setEncoderBitrate(bitrateBps)));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            qualityLadder.setListener(level ->
+                    encoderDrain.getHandler().post(() -> reconfigureEncoder(level)));
+        }
+        bitrateHandler.postDelayed(this::updateBitrate, BITRATE_UPDATE_INTERVAL_MS);
+    }
+
+    // Feeds the send side of the pipeline to the controllers, receiver reports arrive on their own
+    private void updateBitrate() {
+        if (rtspServer == null) {
+            return;
+        }
+        // The viewer furthest behind decides, they all share one encoder
+        long dropped = rtspServer.getDroppedFrameCount();
+        bitrateController.onQueueDepth(rtspServer.getMaxQueuedFrames());
+        bitrateController.onFramesDropped(dropped - lastDroppedFrames);
+        bitrateController.onPendingBytes(rtspServer.getMaxPendingBytes());
+        lastDroppedFrames = dropped;
+        long nowMs = SystemClock.elapsedRealtime();
+        int bitrate = bitrateController.update(nowMs);
+        qualityLadder.update(nowMs, bitrate, sampleCpuLoad(nowMs));
+        bitrateHandler.postDelayed(this::updateBitrate, BITRATE_UPDATE_INTERVAL_MS);
+    }
+
+    // Share of all cores this process used since the previous sample
+    private float sampleCpuLoad(long nowMs) {
+        long cpuTimeMs = android.os.Process.getElapsedCpuTime();
+        float load = 0;
+        if (lastCpuSampleMs != 0 && nowMs > lastCpuSampleMs) {
+            load = (float) (cpuTimeMs - lastCpuTimeMs)
+                    / ((nowMs - lastCpuSampleMs) * Runtime.getRuntime().availableProcessors());
+        }
+        lastCpuTimeMs = cpuTimeMs;
+        lastCpuSampleMs = nowMs;
+        return load;
+    }
+
+    private void setEncoderBitrate(int bitrateBps) {
+        if (mediaCodec != null) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrateBps);
+            mediaCodec.setParameters(params);
+            Log.d(TAG, "Encoder bitrate set to " + bitrateBps);
+        }
+    }
+
+    private void requestSyncFrame() {
+        if (mediaCodec != null) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            try {
+                mediaCodec.setParameters(params);
+            } catch (IllegalStateException e) {
+                // Stopped for a quality switch, which starts with a key frame anyway
+                Log.d(TAG, "Sync frame request while the encoder is not running");
+            }
         }
     }
 
@@ -370,9 +561,49 @@ public class ScreenStreaming extends Service {
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "Stopping service...");
+        bitrateHandler.removeCallbacksAndMessages(null);
+        if (encoderDrain != null) {
+            // Pending bitrate changes and quality switches
+            encoderDrain.getHandler().removeCallbacksAndMessages(null);
+        }
+        Log.d(TAG, bitrateController + ", " + qualityLadder + ", " + reconfigureTime);
+        if (encoderDrain != null) {
+            encoderDrain.setSink(null);
+        }
+        Log.i(TAG, startupReport.toString());
+        if (transportThread != null) {
+            // Binding never takes long, stop() must not run before start()
+            try {
+                transportThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (rtspServer != null) {
+            for (RtspServer.ViewerStats viewer : rtspServer.getViewerStats()) {
+                Log.d(TAG, viewer.toString());
+            }
+            Log.d(TAG, rtspServer.getGopCache() + ", " + rtspServer.getJoinTime()
+                    + ", cached joins=" + rtspServer.getCachedJoinCount()
+                    + " key frame requests=" + rtspServer.getKeyFrameRequestCount());
+            stopRecording();
+            stopHls();
+            rtspServer.stop();
+            Log.d(TAG, bufferPool.toString());
+        }
         if (mediaCodec != null) {
             mediaCodec.stop();
             mediaCodec.release();
+            mediaCodec = null;
+        }
+        if (virtualDisplay != null) {
+            virtualDisplay.release();
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+        }
+        if (encoderDrain != null) {
+            encoderDrain.quit();
         }
         if (fileOutputStream != null) {
             try {
@@ -0,0 +1,120 @@
+package com.example.screenstream;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timestamps of the startup phases, from the tap on Start to the first frame
+ * on the wire. Each phase keeps the first time it is marked, so the code
+ * marking it does not have to know whether it already happened, and phases
+ * that run in parallel can be marked from any thread.
+ *
+ * Times are on the System.nanoTime() clock, which the activity and the service
+ * share since they run in the same process.
+ */
+public class StartupReport {
+
+    public enum Phase {
+        TAP,
+        PROJECTION_GRANTED,
+        SERVICE_STARTED,
+        CODEC_CREATED,
+        CODEC_CONFIGURED,
+        CODEC_STARTED,
+        TRANSPORT_READY,
+        STREAM_HEADER,
+        FIRST_OUTPUT,
+        FIRST_FRAME_SENT
+    }
+
+    public interface Listener {
+        /** Called once, on the thread that marks the last phase. */
+        void onStartupComplete(StartupReport report);
+    }
+
+    private static final long UNSET = Long.MIN_VALUE;
+    private static final Phase[] PHASES = Phase.values();
+
+    private final AtomicLongArray times = new AtomicLongArray(PHASES.length);
+    private volatile Listener listener;
+
+    public StartupReport() {
+        for (int i = 0; i < PHASES.length; i++) {
+            times.set(i, UNSET);
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void mark(Phase phase) {
+        mark(phase, System.nanoTime());
+    }
+
+    /** Records the phase at {@code timeNs} unless it was marked before. */
+    public void mark(Phase phase, long timeNs) {
+        if (!times.compareAndSet(phase.ordinal(), UNSET, timeNs)) {
+            return;
+        }
+        Listener listener = this.listener;
+        if (phase == Phase.FIRST_FRAME_SENT && listener != null) {
+            listener.onStartupComplete(this);
+        }
+    }
+
+    public boolean isMarked(Phase phase) {
+        return times.get(phase.ordinal()) != UNSET;
+    }
+
+    /** Nanosecond time of the phase, or -1 if it was not marked. */
+    public long getTimeNs(Phase phase) {
+        long time = times.get(phase.ordinal());
+        return time == UNSET ? -1 : time;
+    }
+
+    /** Milliseconds between two phases, or -1 if either was not marked. */
+    public long getElapsedMs(Phase from, Phase to) {
+        long start = times.get(from.ordinal());
+        long end = times.get(to.ordinal());
+        if (start == UNSET || end == UNSET) {
+            return -1;
+        }
+        return (end - start) / 1_000_000;
+    }
+
+    /** Phases in the order they happened with their offset from the first one. */
+    @Override
+    public String toString() {
+        long[] snapshot = new long[PHASES.length];
+        long first = Long.MAX_VALUE;
+        for (int i = 0; i < PHASES.length; i++) {
+            snapshot[i] = times.get(i);
+            if (snapshot[i] != UNSET) {
+                first = Math.min(first, snapshot[i]);
+            }
+        }
+        StringBuilder report = new StringBuilder("Startup");
+        boolean[] printed = new boolean[PHASES.length];
+        for (int n = 0; n < PHASES.length; n++) {
+            int next = -1;
+            for (int i = 0; i < PHASES.length; i++) {
+                if (!printed[i] && snapshot[i] != UNSET && (next < 0 || snapshot[i] < snapshot[next])) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            printed[next] = true;
+            report.append(String.format(Locale.US, " %s=+%.1fms",
+                    PHASES[next].name().toLowerCase(Locale.US), (snapshot[next] - first) / 1e6));
+        }
+        for (int i = 0; i < PHASES.length; i++) {
+            if (!printed[i]) {
+                report.append(' ').append(PHASES[i].name().toLowerCase(Locale.US)).append("=-");
+            }
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.screenstream;
+
+import java.util.Locale;
+
+/** The codecs the RTSP server can stream, with their RTP payload format. */
+public enum VideoCodec {
+    H264("video/avc", "H264"),
+    HEVC("video/hevc", "H265");
+
+    private final String mimeType;
+    private final String encodingName;
+
+    VideoCodec(String mimeType, String encodingName) {
+        this.mimeType = mimeType;
+        this.encodingName = encodingName;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /** Encoding name of the SDP rtpmap attribute. */
+    public String getEncodingName() {
+        return encodingName;
+    }
+
+    public RtpPacketizer newPacketizer(int ssrc) {
+        return this == HEVC ? new HevcPacketizer(ssrc) : new H264Packetizer(ssrc);
+    }
+
+    public ParameterSets newParameterSets() {
+        return this == HEVC ? new HevcParameterSets() : new H264ParameterSets();
+    }
+
+    /** Parses a codec as named in a request, e.g. {@code h264}, {@code avc}, {@code h265} or {@code hevc}. Null if unknown. */
+    public static VideoCodec fromName(String name) {
+        switch (name.toLowerCase(Locale.US)) {
+            case "h264":
+            case "avc":
+                return H264;
+            case "h265":
+            case "hevc":
+                return HEVC;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * HEVC needs about half the bitrate of H.264 for the same legibility, but
+     * only pays off with a hardware encoder and only if viewers can decode it.
+     *
+     * @param hevc selected HEVC encoder, or null if there is none for the size
+     * @param avc  selected H.264 encoder, or null if there is none for the size
+     */
+    public static VideoCodec choose(EncoderSelector.Selection hevc, EncoderSelector.Selection avc,
+                                    boolean viewersSupportHevc) {
+        if (hevc == null || !viewersSupportHevc) {
+            return H264;
+        }
+        return hevc.isHardware() || avc == null ? HEVC : H264;
+    }
+}
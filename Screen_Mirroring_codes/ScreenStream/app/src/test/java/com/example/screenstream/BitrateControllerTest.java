@@ -0,0 +1,230 @@
+package com.example.screenstream;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BitrateControllerTest {
+    private static final int FLOOR = 1_000_000;
+    private static final int CEILING = 8_000_000;
+    private static final int FPS = 30;
+
+    /**
+     * A bottleneck link driven in 100 ms steps: the encoder's output goes into
+     * a FIFO that drains at the link capacity, anything beyond the buffer is
+     * lost. Once a second the receiver reports loss and round trip time, the
+     * controller is updated every 500 ms like in the service.
+     */
+    private static final class SimulatedLink {
+        static final int STEP_MS = 100;
+        static final int UPDATE_MS = 500;
+        static final int REPORT_MS = 1000;
+        static final long BASE_RTT_MS = 20;
+        static final long BUFFER_BYTES = 512 * 1024;
+
+        final BitrateController controller;
+        int capacityBps;
+        long nowMs;
+        double backlogBytes;
+        double sentBytes;
+        double lostBytes;
+        long maxBacklogBytes;
+
+        SimulatedLink(BitrateController controller, int capacityBps) {
+            this.controller = controller;
+            this.capacityBps = capacityBps;
+        }
+
+        void run(long durationMs) {
+            long end = nowMs + durationMs;
+            while (nowMs < end) {
+                step();
+            }
+        }
+
+        void step() {
+            nowMs += STEP_MS;
+            double produced = controller.getBitrate() / 8.0 * STEP_MS / 1000;
+            backlogBytes += produced;
+            sentBytes += produced;
+            backlogBytes = Math.max(0, backlogBytes - capacityBps / 8.0 * STEP_MS / 1000);
+            if (backlogBytes > BUFFER_BYTES) {
+                lostBytes += backlogBytes - BUFFER_BYTES;
+                backlogBytes = BUFFER_BYTES;
+            }
+            maxBacklogBytes = Math.max(maxBacklogBytes, (long) backlogBytes);
+
+            double frameBytes = controller.getBitrate() / 8.0 / FPS;
+            controller.onQueueDepth((int) (backlogBytes / frameBytes));
+            if (nowMs % REPORT_MS == 0) {
+                float loss = sentBytes > 0 ? (float) (lostBytes / sentBytes) : 0;
+                controller.onReceiverReport(loss, BASE_RTT_MS + (long) (backlogBytes * 8 * 1000 / capacityBps));
+                sentBytes = 0;
+                lostBytes = 0;
+            }
+            if (nowMs % UPDATE_MS == 0) {
+                controller.update(nowMs);
+            }
+        }
+
+        /** Average target over the given time, sampled every step. */
+        double averageBitrate(long durationMs) {
+            long total = 0;
+            int steps = 0;
+            long end = nowMs + durationMs;
+            while (nowMs < end) {
+                step();
+                total += controller.getBitrate();
+                steps++;
+            }
+            return (double) total / steps;
+        }
+    }
+
+    @Test
+    public void settlesBelowLinkCapacity() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, 5_000_000);
+        SimulatedLink link = new SimulatedLink(controller, 3_000_000);
+        link.run(30_000);
+        link.maxBacklogBytes = 0;
+        double average = link.averageBitrate(60_000);
+        assertTrue("average " + average, average <= 3_000_000);
+        assertTrue("average " + average, average >= 3_000_000 * 0.6);
+        // Queues stay bounded instead of growing
+        assertTrue("backlog " + link.maxBacklogBytes, link.maxBacklogBytes < SimulatedLink.BUFFER_BYTES);
+    }
+
+    @Test
+    public void rampsUpToCeilingOnFastLink() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, FLOOR);
+        SimulatedLink link = new SimulatedLink(controller, 50_000_000);
+        link.run(60_000);
+        assertEquals(CEILING, controller.getBitrate());
+        assertEquals(0, controller.getBackOffCount());
+    }
+
+    @Test
+    public void followsCapacityDropAndRecovery() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, CEILING);
+        SimulatedLink link = new SimulatedLink(controller, 20_000_000);
+        link.run(5_000);
+        assertEquals(CEILING, controller.getBitrate());
+
+        link.capacityBps = 2_000_000;
+        link.run(10_000);
+        assertTrue("bitrate " + controller.getBitrate(), controller.getBitrate() <= 2_000_000);
+
+        link.capacityBps = 20_000_000;
+        link.run(60_000);
+        assertEquals(CEILING, controller.getBitrate());
+    }
+
+    @Test
+    public void neverLeavesFloorAndCeiling() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, 20_000_000);
+        assertEquals(CEILING, controller.getBitrate());
+        SimulatedLink link = new SimulatedLink(controller, 200_000);
+        for (int i = 0; i < 600; i++) {
+            link.step();
+            assertTrue(controller.getBitrate() >= FLOOR);
+            assertTrue(controller.getBitrate() <= CEILING);
+        }
+        assertEquals(FLOOR, controller.getBitrate());
+    }
+
+    @Test
+    public void backsOffOncePerHold() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, 4_000_000);
+        for (long now = 0; now < BitrateController.BACK_OFF_HOLD_MS; now += 100) {
+            controller.onQueueDepth(BitrateController.QUEUE_THRESHOLD_FRAMES + 1);
+            controller.update(now);
+        }
+        assertEquals(1, controller.getBackOffCount());
+        assertEquals(2_800_000, controller.getBitrate());
+
+        controller.onQueueDepth(BitrateController.QUEUE_THRESHOLD_FRAMES + 1);
+        controller.update(BitrateController.BACK_OFF_HOLD_MS);
+        assertEquals(1_960_000, controller.getBitrate());
+    }
+
+    @Test
+    public void waitsBeforeRampingUp() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, 4_000_000, 500_000, 0.5);
+        controller.onFramesDropped(1);
+        controller.update(0);
+        assertEquals(2_000_000, controller.getBitrate());
+
+        controller.update(BitrateController.RAMP_UP_DELAY_MS - 1);
+        assertEquals(2_000_000, controller.getBitrate());
+        controller.update(BitrateController.RAMP_UP_DELAY_MS);
+        assertEquals(2_500_000, controller.getBitrate());
+        controller.update(BitrateController.RAMP_UP_DELAY_MS + 500);
+        assertEquals(3_000_000, controller.getBitrate());
+    }
+
+    @Test
+    public void eachSignalCountsAsCongestion() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, CEILING);
+        long now = 0;
+
+        controller.onPendingBytes(BitrateController.STALL_THRESHOLD_BYTES);
+        int before = controller.getBitrate();
+        assertEquals(before, controller.update(now += 5000));
+        controller.onPendingBytes(BitrateController.STALL_THRESHOLD_BYTES + 1);
+        assertTrue(controller.update(now += 5000) < before);
+
+        before = controller.getBitrate();
+        controller.onFramesDropped(3);
+        assertTrue(controller.update(now += 5000) < before);
+
+        before = controller.getBitrate();
+        controller.onReceiverReport(0.1f, -1);
+        assertTrue(controller.update(now += 5000) < before);
+    }
+
+    @Test
+    public void roundTripIsJudgedAgainstTheSmallestSeen() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, 4_000_000);
+        long now = 0;
+        controller.onReceiverReport(0, 150);
+        controller.onReceiverReport(0, 150 + BitrateController.RTT_INFLATION_MS);
+        assertEquals(4_400_000, controller.update(now += 5000));
+
+        controller.onReceiverReport(0, 151 + BitrateController.RTT_INFLATION_MS);
+        assertTrue(controller.update(now += 5000) < 4_400_000);
+    }
+
+    @Test
+    public void feedbackIsResetAfterUpdate() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, 4_000_000);
+        controller.onQueueDepth(100);
+        controller.update(0);
+        assertEquals(1, controller.getBackOffCount());
+        controller.update(BitrateController.BACK_OFF_HOLD_MS * 10);
+        assertEquals(1, controller.getBackOffCount());
+        assertEquals(1, controller.getIncreaseCount());
+    }
+
+    @Test
+    public void listenerOnlySeesChanges() {
+        BitrateController controller = new BitrateController(FLOOR, CEILING, CEILING);
+        List<Integer> changes = new ArrayList<>();
+        controller.setListener(changes::add);
+        controller.update(10_000);
+        controller.update(20_000);
+        assertTrue(changes.isEmpty());
+
+        controller.onFramesDropped(1);
+        controller.update(30_000);
+        assertEquals(1, changes.size());
+        assertEquals(controller.getBitrate(), (int) changes.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedRange() {
+        new BitrateController(CEILING, FLOOR, FLOOR);
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void buffersAreRoundedToSizeClasses() {
+        BufferPool pool = new BufferPool(1000, 5000, 4);
+        BufferPool.PooledBuffer small = pool.acquire(10);
+        assertEquals(1024, small.capacity());
+        assertEquals(10, small.buffer().limit());
+        BufferPool.PooledBuffer large = pool.acquire(4097);
+        assertEquals(8192, large.capacity());
+        BufferPool.PooledBuffer huge = pool.acquire(10_000);
+        assertEquals(10_000, huge.capacity());
+        assertTrue(huge.buffer().isDirect());
+        assertEquals(1024 + 8192 + 10_000, pool.getBytesInUse());
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        BufferPool pool = new BufferPool(1024, 1 << 20, 4);
+        BufferPool.PooledBuffer first = pool.acquire(3000);
+        first.release();
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(4096, pool.getBytesPooled());
+
+        BufferPool.PooledBuffer second = pool.acquire(2500);
+        assertSame(first, second);
+        assertEquals(2500, second.buffer().limit());
+        assertEquals(0, second.buffer().position());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void bufferReturnsAfterLastReference() {
+        BufferPool pool = new BufferPool(1024, 1 << 20, 4);
+        BufferPool.PooledBuffer buffer = pool.copyOf(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        assertEquals(3, buffer.buffer().remaining());
+        buffer.retain();
+        assertEquals(2, buffer.refCount());
+        buffer.release();
+        assertEquals(1024, pool.getBytesInUse());
+        buffer.release();
+        assertEquals(0, pool.getBytesInUse());
+        try {
+            buffer.retain();
+            fail("retain after release");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void freeListIsBounded() {
+        BufferPool pool = new BufferPool(1024, 1024, 2);
+        BufferPool.PooledBuffer[] buffers = new BufferPool.PooledBuffer[5];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(100);
+        }
+        for (BufferPool.PooledBuffer buffer : buffers) {
+            buffer.release();
+        }
+        assertEquals(2048, pool.getBytesPooled());
+    }
+
+    @Test
+    public void steadyStateFramePathDoesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocation.isThreadAllocatedMemorySupported());
+
+        BufferPool pool = new BufferPool(16 * 1024, 1 << 20, 8);
+        FrameRing ring = new FrameRing(4, pool, FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR);
+        H264Packetizer packetizer = new H264Packetizer(1);
+        NalScanner scanner = new NalScanner();
+        ByteBuffer codecBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        codecBuffer.put(new byte[]{0, 0, 0, 1, 0x65});
+        while (codecBuffer.hasRemaining()) {
+            codecBuffer.put((byte) 0x55);
+        }
+        codecBuffer.flip();
+        long[] packets = new long[1];
+        H264Packetizer.PacketSink sink = (packet, length) -> packets[0]++;
+
+        Runnable frame = () -> {
+            scanner.scan(codecBuffer);
+            ring.offer(codecBuffer, scanner, 0, 0, true);
+            FrameRing.Frame queued = ring.poll();
+            packetizer.packetize(queued.data(), queued.nals(), 0, sink);
+            ring.release(queued);
+        };
+        // Warm up pool, JIT and lazily created JDK state
+        for (int i = 0; i < 20_000; i++) {
+            frame.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocation.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            frame.run();
+        }
+        long allocated = allocation.getThreadAllocatedBytes(threadId) - before;
+        // Far less than one 64 KB frame for the whole run
+        assertTrue("allocated " + allocated + " bytes", allocated < 16 * 1024);
+        assertEquals(1, pool.getMisses());
+        assertTrue(packets[0] > 0);
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.screenstream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class EncoderSelectorTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // Tables modelled on what phones report: a vendor encoder and the platform's software one
+    private static EncoderSelector.Candidate software() {
+        return new EncoderSelector.Candidate("c2.android.avc.encoder", false)
+                .sizes(16, 4096, 16, 4096, 2, 2)
+                .bitrateModes(true, true)
+                .profileLevel(EncoderSelector.AVC_PROFILE_BASELINE, 0x2000)
+                .profileLevel(EncoderSelector.AVC_PROFILE_MAIN, 0x2000)
+                .profileLevel(EncoderSelector.AVC_PROFILE_HIGH, 0x2000);
+    }
+
+    private static EncoderSelector.Candidate hardware(String name, int maxHeight) {
+        return new EncoderSelector.Candidate(name, true)
+                .sizes(96, 4096, 96, maxHeight, 2, 2)
+                .bitrateModes(true, true)
+                .profileLevel(EncoderSelector.AVC_PROFILE_BASELINE, 0x1000)
+                .profileLevel(EncoderSelector.AVC_PROFILE_HIGH, 0x800)
+                .profileLevel(EncoderSelector.AVC_PROFILE_HIGH, 0x1000);
+    }
+
+    @Test
+    public void prefersHardwareOverPlatformOrder() {
+        EncoderSelector.Selection selection = EncoderSelector.select(
+                Arrays.asList(software(), hardware("c2.vendor.avc.encoder", 4096)), 1080, 2340);
+        assertNotNull(selection);
+        assertEquals("c2.vendor.avc.encoder", selection.getCodecName());
+        assertTrue(selection.isHardware());
+        assertEquals(EncoderSelector.BITRATE_MODE_CBR, selection.getBitrateMode());
+        // Best profile with its highest level
+        assertEquals(EncoderSelector.AVC_PROFILE_HIGH, selection.getProfile());
+        assertEquals(0x1000, selection.getLevel());
+    }
+
+    @Test
+    public void skipsEncodersThatCannotTakeTheSize() {
+        // A portrait screen taller than the hardware encoder's height limit
+        EncoderSelector.Selection selection = EncoderSelector.select(
+                Arrays.asList(hardware("c2.vendor.avc.encoder", 2304), software()), 1080, 2400);
+        assertEquals("c2.android.avc.encoder", selection.getCodecName());
+        assertFalse(selection.isHardware());
+
+        // Odd sizes break the alignment of every encoder
+        assertNull(EncoderSelector.select(Arrays.asList(hardware("c2.vendor.avc.encoder", 4096), software()), 1081, 2340));
+        assertNull(EncoderSelector.select(Collections.emptyList(), 1080, 2340));
+    }
+
+    @Test
+    public void prefersConstantBitrateThenProfileThenPlatformOrder() {
+        EncoderSelector.Candidate vbrOnly = new EncoderSelector.Candidate("vbr", true)
+                .bitrateModes(false, true)
+                .profileLevel(EncoderSelector.AVC_PROFILE_CONSTRAINED_HIGH, 0x1000);
+        EncoderSelector.Candidate baseline = new EncoderSelector.Candidate("baseline", true)
+                .bitrateModes(true, true)
+                .profileLevel(EncoderSelector.AVC_PROFILE_BASELINE, 0x1000);
+        EncoderSelector.Candidate main = new EncoderSelector.Candidate("main", true)
+                .bitrateModes(true, true)
+                .profileLevel(EncoderSelector.AVC_PROFILE_MAIN, 0x1000);
+        EncoderSelector.Candidate otherMain = new EncoderSelector.Candidate("other-main", true)
+                .bitrateModes(true, true)
+                .profileLevel(EncoderSelector.AVC_PROFILE_MAIN, 0x1000);
+
+        EncoderSelector.Selection selection =
+                EncoderSelector.select(Arrays.asList(vbrOnly, baseline, main, otherMain), 1280, 720);
+        assertEquals("main", selection.getCodecName());
+        assertEquals(EncoderSelector.AVC_PROFILE_MAIN, selection.getProfile());
+
+        selection = EncoderSelector.select(Collections.singletonList(vbrOnly), 1280, 720);
+        assertEquals(EncoderSelector.BITRATE_MODE_VBR, selection.getBitrateMode());
+        assertEquals(EncoderSelector.AVC_PROFILE_CONSTRAINED_HIGH, selection.getProfile());
+    }
+
+    @Test
+    public void encoderWithoutKnownModesOrProfilesKeepsDefaults() {
+        EncoderSelector.Selection selection = EncoderSelector.select(
+                Collections.singletonList(new EncoderSelector.Candidate("bare", false)), 640, 480);
+        assertEquals(0, selection.getBitrateMode());
+        assertEquals(0, selection.getProfile());
+        assertEquals(0, selection.getLevel());
+    }
+
+    @Test
+    public void cacheRoundTripsUnderItsKey() throws IOException {
+        File file = new File(folder.getRoot(), "encoder.properties");
+        String key = EncoderSelector.cacheKey("vendor/device:14/build", "video/avc", 1080, 2340);
+        assertNull(EncoderSelector.load(file, key));
+
+        EncoderSelector.Selection selection = new EncoderSelector.Selection("c2.vendor.avc.encoder", true,
+                EncoderSelector.BITRATE_MODE_CBR, EncoderSelector.AVC_PROFILE_HIGH, 0x1000);
+        EncoderSelector.save(file, key, selection);
+        EncoderSelector.Selection loaded = EncoderSelector.load(file, key);
+        assertNotNull(loaded);
+        assertEquals(selection.toString(), loaded.toString());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // A system update or another screen size probes again
+        assertNull(EncoderSelector.load(file, EncoderSelector.cacheKey("vendor/device:15/build", "video/avc", 1080, 2340)));
+        assertNull(EncoderSelector.load(file, EncoderSelector.cacheKey("vendor/device:14/build", "video/avc", 1440, 3120)));
+    }
+
+    @Test
+    public void damagedCacheIsIgnored() throws IOException {
+        File file = folder.newFile("encoder.properties");
+        String key = EncoderSelector.cacheKey("fp", "video/avc", 1080, 2340);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(("key=" + key.replace("|", "\\|") + "\ncodec=x\nprofile=high\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+        assertNull(EncoderSelector.load(file, key));
+    }
+}
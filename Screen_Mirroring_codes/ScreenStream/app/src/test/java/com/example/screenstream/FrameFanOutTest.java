@@ -0,0 +1,179 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameFanOutTest {
+    private final BufferPool pool = new BufferPool(64, 64 * 1024, 64);
+
+    // The id is offset so it never contains a start code
+    private static final int ID_BIAS = 0x10101010;
+
+    private static ByteBuffer frame(int id, boolean key) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.putInt(1).put((byte) (key ? 0x65 : 0x41)).putInt(id + ID_BIAS);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) (id + buffer.position()));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Collects frame ids, optionally blocking until released. */
+    private static final class RecordingSink implements EncodedFrameSink {
+        final List<Integer> ids = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch gate;
+
+        RecordingSink(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public void onFrame(ByteBuffer frame, NalScanner nals, long presentationTimeUs, boolean keyFrame) {
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            // Consumers move their own view, never anyone else's
+            frame.position(frame.position() + 5);
+            assertEquals(1, nals.count());
+            ids.add(frame.getInt() - ID_BIAS);
+            assertEquals(presentationTimeUs, ids.get(ids.size() - 1) * 1000L);
+        }
+
+        void awaitCount(int count) throws InterruptedException {
+            for (int i = 0; i < 500 && ids.size() < count; i++) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private FramePump pump(RecordingSink sink) {
+        return new FramePump(new FrameRing(8, pool, FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR), sink, null);
+    }
+
+    @Test
+    public void everyPumpSeesEveryFrameFromOneCopy() throws Exception {
+        FrameFanOut fanOut = new FrameFanOut(pool);
+        List<RecordingSink> sinks = new ArrayList<>();
+        List<FramePump> pumps = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            RecordingSink sink = new RecordingSink(null);
+            sinks.add(sink);
+            FramePump pump = pump(sink);
+            pumps.add(pump);
+            fanOut.add(pump);
+        }
+        assertEquals(8, fanOut.size());
+
+        for (int id = 0; id < 200; id++) {
+            ByteBuffer frame = frame(id, id % 10 == 0);
+            fanOut.onFrame(frame, null, id * 1000L, id % 10 == 0);
+            assertEquals(0, frame.position());
+            // Paced so that no ring overflows
+            Thread.sleep(1);
+        }
+        for (RecordingSink sink : sinks) {
+            sink.awaitCount(200);
+            assertEquals(200, sink.ids.size());
+            for (int id = 0; id < 200; id++) {
+                assertEquals(id, (int) sink.ids.get(id));
+            }
+        }
+        // One pooled copy per frame, not one per viewer
+        assertEquals(200, pool.getHits() + pool.getMisses());
+
+        for (FramePump pump : pumps) {
+            fanOut.remove(pump);
+            pump.stop();
+        }
+        assertEquals(0, fanOut.size());
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    public void slowPumpDropsOnlyItsOwnFrames() throws Exception {
+        FrameFanOut fanOut = new FrameFanOut(pool);
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingSink slow = new RecordingSink(gate);
+        RecordingSink fast = new RecordingSink(null);
+        FramePump slowPump = pump(slow);
+        FramePump fastPump = pump(fast);
+        fanOut.add(slowPump);
+        fanOut.add(fastPump);
+
+        long startNs = System.nanoTime();
+        for (int id = 0; id < 100; id++) {
+            fanOut.onFrame(frame(id, id % 10 == 0), null, id * 1000L, id % 10 == 0);
+            Thread.sleep(1);
+        }
+        // The producer never waited for the stuck consumer
+        assertTrue(System.nanoTime() - startNs < TimeUnit.SECONDS.toNanos(5));
+        fast.awaitCount(100);
+        assertEquals(100, fast.ids.size());
+        assertEquals(0, fastPump.getRing().getDroppedCount());
+        assertTrue(slowPump.getRing().getDroppedCount() > 0);
+
+        gate.countDown();
+        fanOut.remove(slowPump);
+        fanOut.remove(fastPump);
+        slowPump.stop();
+        fastPump.stop();
+        // The slow consumer resumed at a key frame
+        assertTrue(slow.ids.size() < 100);
+        int resumed = slow.ids.size() > 1 ? slow.ids.get(1) : 0;
+        assertEquals(0, resumed % 10);
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    public void joiningPumpIsSizedForTheWholeCachedGroup() throws Exception {
+        GopCache cache = new GopCache(10_000_000, 300, 1024 * 1024);
+        FrameFanOut fanOut = new FrameFanOut(pool, cache);
+        for (int id = 0; id < 40; id++) {
+            fanOut.onFrame(frame(id, id == 0), null, id * 1000L, id == 0);
+        }
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingSink sink = new RecordingSink(gate);
+        FramePump[] joined = new FramePump[1];
+        int[] sized = new int[1];
+        assertTrue(fanOut.join(cachedFrames -> {
+            sized[0] = cachedFrames;
+            joined[0] = new FramePump(new FrameRing(8 + cachedFrames, pool, FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR), sink, null);
+            return joined[0];
+        }));
+        assertEquals(40, sized[0]);
+        // The stuck consumer holds one frame, the rest of the group fits in its ring
+        assertEquals(0, joined[0].getRing().getDroppedCount());
+        // The replayed group is not a backlog of live frames
+        assertTrue(joined[0].getRing().size() >= 39);
+        assertEquals(0, joined[0].getLiveQueuedFrames());
+        fanOut.onFrame(frame(40, false), null, 40_000L, false);
+        fanOut.onFrame(frame(41, false), null, 41_000L, false);
+        assertEquals(2, joined[0].getLiveQueuedFrames());
+
+        gate.countDown();
+        sink.awaitCount(42);
+        assertEquals(42, sink.ids.size());
+        assertEquals(0, joined[0].getLiveQueuedFrames());
+        assertEquals(Integer.valueOf(0), sink.ids.get(0));
+        fanOut.remove(joined[0]);
+        joined[0].stop();
+        cache.clear();
+        assertEquals(0, pool.getBytesInUse());
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.screenstream;
+
+import com.example.mirror.stats.LatencyHistogram;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares {@link FrameRing} with the PipedOutputStream/PipedInputStream pair
+ * the streaming services used to move encoded frames between threads.
+ *
+ * Run from the IDE or with
+ * {@code java -cp <test and main classes> com.example.screenstream.FrameRingBenchmark}.
+ * The frame mix is one 200 KB key frame per 30 frames of 20 KB.
+ */
+public class FrameRingBenchmark {
+    private static final int KEY_FRAME_SIZE = 200 * 1024;
+    private static final int DELTA_FRAME_SIZE = 20 * 1024;
+    private static final int GOP = 30;
+
+    interface Transport {
+        void send(byte[] frame, int length, long timestampNs) throws Exception;
+
+        /** Receives one frame and returns its send timestamp. */
+        long receive() throws Exception;
+    }
+
+    static final class PipeTransport implements Transport {
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final byte[] readBuffer = new byte[KEY_FRAME_SIZE];
+
+        PipeTransport() throws IOException {
+            PipedOutputStream pipeOut = new PipedOutputStream();
+            // Same default buffer size as the services used
+            PipedInputStream pipeIn = new PipedInputStream(pipeOut);
+            out = new DataOutputStream(pipeOut);
+            in = new DataInputStream(pipeIn);
+        }
+
+        @Override
+        public void send(byte[] frame, int length, long timestampNs) throws IOException {
+            out.writeInt(length);
+            out.writeLong(timestampNs);
+            out.write(frame, 0, length);
+            out.flush();
+        }
+
+        @Override
+        public long receive() throws IOException {
+            int length = in.readInt();
+            long timestamp = in.readLong();
+            in.readFully(readBuffer, 0, length);
+            return timestamp;
+        }
+    }
+
+    static final class RingTransport implements Transport {
+        private final FrameRing ring = new FrameRing(16, new BufferPool(16 * 1024, 256 * 1024, 32), FrameRing.OverflowPolicy.BLOCK);
+        private final byte[] readBuffer = new byte[KEY_FRAME_SIZE];
+
+        @Override
+        public void send(byte[] frame, int length, long timestampNs) {
+            // The send time rides in the presentation time, so the wait for a free slot and
+            // the copy count towards latency just as the pipe's write does
+            ring.offer(ByteBuffer.wrap(frame, 0, length), null, timestampNs, 0, false);
+        }
+
+        @Override
+        public long receive() throws InterruptedException {
+            FrameRing.Frame frame;
+            while ((frame = ring.poll(1, TimeUnit.SECONDS)) == null) {
+                // Keep waiting
+            }
+            // Touch the bytes like a sink would
+            frame.data().get(readBuffer, 0, frame.data().remaining());
+            long timestamp = frame.presentationTimeUs();
+            ring.release(frame);
+            return timestamp;
+        }
+    }
+
+    private static void run(String name, Transport transport, int frames, long intervalNs) throws Exception {
+        byte[] frame = new byte[KEY_FRAME_SIZE];
+        LatencyHistogram latency = new LatencyHistogram(name);
+        long[] bytes = new long[1];
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < frames; i++) {
+                    long sent = transport.receive();
+                    latency.record((System.nanoTime() - sent) / 1000);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        consumer.start();
+        long start = System.nanoTime();
+        long next = start;
+        for (int i = 0; i < frames; i++) {
+            if (intervalNs > 0) {
+                while (System.nanoTime() < next) {
+                    LockSupport.parkNanos(next - System.nanoTime());
+                }
+                next += intervalNs;
+            }
+            int size = i % GOP == 0 ? KEY_FRAME_SIZE : DELTA_FRAME_SIZE;
+            bytes[0] += size;
+            transport.send(frame, size, System.nanoTime());
+        }
+        consumer.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.US, "%-28s %8.0f frames/s %8.1f MB/s  %s",
+                name + (intervalNs > 0 ? " @60fps" : ""), frames / seconds, bytes[0] / seconds / 1e6, latency));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        // Warm up both paths first
+        run("warmup pipe", new PipeTransport(), frames / 3, 0);
+        run("warmup ring", new RingTransport(), frames / 3, 0);
+
+        run("PipedOutputStream", new PipeTransport(), frames, 0);
+        run("FrameRing", new RingTransport(), frames, 0);
+        run("PipedOutputStream", new PipeTransport(), 600, 16_666_667);
+        run("FrameRing", new RingTransport(), 600, 16_666_667);
+    }
+}
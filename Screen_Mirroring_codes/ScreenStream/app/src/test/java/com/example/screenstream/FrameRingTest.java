@@ -0,0 +1,187 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameRingTest {
+    private final BufferPool pool = new BufferPool(64, 64 * 1024, 16);
+
+    private static ByteBuffer frame(int id, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(id);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) (id + buffer.position()));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean offer(FrameRing ring, int id, boolean key) {
+        return ring.offer(frame(id, 64), null, id * 1000L, 0, key);
+    }
+
+    private static int pollId(FrameRing ring) {
+        FrameRing.Frame frame = ring.poll();
+        if (frame == null) {
+            return -1;
+        }
+        int id = frame.data().getInt(0);
+        assertEquals(id * 1000L, frame.presentationTimeUs());
+        ring.release(frame);
+        return id;
+    }
+
+    @Test
+    public void capacityIsRoundedToPowerOfTwo() {
+        assertEquals(2, new FrameRing(2, pool, FrameRing.OverflowPolicy.BLOCK).capacity());
+        assertEquals(8, new FrameRing(5, pool, FrameRing.OverflowPolicy.BLOCK).capacity());
+        assertEquals(16, new FrameRing(16, pool, FrameRing.OverflowPolicy.BLOCK).capacity());
+    }
+
+    @Test
+    public void framesAreCopiedAndKeepOrder() {
+        FrameRing ring = new FrameRing(4, pool, FrameRing.OverflowPolicy.BLOCK);
+        ByteBuffer src = frame(7, 1000);
+        src.position(10);
+        assertTrue(ring.offer(src, null, 7000, 3, true));
+        assertEquals(10, src.position());
+        src.put(20, (byte) 0);
+
+        FrameRing.Frame frame = ring.poll();
+        assertEquals(990, frame.data().remaining());
+        assertEquals(frame(7, 1000).get(20), frame.data().get(10));
+        assertEquals(3, frame.flags());
+        assertTrue(frame.isKeyFrame());
+        ring.release(frame);
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void nalOffsetsFollowTheCopy() {
+        ByteBuffer src = ByteBuffer.wrap(new byte[]{9, 9, 0, 0, 0, 1, 0x65, 0x11, 0, 0, 1, 0x41, 0x22});
+        src.position(2);
+        NalScanner nals = new NalScanner();
+        nals.scan(src);
+        FrameRing ring = new FrameRing(2, pool, FrameRing.OverflowPolicy.BLOCK);
+        ring.offer(src, nals, 0, 0, true);
+        FrameRing.Frame frame = ring.poll();
+        assertEquals(2, frame.nals().count());
+        assertEquals(4, frame.nals().offset(0));
+        assertEquals(NalScanner.AVC_TYPE_IDR, frame.nals().avcType(0));
+        assertArrayEquals(new byte[]{0x41, 0x22}, frame.nals().copy(1));
+    }
+
+    @Test
+    public void dropOldestNonKeyKeepsKeyFrames() {
+        FrameRing ring = new FrameRing(2, pool, FrameRing.OverflowPolicy.DROP_OLDEST_NON_KEY);
+        assertTrue(offer(ring, 1, true));
+        assertTrue(offer(ring, 2, false));
+        // Oldest is a key frame, the incoming delta frame is dropped
+        assertFalse(offer(ring, 3, false));
+        assertEquals(1, pollId(ring));
+        // Oldest is now a delta frame and is replaced
+        assertTrue(offer(ring, 4, false));
+        assertTrue(offer(ring, 5, false));
+        assertEquals(4, pollId(ring));
+        assertEquals(5, pollId(ring));
+        assertEquals(-1, pollId(ring));
+        assertEquals(2, ring.getDroppedCount());
+    }
+
+    @Test
+    public void dropToNextIdrFlushesUntilKeyFrame() {
+        FrameRing ring = new FrameRing(2, pool, FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR);
+        assertTrue(offer(ring, 1, true));
+        assertTrue(offer(ring, 2, false));
+        assertFalse(offer(ring, 3, false));
+        assertTrue(ring.isSkippingToKeyFrame());
+        assertEquals(-1, pollId(ring));
+        assertFalse(offer(ring, 4, false));
+        assertTrue(offer(ring, 5, true));
+        assertFalse(ring.isSkippingToKeyFrame());
+        assertTrue(offer(ring, 6, false));
+        assertEquals(5, pollId(ring));
+        assertEquals(6, pollId(ring));
+        assertEquals(4, ring.getDroppedCount());
+    }
+
+    @Test
+    public void slotHeldByConsumerIsNotOverwritten() {
+        FrameRing ring = new FrameRing(2, pool, FrameRing.OverflowPolicy.DROP_OLDEST_NON_KEY);
+        offer(ring, 1, false);
+        offer(ring, 2, false);
+        FrameRing.Frame held = ring.poll();
+        // The next slot is the one the consumer still reads, frame 2 is not the oldest in it
+        assertFalse(offer(ring, 3, false));
+        assertEquals(1, held.data().getInt(0));
+        ring.release(held);
+        assertTrue(offer(ring, 4, false));
+        assertEquals(2, pollId(ring));
+        assertEquals(4, pollId(ring));
+    }
+
+    @Test
+    public void blockingProducerAndConsumerTransferEveryFrame() throws Exception {
+        FrameRing ring = new FrameRing(4, pool, FrameRing.OverflowPolicy.BLOCK);
+        int frames = 20_000;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int expected = 0; expected < frames; expected++) {
+                    FrameRing.Frame frame = ring.poll(5, TimeUnit.SECONDS);
+                    assertNotNull(frame);
+                    assertEquals(expected, frame.data().getInt(0));
+                    assertEquals(frame(expected, frame.data().remaining()), frame.data());
+                    ring.release(frame);
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < frames; i++) {
+            assertTrue(ring.offer(frame(i, 16 + i % 1000), null, i, 0, i % 30 == 0));
+        }
+        consumer.join(10_000);
+        assertNull(failure.get());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void concurrentDroppingNeverDeliversOutOfOrder() throws Exception {
+        FrameRing ring = new FrameRing(4, pool, FrameRing.OverflowPolicy.DROP_OLDEST_NON_KEY);
+        int frames = 50_000;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                int last = -1;
+                while (last < frames - 1) {
+                    FrameRing.Frame frame = ring.poll(2, TimeUnit.SECONDS);
+                    if (frame == null) {
+                        break;
+                    }
+                    int id = frame.data().getInt(0);
+                    assertTrue(id > last);
+                    assertEquals(frame(id, frame.data().remaining()), frame.data());
+                    last = id;
+                    ring.release(frame);
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < frames; i++) {
+            ring.offer(frame(i, 16 + i % 300), null, i, 0, i % 30 == 0);
+        }
+        consumer.join(10_000);
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GopCacheTest {
+    private static final long FRAME_US = 33_333;
+
+    private final BufferPool pool = new BufferPool(64, 256 * 1024, 16);
+    private GopCache cache = new GopCache(1_000_000, 100, 64 * 1024);
+    private final NalScanner nals = new NalScanner();
+
+    @After
+    public void tearDown() {
+        cache.clear();
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    // Hands the cache a pooled frame the way the fan-out does and drops our reference
+    private void add(long presentationTimeUs, boolean keyFrame, int size) {
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.putInt(1).put((byte) (keyFrame ? 0x65 : 0x41));
+        while (frame.hasRemaining()) {
+            frame.put((byte) 7);
+        }
+        frame.flip();
+        BufferPool.PooledBuffer shared = pool.copyOf(frame);
+        nals.scan(shared.buffer());
+        cache.add(shared, nals, presentationTimeUs, keyFrame);
+        shared.release();
+    }
+
+    @Test
+    public void keepsFramesSinceLastKeyFrame() {
+        add(0, false, 100);
+        assertEquals(0, cache.size());
+        assertFalse(cache.isUsable());
+        assertEquals(-1, cache.getStartPresentationTimeUs());
+
+        add(FRAME_US, true, 1000);
+        add(2 * FRAME_US, false, 100);
+        add(3 * FRAME_US, false, 100);
+        assertEquals(3, cache.size());
+        assertEquals(1200, cache.getBytes());
+        assertEquals(FRAME_US, cache.getStartPresentationTimeUs());
+
+        // A new key frame releases the old group
+        add(4 * FRAME_US, true, 1000);
+        assertEquals(1, cache.size());
+        assertEquals(4 * FRAME_US, cache.getStartPresentationTimeUs());
+        assertEquals(2, cache.getKeyFrameCount());
+    }
+
+    @Test
+    public void replaysOldestFirstStartingWithKeyFrame() throws Exception {
+        add(0, true, 1000);
+        for (int i = 1; i < 10; i++) {
+            add(i * FRAME_US, false, 100);
+        }
+        List<Long> times = Collections.synchronizedList(new ArrayList<>());
+        List<Boolean> keys = Collections.synchronizedList(new ArrayList<>());
+        FramePump pump = new FramePump(new FrameRing(16, null, FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR),
+                (frame, frameNals, presentationTimeUs, keyFrame) -> {
+                    assertEquals(1, frameNals.count());
+                    times.add(presentationTimeUs);
+                    keys.add(keyFrame);
+                }, null);
+        try {
+            assertEquals(10, cache.replayTo(pump));
+            for (int i = 0; i < 500 && times.size() < 10; i++) {
+                Thread.sleep(10);
+            }
+        } finally {
+            pump.stop();
+        }
+        assertEquals(10, times.size());
+        assertTrue(keys.get(0));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i * FRAME_US, (long) times.get(i));
+            assertEquals(i == 0, keys.get(i));
+        }
+        // Replaying does not consume the cache
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void groupOlderThanMaxAgeIsNotHandedOut() {
+        add(0, true, 1000);
+        add(1_000_000, false, 100);
+        assertTrue(cache.isUsable());
+        add(1_000_001, false, 100);
+        assertFalse(cache.isUsable());
+        assertEquals(-1, cache.getStartPresentationTimeUs());
+        assertEquals(0, cache.replayTo(null));
+    }
+
+    @Test
+    public void overflowDropsGroupUntilNextKeyFrame() {
+        add(0, true, 32 * 1024);
+        add(FRAME_US, false, 16 * 1024);
+        add(2 * FRAME_US, false, 16 * 1024 + 1);
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getOverflowCount());
+        assertEquals(0, pool.getBytesInUse());
+
+        add(3 * FRAME_US, false, 100);
+        assertEquals(0, cache.size());
+        add(4 * FRAME_US, true, 1000);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void estimatesSavingsAgainstOneSecondKeyFrames() {
+        cache = new GopCache(10_000_000, 300, 1024 * 1024);
+        // Ten seconds at 30 fps with a single 50 KB key frame and 2 KB deltas
+        for (int i = 0; i < 300; i++) {
+            add(i * FRAME_US, i == 0, i == 0 ? 50_000 : 2_000);
+        }
+        // The baseline sends nine more key frames, each 48 KB above a delta frame
+        assertEquals(9 * 48_000, cache.getSavedBytes());
+        assertTrue(cache.toString(), cache.toString().contains("saved~432000B"));
+    }
+}
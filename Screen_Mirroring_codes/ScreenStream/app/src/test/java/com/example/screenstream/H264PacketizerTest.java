@@ -0,0 +1,125 @@
+package com.example.screenstream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class H264PacketizerTest {
+
+    private static List<byte[]> packetize(H264Packetizer packetizer, byte[] accessUnit, long timestamp) {
+        List<byte[]> packets = new ArrayList<>();
+        packetizer.packetize(ByteBuffer.wrap(accessUnit), timestamp,
+                (packet, length) -> packets.add(Arrays.copyOf(packet, length)));
+        return packets;
+    }
+
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            nal[i] = (byte) (i % 251 + 2);
+        }
+        return nal;
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < nals.length; i++) {
+            if (i == 0) {
+                out.write(0);
+            }
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nals[i], 0, nals[i].length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void smallNalUnitsAreSentAsSingleNalPackets() {
+        H264Packetizer packetizer = new H264Packetizer(0x11223344);
+        byte[] sps = nal(0x67, 12);
+        byte[] pps = nal(0x68, 4);
+        byte[] idr = nal(0x65, 300);
+
+        List<byte[]> packets = packetize(packetizer, annexB(sps, pps, idr), 90000);
+
+        assertEquals(3, packets.size());
+        assertArrayEquals(sps, Arrays.copyOfRange(packets.get(0), 12, packets.get(0).length));
+        assertArrayEquals(pps, Arrays.copyOfRange(packets.get(1), 12, packets.get(1).length));
+        assertArrayEquals(idr, Arrays.copyOfRange(packets.get(2), 12, packets.get(2).length));
+
+        // Marker only on the last packet of the access unit
+        assertEquals(0, packets.get(0)[1] & 0x80);
+        assertEquals(0, packets.get(1)[1] & 0x80);
+        assertEquals(0x80, packets.get(2)[1] & 0x80);
+
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            assertEquals(0x80, packet[0] & 0xFF);
+            assertEquals(H264Packetizer.PAYLOAD_TYPE, packet[1] & 0x7F);
+            assertEquals(i, ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF));
+            assertEquals(90000, ByteBuffer.wrap(packet, 4, 4).getInt());
+            assertEquals(0x11223344, ByteBuffer.wrap(packet, 8, 4).getInt());
+        }
+    }
+
+    @Test
+    public void largeNalUnitIsFragmentedIntoFuA() {
+        H264Packetizer packetizer = new H264Packetizer(1, 200);
+        byte[] idr = nal(0x65, 1000);
+
+        List<byte[]> packets = packetize(packetizer, annexB(idr), 0);
+
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            assertTrue(packet.length <= 200);
+            int indicator = packet[12] & 0xFF;
+            int header = packet[13] & 0xFF;
+            assertEquals(28, indicator & 0x1F);
+            assertEquals(0x60, indicator & 0xE0);
+            assertEquals(5, header & 0x1F);
+            assertEquals(i == 0, (header & 0x80) != 0);
+            assertEquals(i == packets.size() - 1, (header & 0x40) != 0);
+            assertEquals(i == packets.size() - 1, (packet[1] & 0x80) != 0);
+            if (i == 0) {
+                reassembled.write((indicator & 0xE0) | (header & 0x1F));
+            }
+            reassembled.write(packet, 14, packet.length - 14);
+        }
+        assertArrayEquals(idr, reassembled.toByteArray());
+    }
+
+    @Test
+    public void sequenceNumbersContinueAcrossFramesAndWrap() {
+        H264Packetizer packetizer = new H264Packetizer(1);
+        byte[] frame = annexB(nal(0x41, 50));
+        for (int i = 0; i < 65537; i++) {
+            packetize(packetizer, frame, i);
+        }
+        assertEquals(1, packetizer.getSequenceNumber());
+    }
+
+    @Test
+    public void bufferPositionIsNotConsumed() {
+        H264Packetizer packetizer = new H264Packetizer(1);
+        ByteBuffer buffer = ByteBuffer.wrap(annexB(nal(0x41, 50)));
+        buffer.position(0);
+        packetizer.packetize(buffer, 0, (packet, length) -> { });
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void rtpTimestampUses90kHzClock() {
+        assertEquals(90000, H264Packetizer.toRtpTimestamp(1_000_000));
+        assertEquals(3000, H264Packetizer.toRtpTimestamp(33_334));
+    }
+}
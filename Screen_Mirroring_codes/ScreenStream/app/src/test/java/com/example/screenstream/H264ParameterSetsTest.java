@@ -0,0 +1,43 @@
+package com.example.screenstream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class H264ParameterSetsTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] out = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            out[i] = (byte) values[i];
+        }
+        return out;
+    }
+
+    @Test
+    public void parameterSetsAreCachedFromCodecSpecificData() {
+        H264ParameterSets parameterSets = new H264ParameterSets();
+        assertFalse(parameterSets.isComplete());
+        assertNull(parameterSets.getSpropParameterSets());
+
+        ByteBuffer csd0 = ByteBuffer.wrap(bytes(0, 0, 0, 1, 0x67, 0x42, 0xC0, 0x1F, 0x11, 0x22));
+        ByteBuffer csd1 = ByteBuffer.wrap(bytes(0, 0, 0, 1, 0x68, 0xCE, 0x3C, 0x80));
+        assertTrue(parameterSets.update(csd0, csd1));
+        assertEquals(0, csd0.position());
+        assertArrayEquals(bytes(0x67, 0x42, 0xC0, 0x1F, 0x11, 0x22), parameterSets.getSps());
+        assertArrayEquals(bytes(0x68, 0xCE, 0x3C, 0x80), parameterSets.getPps());
+        assertEquals("42c01f", parameterSets.getProfileLevelId());
+        assertEquals("Z0LAHxEi,aM48gA==", parameterSets.getSpropParameterSets());
+    }
+
+    @Test
+    public void parameterSetsFromCombinedConfigBuffer() {
+        H264ParameterSets parameterSets = new H264ParameterSets();
+        ByteBuffer config = ByteBuffer.wrap(bytes(0, 0, 0, 1, 0x67, 0x64, 0x00, 0x28, 0, 0, 0, 1, 0x68, 0xEE));
+        assertTrue(parameterSets.update(config, null));
+        assertEquals("640028", parameterSets.getProfileLevelId());
+        assertArrayEquals(bytes(0x68, 0xEE), parameterSets.getPps());
+    }
+}
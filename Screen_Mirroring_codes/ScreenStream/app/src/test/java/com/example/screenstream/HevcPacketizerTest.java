@@ -0,0 +1,177 @@
+package com.example.screenstream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HevcPacketizerTest {
+    // Header bytes of NAL units with LayerId 0 and TID 1
+    private static final int VPS = 32 << 1;
+    private static final int SPS = 33 << 1;
+    private static final int PPS = 34 << 1;
+    private static final int IDR_W_RADL = 19 << 1;
+    private static final int TRAIL_R = 1 << 1;
+
+    // SPS of a phone encoder at Main profile, level 3.1, with its emulation prevention bytes
+    private static final byte[] ENCODER_SPS = bytes(0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00,
+            0x90, 0x00, 0x00, 0x03, 0x00, 0x00, 0x03, 0x00, 0x5D, 0xA0, 0x02, 0x80, 0x80, 0x2D, 0x16);
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static List<byte[]> packetize(HevcPacketizer packetizer, byte[] accessUnit, long timestamp) {
+        List<byte[]> packets = new ArrayList<>();
+        packetizer.packetize(ByteBuffer.wrap(accessUnit), timestamp,
+                (packet, length) -> packets.add(Arrays.copyOf(packet, length)));
+        return packets;
+    }
+
+    private static byte[] nal(int header0, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header0;
+        nal[1] = 1;
+        for (int i = 2; i < size; i++) {
+            nal[i] = (byte) (i % 251 + 2);
+        }
+        return nal;
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static int payloadType(byte[] packet) {
+        return HevcParameterSets.nalType(packet[RtpPacketizer.RTP_HEADER_SIZE]);
+    }
+
+    @Test
+    public void parameterSetsInFrontOfKeyFrameAreAggregated() {
+        HevcPacketizer packetizer = new HevcPacketizer(0x11223344);
+        byte[] vps = nal(VPS, 24);
+        byte[] sps = nal(SPS, 40);
+        byte[] pps = nal(PPS, 8);
+        byte[] idr = nal(IDR_W_RADL, 2000);
+
+        List<byte[]> packets = packetize(packetizer, annexB(vps, sps, pps, idr), 90000);
+
+        byte[] ap = packets.get(0);
+        assertEquals(HevcPacketizer.NAL_TYPE_AP, payloadType(ap));
+        assertEquals(1, ap[RtpPacketizer.RTP_HEADER_SIZE + 1]);
+        assertEquals(0, ap[1] & 0x80);
+        int pos = RtpPacketizer.RTP_HEADER_SIZE + HevcPacketizer.NAL_HEADER_SIZE;
+        for (byte[] expected : new byte[][]{vps, sps, pps}) {
+            int length = ((ap[pos] & 0xFF) << 8) | (ap[pos + 1] & 0xFF);
+            assertArrayEquals(expected, Arrays.copyOfRange(ap, pos + 2, pos + 2 + length));
+            pos += 2 + length;
+        }
+        assertEquals(ap.length, pos);
+
+        // The key frame is too large to share the packet
+        for (int i = 1; i < packets.size(); i++) {
+            assertEquals(HevcPacketizer.NAL_TYPE_FU, payloadType(packets.get(i)));
+            assertEquals(i == packets.size() - 1, (packets.get(i)[1] & 0x80) != 0);
+        }
+        for (int i = 0; i < packets.size(); i++) {
+            assertEquals(i, ((packets.get(i)[2] & 0xFF) << 8) | (packets.get(i)[3] & 0xFF));
+            assertEquals(90000, ByteBuffer.wrap(packets.get(i), 4, 4).getInt());
+            assertEquals(0x11223344, ByteBuffer.wrap(packets.get(i), 8, 4).getInt());
+        }
+    }
+
+    @Test
+    public void singleNalUnitKeepsItsHeader() {
+        HevcPacketizer packetizer = new HevcPacketizer(1);
+        byte[] trail = nal(TRAIL_R, 300);
+
+        List<byte[]> packets = packetize(packetizer, annexB(trail), 0);
+
+        assertEquals(1, packets.size());
+        assertArrayEquals(trail, Arrays.copyOfRange(packets.get(0), RtpPacketizer.RTP_HEADER_SIZE, packets.get(0).length));
+        assertEquals(0x80, packets.get(0)[1] & 0x80);
+        assertEquals(RtpPacketizer.PAYLOAD_TYPE, packets.get(0)[1] & 0x7F);
+    }
+
+    @Test
+    public void largeNalUnitIsFragmented() {
+        HevcPacketizer packetizer = new HevcPacketizer(1, 200);
+        byte[] idr = nal(IDR_W_RADL, 1000);
+
+        List<byte[]> packets = packetize(packetizer, annexB(idr), 0);
+
+        assertTrue(packets.size() > 1);
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            assertTrue(packet.length <= 200);
+            int header0 = packet[12] & 0xFF;
+            int header1 = packet[13] & 0xFF;
+            int fuHeader = packet[14] & 0xFF;
+            assertEquals(HevcPacketizer.NAL_TYPE_FU, (header0 >> 1) & 0x3F);
+            assertEquals(1, header1);
+            assertEquals(19, fuHeader & 0x3F);
+            assertEquals(i == 0, (fuHeader & 0x80) != 0);
+            assertEquals(i == packets.size() - 1, (fuHeader & 0x40) != 0);
+            assertEquals(i == packets.size() - 1, (packet[1] & 0x80) != 0);
+            if (i == 0) {
+                reassembled.write((header0 & 0x81) | ((fuHeader & 0x3F) << 1));
+                reassembled.write(header1);
+            }
+            reassembled.write(packet, 15, packet.length - 15);
+        }
+        assertArrayEquals(idr, reassembled.toByteArray());
+    }
+
+    @Test
+    public void parameterSetsDescribeTheStream() {
+        HevcParameterSets parameterSets = new HevcParameterSets();
+        assertFalse(parameterSets.isComplete());
+        assertNull(parameterSets.getFormatParameters());
+
+        byte[] vps = nal(VPS, 20);
+        byte[] pps = bytes(0x44, 0x01, 0xC1, 0x72, 0xB4, 0x62, 0x40);
+        // HEVC encoders hand out all three in csd-0
+        assertTrue(parameterSets.update(ByteBuffer.wrap(annexB(vps, ENCODER_SPS, pps)), null));
+        assertArrayEquals(vps, parameterSets.getVps());
+        assertArrayEquals(ENCODER_SPS, parameterSets.getSps());
+        assertArrayEquals(pps, parameterSets.getPps());
+
+        String fmtp = parameterSets.getFormatParameters();
+        assertTrue(fmtp, fmtp.startsWith("profile-id=1;tier-flag=0;level-id=93;"));
+        assertTrue(fmtp, fmtp.endsWith(";sprop-pps=RAHBcrRiQA=="));
+        assertEquals(VideoCodec.HEVC, parameterSets.getCodec());
+    }
+
+    @Test
+    public void hevcOnlyWithHardwareEncoderAndCapableViewers() {
+        EncoderSelector.Selection hardwareHevc = new EncoderSelector.Selection("c2.vendor.hevc.encoder", true, 2, 1, 0);
+        EncoderSelector.Selection softwareHevc = new EncoderSelector.Selection("c2.android.hevc.encoder", false, 2, 1, 0);
+        EncoderSelector.Selection avc = new EncoderSelector.Selection("c2.vendor.avc.encoder", true, 2, 8, 0);
+
+        assertEquals(VideoCodec.HEVC, VideoCodec.choose(hardwareHevc, avc, true));
+        assertEquals(VideoCodec.H264, VideoCodec.choose(hardwareHevc, avc, false));
+        assertEquals(VideoCodec.H264, VideoCodec.choose(softwareHevc, avc, true));
+        assertEquals(VideoCodec.HEVC, VideoCodec.choose(softwareHevc, null, true));
+        assertEquals(VideoCodec.H264, VideoCodec.choose(null, avc, true));
+        assertEquals(VideoCodec.HEVC, VideoCodec.fromName("h265"));
+        assertNull(VideoCodec.fromName("vp9"));
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.NalScanner;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LlHlsSegmenterTest {
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    static final long FRAME_US = 33_333;
+
+    static byte[] annexB(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+
+    static H264ParameterSets parameterSets() {
+        H264ParameterSets parameterSets = new H264ParameterSets();
+        parameterSets.update(ByteBuffer.wrap(annexB(SPS)), ByteBuffer.wrap(annexB(PPS)));
+        return parameterSets;
+    }
+
+    // Key frames carry their parameter sets, as the encoder outputs them
+    static void send(EncodedFrameSink sink, int index, boolean key, int size) {
+        byte[] slice = new byte[size];
+        slice[0] = (byte) (key ? 0x65 : 0x41);
+        for (int i = 1; i < size; i++) {
+            slice[i] = (byte) ((i + index) % 200 + 3);
+        }
+        ByteBuffer frame = ByteBuffer.wrap(key ? annexB(SPS, PPS, slice) : annexB(slice));
+        NalScanner nals = new NalScanner();
+        nals.scan(frame);
+        sink.onFrame(frame, nals, 1_000_000 + index * FRAME_US, key);
+    }
+
+    private static String type(byte[] data, int offset) {
+        return new String(data, offset + 4, 4, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void cutsPartsWithinTargetAndSegmentsAtKeyFrames() {
+        LlHlsSegmenter segmenter = new LlHlsSegmenter(parameterSets(), 1280, 720, null);
+        assertNull(segmenter.getPlaylist(""));
+        // Two-second GOPs, the last GOP left open
+        for (int i = 0; i < 150; i++) {
+            send(segmenter, i, i % 60 == 0, 500);
+        }
+        assertEquals(2, segmenter.getOpenSequence());
+        List<LlHlsSegmenter.Part> parts = segmenter.getSegment(0);
+        assertEquals(6, parts.size());
+        long totalUs = 0;
+        for (LlHlsSegmenter.Part part : parts) {
+            assertTrue(part.getDurationUs() <= LlHlsSegmenter.DEFAULT_PART_TARGET_US);
+            assertEquals(part.getIndex() == 0, part.isIndependent());
+            totalUs += part.getDurationUs();
+        }
+        assertEquals(60 * FRAME_US, totalUs);
+        assertNull(segmenter.getSegment(2));
+
+        String playlist = segmenter.getPlaylist("");
+        assertTrue(playlist, playlist.startsWith("#EXTM3U\n#EXT-X-VERSION:9\n#EXT-X-TARGETDURATION:4\n"));
+        assertTrue(playlist, playlist.contains("#EXT-X-PART-INF:PART-TARGET=0.333\n"));
+        assertTrue(playlist, playlist.contains("CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=1.000"));
+        assertTrue(playlist, playlist.contains("#EXT-X-MEDIA-SEQUENCE:0\n#EXT-X-MAP:URI=\"init.mp4\"\n"));
+        assertTrue(playlist, playlist.contains("#EXT-X-PART:DURATION=0.333,URI=\"part-0.0.m4s\",INDEPENDENT=YES\n"));
+        assertTrue(playlist, playlist.contains("#EXTINF:2.000,\nsegment-0.m4s\n#EXT-X-PART:DURATION=0.333,URI=\"part-1.0.m4s\""));
+        // 30 frames into segment 2: two parts of 10 published, the third collecting
+        assertTrue(playlist, playlist.endsWith("URI=\"part-2.1.m4s\"\n#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part-2.2.m4s\"\n"));
+        assertTrue(segmenter.isAvailable(2, 1));
+        assertFalse(segmenter.isAvailable(2, 2));
+        assertTrue(segmenter.isAvailable(1, -1));
+        assertFalse(segmenter.isAvailable(2, -1));
+    }
+
+    @Test
+    public void partsAreContinuousCmafFragments() {
+        LlHlsSegmenter segmenter = new LlHlsSegmenter(parameterSets(), 640, 480, null);
+        // Delta frames before the first key frame cannot be decoded
+        send(segmenter, 0, false, 100);
+        for (int i = 1; i <= 61; i++) {
+            send(segmenter, i, i % 60 == 1, 300);
+        }
+        byte[] init = segmenter.getInitSegment();
+        assertEquals("ftyp", type(init, 0));
+        assertEquals("moov", type(init, ByteBuffer.wrap(init).getInt(0)));
+
+        long nextDecodeTime = 0;
+        int sequence = 0;
+        for (LlHlsSegmenter.Part part : segmenter.getSegment(0)) {
+            byte[] data = part.getData();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            assertEquals("moof", type(data, 0));
+            int moofSize = buffer.getInt(0);
+            assertEquals("mdat", type(data, moofSize));
+            assertEquals(data.length, moofSize + buffer.getInt(moofSize));
+            // moof: mfhd (16 bytes), then traf with tfhd (16), tfdt (20) and trun
+            int mfhd = 8;
+            assertEquals(++sequence, buffer.getInt(mfhd + 12));
+            int traf = mfhd + 16;
+            int tfdt = traf + 8 + 16;
+            assertEquals("tfdt", type(data, tfdt));
+            assertEquals(nextDecodeTime, buffer.getLong(tfdt + 12));
+            int trun = tfdt + 20;
+            int count = buffer.getInt(trun + 12);
+            assertEquals(moofSize + 8, buffer.getInt(trun + 16));
+            for (int s = 0; s < count; s++) {
+                nextDecodeTime += buffer.getInt(trun + 20 + s * 12);
+            }
+            // Start codes replaced by lengths, the key frame starts with its SPS
+            assertEquals(part.getIndex() == 0 ? SPS.length : 300, buffer.getInt(moofSize + 8));
+        }
+        assertEquals(60 * 3000, nextDecodeTime, 60);
+    }
+
+    @Test
+    public void keyFrameIsRequestedOnceSegmentReachesTarget() {
+        AtomicInteger requests = new AtomicInteger();
+        LlHlsSegmenter segmenter = new LlHlsSegmenter(parameterSets(), 640, 480, requests::incrementAndGet);
+        // The encoder's own key frames are ten seconds apart
+        for (int i = 0; i < 90; i++) {
+            send(segmenter, i, i == 0 || i == 65, 200);
+            if (i == 59) {
+                assertEquals(0, requests.get());
+            }
+        }
+        assertEquals(1, requests.get());
+        assertEquals(65 * FRAME_US, segmenter.getSegment(0).stream().mapToLong(LlHlsSegmenter.Part::getDurationUs).sum());
+    }
+
+    @Test
+    public void memoryStaysBoundedAndPartsAreCheapToBuild() {
+        LlHlsSegmenter segmenter = new LlHlsSegmenter(parameterSets(), 1920, 1080, null);
+        long startNs = System.nanoTime();
+        // Ten minutes at 30 fps and about 4 Mbit/s
+        int frames = 10 * 60 * 30;
+        for (int i = 0; i < frames; i++) {
+            boolean key = i % 60 == 0;
+            send(segmenter, i, key, key ? 120_000 : 15_000);
+        }
+        long elapsedMs = (System.nanoTime() - startNs) / 1_000_000;
+        System.out.println(segmenter + ", " + frames + " frames in " + elapsedMs + " ms");
+
+        // Six complete segments and the open one at most
+        long gopBytes = 120_000 + 59 * 15_000;
+        assertTrue(segmenter.getMaxRetainedBytes() < 7 * (gopBytes + 60 * 1024));
+        assertNull(segmenter.getPart(0, 0));
+        int open = segmenter.getOpenSequence();
+        assertNotNull(segmenter.getSegment(open - 6));
+        assertNull(segmenter.getSegment(open - 7));
+        assertTrue(segmenter.getPlaylist("").contains("#EXT-X-MEDIA-SEQUENCE:" + (open - 6) + "\n"));
+        assertTrue(segmenter.getPartBuildTime().getCount() > 0);
+        assertTrue(segmenter.getPartBuildTime().getPercentile(50) < 100_000);
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.screenstream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LlHlsServerTest {
+    private LlHlsSegmenter segmenter;
+    private LlHlsServer server;
+    private int frame;
+
+    private static final class Response {
+        final int status;
+        final byte[] body;
+        final String contentType;
+
+        Response(int status, byte[] body, String contentType) {
+            this.status = status;
+            this.body = body;
+            this.contentType = contentType;
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        segmenter = new LlHlsSegmenter(LlHlsSegmenterTest.parameterSets(), 1280, 720, null);
+        server = new LlHlsServer(0, segmenter);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private Response get(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        connection.setReadTimeout(10_000);
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+            in.close();
+        }
+        return new Response(status, body.toByteArray(), connection.getContentType());
+    }
+
+    // Thirty frames a second, a key frame every two seconds
+    private void sendFrames(int count) {
+        for (int i = 0; i < count; i++, frame++) {
+            LlHlsSegmenterTest.send(segmenter, frame, frame % 60 == 0, frame % 60 == 0 ? 40_000 : 5_000);
+        }
+    }
+
+    @Test
+    public void servesPlaylistInitSegmentsAndParts() throws IOException {
+        assertEquals(503, get(LlHlsServer.PLAYLIST_PATH).status);
+        assertEquals(404, get("/init.mp4").status);
+        sendFrames(150);
+
+        Response playlist = get(LlHlsServer.PLAYLIST_PATH);
+        assertEquals(200, playlist.status);
+        assertEquals("application/vnd.apple.mpegurl", playlist.contentType);
+        assertEquals(segmenter.getPlaylist(""), playlist.text());
+
+        Response init = get("/init.mp4");
+        assertArrayEquals(segmenter.getInitSegment(), init.body);
+        Response part = get("/part-1.3.m4s");
+        assertEquals("video/mp4", part.contentType);
+        assertArrayEquals(segmenter.getPart(1, 3).getData(), part.body);
+
+        // A segment is its parts back to back
+        Response segment = get("/segment-0.m4s");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (LlHlsSegmenter.Part p : segmenter.getSegment(0)) {
+            expected.write(p.getData(), 0, p.getData().length);
+        }
+        assertArrayEquals(expected.toByteArray(), segment.body);
+
+        assertEquals(404, get("/segment-2.m4s").status);
+        assertEquals(404, get("/part-9.x.m4s").status);
+        assertEquals(404, get("/index.html").status);
+        assertEquals(400, get(LlHlsServer.PLAYLIST_PATH + "?_HLS_msn=9").status);
+    }
+
+    @Test
+    public void blockingReloadWaitsForTheNextPart() throws Exception {
+        sendFrames(75);
+        int open = segmenter.getOpenSequence();
+        String hint = "part-" + open + ".1.m4s";
+        assertTrue(segmenter.getPlaylist("").contains("PRELOAD-HINT:TYPE=PART,URI=\"" + hint + "\""));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Response> reload = executor.submit(() -> get(LlHlsServer.PLAYLIST_PATH + "?_HLS_msn=" + open + "&_HLS_part=1"));
+            Future<Response> preload = executor.submit(() -> get("/" + hint));
+            Thread.sleep(200);
+            assertFalse(reload.isDone());
+            assertFalse(preload.isDone());
+
+            long publishedNs = System.nanoTime();
+            sendFrames(11);
+            Response playlist = reload.get(5, TimeUnit.SECONDS);
+            Response part = preload.get(5, TimeUnit.SECONDS);
+            long answeredMs = (System.nanoTime() - publishedNs) / 1_000_000;
+            assertEquals(200, playlist.status);
+            assertTrue(playlist.text(), playlist.text().contains("URI=\"" + hint + "\""));
+            assertEquals(200, part.status);
+            assertArrayEquals(segmenter.getPart(open, 1).getData(), part.body);
+            assertTrue("Answered after " + answeredMs + " ms", answeredMs < 1000);
+            assertEquals(2, server.getHeldRequestCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void heldRequestTimesOut() throws IOException {
+        sendFrames(5);
+        long startNs = System.nanoTime();
+        assertEquals(503, get("/part-0.0.m4s").status);
+        assertTrue((System.nanoTime() - startNs) / 1_000_000 >= LlHlsServer.HOLD_TIMEOUT_MS);
+    }
+
+    @Test
+    public void requestLatencyIsMeasured() throws IOException {
+        sendFrames(600);
+        int open = segmenter.getOpenSequence();
+        int requests = 300;
+        long[] latencyUs = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long startNs = System.nanoTime();
+            String path = i % 3 == 0 ? LlHlsServer.PLAYLIST_PATH
+                    : i % 3 == 1 ? "/part-" + (open - 1) + "." + i % 6 + ".m4s" : "/segment-" + (open - 2) + ".m4s";
+            assertEquals(path, 200, get(path).status);
+            latencyUs[i] = (System.nanoTime() - startNs) / 1000;
+        }
+        Arrays.sort(latencyUs);
+        System.out.println("client: p50=" + latencyUs[requests / 2] / 1000.0 + "ms p99="
+                + latencyUs[requests * 99 / 100] / 1000.0 + "ms, server " + server.getRequestTime()
+                + ", retained " + segmenter.getRetainedBytes() / 1024 + " KB");
+        assertEquals(requests, server.getRequestCount());
+        assertEquals(requests, server.getRequestTime().getCount());
+        assertTrue(latencyUs[requests / 2] < 100_000);
+    }
+}
@@ -0,0 +1,291 @@
+package com.example.screenstream;
+
+import com.example.mirror.media.FragmentedMp4Writer;
+import com.example.mirror.media.NalScanner;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class Mp4RecordingSinkTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUD = {0x09, (byte) 0xF0};
+    // SPS of a phone encoder at Main profile, level 3.1, with its emulation prevention bytes
+    private static final byte[] HEVC_SPS = bytes(0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00,
+            0x90, 0x00, 0x00, 0x03, 0x00, 0x00, 0x03, 0x00, 0x5D, 0xA0, 0x02, 0x80, 0x80, 0x2D, 0x16);
+    private static final byte[] HEVC_VPS = bytes(0x40, 0x01, 0x0C, 0x01);
+    private static final byte[] HEVC_PPS = bytes(0x44, 0x01, 0xC1, 0x72);
+    private static final long FRAME_US = 33_333;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** A box found in the file, with the offset of its payload. */
+    private static final class Box {
+        final String type;
+        final int offset;
+        final int size;
+
+        Box(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        int payload() {
+            return offset + 8;
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static List<Box> boxes(byte[] file, int from, int to) {
+        List<Box> boxes = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        int pos = from;
+        while (pos + 8 <= to) {
+            int size = buffer.getInt(pos);
+            assertTrue("Box at " + pos + " has size " + size, size >= 8 && pos + size <= to);
+            boxes.add(new Box(new String(file, pos + 4, 4, StandardCharsets.US_ASCII), pos, size));
+            pos += size;
+        }
+        assertEquals(to, pos);
+        return boxes;
+    }
+
+    private static Box child(byte[] file, Box box, String type) {
+        return find(file, box.payload(), box.offset + box.size, type);
+    }
+
+    private static Box find(byte[] file, int from, int to, String type) {
+        for (Box child : boxes(file, from, to)) {
+            if (child.type.equals(type)) {
+                return child;
+            }
+        }
+        throw new AssertionError("No " + type + " in " + from + ".." + to);
+    }
+
+    // The sample entry inside moov/trak/mdia/minf/stbl/stsd
+    private static Box sampleEntry(byte[] file) {
+        Box moov = find(file, 0, file.length, "moov");
+        Box stbl = child(file, child(file, child(file, child(file, moov, "trak"), "mdia"), "minf"), "stbl");
+        Box stsd = child(file, stbl, "stsd");
+        // Version, flags and entry count come first
+        return boxes(file, stsd.payload() + 8, stsd.offset + stsd.size).get(0);
+    }
+
+    // Child boxes of a visual sample entry follow its 78 bytes of fields
+    private static Box entryChild(byte[] file, Box entry, String type) {
+        return find(file, entry.payload() + 78, entry.offset + entry.size, type);
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] slice(int header, int size, int seed) {
+        byte[] slice = new byte[size];
+        slice[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            slice[i] = (byte) ((i + seed) % 200 + 3);
+        }
+        return slice;
+    }
+
+    // An access unit as the encoder outputs it, key frames repeat the parameter sets
+    private static ByteBuffer frame(int index, boolean key) {
+        return ByteBuffer.wrap(key
+                ? annexB(AUD, SPS, PPS, slice(0x65, 400, index))
+                : annexB(AUD, slice(0x41, 100, index)));
+    }
+
+    private static void send(EncodedFrameSink sink, int index, boolean key) {
+        ByteBuffer frame = frame(index, key);
+        NalScanner nals = new NalScanner();
+        nals.scan(frame);
+        sink.onFrame(frame, nals, index * FRAME_US, key);
+    }
+
+    private FragmentedMp4Writer openWriter(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, 1);
+        writer.setPreallocation(FragmentedMp4Writer.EXTEND, 0);
+        return writer;
+    }
+
+    private static H264ParameterSets h264ParameterSets() {
+        H264ParameterSets parameterSets = new H264ParameterSets();
+        parameterSets.update(ByteBuffer.wrap(annexB(SPS)), ByteBuffer.wrap(annexB(PPS)));
+        return parameterSets;
+    }
+
+    @Test
+    public void keepsParameterSetsInBandAndDropsDelimiters() throws IOException {
+        File file = folder.newFile("recording.mp4");
+        H264ParameterSets parameterSets = new H264ParameterSets();
+        Mp4RecordingSink sink = new Mp4RecordingSink(openWriter(file), parameterSets, 1080, 2340);
+        // Nothing can be described before the encoder reports its parameter sets
+        send(sink, 0, true);
+        parameterSets.update(ByteBuffer.wrap(annexB(SPS)), ByteBuffer.wrap(annexB(PPS)));
+        for (int i = 1; i <= 20; i++) {
+            send(sink, i, i % 10 == 1);
+        }
+        sink.close();
+        assertEquals(20, sink.getFramesWritten());
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        List<Box> top = boxes(bytes, 0, bytes.length);
+        assertEquals(6, top.size());
+        Box entry = sampleEntry(bytes);
+        assertEquals("avc3", entry.type);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        assertEquals(1080, buffer.getShort(entry.payload() + 24));
+        assertEquals(2340, buffer.getShort(entry.payload() + 26));
+        Box avcC = entryChild(bytes, entry, "avcC");
+        assertEquals(0x42, bytes[avcC.payload() + 1]);
+        assertEquals(0x1F, bytes[avcC.payload() + 3]);
+
+        // The key frame starts with its SPS and PPS as 4-byte length prefixed NAL units, no delimiter
+        Box mdat = top.get(3);
+        assertEquals("mdat", mdat.type);
+        int at = mdat.payload();
+        assertEquals(SPS.length, buffer.getInt(at));
+        assertEquals(0x67, bytes[at + 4]);
+        at += 4 + SPS.length;
+        assertEquals(PPS.length, buffer.getInt(at));
+        at += 4 + PPS.length;
+        assertEquals(400, buffer.getInt(at));
+        assertEquals(0x65, bytes[at + 4]);
+        at += 4 + 400;
+        assertEquals(100, buffer.getInt(at));
+        assertEquals(0x41, bytes[at + 4]);
+    }
+
+    @Test
+    public void hevcTrackIsDescribedFromItsSps() throws IOException {
+        File file = folder.newFile("recording.mp4");
+        HevcParameterSets parameterSets = new HevcParameterSets();
+        parameterSets.update(ByteBuffer.wrap(annexB(HEVC_VPS, HEVC_SPS, HEVC_PPS)), null);
+        Mp4RecordingSink sink = new Mp4RecordingSink(openWriter(file), parameterSets, 720, 1560);
+        for (int i = 0; i < 10; i++) {
+            boolean key = i % 5 == 0;
+            // IDR_W_RADL or TRAIL_R behind an access unit delimiter
+            ByteBuffer frame = ByteBuffer.wrap(key
+                    ? annexB(bytes(35 << 1, 1, 0x10), HEVC_VPS, HEVC_SPS, HEVC_PPS, slice(19 << 1, 300, i))
+                    : annexB(bytes(35 << 1, 1, 0x50), slice(1 << 1, 80, i)));
+            sink.onFrame(frame, null, i * FRAME_US, key);
+        }
+        sink.close();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Box entry = sampleEntry(bytes);
+        assertEquals("hev1", entry.type);
+        Box hvcC = entryChild(bytes, entry, "hvcC");
+        // Main profile and level 3.1 copied from the SPS without its emulation prevention bytes
+        assertEquals(0x01, bytes[hvcC.payload() + 1]);
+        assertEquals(0x5D, bytes[hvcC.payload() + 12]);
+        assertEquals(3, bytes[hvcC.payload() + 22]);
+
+        Box mdat = find(bytes, 0, bytes.length, "mdat");
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        assertEquals(HEVC_VPS.length, buffer.getInt(mdat.payload()));
+        assertEquals(HEVC_VPS[0], bytes[mdat.payload() + 4]);
+    }
+
+    @Test
+    public void slowDiskNeverHoldsUpViewers() throws Exception {
+        File file = folder.newFile("recording.mp4");
+        BufferPool pool = new BufferPool(64, 64 * 1024, 64);
+        FrameFanOut fanOut = new FrameFanOut(pool);
+        Mp4RecordingSink recording = new Mp4RecordingSink(openWriter(file), h264ParameterSets(), 640, 480);
+        CountDownLatch disk = new CountDownLatch(1);
+        AtomicInteger recorded = new AtomicInteger();
+        FramePump recorder = new FramePump(new FrameRing(8, null, FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR),
+                (frame, nals, presentationTimeUs, keyFrame) -> {
+                    try {
+                        disk.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    recording.onFrame(frame, nals, presentationTimeUs, keyFrame);
+                    recorded.incrementAndGet();
+                }, null, "Recorder");
+        AtomicInteger viewed = new AtomicInteger();
+        FramePump viewer = new FramePump(new FrameRing(8, null, FrameRing.OverflowPolicy.DROP_TO_NEXT_IDR),
+                (frame, nals, presentationTimeUs, keyFrame) -> viewed.incrementAndGet(), null, "Viewer");
+        fanOut.add(recorder);
+        fanOut.add(viewer);
+
+        for (int i = 0; i < 40; i++) {
+            send(fanOut, i, i % 10 == 0);
+            // Slower than the viewer drains, far faster than the stalled disk
+            for (int wait = 0; wait < 100 && viewed.get() <= i; wait++) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(40, viewed.get());
+        assertEquals(0, recorded.get());
+        assertTrue(recorder.getRing().getDroppedCount() > 0);
+
+        disk.countDown();
+        // Every frame written or dropped, so stopping the pump cannot interrupt a write in progress
+        FrameRing ring = recorder.getRing();
+        for (int wait = 0; wait < 500 && recorded.get() + ring.getDroppedCount() < ring.getOfferedCount(); wait++) {
+            Thread.sleep(10);
+        }
+        assertEquals(ring.getOfferedCount(), recorded.get() + ring.getDroppedCount());
+        fanOut.remove(recorder);
+        fanOut.remove(viewer);
+        recorder.stop();
+        viewer.stop();
+        recording.close();
+
+        // The recording skipped ahead but every fragment it kept still starts with a key frame
+        assertFalse(recording.hasFailed());
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int fragments = 0;
+        for (Box box : boxes(bytes, 0, bytes.length)) {
+            if (box.type.equals("moof")) {
+                Box trun = child(bytes, child(bytes, box, "traf"), "trun");
+                assertEquals(0x02000000, buffer.getInt(trun.payload() + 12 + 8));
+                fragments++;
+            }
+        }
+        assertTrue(fragments > 0);
+        assertEquals(recorded.get(), (int) recording.getFramesWritten());
+    }
+}
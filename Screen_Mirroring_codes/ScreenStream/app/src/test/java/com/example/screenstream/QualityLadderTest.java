@@ -0,0 +1,125 @@
+package com.example.screenstream;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QualityLadderTest {
+    private static final int FLOOR = 1_000_000;
+    private static final int CEILING = 8_000_000;
+    private static final long TICK_MS = 500;
+
+    private final QualityLadder ladder = new QualityLadder(QualityLadder.DEFAULT_LEVELS, FLOOR, CEILING);
+    private long now;
+
+    // Holds the inputs for durationMs from the first to the last update
+    private void run(long durationMs, int bitrate, float cpuLoad) {
+        long end = now + TICK_MS + durationMs;
+        while (now < end) {
+            now += TICK_MS;
+            ladder.update(now, bitrate, cpuLoad);
+        }
+    }
+
+    @Test
+    public void levelsScaleToMacroblocks() {
+        QualityLadder.Level full = QualityLadder.DEFAULT_LEVELS[0];
+        assertEquals(1080, full.scale(1080));
+        assertEquals(2340, full.scale(2340));
+
+        QualityLadder.Level threeQuarters = QualityLadder.DEFAULT_LEVELS[1];
+        assertEquals(816, threeQuarters.scale(1080));
+        assertEquals(1760, threeQuarters.scale(2340));
+        assertEquals(20, threeQuarters.getFrameRate());
+
+        QualityLadder.Level half = QualityLadder.DEFAULT_LEVELS[2];
+        assertEquals(544, half.scale(1080));
+        assertEquals(1168, half.scale(2340));
+        assertEquals(16, half.scale(8));
+        assertEquals("50%@15fps", half.toString());
+    }
+
+    @Test
+    public void briefCongestionDoesNotChangeLevel() {
+        run(QualityLadder.STEP_DOWN_AFTER_MS - TICK_MS, FLOOR, 0.2f);
+        run(TICK_MS, 3_000_000, 0.2f);
+        run(QualityLadder.STEP_DOWN_AFTER_MS - TICK_MS, FLOOR, 0.2f);
+        assertEquals(0, ladder.getLevelIndex());
+    }
+
+    @Test
+    public void sustainedCongestionStepsDownOneLevelAtATime() {
+        List<QualityLadder.Level> changes = new ArrayList<>();
+        ladder.setListener(changes::add);
+        run(QualityLadder.STEP_DOWN_AFTER_MS, FLOOR, 0.2f);
+        assertEquals(1, ladder.getLevelIndex());
+        assertEquals(1, changes.size());
+        assertSame(QualityLadder.DEFAULT_LEVELS[1], changes.get(0));
+
+        // The pressure timer restarts at the new level
+        run(QualityLadder.STEP_DOWN_AFTER_MS - TICK_MS, FLOOR, 0.2f);
+        assertEquals(1, ladder.getLevelIndex());
+        run(TICK_MS, FLOOR, 0.2f);
+        assertEquals(2, ladder.getLevelIndex());
+
+        // Nothing below the last level
+        run(60_000, FLOOR, 0.2f);
+        assertEquals(2, ladder.getLevelIndex());
+        assertEquals(2, ladder.getStepDownCount());
+    }
+
+    @Test
+    public void cpuLoadStepsDownWithoutCongestion() {
+        run(QualityLadder.STEP_DOWN_AFTER_MS, CEILING, 0.95f);
+        assertEquals(1, ladder.getLevelIndex());
+    }
+
+    @Test
+    public void headroomStepsBackUp() {
+        run(QualityLadder.STEP_DOWN_AFTER_MS, FLOOR, 0.2f);
+        assertEquals(1, ladder.getLevelIndex());
+
+        // At the ceiling but busy is no reason to go up
+        run(QualityLadder.STEP_UP_AFTER_MS * 2, CEILING, 0.7f);
+        assertEquals(1, ladder.getLevelIndex());
+
+        run(QualityLadder.STEP_UP_AFTER_MS, CEILING, 0.2f);
+        assertEquals(0, ladder.getLevelIndex());
+        assertEquals(1, ladder.getStepUpCount());
+    }
+
+    @Test
+    public void failedProbesBackOffExponentially() {
+        run(QualityLadder.STEP_DOWN_AFTER_MS, FLOOR, 0.2f);
+        assertEquals(QualityLadder.STEP_UP_AFTER_MS, ladder.getStepUpDelay());
+
+        // The link only carries the lower level: every probe up runs into congestion
+        for (int probe = 1; probe <= 3; probe++) {
+            long delay = ladder.getStepUpDelay();
+            run(delay - TICK_MS, CEILING, 0.2f);
+            assertEquals(1, ladder.getLevelIndex());
+            run(TICK_MS, CEILING, 0.2f);
+            assertEquals(0, ladder.getLevelIndex());
+            run(QualityLadder.STEP_DOWN_AFTER_MS, FLOOR, 0.2f);
+            assertEquals(1, ladder.getLevelIndex());
+            assertEquals(delay * 2, ladder.getStepUpDelay());
+        }
+    }
+
+    @Test
+    public void probeDelayIsCapped() {
+        for (int i = 0; i < 20; i++) {
+            run(QualityLadder.STEP_DOWN_AFTER_MS, FLOOR, 0.2f);
+            run(ladder.getStepUpDelay(), CEILING, 0.2f);
+        }
+        assertEquals(QualityLadder.MAX_STEP_UP_DELAY_MS, ladder.getStepUpDelay());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyLadder() {
+        new QualityLadder(new QualityLadder.Level[0], FLOOR, CEILING);
+    }
+}
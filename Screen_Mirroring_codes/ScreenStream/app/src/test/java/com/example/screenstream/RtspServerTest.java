@@ -0,0 +1,513 @@
+package com.example.screenstream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the server over loopback the same way an RTSP player would.
+ */
+public class RtspServerTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    private RtspServer server;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private int cseq;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new RtspServer(0);
+        server.setParameterSets(withStartCode(SPS), withStartCode(PPS));
+        server.start();
+        socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(5000);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        server.stop();
+    }
+
+    private static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer buffer = ByteBuffer.allocate(nal.length + 4);
+        buffer.putInt(1).put(nal).flip();
+        return buffer;
+    }
+
+    private Map<String, String> request(String method, String url, String extraHeaders) throws IOException {
+        String request = method + " " + url + " RTSP/1.0\r\nCSeq: " + (++cseq) + "\r\n" + extraHeaders + "\r\n";
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        Map<String, String> response = new HashMap<>();
+        response.put("status", readLine());
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            response.put(line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim());
+        }
+        if (response.containsKey("content-length")) {
+            byte[] body = new byte[Integer.parseInt(response.get("content-length"))];
+            in.readFully(body);
+            response.put("body", new String(body, StandardCharsets.ISO_8859_1));
+        }
+        assertEquals(String.valueOf(cseq), response.get("cseq"));
+        return response;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertTrue("Connection closed", b >= 0);
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private void awaitPlaying() throws InterruptedException {
+        for (int i = 0; i < 100 && server.getPlayingSessionCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getPlayingSessionCount());
+    }
+
+    // The first frame after PLAY is followed by a sender report on the RTCP channel
+    private byte[] readSenderReport() throws IOException {
+        assertEquals('$', in.readUnsignedByte());
+        assertEquals(1, in.readUnsignedByte());
+        byte[] report = new byte[in.readUnsignedShort()];
+        in.readFully(report);
+        assertEquals(Rtcp.SENDER_REPORT_SIZE, report.length);
+        return report;
+    }
+
+    private void skipRtp() throws IOException {
+        boolean marker = false;
+        while (!marker) {
+            assertEquals('$', in.readUnsignedByte());
+            assertEquals(0, in.readUnsignedByte());
+            byte[] packet = new byte[in.readUnsignedShort()];
+            in.readFully(packet);
+            marker = (packet[1] & 0x80) != 0;
+        }
+    }
+
+    private static byte[] frame(int nalHeader, int size) {
+        byte[] frame = new byte[size + 4];
+        frame[3] = 1;
+        frame[4] = (byte) nalHeader;
+        for (int i = 5; i < frame.length; i++) {
+            frame[i] = (byte) (i % 200 + 3);
+        }
+        return frame;
+    }
+
+    @Test
+    public void describeReturnsSdpWithParameterSets() throws IOException {
+        String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+        assertTrue(request("OPTIONS", url, "").get("public").contains("DESCRIBE"));
+
+        Map<String, String> describe = request("DESCRIBE", url, "Accept: application/sdp\r\n");
+        assertEquals("RTSP/1.0 200 OK", describe.get("status"));
+        assertEquals("application/sdp", describe.get("content-type"));
+        String sdp = describe.get("body");
+        assertTrue(sdp, sdp.contains("a=rtpmap:96 H264/90000"));
+        assertTrue(sdp, sdp.contains("profile-level-id=42c01f"));
+        assertTrue(sdp, sdp.contains("sprop-parameter-sets=Z0LAHxEi,aM48gA=="));
+    }
+
+    @Test
+    public void badContentLengthClosesOnlyThatClient() throws IOException {
+        String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+        assertEquals("RTSP/1.0 400 Bad Request", request("OPTIONS", url, "Content-Length: abc\r\n").get("status"));
+        assertEquals(-1, in.read());
+
+        try (Socket other = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            other.setSoTimeout(5000);
+            other.getOutputStream().write(("OPTIONS " + url + " RTSP/1.0\r\nCSeq: 1\r\nContent-Length: -5\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            assertEquals("RTSP/1.0 400 Bad Request", readLine(new DataInputStream(other.getInputStream())));
+        }
+        try (Socket other = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            other.setSoTimeout(5000);
+            other.getOutputStream().write(("OPTIONS " + url + " RTSP/1.0\r\nCSeq: 1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            assertEquals("RTSP/1.0 200 OK", readLine(new DataInputStream(other.getInputStream())));
+        }
+    }
+
+    @Test
+    public void playBeforeSetupIsRefused() throws IOException {
+        String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+        assertEquals("RTSP/1.0 455 Method Not Valid in This State", request("PLAY", url, "").get("status"));
+        assertEquals(0, server.getPlayingSessionCount());
+        assertEquals("RTSP/1.0 200 OK", request("OPTIONS", url, "").get("status"));
+    }
+
+    @Test
+    public void hevcStreamIsDescribedAsH265AndRefusedToH264Players() throws IOException {
+        HevcParameterSets parameterSets = new HevcParameterSets();
+        byte[] vps = {0x40, 0x01, 0x0C, 0x01};
+        byte[] sps = {0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00, 0x00, 0x03,
+                0x00, 0x00, 0x03, 0x00, 0x5D, (byte) 0xA0};
+        byte[] pps = {0x44, 0x01, (byte) 0xC1, 0x72};
+        ByteBuffer csd0 = ByteBuffer.allocate(vps.length + sps.length + pps.length + 12);
+        csd0.putInt(1).put(vps).putInt(1).put(sps).putInt(1).put(pps).flip();
+        assertTrue(parameterSets.update(csd0, null));
+        server.setParameterSets(parameterSets);
+        List<VideoCodec> mismatches = new ArrayList<>();
+        server.setCodecMismatchListener((requested, streamed) -> mismatches.add(requested));
+
+        String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+        String sdp = request("DESCRIBE", url + "?codec=h265", "").get("body");
+        assertTrue(sdp, sdp.contains("a=rtpmap:96 H265/90000"));
+        assertTrue(sdp, sdp.contains("profile-id=1;tier-flag=0;level-id=93;sprop-vps=QAEMAQ=="));
+        assertTrue(mismatches.isEmpty());
+
+        assertEquals("RTSP/1.0 415 Unsupported Media Type", request("DESCRIBE", url + "?codec=h264", "").get("status"));
+        assertEquals(Collections.singletonList(VideoCodec.H264), mismatches);
+    }
+
+    @Test
+    public void interleavedPlayDeliversFragmentedFrame() throws Exception {
+        String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+        request("DESCRIBE", url, "");
+        Map<String, String> setup = request("SETUP", url + "/trackID=0",
+                "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n");
+        assertTrue(setup.get("transport").contains("interleaved=0-1"));
+        String session = setup.get("session").split(";")[0];
+        assertEquals("RTSP/1.0 200 OK", request("PLAY", url, "Session: " + session + "\r\n").get("status"));
+        awaitPlaying();
+
+        // Frames before the first keyframe are not sent to a new viewer
+        server.sendFrame(ByteBuffer.wrap(frame(0x41, 500)), 0, false);
+        byte[] idr = frame(0x65, 5000);
+        server.sendFrame(ByteBuffer.wrap(idr), 1_000_000, true);
+
+        ByteArrayOutputStream nal = new ByteArrayOutputStream();
+        boolean marker = false;
+        while (!marker) {
+            assertEquals('$', in.readUnsignedByte());
+            assertEquals(0, in.readUnsignedByte());
+            byte[] packet = new byte[in.readUnsignedShort()];
+            in.readFully(packet);
+            assertEquals(90000, ByteBuffer.wrap(packet, 4, 4).getInt());
+            assertEquals(28, packet[12] & 0x1F);
+            if ((packet[13] & 0x80) != 0) {
+                nal.write((packet[12] & 0xE0) | (packet[13] & 0x1F));
+            }
+            nal.write(packet, 14, packet.length - 14);
+            marker = (packet[1] & 0x80) != 0;
+        }
+        byte[] expected = new byte[idr.length - 4];
+        System.arraycopy(idr, 4, expected, 0, expected.length);
+        assertArrayEquals(expected, nal.toByteArray());
+        assertEquals(Rtcp.PT_SENDER_REPORT, readSenderReport()[1] & 0xFF);
+
+        assertEquals("RTSP/1.0 200 OK", request("TEARDOWN", url, "Session: " + session + "\r\n").get("status"));
+    }
+
+    @Test
+    public void udpPlayDeliversSingleNalPacket() throws Exception {
+        try (DatagramSocket rtp = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            rtp.setSoTimeout(5000);
+            String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+            Map<String, String> setup = request("SETUP", url + "/trackID=0",
+                    "Transport: RTP/AVP;unicast;client_port=" + rtp.getLocalPort() + "-" + (rtp.getLocalPort() + 1) + "\r\n");
+            assertTrue(setup.get("transport").contains("server_port="));
+            String session = setup.get("session").split(";")[0];
+            request("PLAY", url, "Session: " + session + "\r\n");
+            awaitPlaying();
+
+            server.sendFrame(ByteBuffer.wrap(frame(0x65, 100)), 0, true);
+            DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+            rtp.receive(packet);
+            assertEquals(12 + 100, packet.getLength());
+            assertEquals(0x65, packet.getData()[12] & 0xFF);
+            assertEquals(0x80, packet.getData()[1] & 0x80);
+        }
+    }
+
+    @Test
+    public void interleavedReceiverReportReachesListener() throws Exception {
+        BlockingQueue<float[]> reports = new ArrayBlockingQueue<>(4);
+        server.setReceiverReportListener((sessionId, lossFraction, rttMs) -> reports.add(new float[]{lossFraction, rttMs}));
+        String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+        Map<String, String> setup = request("SETUP", url + "/trackID=0",
+                "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n");
+        String session = setup.get("session").split(";")[0];
+        request("PLAY", url, "Session: " + session + "\r\n");
+        awaitPlaying();
+
+        server.sendFrame(ByteBuffer.wrap(frame(0x65, 100)), 0, true);
+        skipRtp();
+        ByteBuffer senderReport = ByteBuffer.wrap(readSenderReport());
+        int ssrc = senderReport.getInt(4);
+        long ntp = senderReport.getLong(8);
+
+        // One report block with a quarter of the packets lost, echoing the sender report time
+        ByteBuffer receiverReport = ByteBuffer.allocate(36);
+        receiverReport.put((byte) '$').put((byte) 1).putShort((short) 32)
+                .put((byte) 0x81).put((byte) Rtcp.PT_RECEIVER_REPORT).putShort((short) 7)
+                .putInt(0x1234)
+                .putInt(ssrc)
+                .putInt((64 << 24) | 10)
+                .putInt(1000)
+                .putInt(0)
+                .putInt((int) (ntp >>> 16))
+                .putInt(0);
+        out.write(receiverReport.array());
+        out.flush();
+
+        float[] report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(0.25f, report[0], 0.0001f);
+        assertTrue("rtt " + report[1], report[1] >= 0 && report[1] < 5000);
+        // Requests still parse after the binary packet
+        assertEquals("RTSP/1.0 200 OK", request("GET_PARAMETER", url, "Session: " + session + "\r\n").get("status"));
+    }
+
+    @Test
+    public void lateJoinerStartsFromGopCache() throws Exception {
+        AtomicInteger keyFrameRequests = new AtomicInteger();
+        server.setKeyFrameRequestListener(keyFrameRequests::incrementAndGet);
+        // The encoder has been running before anyone plays
+        server.sendFrame(ByteBuffer.wrap(frame(0x41, 100)), 0, false);
+        server.sendFrame(ByteBuffer.wrap(frame(0x65, 100)), 1_000_000, true);
+        server.sendFrame(ByteBuffer.wrap(frame(0x41, 100)), 1_100_000, false);
+        server.sendFrame(ByteBuffer.wrap(frame(0x41, 100)), 1_200_000, false);
+
+        String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+        Map<String, String> setup = request("SETUP", url + "/trackID=0",
+                "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n");
+        String session = setup.get("session").split(";")[0];
+        Map<String, String> play = request("PLAY", url, "Session: " + session + "\r\n");
+        // The stream starts at the cached key frame
+        assertTrue(play.get("rtp-info"), play.get("rtp-info").endsWith(";rtptime=90000"));
+        awaitPlaying();
+
+        int[] expectedTypes = {0x65, 0x41, 0x41};
+        int[] expectedTimestamps = {90_000, 99_000, 108_000};
+        for (int i = 0; i < expectedTypes.length; ) {
+            assertEquals('$', in.readUnsignedByte());
+            int channel = in.readUnsignedByte();
+            byte[] packet = new byte[in.readUnsignedShort()];
+            in.readFully(packet);
+            if (channel != 0) {
+                continue;
+            }
+            assertEquals(expectedTypes[i], packet[12] & 0xFF);
+            assertEquals(expectedTimestamps[i], ByteBuffer.wrap(packet, 4, 4).getInt());
+            i++;
+        }
+        assertEquals(0, keyFrameRequests.get());
+        assertEquals(1, server.getCachedJoinCount());
+        assertEquals(0, server.getKeyFrameRequestCount());
+        assertTrue(server.getViewerStats().get(0).getJoinLatencyUs() >= 0);
+        assertEquals(1, server.getJoinTime().getCount());
+    }
+
+    @Test
+    public void joinerWithoutCacheRequestsKeyFrame() throws Exception {
+        AtomicInteger keyFrameRequests = new AtomicInteger();
+        server.setKeyFrameRequestListener(keyFrameRequests::incrementAndGet);
+        // Only delta frames since the cache was last reset
+        server.sendFrame(ByteBuffer.wrap(frame(0x41, 100)), 0, false);
+
+        String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+        Map<String, String> setup = request("SETUP", url + "/trackID=0",
+                "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n");
+        request("PLAY", url, "Session: " + setup.get("session").split(";")[0] + "\r\n");
+        awaitPlaying();
+        assertEquals(1, keyFrameRequests.get());
+        assertEquals(0, server.getCachedJoinCount());
+    }
+
+    @Test
+    public void startupReportMarksTransportAndFirstFrame() throws Exception {
+        StartupReport report = new StartupReport();
+        RtspServer second = new RtspServer(0);
+        second.setStartupReport(report);
+        second.setParameterSets(withStartCode(SPS), withStartCode(PPS));
+        // Frames from the encoder may arrive before the socket is up and wait in the cache
+        second.sendFrame(ByteBuffer.wrap(frame(0x65, 100)), 0, true);
+        assertFalse(report.isMarked(StartupReport.Phase.TRANSPORT_READY));
+        second.start();
+        try (Socket viewer = new Socket(InetAddress.getLoopbackAddress(), second.getPort())) {
+            viewer.setSoTimeout(5000);
+            assertTrue(report.isMarked(StartupReport.Phase.TRANSPORT_READY));
+            socket.close();
+            socket = viewer;
+            in = new DataInputStream(viewer.getInputStream());
+            out = viewer.getOutputStream();
+            String url = "rtsp://127.0.0.1:" + second.getPort() + "/stream";
+            Map<String, String> setup = request("SETUP", url + "/trackID=0",
+                    "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n");
+            request("PLAY", url, "Session: " + setup.get("session").split(";")[0] + "\r\n");
+            skipRtp();
+            for (int i = 0; i < 100 && !report.isMarked(StartupReport.Phase.FIRST_FRAME_SENT); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(report.getElapsedMs(StartupReport.Phase.TRANSPORT_READY, StartupReport.Phase.FIRST_FRAME_SENT) >= 0);
+        } finally {
+            second.stop();
+        }
+    }
+
+    // Plays the stream interleaved on a connection of its own
+    private void playOn(Socket viewer, int index) throws IOException {
+        String url = "rtsp://127.0.0.1:" + server.getPort() + "/stream";
+        DataInputStream viewerIn = new DataInputStream(viewer.getInputStream());
+        OutputStream viewerOut = viewer.getOutputStream();
+        viewerOut.write(("SETUP " + url + "/trackID=0 RTSP/1.0\r\nCSeq: 1\r\n"
+                + "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        String session = null;
+        String line;
+        while (!(line = readLine(viewerIn)).isEmpty()) {
+            if (line.startsWith("Session:")) {
+                session = line.substring(8).trim().split(";")[0];
+            }
+        }
+        assertNotNull("viewer " + index, session);
+        viewerOut.write(("PLAY " + url + " RTSP/1.0\r\nCSeq: 2\r\nSession: " + session + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals("RTSP/1.0 200 OK", readLine(viewerIn));
+        while (!readLine(viewerIn).isEmpty()) {
+            // Headers
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertTrue("Connection closed", b >= 0);
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    @Test
+    public void slowViewerOnlyDropsItsOwnFrames() throws Exception {
+        final int fastViewers = 7;
+        final int frames = 100;
+        List<Socket> viewers = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        AtomicInteger complete = new AtomicInteger();
+        try {
+            // Never reads after PLAY, with as little kernel buffering as possible
+            Socket stalled = new Socket();
+            stalled.setReceiveBufferSize(4096);
+            stalled.connect(new java.net.InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            stalled.setSoTimeout(5000);
+            viewers.add(stalled);
+            playOn(stalled, 0);
+
+            for (int i = 1; i <= fastViewers; i++) {
+                Socket viewer = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                viewer.setSoTimeout(10_000);
+                viewers.add(viewer);
+                playOn(viewer, i);
+                DataInputStream viewerIn = new DataInputStream(viewer.getInputStream());
+                Thread reader = new Thread(() -> {
+                    try {
+                        int received = 0;
+                        int expectedSeq = -1;
+                        while (received < frames) {
+                            assertEquals('$', viewerIn.readUnsignedByte());
+                            int channel = viewerIn.readUnsignedByte();
+                            byte[] packet = new byte[viewerIn.readUnsignedShort()];
+                            viewerIn.readFully(packet);
+                            if (channel != 0) {
+                                continue;
+                            }
+                            // Every viewer gets its own gapless sequence
+                            int seq = ByteBuffer.wrap(packet, 2, 2).getShort() & 0xFFFF;
+                            assertTrue(expectedSeq < 0 || seq == expectedSeq);
+                            expectedSeq = (seq + 1) & 0xFFFF;
+                            if ((packet[1] & 0x80) != 0) {
+                                received++;
+                            }
+                        }
+                        complete.incrementAndGet();
+                    } catch (IOException e) {
+                        // Counted as incomplete
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+            for (int i = 0; i < 200 && server.getPlayingSessionCount() < fastViewers + 1; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(fastViewers + 1, server.getPlayingSessionCount());
+
+            long sendNs = 0;
+            for (int i = 0; i < frames; i++) {
+                boolean key = i % 10 == 0;
+                long startNs = System.nanoTime();
+                server.sendFrame(ByteBuffer.wrap(frame(key ? 0x65 : 0x41, 100 * 1024)), i * 33_333L, key);
+                sendNs += System.nanoTime() - startNs;
+                Thread.sleep(10);
+            }
+            for (Thread reader : readers) {
+                reader.join(20_000);
+            }
+            assertEquals(fastViewers, complete.get());
+            // The producer copies each frame once and never waits for a viewer
+            assertTrue("send " + sendNs / 1_000_000 + " ms", sendNs < TimeUnit.SECONDS.toNanos(2));
+
+            List<RtspServer.ViewerStats> stats = server.getViewerStats();
+            assertEquals(fastViewers + 1, stats.size());
+            int slow = 0;
+            for (RtspServer.ViewerStats viewer : stats) {
+                if (viewer.getFramesDropped() > 0) {
+                    slow++;
+                    assertTrue(viewer.getFramesSent() < frames);
+                } else {
+                    assertEquals(frames, viewer.getFramesSent());
+                    assertTrue(viewer.getBytesSent() > frames * 100L * 1024);
+                }
+            }
+            assertEquals(1, slow);
+            assertTrue(server.getDroppedFrameCount() > 0);
+        } finally {
+            for (Socket viewer : viewers) {
+                viewer.close();
+            }
+        }
+    }
+}
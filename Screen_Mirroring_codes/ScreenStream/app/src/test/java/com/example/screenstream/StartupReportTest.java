@@ -0,0 +1,61 @@
+package com.example.screenstream;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StartupReportTest {
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void firstMarkOfEachPhaseWins() {
+        StartupReport report = new StartupReport();
+        assertFalse(report.isMarked(StartupReport.Phase.FIRST_OUTPUT));
+        assertEquals(-1, report.getTimeNs(StartupReport.Phase.FIRST_OUTPUT));
+
+        report.mark(StartupReport.Phase.FIRST_OUTPUT, 100 * MS);
+        report.mark(StartupReport.Phase.FIRST_OUTPUT, 200 * MS);
+        assertTrue(report.isMarked(StartupReport.Phase.FIRST_OUTPUT));
+        assertEquals(100 * MS, report.getTimeNs(StartupReport.Phase.FIRST_OUTPUT));
+    }
+
+    @Test
+    public void elapsedBetweenPhases() {
+        StartupReport report = new StartupReport();
+        report.mark(StartupReport.Phase.TAP, 1000 * MS);
+        report.mark(StartupReport.Phase.CODEC_STARTED, 1450 * MS);
+        assertEquals(450, report.getElapsedMs(StartupReport.Phase.TAP, StartupReport.Phase.CODEC_STARTED));
+        assertEquals(-1, report.getElapsedMs(StartupReport.Phase.TAP, StartupReport.Phase.FIRST_FRAME_SENT));
+    }
+
+    @Test
+    public void listsPhasesInTheOrderTheyHappened() {
+        StartupReport report = new StartupReport();
+        report.mark(StartupReport.Phase.SERVICE_STARTED, 10 * MS);
+        // The transport comes up in parallel with the codec, here before it is configured
+        report.mark(StartupReport.Phase.TRANSPORT_READY, 12 * MS);
+        report.mark(StartupReport.Phase.CODEC_CREATED, 11 * MS);
+        report.mark(StartupReport.Phase.CODEC_CONFIGURED, 15 * MS);
+        assertEquals("Startup service_started=+0.0ms codec_created=+1.0ms transport_ready=+2.0ms"
+                        + " codec_configured=+5.0ms tap=- projection_granted=- codec_started=- stream_header=-"
+                        + " first_output=- first_frame_sent=-",
+                report.toString());
+    }
+
+    @Test
+    public void listenerRunsOnceWhenFirstFrameIsSent() {
+        StartupReport report = new StartupReport();
+        AtomicInteger calls = new AtomicInteger();
+        report.setListener(completed -> {
+            assertSame(report, completed);
+            calls.incrementAndGet();
+        });
+        report.mark(StartupReport.Phase.FIRST_OUTPUT);
+        assertEquals(0, calls.get());
+        report.mark(StartupReport.Phase.FIRST_FRAME_SENT);
+        report.mark(StartupReport.Phase.FIRST_FRAME_SENT);
+        assertEquals(1, calls.get());
+    }
+}
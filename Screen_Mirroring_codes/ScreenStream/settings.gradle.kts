@@ -24,3 +24,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "ScreenStream"
 include(":app")
+include(":mirror-common")
+project(":mirror-common").projectDir = file("../mirror-common")
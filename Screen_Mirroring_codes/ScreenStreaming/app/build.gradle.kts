@@ -32,6 +32,7 @@ android {
 }
 
 dependencies {
+    implementation(project(":mirror-common"))
 
     implementation(libs.appcompat)
     implementation(libs.material)
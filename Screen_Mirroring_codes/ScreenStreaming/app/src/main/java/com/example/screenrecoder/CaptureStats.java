@@ -0,0 +1,71 @@
+package com.example.screenrecoder;
+
+import java.util.Locale;
+
+/**
+ * Counters for the capture stage: frames processed, allocations made while
+ * processing them and the time from acquiring an image to the end of JPEG
+ * compression. Once the stage is warmed up the allocation count should stop
+ * growing.
+ */
+public class CaptureStats {
+    private long frames;
+    private long allocations;
+    private long allocationsAtMark;
+    private long framesAtMark;
+    private long totalNs;
+    private long maxNs;
+    private long lastNs;
+
+    public synchronized void recordFrame(long captureToCompressNs) {
+        frames++;
+        totalNs += captureToCompressNs;
+        lastNs = captureToCompressNs;
+        if (captureToCompressNs > maxNs) {
+            maxNs = captureToCompressNs;
+        }
+    }
+
+    /** Counts a buffer or bitmap the stage had to create. */
+    public synchronized void recordAllocation() {
+        allocations++;
+    }
+
+    /** Starts a new window for {@link #getAllocationsPerFrameSinceMark()}. */
+    public synchronized void mark() {
+        allocationsAtMark = allocations;
+        framesAtMark = frames;
+    }
+
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    public synchronized long getAllocationCount() {
+        return allocations;
+    }
+
+    /** Allocations per frame since the last {@link #mark()}, 0 in the steady state. */
+    public synchronized double getAllocationsPerFrameSinceMark() {
+        long window = frames - framesAtMark;
+        return window == 0 ? 0 : (double) (allocations - allocationsAtMark) / window;
+    }
+
+    public synchronized long getLastCaptureToCompressNs() {
+        return lastNs;
+    }
+
+    public synchronized long getMaxCaptureToCompressNs() {
+        return maxNs;
+    }
+
+    public synchronized double getMeanCaptureToCompressMs() {
+        return frames == 0 ? 0 : totalNs / 1e6 / frames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "frames=%d allocations=%d captureToCompress mean=%.2fms max=%.2fms",
+                frames, allocations, getMeanCaptureToCompressMs(), maxNs / 1e6);
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.screenrecoder;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.media.Image;
+
+import com.example.mirror.protocol.FrameHeader;
+import com.example.mirror.protocol.TileCodec;
+import com.example.mirror.protocol.TileDeltaEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns RGBA_8888 images from an ImageReader into JPEG frames without
+ * allocating per frame. The plane is copied into a reused Bitmap with one bulk
+ * copy. When the reader pads its rows the Bitmap is as wide as a padded row and
+ * the visible part is drawn into a second reused Bitmap before compressing.
+ *
+ * Capture thread only.
+ */
+public class FrameCapture {
+    public static final int JPEG_QUALITY = 80;
+
+    private final int width;
+    private final int height;
+    private final CaptureStats stats = new CaptureStats();
+
+    // Holds the plane as it is laid out in memory, padding included
+    private Bitmap source;
+    // Only used when rows are padded
+    private Bitmap cropped;
+    private Canvas croppedCanvas;
+    private final Rect visible;
+    private TileDeltaEncoder tileEncoder;
+
+    public FrameCapture(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.visible = new Rect(0, 0, width, height);
+    }
+
+    /**
+     * Switches to tile delta mode, where {@link #captureTiles} sends only the
+     * tiles that changed instead of a full JPEG.
+     */
+    public void setTileEncoder(TileDeltaEncoder tileEncoder) {
+        this.tileEncoder = tileEncoder;
+    }
+
+    public TileDeltaEncoder getTileEncoder() {
+        return tileEncoder;
+    }
+
+    public CaptureStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Compresses {@code image} into {@code frame}.
+     *
+     * @param acquireTimeNs System.nanoTime() when the image was acquired
+     * @return false if the image has an unexpected format or compression failed
+     */
+    public boolean capture(Image image, FrameMailbox.Frame frame, long acquireTimeNs) {
+        frame.setCaptureTimeNs(captureTime(image, acquireTimeNs));
+        Image.Plane plane = image.getPlanes()[0];
+        int pixelStride = plane.getPixelStride();
+        int rowStride = plane.getRowStride();
+        if (pixelStride != 4 || rowStride % pixelStride != 0 || image.getWidth() != width
+                || image.getHeight() != height) {
+            return false;
+        }
+
+        int paddedWidth = rowStride / pixelStride;
+        Bitmap bitmap = sourceBitmap(paddedWidth);
+        ByteBuffer buffer = plane.getBuffer();
+        buffer.rewind();
+        bitmap.copyPixelsFromBuffer(buffer);
+
+        if (paddedWidth != width) {
+            bitmap = crop(bitmap);
+        }
+
+        byte[] before = frame.data();
+        boolean compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, frame.stream());
+        if (frame.data() != before) {
+            // The output stream had to grow, it keeps the larger array from now on
+            stats.recordAllocation();
+        }
+        if (compressed) {
+            long now = System.nanoTime();
+            frame.setEncodeDoneNs(now);
+            frame.setFormat(FrameHeader.TYPE_KEY, FrameHeader.CODEC_JPEG, width, height);
+            stats.recordFrame(now - acquireTimeNs);
+        }
+        return compressed;
+    }
+
+    /**
+     * Encodes the tiles of {@code image} that changed into {@code frame}. The
+     * hashes are computed on the image plane directly, so no Bitmap is filled.
+     *
+     * @param previousUnsent true if the previous frame is still in the mailbox
+     *                       and will be replaced by this one
+     * @return false if nothing changed or the image has an unexpected format
+     */
+    public boolean captureTiles(Image image, FrameMailbox.Frame frame, boolean previousUnsent,
+                                long acquireTimeNs) throws IOException {
+        frame.setCaptureTimeNs(captureTime(image, acquireTimeNs));
+        Image.Plane plane = image.getPlanes()[0];
+        if (plane.getPixelStride() != 4 || image.getWidth() != width || image.getHeight() != height) {
+            return false;
+        }
+        ByteBuffer buffer = plane.getBuffer();
+        buffer.rewind();
+        byte[] before = frame.data();
+        int tiles = tileEncoder.encode(buffer, plane.getRowStride(), previousUnsent, frame.stream());
+        if (frame.data() != before) {
+            stats.recordAllocation();
+        }
+        if (tiles > 0) {
+            long now = System.nanoTime();
+            frame.setEncodeDoneNs(now);
+            frame.setFormat(tileEncoder.isKeyFrame() ? FrameHeader.TYPE_KEY : FrameHeader.TYPE_DELTA,
+                    tileEncoder.getCodec().id() == TileCodec.ID_RAW
+                            ? FrameHeader.CODEC_TILES_RAW : FrameHeader.CODEC_TILES_JPEG,
+                    width, height);
+            stats.recordFrame(now - acquireTimeNs);
+        }
+        return tiles > 0;
+    }
+
+    // Virtual display frames are stamped on the monotonic clock System.nanoTime() uses
+    private static long captureTime(Image image, long acquireTimeNs) {
+        long timestamp = image.getTimestamp();
+        return timestamp > 0 && timestamp <= acquireTimeNs ? timestamp : acquireTimeNs;
+    }
+
+    private Bitmap sourceBitmap(int paddedWidth) {
+        if (source == null || source.getWidth() != paddedWidth) {
+            if (source != null) {
+                source.recycle();
+            }
+            source = Bitmap.createBitmap(paddedWidth, height, Bitmap.Config.ARGB_8888);
+            stats.recordAllocation();
+        }
+        return source;
+    }
+
+    private Bitmap crop(Bitmap padded) {
+        if (cropped == null) {
+            cropped = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            croppedCanvas = new Canvas(cropped);
+            stats.recordAllocation();
+        }
+        croppedCanvas.drawBitmap(padded, visible, visible, null);
+        return cropped;
+    }
+
+    public void release() {
+        if (source != null) {
+            source.recycle();
+            source = null;
+        }
+        if (cropped != null) {
+            cropped.recycle();
+            cropped = null;
+            croppedCanvas = null;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.screenrecoder;
+
+import com.example.mirror.protocol.ExposedByteArrayOutputStream;
+
+import com.example.mirror.protocol.FrameHeader;
+
+/**
+ * Single-slot hand-off between the capture thread and the sender thread.
+ * Posting a frame replaces any frame the sender has not picked up yet, so a
+ * slow link makes the viewer skip frames instead of falling behind.
+ *
+ * Three frame buffers circulate: one being filled by the capture thread, one
+ * waiting in the slot and one being sent. They are reused for the whole
+ * session, so the hand-off itself allocates nothing.
+ */
+public class FrameMailbox {
+
+    /** A compressed frame. The stream grows to the largest frame and keeps its array. */
+    public static final class Frame {
+        private final ExposedByteArrayOutputStream data;
+        private long captureTimeNs;
+        private long encodeDoneNs;
+        private long enqueueNs;
+        private long sequence;
+        private int frameType = FrameHeader.TYPE_KEY;
+        private int codec = FrameHeader.CODEC_JPEG;
+        private int width;
+        private int height;
+
+        private Frame(int initialCapacity) {
+            data = new ExposedByteArrayOutputStream(initialCapacity);
+        }
+
+        /** Stream to write the compressed frame into, empty after {@link #obtain}. */
+        public ExposedByteArrayOutputStream stream() {
+            return data;
+        }
+
+        public byte[] data() {
+            return data.buffer();
+        }
+
+        public int length() {
+            return data.size();
+        }
+
+        /** System.nanoTime() clock, when the image was captured. Defaults to the time of {@link #obtain}. */
+        public long captureTimeNs() {
+            return captureTimeNs;
+        }
+
+        public void setCaptureTimeNs(long captureTimeNs) {
+            this.captureTimeNs = captureTimeNs;
+        }
+
+        /** When compression finished, 0 if not recorded. */
+        public long encodeDoneNs() {
+            return encodeDoneNs;
+        }
+
+        public void setEncodeDoneNs(long encodeDoneNs) {
+            this.encodeDoneNs = encodeDoneNs;
+        }
+
+        /** When the frame was posted to the mailbox. */
+        public long enqueueNs() {
+            return enqueueNs;
+        }
+
+        /** Number of frames posted before this one. */
+        public long sequence() {
+            return sequence;
+        }
+
+        /** Describes the contents for the {@link FrameHeader}. */
+        public void setFormat(int frameType, int codec, int width, int height) {
+            this.frameType = frameType;
+            this.codec = codec;
+            this.width = width;
+            this.height = height;
+        }
+
+        public int frameType() {
+            return frameType;
+        }
+
+        public int codec() {
+            return codec;
+        }
+
+        public int width() {
+            return width;
+        }
+
+        public int height() {
+            return height;
+        }
+    }
+
+    private final Frame[] free = new Frame[3];
+    private int freeCount;
+    private Frame pending;
+    private boolean closed;
+
+    private long captured;
+    private long superseded;
+
+    public FrameMailbox(int initialCapacity) {
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new Frame(initialCapacity);
+        }
+        freeCount = free.length;
+    }
+
+    /**
+     * Returns an empty frame for the capture thread to fill. There is always
+     * one available as long as every taken frame is recycled.
+     */
+    public synchronized Frame obtain() {
+        if (freeCount == 0) {
+            throw new IllegalStateException("No free frame, recycle() was not called");
+        }
+        Frame frame = free[--freeCount];
+        free[freeCount] = null;
+        frame.data.reset();
+        frame.captureTimeNs = System.nanoTime();
+        frame.encodeDoneNs = 0;
+        return frame;
+    }
+
+    /** Puts a filled frame into the slot, recycling the one it replaces. */
+    public synchronized void post(Frame frame) {
+        frame.sequence = captured;
+        frame.enqueueNs = System.nanoTime();
+        captured++;
+        if (closed) {
+            free[freeCount++] = frame;
+            return;
+        }
+        if (pending != null) {
+            superseded++;
+            free[freeCount++] = pending;
+        }
+        pending = frame;
+        notifyAll();
+    }
+
+    /** True while a posted frame waits for the sender. Only a later post can replace it. */
+    public synchronized boolean hasPending() {
+        return pending != null;
+    }
+
+    /** Hands back an unused frame from {@link #obtain}, or a sent one from {@link #take}. */
+    public synchronized void recycle(Frame frame) {
+        free[freeCount++] = frame;
+    }
+
+    /**
+     * Takes the latest frame, waiting up to {@code timeoutMs}.
+     *
+     * @return the frame, or null on timeout or after {@link #close}
+     */
+    public synchronized Frame take(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (pending == null && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+        Frame frame = pending;
+        pending = null;
+        return frame;
+    }
+
+    /** Drops the waiting frame, e.g. after the connection was lost. */
+    public synchronized void clear() {
+        if (pending != null) {
+            superseded++;
+            free[freeCount++] = pending;
+            pending = null;
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+        clear();
+        notifyAll();
+    }
+
+    /** Frames posted by the capture thread. */
+    public synchronized long getCapturedCount() {
+        return captured;
+    }
+
+    /** Frames replaced before the sender got to them. */
+    public synchronized long getSupersededCount() {
+        return superseded;
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.screenrecoder;
+
+import com.example.mirror.protocol.ClockSync;
+import com.example.mirror.protocol.FrameHeader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dedicated thread that connects to the viewer and writes the latest frame
+ * from a {@link FrameMailbox} as a {@link FrameHeader} followed by the
+ * payload. Header and payload go out in one gathering write on a channel with
+ * TCP_NODELAY, so a frame is not split across a delayed ACK. Connecting,
+ * retrying and blocking writes all happen here, so a slow link never stalls
+ * the capture thread.
+ *
+ * Each frame carries its capture, encode-done, enqueue and socket-write
+ * times. A second thread per connection answers {@link ClockSync} requests
+ * from the receiver so it can put those times on its own clock.
+ */
+public class FrameSender {
+    private static final Logger LOG = Logger.getLogger("FrameSender");
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long RETRY_DELAY_MS = 5000;
+    private static final long TAKE_TIMEOUT_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private final FrameMailbox mailbox;
+    private final FrameHeader header = new FrameHeader();
+    private final ByteBuffer headerBuffer = ByteBuffer.allocateDirect(FrameHeader.SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    // Wrappers of the mailbox frames' arrays, rebuilt only when an array grows
+    private final ByteBuffer[] payloadWrappers = new ByteBuffer[4];
+    private final Thread thread;
+    // Frames and clock replies share the channel, one write at a time
+    private final Object writeLock = new Object();
+    private final FrameHeader replyHeader = new FrameHeader();
+    private final ByteBuffer replyBuffer = ByteBuffer.allocate(FrameHeader.SIZE + ClockSync.REPLY_SIZE);
+    private final ByteBuffer requestBuffer = ByteBuffer.allocate(ClockSync.REQUEST_SIZE);
+    private volatile Runnable connectedListener;
+    private volatile boolean running;
+    private volatile SocketChannel channel;
+
+    private volatile long sent;
+    private volatile long sentBytes;
+
+    public FrameSender(String host, int port, FrameMailbox mailbox) {
+        this.host = host;
+        this.port = port;
+        this.mailbox = mailbox;
+        this.thread = new Thread(this::run, "FrameSender");
+    }
+
+    /** Called on the sender thread after every (re)connect, before the first frame is written. */
+    public void setConnectedListener(Runnable listener) {
+        connectedListener = listener;
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        mailbox.close();
+        closeChannel();
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isConnected() {
+        SocketChannel current = channel;
+        return current != null && current.isConnected();
+    }
+
+    public long getSentCount() {
+        return sent;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    private void run() {
+        while (running) {
+            SocketChannel out;
+            try {
+                out = connect();
+            } catch (IOException e) {
+                LOG.info("Connection to " + host + ":" + port + " failed: " + e.getMessage());
+                if (!sleep(RETRY_DELAY_MS)) {
+                    break;
+                }
+                continue;
+            }
+            Thread control = new Thread(() -> answerClockRequests(out), "FrameSenderControl");
+            control.start();
+            try {
+                sendLoop(out);
+            } catch (IOException e) {
+                if (running) {
+                    LOG.log(Level.WARNING, "Error sending frame", e);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                closeChannel();
+                control.interrupt();
+            }
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        SocketChannel c = SocketChannel.open();
+        try {
+            Socket s = c.socket();
+            s.setKeepAlive(true);
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+        channel = c;
+        LOG.info("Connected to " + host + ":" + port);
+        Runnable listener = connectedListener;
+        if (listener != null) {
+            listener.run();
+        }
+        return c;
+    }
+
+    private void sendLoop(SocketChannel out) throws IOException, InterruptedException {
+        while (running) {
+            FrameMailbox.Frame frame = mailbox.take(TAKE_TIMEOUT_MS);
+            if (frame == null) {
+                continue;
+            }
+            try {
+                int length = frame.length();
+                long captureUs = frame.captureTimeNs() / 1000;
+                gather[1] = payload(frame.data(), length);
+                synchronized (writeLock) {
+                    header.set(frame.frameType(), frame.codec(), 0, frame.width(), frame.height(),
+                            frame.sequence(), captureUs, length);
+                    header.setStamps(frame.encodeDoneNs() == 0 ? FrameHeader.NO_STAMP
+                                    : (int) (frame.encodeDoneNs() / 1000 - captureUs),
+                            (int) (frame.enqueueNs() / 1000 - captureUs),
+                            (int) (System.nanoTime() / 1000 - captureUs));
+                    headerBuffer.clear();
+                    header.write(headerBuffer);
+                    headerBuffer.flip();
+                    gather[0] = headerBuffer;
+                    while (gather[1].hasRemaining()) {
+                        out.write(gather);
+                    }
+                }
+                sent++;
+                sentBytes += length;
+            } finally {
+                mailbox.recycle(frame);
+            }
+        }
+    }
+
+    // Runs until the channel closes, the receiver may never send anything
+    private void answerClockRequests(SocketChannel out) {
+        try {
+            while (true) {
+                requestBuffer.clear();
+                while (requestBuffer.hasRemaining()) {
+                    if (out.read(requestBuffer) < 0) {
+                        return;
+                    }
+                }
+                long t2 = System.nanoTime() / 1000;
+                requestBuffer.flip();
+                long t1 = ClockSync.readRequest(requestBuffer);
+                synchronized (writeLock) {
+                    long t3 = System.nanoTime() / 1000;
+                    replyBuffer.clear();
+                    replyHeader.set(FrameHeader.TYPE_CONTROL, FrameHeader.CODEC_CLOCK_SYNC, 0, 0, 0, 0, t3,
+                            ClockSync.REPLY_SIZE).write(replyBuffer);
+                    ClockSync.writeReply(replyBuffer, t1, t2, t3);
+                    replyBuffer.flip();
+                    while (replyBuffer.hasRemaining()) {
+                        out.write(replyBuffer);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Control channel closed", e);
+        }
+    }
+
+    private ByteBuffer payload(byte[] data, int length) {
+        int free = -1;
+        for (int i = 0; i < payloadWrappers.length; i++) {
+            ByteBuffer wrapper = payloadWrappers[i];
+            if (wrapper != null && wrapper.array() == data) {
+                wrapper.limit(length).position(0);
+                return wrapper;
+            }
+            if (wrapper == null || free < 0) {
+                free = i;
+            }
+        }
+        // A frame grew, its old array is gone for good
+        ByteBuffer wrapper = ByteBuffer.wrap(data, 0, length);
+        payloadWrappers[free] = wrapper;
+        return wrapper;
+    }
+
+    private boolean sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+            return running;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void closeChannel() {
+        SocketChannel c = channel;
+        channel = null;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Error closing socket", e);
+            }
+        }
+    }
+}
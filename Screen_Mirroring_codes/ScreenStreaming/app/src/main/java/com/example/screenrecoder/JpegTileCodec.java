@@ -0,0 +1,75 @@
+package com.example.screenrecoder;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.example.mirror.protocol.TileCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses tiles as JPEG through a Bitmap that is reused for every tile of
+ * the same size. Edge tiles have up to three other sizes, each gets its own
+ * Bitmap once.
+ */
+public class JpegTileCodec implements TileCodec {
+    private final int quality;
+    private final Bitmap[] bitmaps = new Bitmap[4];
+
+    public JpegTileCodec(int quality) {
+        this.quality = quality;
+    }
+
+    @Override
+    public int id() {
+        return ID_JPEG;
+    }
+
+    @Override
+    public void encode(ByteBuffer rgba, int width, int height, OutputStream out) throws IOException {
+        Bitmap bitmap = bitmapFor(width, height);
+        bitmap.copyPixelsFromBuffer(rgba);
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+            throw new IOException("JPEG compression failed");
+        }
+    }
+
+    private Bitmap bitmapFor(int width, int height) {
+        for (int i = 0; i < bitmaps.length; i++) {
+            Bitmap bitmap = bitmaps[i];
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                bitmaps[i] = bitmap;
+                return bitmap;
+            }
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                return bitmap;
+            }
+        }
+        // More sizes than a frame can have, replace the first one
+        bitmaps[0].recycle();
+        bitmaps[0] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        return bitmaps[0];
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length, int width, int height, byte[] rgba) throws IOException {
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length);
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            throw new IOException("Bad JPEG tile");
+        }
+        bitmap.copyPixelsToBuffer(ByteBuffer.wrap(rgba, 0, width * height * 4));
+        bitmap.recycle();
+    }
+
+    public void release() {
+        for (int i = 0; i < bitmaps.length; i++) {
+            if (bitmaps[i] != null) {
+                bitmaps[i].recycle();
+                bitmaps[i] = null;
+            }
+        }
+    }
+}
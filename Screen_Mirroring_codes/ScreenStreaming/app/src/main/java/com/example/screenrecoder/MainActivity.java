@@ -9,6 +9,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
@@ -20,6 +21,7 @@ public class MainActivity extends Activity {
     private static final int PERMISSION_REQUEST_CODE = 1;
     private static final String TAG = "MainActivity";
     private MediaProjectionManager mediaProjectionManager;
+    private CheckBox tileDeltaCheckBox;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -28,6 +30,7 @@ public class MainActivity extends Activity {
 
         Button startButton = findViewById(R.id.start_button);
         Button stopButton = findViewById(R.id.stop_button);
+        tileDeltaCheckBox = findViewById(R.id.tile_delta_checkbox);
 
         // Initialize MediaProjectionManager
         mediaProjectionManager = (MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE);
@@ -99,6 +102,7 @@ public class MainActivity extends Activity {
             Intent serviceIntent = new Intent(this, ScreenRecordService.class);
             serviceIntent.putExtra("resultCode", resultCode);
             serviceIntent.putExtra("data", data);
+            serviceIntent.putExtra(ScreenRecordService.EXTRA_TILE_DELTA, tileDeltaCheckBox.isChecked());
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 startForegroundService(serviceIntent);
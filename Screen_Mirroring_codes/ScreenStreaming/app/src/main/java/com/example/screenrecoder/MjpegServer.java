@@ -0,0 +1,508 @@
+package com.example.screenrecoder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the captured JPEG frames to any number of browsers as a
+ * {@code multipart/x-mixed-replace} stream over HTTP, next to the single TCP
+ * viewer of {@link FrameSender}.
+ *
+ * Each published frame is copied once into a reference-counted
+ * {@link SharedFrame}; every connection writes from a read-only view of the
+ * same array, so the number of viewers never adds JPEG encodes or copies.
+ * A connection only ever holds the frame it is writing. When that write
+ * completes it moves on to the latest frame, so a slow client skips frames
+ * instead of queueing them, and its unwritten bytes are capped at one frame
+ * plus a small socket send buffer. A client that does not finish a frame
+ * within {@link #STALL_TIMEOUT_MS} is disconnected.
+ *
+ * All sockets are handled on one selector thread. {@link #publish} only
+ * copies the frame and wakes that thread.
+ */
+public class MjpegServer {
+    private static final Logger LOG = Logger.getLogger("MjpegServer");
+    public static final int DEFAULT_PORT = 8080;
+    public static final String STREAM_PATH = "/stream.mjpeg";
+    public static final String SNAPSHOT_PATH = "/snapshot.jpg";
+    static final String BOUNDARY = "frame";
+    static final long STALL_TIMEOUT_MS = 5_000;
+    // Kernel buffering per client, beyond the one frame being written
+    static final int SEND_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_REQUEST_BYTES = 4 * 1024;
+    private static final int MAX_FREE_FRAMES = 4;
+    private static final long SELECT_TIMEOUT_MS = 500;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] END_OF_HEADERS = {'\r', '\n', '\r', '\n'};
+
+    /** One JPEG with its multipart header, shared read-only by every connection writing it. */
+    static final class SharedFrame {
+        private final MjpegServer server;
+        private byte[] data;
+        private byte[] partHeader;
+        private int length;
+        private long sequence;
+        // Held by the server as its latest frame and by every connection writing it
+        private int refCount;
+
+        SharedFrame(MjpegServer server, int capacity) {
+            this.server = server;
+            this.data = new byte[capacity];
+        }
+
+        long sequence() {
+            return sequence;
+        }
+
+        int length() {
+            return length;
+        }
+
+        void release() {
+            synchronized (server.frameLock) {
+                if (--refCount == 0) {
+                    server.recycle(this);
+                }
+            }
+        }
+    }
+
+    /** One HTTP client, reading its request or streaming. */
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        final ByteBuffer[] out = new ByteBuffer[3];
+        boolean streaming;
+        boolean closeAfterWrite;
+        // The frame being written, and the last one fully written
+        SharedFrame writing;
+        long lastSequence = -1;
+        long writeStartMs;
+        long framesSent;
+        long framesSkipped;
+        long bytesSent;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        int pendingBytes() {
+            int pending = 0;
+            for (ByteBuffer buffer : out) {
+                if (buffer != null) {
+                    pending += buffer.remaining();
+                }
+            }
+            return pending;
+        }
+    }
+
+    private final int requestedPort;
+    final Object frameLock = new Object();
+    // Guarded by frameLock
+    private final List<SharedFrame> free = new ArrayList<>();
+    private SharedFrame latest;
+    private long published;
+    private long framesAllocated;
+    // Selector thread only
+    private final List<Connection> connections = new ArrayList<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+    private volatile long framesSent;
+    private volatile long framesSkipped;
+    private volatile long stalledClients;
+    private volatile int clientCount;
+    private volatile int peakClients;
+
+    /** @param port TCP port, or 0 to pick any free port */
+    public MjpegServer(int port) {
+        this.requestedPort = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(requestedPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::runSelector, "MjpegServer");
+        selectorThread.start();
+        LOG.info("MJPEG server listening on port " + getPort());
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Connection connection : new ArrayList<>(connections)) {
+            close(connection);
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error closing MJPEG server", e);
+        }
+        synchronized (frameLock) {
+            if (latest != null) {
+                latest.refCount--;
+                latest = null;
+            }
+        }
+        LOG.info(toString());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Makes a compressed frame the latest one. Copies the JPEG once, whatever
+     * the number of clients, and never waits for any of them.
+     */
+    public void publish(byte[] jpeg, int length) {
+        SharedFrame frame;
+        synchronized (frameLock) {
+            frame = free.isEmpty() ? null : free.remove(free.size() - 1);
+        }
+        if (frame == null) {
+            frame = new SharedFrame(this, length);
+            synchronized (frameLock) {
+                framesAllocated++;
+            }
+        }
+        if (frame.data.length < length) {
+            frame.data = new byte[length];
+        }
+        System.arraycopy(jpeg, 0, frame.data, 0, length);
+        frame.length = length;
+        frame.partHeader = ("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + length + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        SharedFrame previous;
+        synchronized (frameLock) {
+            frame.sequence = published++;
+            frame.refCount = 1;
+            previous = latest;
+            latest = frame;
+        }
+        if (previous != null) {
+            previous.release();
+        }
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    /** The latest frame retained for the caller, or null. */
+    private SharedFrame retainLatest() {
+        synchronized (frameLock) {
+            if (latest != null) {
+                latest.refCount++;
+            }
+            return latest;
+        }
+    }
+
+    private void recycle(SharedFrame frame) {
+        // Called with frameLock held
+        if (free.size() < MAX_FREE_FRAMES) {
+            free.add(frame);
+        }
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    public int getPeakClientCount() {
+        return peakClients;
+    }
+
+    public long getPublishedCount() {
+        synchronized (frameLock) {
+            return published;
+        }
+    }
+
+    /** Frame buffers ever allocated; stays small because released frames are reused. */
+    public long getAllocatedFrameCount() {
+        synchronized (frameLock) {
+            return framesAllocated;
+        }
+    }
+
+    /** Frames written to clients, summed over all clients. */
+    public long getSentCount() {
+        return framesSent;
+    }
+
+    /** Frames clients skipped because they were still writing an older one. */
+    public long getSkippedCount() {
+        return framesSkipped;
+    }
+
+    public long getStalledClientCount() {
+        return stalledClients;
+    }
+
+    private void runSelector() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+                offerLatest();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                LOG.log(Level.WARNING, "MJPEG selector failed", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_BYTES);
+        Connection connection = new Connection(channel);
+        channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+        clientCount = connections.size();
+        peakClients = Math.max(peakClients, clientCount);
+    }
+
+    private void read(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        if (connection.streaming) {
+            // Nothing more is expected, only the end of the stream matters
+            in.clear();
+        }
+        if (connection.channel.read(in) < 0) {
+            close(connection);
+            return;
+        }
+        if (connection.streaming || connection.closeAfterWrite) {
+            return;
+        }
+        int end = indexOf(in, END_OF_HEADERS);
+        if (end < 0) {
+            if (!in.hasRemaining()) {
+                respond(connection, "431 Request Header Fields Too Large", null, null);
+            }
+            return;
+        }
+        String[] requestLine = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1)
+                .split("\r\n", 2)[0].split(" ");
+        if (requestLine.length != 3) {
+            respond(connection, "400 Bad Request", null, null);
+        } else if (!requestLine[0].equals("GET")) {
+            respond(connection, "405 Method Not Allowed", null, null);
+        } else if (requestLine[1].equals(STREAM_PATH) || requestLine[1].equals("/")) {
+            startStream(connection);
+        } else if (requestLine[1].equals(SNAPSHOT_PATH)) {
+            SharedFrame frame = retainLatest();
+            if (frame == null) {
+                respond(connection, "503 Service Unavailable", null, null);
+            } else {
+                respond(connection, "200 OK", "image/jpeg", frame);
+            }
+        } else {
+            respond(connection, "404 Not Found", null, null);
+        }
+    }
+
+    private void startStream(Connection connection) throws IOException {
+        String header = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+                + "Cache-Control: no-cache, no-store\r\n"
+                + "Access-Control-Allow-Origin: *\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+        connection.streaming = true;
+        connection.out[0] = ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1));
+        connection.writeStartMs = System.currentTimeMillis();
+        write(connection);
+    }
+
+    // A single response, the connection is closed once it is written
+    private void respond(Connection connection, String status, String contentType, SharedFrame frame)
+            throws IOException {
+        int length = frame != null ? frame.length : 0;
+        String header = "HTTP/1.1 " + status + "\r\n"
+                + (contentType != null ? "Content-Type: " + contentType + "\r\n" : "")
+                + "Content-Length: " + length + "\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Access-Control-Allow-Origin: *\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+        connection.closeAfterWrite = true;
+        connection.out[0] = ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1));
+        if (frame != null) {
+            connection.writing = frame;
+            connection.out[1] = ByteBuffer.wrap(frame.data, 0, length).asReadOnlyBuffer();
+        }
+        connection.writeStartMs = System.currentTimeMillis();
+        write(connection);
+    }
+
+    // Starts every idle stream on the latest frame and drops clients stuck on an old one
+    private void offerLatest() {
+        long nowMs = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (!connection.streaming) {
+                continue;
+            }
+            if (connection.writing != null || connection.out[0] != null) {
+                if (nowMs - connection.writeStartMs > STALL_TIMEOUT_MS) {
+                    stalledClients++;
+                    LOG.info("Dropping a client stuck with " + connection.pendingBytes() + " bytes unwritten");
+                    close(connection);
+                }
+                continue;
+            }
+            SharedFrame frame = retainLatest();
+            if (frame == null) {
+                continue;
+            }
+            if (frame.sequence <= connection.lastSequence) {
+                frame.release();
+                continue;
+            }
+            if (connection.lastSequence >= 0) {
+                long skipped = frame.sequence - connection.lastSequence - 1;
+                connection.framesSkipped += skipped;
+                framesSkipped += skipped;
+            }
+            connection.writing = frame;
+            connection.out[0] = ByteBuffer.wrap(frame.partHeader);
+            connection.out[1] = ByteBuffer.wrap(frame.data, 0, frame.length).asReadOnlyBuffer();
+            connection.out[2] = ByteBuffer.wrap(CRLF);
+            connection.writeStartMs = nowMs;
+            try {
+                write(connection);
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+    }
+
+    private void write(Connection connection) throws IOException {
+        int count = 0;
+        while (count < connection.out.length && connection.out[count] != null) {
+            count++;
+        }
+        if (count > 0) {
+            connection.bytesSent += connection.channel.write(connection.out, 0, count);
+        }
+        SelectionKey key = connection.channel.keyFor(selector);
+        if (count > 0 && connection.out[count - 1].hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        connection.out[0] = null;
+        connection.out[1] = null;
+        connection.out[2] = null;
+        SharedFrame frame = connection.writing;
+        if (frame != null) {
+            connection.writing = null;
+            connection.lastSequence = frame.sequence;
+            connection.framesSent++;
+            framesSent++;
+            frame.release();
+        }
+        if (connection.closeAfterWrite) {
+            close(connection);
+        }
+    }
+
+    private void close(Connection connection) {
+        if (!connections.remove(connection)) {
+            return;
+        }
+        clientCount = connections.size();
+        SharedFrame frame = connection.writing;
+        if (frame != null) {
+            connection.writing = null;
+            frame.release();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Error closing connection", e);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        byte[] data = buffer.array();
+        for (int i = 0; i + pattern.length <= buffer.position(); i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "MjpegServer: published=" + getPublishedCount() + " sent=" + framesSent + " skipped=" + framesSkipped
+                + " clients=" + clientCount + " (peak " + peakClients + ") stalled=" + stalledClients
+                + " frame buffers=" + getAllocatedFrameCount();
+    }
+}
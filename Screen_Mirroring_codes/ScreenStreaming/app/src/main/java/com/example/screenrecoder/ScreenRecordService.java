@@ -6,7 +6,6 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
 import android.hardware.display.DisplayManager;
 import android.media.Image;
@@ -24,11 +23,10 @@ import android.view.Display;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
-import java.io.ByteArrayOutputStream;
+import com.example.mirror.protocol.FrameHeader;
+import com.example.mirror.protocol.TileDeltaEncoder;
+
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.nio.ByteBuffer;
 
 public class ScreenRecordService extends Service {
     private static final String CHANNEL_ID = "ScreenRecorderChannel";
@@ -39,10 +37,23 @@ public class ScreenRecordService extends Service {
     private int mHeight;
     private boolean isRecording = false;
     private static final int PORT = 5090;
-    private Socket socket;
+    // Used for both the virtual display and the ImageReader
+    private static final int CAPTURE_WIDTH = 480;
+    private static final int CAPTURE_HEIGHT = 720;
+    // Typical JPEG size at 480x720, avoids regrowing the stream while compressing
+    private static final int JPEG_BUFFER_SIZE = 128 * 1024;
+    // Boolean extra: send only changed 64x64 tiles, the viewer has to understand TIL1 messages
+    public static final String EXTRA_TILE_DELTA = "tileDelta";
+    private static final int TILE_SIZE = 64;
+    private static final int TILE_KEY_FRAME_INTERVAL = 300;
     private String ipAddress = "10.235.47.181";
-    private Handler backgroundHandler;
-    private OutputStream outputStream;
+    private HandlerThread captureThread;
+    private Handler captureHandler;
+    private FrameMailbox mailbox;
+    private FrameSender frameSender;
+    private FrameCapture frameCapture;
+    private volatile MjpegServer mjpegServer;
+    private boolean tileDeltaMode;
 
     @Override
     public void onCreate() {
@@ -58,10 +69,10 @@ public class ScreenRecordService extends Service {
             }
         }
 
-        // Start background thread for socket handling
-        HandlerThread handlerThread = new HandlerThread("StreamServiceThread");
-        handlerThread.start();
-        backgroundHandler = new Handler(handlerThread.getLooper());
+        // Capture and compression run here, network I/O has its own thread in FrameSender
+        captureThread = new HandlerThread("ScreenCapture");
+        captureThread.start();
+        captureHandler = new Handler(captureThread.getLooper());
     }
 
     @Override
@@ -76,9 +87,21 @@ public class ScreenRecordService extends Service {
                 .build();
         startForeground(1, notification);
 
-        backgroundHandler.post(this::connectToServer);
+        mailbox = new FrameMailbox(JPEG_BUFFER_SIZE);
+        frameSender = new FrameSender(ipAddress, PORT, mailbox);
+        frameSender.start();
+
+        // Browsers on the same network open http://<phone>:8080/stream.mjpeg
+        mjpegServer = new MjpegServer(MjpegServer.DEFAULT_PORT);
+        try {
+            mjpegServer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start MJPEG server", e);
+            mjpegServer = null;
+        }
 
         int resultCode = intent.getIntExtra("resultCode", -1);
+        tileDeltaMode = intent.getBooleanExtra(EXTRA_TILE_DELTA, false);
         Intent data = intent.getParcelableExtra("data");
 
         MediaProjectionManager projectionManager = (MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE);
@@ -94,25 +117,6 @@ public class ScreenRecordService extends Service {
         return START_NOT_STICKY;
     }
 
-    private void connectToServer() {
-        try {
-            if (socket == null || socket.isClosed()) {
-                Log.d(TAG, "Attempting to connect to " + ipAddress);
-                socket = new Socket(ipAddress, PORT);
-                socket.setKeepAlive(true);
-                outputStream = socket.getOutputStream();
-                Log.d(TAG, "Connected to server.");
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Connection failed: " + e.getMessage());
-            retryConnection();
-        }
-    }
-
-    private void retryConnection() {
-        backgroundHandler.postDelayed(this::connectToServer, 5000);
-    }
-
     private void setupImageReader() {
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         Display display = displayManager.getDisplay(Display.DEFAULT_DISPLAY);
@@ -122,60 +126,53 @@ public class ScreenRecordService extends Service {
         }
         DisplayMetrics displayMetrics = new DisplayMetrics();
         display.getRealMetrics(displayMetrics);
-        mWidth = 480;
-        mHeight = 720;
+        mWidth = CAPTURE_WIDTH;
+        mHeight = CAPTURE_HEIGHT;
+        frameCapture = new FrameCapture(mWidth, mHeight);
+        if (tileDeltaMode) {
+            Log.d(TAG, "Sending changed tiles only");
+            TileDeltaEncoder tileEncoder = new TileDeltaEncoder(mWidth, mHeight, TILE_SIZE,
+                    TILE_KEY_FRAME_INTERVAL, new JpegTileCodec(FrameCapture.JPEG_QUALITY));
+            frameCapture.setTileEncoder(tileEncoder);
+            // A new viewer has nothing to apply deltas to
+            frameSender.setConnectedListener(tileEncoder::requestKeyFrame);
+        }
 
         imageReader = ImageReader.newInstance(mWidth, mHeight, PixelFormat.RGBA_8888, 3);
-        imageReader.setOnImageAvailableListener(this::onImageAvailable, backgroundHandler);
+        imageReader.setOnImageAvailableListener(this::onImageAvailable, captureHandler);
     }
 
     private void onImageAvailable(ImageReader reader) {
         try (Image image = reader.acquireLatestImage()) {
             if (image != null) {
-                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-                bitmap.copyPixelsFromBuffer(buffer);
-
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 80, byteArrayOutputStream);
-                byte[] compressedData = byteArrayOutputStream.toByteArray();
-
-                sendFrame(compressedData);
+                long acquireTimeNs = System.nanoTime();
+                FrameMailbox.Frame frame = mailbox.obtain();
+                boolean captured = false;
+                try {
+                    if (frameCapture.getTileEncoder() != null) {
+                        captured = frameCapture.captureTiles(image, frame, mailbox.hasPending(), acquireTimeNs);
+                    } else {
+                        captured = frameCapture.capture(image, frame, acquireTimeNs);
+                    }
+                } finally {
+                    if (captured) {
+                        // Whole JPEGs only, browsers cannot apply tile deltas
+                        MjpegServer server = mjpegServer;
+                        if (server != null && frame.codec() == FrameHeader.CODEC_JPEG) {
+                            server.publish(frame.data(), frame.length());
+                        }
+                        // Replaces any frame the sender has not picked up yet
+                        mailbox.post(frame);
+                    } else {
+                        mailbox.recycle(frame);
+                    }
+                }
             }
         } catch (Exception e) {
             Log.e(TAG, "Error processing image", e);
         }
     }
 
-    private void sendFrame(byte[] data) {
-        if (socket != null && socket.isConnected()) {
-            backgroundHandler.post(() -> {
-                try {
-                    // Send image size before data
-                    outputStream.write(intToBytes(data.length));
-                    outputStream.write(data);
-                    outputStream.flush();
-                    Log.d(TAG, "Frame sent: " + data.length + " bytes");
-                } catch (IOException e) {
-                    Log.e(TAG, "Error sending frame", e);
-                    retryConnection();
-                }
-            });
-        } else {
-            Log.e(TAG, "Socket is not connected.");
-            retryConnection();
-        }
-    }
-
-    private byte[] intToBytes(int value) {
-        return new byte[]{
-                (byte) (value >> 24),
-                (byte) (value >> 16),
-                (byte) (value >> 8),
-                (byte) value
-        };
-    }
-
     private void startRecording() {
         if (mediaProjection != null && imageReader != null) {
             int densityDpi = getResources().getDisplayMetrics().densityDpi;
@@ -186,13 +183,13 @@ public class ScreenRecordService extends Service {
                     Log.d(TAG, "MediaProjection stopped. Releasing resources.");
                     stopRecording();
                 }
-            }, backgroundHandler);
+            }, captureHandler);
 
             Log.d(TAG, "Creating virtual display...");
             mediaProjection.createVirtualDisplay(
                     "ScreenCapture",
-                    500,
-                    720,
+                    mWidth,
+                    mHeight,
                     densityDpi,
                     DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
                     imageReader.getSurface(),
@@ -220,12 +217,24 @@ public class ScreenRecordService extends Service {
             imageReader = null;
         }
 
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error closing socket: ", e);
+        if (frameCapture != null) {
+            Log.d(TAG, "Capture " + frameCapture.getStats());
+            // The bitmaps belong to the capture thread
+            captureHandler.post(frameCapture::release);
+        }
+
+        if (frameSender != null) {
+            frameSender.stop();
+            Log.d(TAG, "Frames captured=" + mailbox.getCapturedCount()
+                    + " sent=" + frameSender.getSentCount()
+                    + " superseded=" + mailbox.getSupersededCount());
+            frameSender = null;
+        }
+
+        if (mjpegServer != null) {
+            mjpegServer.stop();
+            Log.d(TAG, mjpegServer.toString());
+            mjpegServer = null;
         }
     }
 
@@ -233,6 +242,7 @@ public class ScreenRecordService extends Service {
     public void onDestroy() {
         super.onDestroy();
         stopRecording();
+        captureThread.quitSafely();
         Log.d(TAG, "ScreenRecordService destroyed.");
     }
 
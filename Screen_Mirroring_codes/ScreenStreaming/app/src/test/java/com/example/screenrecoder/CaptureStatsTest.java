@@ -0,0 +1,43 @@
+package com.example.screenrecoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CaptureStatsTest {
+
+    @Test
+    public void countsFramesAndTimes() {
+        CaptureStats stats = new CaptureStats();
+        stats.recordFrame(2_000_000);
+        stats.recordFrame(4_000_000);
+        assertEquals(2, stats.getFrameCount());
+        assertEquals(4_000_000, stats.getLastCaptureToCompressNs());
+        assertEquals(4_000_000, stats.getMaxCaptureToCompressNs());
+        assertEquals(3.0, stats.getMeanCaptureToCompressMs(), 1e-9);
+    }
+
+    @Test
+    public void allocationsPerFrameDropToZeroAfterWarmUp() {
+        CaptureStats stats = new CaptureStats();
+        // First frame creates the bitmap and grows the output stream
+        stats.recordAllocation();
+        stats.recordAllocation();
+        stats.recordFrame(1_000_000);
+        assertEquals(2.0, stats.getAllocationsPerFrameSinceMark(), 1e-9);
+
+        stats.mark();
+        for (int i = 0; i < 10; i++) {
+            stats.recordFrame(1_000_000);
+        }
+        assertEquals(0.0, stats.getAllocationsPerFrameSinceMark(), 1e-9);
+        assertEquals(2, stats.getAllocationCount());
+    }
+
+    @Test
+    public void emptyStatsAreZero() {
+        CaptureStats stats = new CaptureStats();
+        assertEquals(0.0, stats.getMeanCaptureToCompressMs(), 1e-9);
+        assertEquals(0.0, stats.getAllocationsPerFrameSinceMark(), 1e-9);
+    }
+}
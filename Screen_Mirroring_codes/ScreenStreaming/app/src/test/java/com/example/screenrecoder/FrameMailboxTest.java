@@ -0,0 +1,128 @@
+package com.example.screenrecoder;
+
+import com.example.mirror.protocol.FrameHeader;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class FrameMailboxTest {
+
+    private static FrameMailbox.Frame fill(FrameMailbox mailbox, int value, int length) {
+        FrameMailbox.Frame frame = mailbox.obtain();
+        for (int i = 0; i < length; i++) {
+            frame.stream().write(value);
+        }
+        return frame;
+    }
+
+    @Test
+    public void newFrameReplacesUnsentOne() throws Exception {
+        FrameMailbox mailbox = new FrameMailbox(16);
+        mailbox.post(fill(mailbox, 1, 4));
+        mailbox.post(fill(mailbox, 2, 4));
+        mailbox.post(fill(mailbox, 3, 4));
+
+        FrameMailbox.Frame frame = mailbox.take(100);
+        assertEquals(3, frame.data()[0]);
+        assertEquals(4, frame.length());
+        assertNull(mailbox.take(10));
+        assertEquals(3, mailbox.getCapturedCount());
+        assertEquals(2, mailbox.getSupersededCount());
+    }
+
+    @Test
+    public void framesAreReused() throws Exception {
+        FrameMailbox mailbox = new FrameMailbox(16);
+        Set<FrameMailbox.Frame> seen = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            FrameMailbox.Frame frame = fill(mailbox, i, 8);
+            seen.add(frame);
+            mailbox.post(frame);
+            if (i % 3 == 0) {
+                FrameMailbox.Frame taken = mailbox.take(100);
+                seen.add(taken);
+                mailbox.recycle(taken);
+            }
+        }
+        assertTrue(seen.size() <= 3);
+    }
+
+    @Test
+    public void obtainedFrameIsEmpty() {
+        FrameMailbox mailbox = new FrameMailbox(16);
+        FrameMailbox.Frame frame = fill(mailbox, 7, 10);
+        mailbox.recycle(frame);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, mailbox.obtain().length());
+        }
+    }
+
+    @Test
+    public void takeWakesUpOnPost() throws Exception {
+        FrameMailbox mailbox = new FrameMailbox(16);
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            mailbox.post(fill(mailbox, 9, 1));
+        });
+        producer.start();
+        FrameMailbox.Frame frame = mailbox.take(5000);
+        assertNotNull(frame);
+        assertEquals(9, frame.data()[0]);
+        producer.join();
+    }
+
+    @Test
+    public void closeReleasesWaitingConsumer() throws Exception {
+        FrameMailbox mailbox = new FrameMailbox(16);
+        mailbox.post(fill(mailbox, 1, 1));
+        mailbox.close();
+        assertNull(mailbox.take(5000));
+    }
+
+    @Test
+    public void senderWritesFramesWithHeader() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            FrameMailbox mailbox = new FrameMailbox(16);
+            FrameSender sender = new FrameSender("127.0.0.1", server.getLocalPort(), mailbox);
+            sender.start();
+            try (Socket client = server.accept()) {
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                FrameHeader header = new FrameHeader();
+                byte[] headerBytes = new byte[FrameHeader.SIZE];
+                for (int i = 1; i <= 5; i++) {
+                    FrameMailbox.Frame frame = fill(mailbox, i, 100 * i);
+                    frame.setFormat(FrameHeader.TYPE_KEY, FrameHeader.CODEC_JPEG, 480, 720);
+                    mailbox.post(frame);
+                    in.readFully(headerBytes);
+                    header.read(ByteBuffer.wrap(headerBytes));
+                    int length = header.getPayloadLength();
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    assertEquals(100 * i, length);
+                    assertEquals(i - 1, header.getSequence());
+                    assertEquals(480, header.getWidth());
+                    assertEquals(FrameHeader.CODEC_JPEG, header.getCodec());
+                    assertTrue(header.getEnqueueUs() >= 0);
+                    assertTrue(header.getSendUs() >= header.getEnqueueUs());
+                    assertEquals(i, data[0]);
+                    assertEquals(i, data[length - 1]);
+                }
+            } finally {
+                sender.stop();
+            }
+            assertEquals(5, sender.getSentCount());
+            assertEquals(1500, sender.getSentBytes());
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.screenrecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class MjpegServerTest {
+    private MjpegServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MjpegServer(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    // Every byte of frame n is n, so a buffer reused too early shows up as mixed bytes
+    private static byte[] jpeg(int sequence, int length) {
+        byte[] jpeg = new byte[length + 16];
+        Arrays.fill(jpeg, 0, length, (byte) sequence);
+        return jpeg;
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b < 0) {
+            throw new IOException("End of stream");
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    /** A browser tab reading the multipart stream on its own thread. */
+    private final class Viewer extends Thread {
+        final Socket socket;
+        final long readDelayMs;
+        final boolean reads;
+        final AtomicInteger frames = new AtomicInteger();
+        final AtomicInteger lastSequence = new AtomicInteger(-1);
+        final AtomicBoolean corrupt = new AtomicBoolean();
+        final AtomicBoolean disconnected = new AtomicBoolean();
+        volatile String contentType;
+
+        Viewer(long readDelayMs, boolean reads) throws IOException {
+            this.readDelayMs = readDelayMs;
+            this.reads = reads;
+            socket = new Socket("127.0.0.1", server.getPort());
+            socket.setReceiveBufferSize(16 * 1024);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + MjpegServer.STREAM_PATH + " HTTP/1.1\r\nHost: phone\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            if (!reads) {
+                // Never reads, like a tab whose network went away
+                try {
+                    while (socket.getInputStream().read() >= 0) {
+                        Thread.sleep(60_000);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Closed
+                }
+                disconnected.set(true);
+                return;
+            }
+            try {
+                DataInputStream in = new DataInputStream(new SlowStream(socket.getInputStream(), readDelayMs));
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    if (line.startsWith("Content-Type: ")) {
+                        contentType = line.substring(14);
+                    }
+                }
+                while (true) {
+                    assertEquals("--" + MjpegServer.BOUNDARY, readLine(in));
+                    int length = -1;
+                    while (!(line = readLine(in)).isEmpty()) {
+                        if (line.startsWith("Content-Length: ")) {
+                            length = Integer.parseInt(line.substring(16));
+                        }
+                    }
+                    byte[] jpeg = new byte[length];
+                    in.readFully(jpeg);
+                    assertEquals("", readLine(in));
+                    for (byte b : jpeg) {
+                        if (b != jpeg[0]) {
+                            corrupt.set(true);
+                        }
+                    }
+                    lastSequence.set(jpeg[0] & 0xFF);
+                    frames.incrementAndGet();
+                }
+            } catch (IOException e) {
+                disconnected.set(true);
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /** Reads at most 8 KB at a time with a pause before each read. */
+    private static final class SlowStream extends InputStream {
+        private final InputStream in;
+        private final long delayMs;
+
+        SlowStream(InputStream in, long delayMs) {
+            this.in = in;
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return in.read(b, off, Math.min(len, 8 * 1024));
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void streamsEveryFrameToAFastViewer() throws Exception {
+        server.publish(jpeg(1, 3000), 3000);
+        Viewer viewer = new Viewer(0, true);
+        viewer.start();
+        // A new viewer starts with the latest frame
+        awaitTrue(() -> viewer.frames.get() == 1);
+        assertEquals("multipart/x-mixed-replace; boundary=" + MjpegServer.BOUNDARY, viewer.contentType);
+        for (int i = 2; i <= 20; i++) {
+            server.publish(jpeg(i, 1000 + i * 500), 1000 + i * 500);
+            int expected = i;
+            awaitTrue(() -> viewer.lastSequence.get() == expected);
+        }
+        assertEquals(20, viewer.frames.get());
+        assertFalse(viewer.corrupt.get());
+        assertEquals(0, server.getSkippedCount());
+        viewer.close();
+    }
+
+    @Test
+    public void snapshotIsTheLatestFrame() throws Exception {
+        URL snapshot = new URL("http://127.0.0.1:" + server.getPort() + MjpegServer.SNAPSHOT_PATH);
+        assertEquals(503, ((HttpURLConnection) snapshot.openConnection()).getResponseCode());
+        server.publish(jpeg(7, 5000), 5000);
+        server.publish(jpeg(8, 6000), 6000);
+        HttpURLConnection connection = (HttpURLConnection) snapshot.openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("image/jpeg", connection.getContentType());
+        byte[] body = new byte[6000];
+        try (DataInputStream in = new DataInputStream(connection.getInputStream())) {
+            in.readFully(body);
+            assertEquals(-1, in.read());
+        }
+        assertArrayEquals(Arrays.copyOf(jpeg(8, 6000), 6000), body);
+
+        URL other = new URL("http://127.0.0.1:" + server.getPort() + "/favicon.ico");
+        assertEquals(404, ((HttpURLConnection) other.openConnection()).getResponseCode());
+    }
+
+    /**
+     * Dozens of viewers at 30 fps with 80 KB frames, some reading slowly and
+     * some not at all. Fast viewers keep up, slow ones skip, stuck ones are
+     * dropped, and the capture thread never waits or copies more than once.
+     */
+    @Test
+    public void loadTestManyViewers() throws Exception {
+        int fastCount = 40;
+        int slowCount = 6;
+        int stuckCount = 2;
+        List<Viewer> fast = new ArrayList<>();
+        List<Viewer> slow = new ArrayList<>();
+        List<Viewer> stuck = new ArrayList<>();
+        for (int i = 0; i < fastCount; i++) {
+            fast.add(new Viewer(0, true));
+        }
+        for (int i = 0; i < slowCount; i++) {
+            slow.add(new Viewer(50, true));
+        }
+        for (int i = 0; i < stuckCount; i++) {
+            stuck.add(new Viewer(0, false));
+        }
+        List<Viewer> all = new ArrayList<>(fast);
+        all.addAll(slow);
+        all.addAll(stuck);
+        for (Viewer viewer : all) {
+            viewer.start();
+        }
+        awaitTrue(() -> server.getClientCount() == all.size());
+        assertEquals(all.size(), server.getClientCount());
+
+        int frames = (int) (MjpegServer.STALL_TIMEOUT_MS / 1000 + 2) * 30;
+        int size = 80 * 1024;
+        byte[][] jpegs = new byte[256][];
+        AtomicLong maxPublishNs = new AtomicLong();
+        long startNs = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            int sequence = i % 256;
+            if (jpegs[sequence] == null) {
+                jpegs[sequence] = jpeg(sequence, size);
+            }
+            long publishStartNs = System.nanoTime();
+            server.publish(jpegs[sequence], size);
+            maxPublishNs.set(Math.max(maxPublishNs.get(), System.nanoTime() - publishStartNs));
+            long nextNs = startNs + (i + 1) * 33_333_333L;
+            long sleepNs = nextNs - System.nanoTime();
+            if (sleepNs > 0) {
+                Thread.sleep(sleepNs / 1_000_000, (int) (sleepNs % 1_000_000));
+            }
+        }
+        Thread.sleep(300);
+        long elapsedMs = (System.nanoTime() - startNs) / 1_000_000;
+
+        int fastMin = Integer.MAX_VALUE;
+        for (Viewer viewer : fast) {
+            assertFalse(viewer.corrupt.get());
+            fastMin = Math.min(fastMin, viewer.frames.get());
+        }
+        int slowMax = 0;
+        for (Viewer viewer : slow) {
+            assertFalse(viewer.corrupt.get());
+            assertFalse(viewer.disconnected.get());
+            slowMax = Math.max(slowMax, viewer.frames.get());
+        }
+        System.out.println(server + ", " + frames + " frames of " + size / 1024 + " KB in " + elapsedMs
+                + " ms, fast viewers got at least " + fastMin + ", slow viewers at most " + slowMax
+                + ", slowest publish " + maxPublishNs.get() / 1000 + " us");
+
+        assertEquals(frames, server.getPublishedCount());
+        // One copy per frame into a handful of reused buffers, not one per viewer
+        assertTrue(server.getAllocatedFrameCount() <= 8);
+        assertTrue(maxPublishNs.get() < 50_000_000);
+        assertTrue("fast viewers got " + fastMin, fastMin >= frames * 8 / 10);
+        assertTrue("slow viewers got " + slowMax, slowMax < frames / 2);
+        assertTrue(server.getSkippedCount() > 0);
+        assertEquals(stuckCount, server.getStalledClientCount());
+        assertEquals(fastCount + slowCount, server.getClientCount());
+        for (Viewer viewer : all) {
+            viewer.close();
+        }
+    }
+}
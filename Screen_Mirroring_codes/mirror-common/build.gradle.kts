@@ -0,0 +1,14 @@
+// Plain Java classes shared by the Android apps and the desktop receiver.
+// Included as ":mirror-common" by the settings of each app that uses it.
+plugins {
+    `java-library`
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
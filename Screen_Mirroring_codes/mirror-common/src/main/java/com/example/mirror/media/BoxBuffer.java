@@ -0,0 +1,126 @@
+package com.example.mirror.media;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable big-endian buffer for building ISO BMFF boxes. A box is opened with
+ * {@link #start} and its size is filled in by {@link #end}, so nested boxes
+ * never need their sizes computed up front. Reused between fragments.
+ */
+public final class BoxBuffer {
+    private byte[] data;
+    private int size;
+
+    public BoxBuffer(int initialCapacity) {
+        data = new byte[initialCapacity];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Opens a box and returns its offset for {@link #end}. */
+    public int start(String type) {
+        int offset = size;
+        putInt(0);
+        putType(type);
+        return offset;
+    }
+
+    /** Opens a full box with version and flags. */
+    public int startFull(String type, int version, int flags) {
+        int offset = start(type);
+        putInt((version << 24) | (flags & 0xFFFFFF));
+        return offset;
+    }
+
+    public void end(int boxOffset) {
+        setInt(boxOffset, size - boxOffset);
+    }
+
+    public void putType(String type) {
+        put(type.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public void putByte(int value) {
+        ensure(1);
+        data[size++] = (byte) value;
+    }
+
+    public void putShort(int value) {
+        ensure(2);
+        data[size++] = (byte) (value >> 8);
+        data[size++] = (byte) value;
+    }
+
+    public void putInt(int value) {
+        ensure(4);
+        data[size++] = (byte) (value >> 24);
+        data[size++] = (byte) (value >> 16);
+        data[size++] = (byte) (value >> 8);
+        data[size++] = (byte) value;
+    }
+
+    public void putLong(long value) {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+
+    public void put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, data, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /** Copies bytes at an absolute offset of {@code src}, leaving its position unchanged. */
+    public void put(ByteBuffer src, int offset, int length) {
+        ensure(length);
+        ByteBuffer window = src.duplicate();
+        window.limit(offset + length).position(offset);
+        window.get(data, size, length);
+        size += length;
+    }
+
+    /** Copies everything written so far into {@code dst} at {@code offset}. */
+    public void copyTo(byte[] dst, int offset) {
+        System.arraycopy(data, 0, dst, offset, size);
+    }
+
+    public void putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            data[size++] = 0;
+        }
+    }
+
+    public void setInt(int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /** The boxes written so far, without copying. */
+    public ByteBuffer wrap() {
+        return ByteBuffer.wrap(data, 0, size);
+    }
+
+    public byte[] toByteArray() {
+        byte[] copy = new byte[size];
+        System.arraycopy(data, 0, copy, 0, size);
+        return copy;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > data.length) {
+            byte[] grown = new byte[Math.max(data.length * 2, size + extra)];
+            System.arraycopy(data, 0, grown, 0, size);
+            data = grown;
+        }
+    }
+}
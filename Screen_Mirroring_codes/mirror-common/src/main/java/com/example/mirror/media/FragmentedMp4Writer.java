@@ -0,0 +1,798 @@
+package com.example.mirror.media;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes encoded H.264, HEVC and AAC samples as a fragmented MP4: ftyp and a
+ * moov without samples first, then one moof/mdat pair per GOP. Unlike a plain
+ * MP4, whose sample tables only exist once the moov is written at the end,
+ * every completed fragment is playable even if the process dies before
+ * {@link #close()}; {@link #recover(FileChannel)} trims such a file back to its
+ * last complete fragment.
+ *
+ * Each fragment's media data is written before the moof that describes it, so
+ * a fragment cut short by the process dying looks like the zero tail of the
+ * preallocated file. The file grows in preallocated chunks, so
+ * {@code force(false)} does not have to persist a new file size each time,
+ * and is only called every few fragments: a dead process loses at most the
+ * fragment being collected, a power cut at most the fragments since the last
+ * force.
+ *
+ * Video samples are Annex-B access units as MediaCodec hands them out, and
+ * must come in decoding order without B-frames. An avc1 track keeps its
+ * parameter sets in the sample entry only; avc3 and hev1 tracks keep them in
+ * the key frames, for streams whose resolution changes midway.
+ */
+public class FragmentedMp4Writer implements Closeable {
+    public static final int VIDEO_TIMESCALE = 90000;
+    public static final long DEFAULT_PREALLOCATE_BYTES = 16L * 1024 * 1024;
+    public static final int DEFAULT_FORCE_FRAGMENTS = 4;
+    public static final long DEFAULT_FORCE_BYTES = 8L * 1024 * 1024;
+    // A fragment is cut before a key frame, or earlier if the GOP runs long
+    public static final long MAX_FRAGMENT_DURATION_US = 2_000_000;
+    private static final int MAX_FRAGMENT_BYTES = 32 * 1024 * 1024;
+    private static final int MOVIE_TIMESCALE = 1000;
+    public static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    public static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    public static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    public static final int TRUN_DATA_OFFSET_DURATION_SIZE_FLAGS = 0x000701;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** Reserves file space ahead of the fragments. */
+    public interface Allocator {
+        void allocate(FileChannel channel, long offset, long length) throws IOException;
+    }
+
+    /** Extends the file by writing its last byte, which leaves a sparse file on most file systems. */
+    public static final Allocator EXTEND = (channel, offset, length) ->
+            channel.write(ByteBuffer.allocate(1), offset + length - 1);
+
+    /** One track, with the samples waiting for the next fragment. */
+    public static final class Track {
+        private enum Format { AVC1, AVC3, HEV1, AAC }
+
+        private final Format format;
+        private final int timescale;
+        private final int width;
+        private final int height;
+        private final byte[] sampleEntry;
+        private int id;
+        private byte[] data = new byte[64 * 1024];
+        private int dataSize;
+        private long[] ptsUs = new long[64];
+        private int[] sizes = new int[64];
+        private boolean[] keys = new boolean[64];
+        private int count;
+        private boolean keyFrameSeen;
+        private long lastDuration;
+
+        private Track(Format format, int timescale, int width, int height, byte[] sampleEntry) {
+            this.format = format;
+            this.timescale = timescale;
+            this.width = width;
+            this.height = height;
+            this.sampleEntry = sampleEntry;
+        }
+
+        /**
+         * An H.264 track whose parameter sets are only in the sample entry;
+         * the ones in the samples are dropped.
+         *
+         * @param sps csd-0 of the encoder without its start code, see {@link #stripStartCode}
+         * @param pps csd-1 of the encoder without its start code
+         */
+        public static Track avc(int width, int height, byte[] sps, byte[] pps) {
+            BoxBuffer box = new BoxBuffer(256);
+            int entry = startVisualEntry(box, "avc1", width, height);
+            putAvcC(box, sps, pps);
+            box.end(entry);
+            return new Track(Format.AVC1, VIDEO_TIMESCALE, width, height, box.toByteArray());
+        }
+
+        /**
+         * An H.264 track that keeps the parameter sets in its key frames, so the
+         * resolution may change midway. The sample entry describes the start.
+         */
+        public static Track avcInBand(int width, int height, byte[] sps, byte[] pps) {
+            BoxBuffer box = new BoxBuffer(256);
+            int entry = startVisualEntry(box, "avc3", width, height);
+            putAvcC(box, sps, pps);
+            box.end(entry);
+            return new Track(Format.AVC3, VIDEO_TIMESCALE, width, height, box.toByteArray());
+        }
+
+        /**
+         * An HEVC track that keeps the parameter sets in its key frames, like
+         * {@link #avcInBand}.
+         *
+         * @param profileTierLevel general profile_tier_level of the SPS, 12 bytes
+         */
+        public static Track hevcInBand(int width, int height, byte[] vps, byte[] sps, byte[] pps,
+                                       byte[] profileTierLevel) {
+            BoxBuffer box = new BoxBuffer(256);
+            int entry = startVisualEntry(box, "hev1", width, height);
+            putHvcC(box, vps, sps, pps, profileTierLevel);
+            box.end(entry);
+            return new Track(Format.HEV1, VIDEO_TIMESCALE, width, height, box.toByteArray());
+        }
+
+        /** @param audioSpecificConfig csd-0 of the AAC encoder */
+        public static Track aac(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+            BoxBuffer box = new BoxBuffer(128);
+            int mp4a = box.start("mp4a");
+            box.putZeros(6);
+            box.putShort(1); // data_reference_index
+            box.putZeros(8);
+            box.putShort(channelCount);
+            box.putShort(16); // sample size
+            box.putInt(0);
+            box.putInt(sampleRate << 16);
+            int esds = box.startFull("esds", 0, 0);
+            int config = audioSpecificConfig.length;
+            box.putByte(0x03); // ES_Descriptor
+            box.putByte(3 + 15 + 2 + config + 3);
+            box.putShort(0); // ES_ID
+            box.putByte(0);
+            box.putByte(0x04); // DecoderConfigDescriptor
+            box.putByte(13 + 2 + config);
+            box.putByte(0x40); // MPEG-4 audio
+            box.putByte(0x15); // audio stream
+            box.putZeros(3 + 4 + 4); // buffer size, max and average bitrate unknown
+            box.putByte(0x05); // DecoderSpecificInfo
+            box.putByte(config);
+            box.put(audioSpecificConfig);
+            box.putByte(0x06); // SLConfigDescriptor
+            box.putByte(1);
+            box.putByte(2);
+            box.end(esds);
+            box.end(mp4a);
+            return new Track(Format.AAC, sampleRate, 0, 0, box.toByteArray());
+        }
+
+        private static int startVisualEntry(BoxBuffer box, String type, int width, int height) {
+            int entry = box.start(type);
+            box.putZeros(6);
+            box.putShort(1); // data_reference_index
+            box.putZeros(16);
+            box.putShort(width);
+            box.putShort(height);
+            box.putInt(0x00480000); // 72 dpi
+            box.putInt(0x00480000);
+            box.putInt(0);
+            box.putShort(1); // frame_count
+            box.putZeros(32); // compressorname
+            box.putShort(0x0018); // depth
+            box.putShort(0xFFFF);
+            return entry;
+        }
+
+        private static void putAvcC(BoxBuffer box, byte[] sps, byte[] pps) {
+            int avcC = box.start("avcC");
+            box.putByte(1);
+            box.putByte(sps[1]);
+            box.putByte(sps[2]);
+            box.putByte(sps[3]);
+            box.putByte(0xFF); // 4-byte NAL unit lengths
+            box.putByte(0xE1); // one SPS
+            box.putShort(sps.length);
+            box.put(sps);
+            box.putByte(1); // one PPS
+            box.putShort(pps.length);
+            box.put(pps);
+            box.end(avcC);
+        }
+
+        private static void putHvcC(BoxBuffer box, byte[] vps, byte[] sps, byte[] pps, byte[] profileTierLevel) {
+            int hvcC = box.start("hvcC");
+            box.putByte(1);
+            // general_profile_space to general_level_idc, copied from the SPS's profile_tier_level
+            box.put(profileTierLevel);
+            box.putShort(0xF000); // min_spatial_segmentation_idc
+            box.putByte(0xFC); // parallelismType unknown
+            box.putByte(0xFD); // 4:2:0
+            box.putByte(0xF8); // 8-bit luma
+            box.putByte(0xF8); // 8-bit chroma
+            box.putShort(0); // avgFrameRate unknown
+            box.putByte(0x0F); // one temporal layer, nested, 4-byte NAL unit lengths
+            byte[][] nals = {vps, sps, pps};
+            int[] types = {NalScanner.HEVC_TYPE_VPS, NalScanner.HEVC_TYPE_SPS, NalScanner.HEVC_TYPE_PPS};
+            box.putByte(nals.length);
+            for (int i = 0; i < nals.length; i++) {
+                // array_completeness is 0, the stream repeats them
+                box.putByte(types[i]);
+                box.putShort(1);
+                box.putShort(nals[i].length);
+                box.put(nals[i]);
+            }
+            box.end(hvcC);
+        }
+
+        private boolean isVideo() {
+            return format != Format.AAC;
+        }
+
+        private void append(ByteBuffer sample, NalScanner nals, long pts, boolean key) {
+            growSamples();
+            int start = dataSize;
+            if (isVideo()) {
+                for (int i = 0; i < nals.count(); i++) {
+                    appendNal(sample, nals.offset(i), nals.length(i));
+                }
+            } else {
+                appendBytes(sample, sample.position(), sample.remaining());
+            }
+            ptsUs[count] = pts;
+            sizes[count] = dataSize - start;
+            keys[count] = key;
+            count++;
+        }
+
+        // Start codes become 4-byte lengths
+        private void appendNal(ByteBuffer src, int offset, int length) {
+            if (length <= 0) {
+                return;
+            }
+            byte header = src.get(offset);
+            if (isDelimiter(format == Format.HEV1, header)) {
+                return;
+            }
+            int avcType = NalScanner.avcType(header);
+            if (format == Format.AVC1 && (avcType == NalScanner.AVC_TYPE_SPS || avcType == NalScanner.AVC_TYPE_PPS)) {
+                // Already in the avcC
+                return;
+            }
+            growData(4 + length);
+            data[dataSize++] = (byte) (length >> 24);
+            data[dataSize++] = (byte) (length >> 16);
+            data[dataSize++] = (byte) (length >> 8);
+            data[dataSize++] = (byte) length;
+            appendBytes(src, offset, length);
+        }
+
+        private void appendBytes(ByteBuffer src, int offset, int length) {
+            growData(length);
+            ByteBuffer window = src.duplicate();
+            window.limit(offset + length).position(offset);
+            window.get(data, dataSize, length);
+            dataSize += length;
+        }
+
+        // Drops the first n samples once they are written
+        private void removeFirst(int n) {
+            if (n == 0) {
+                return;
+            }
+            int bytes = bytesOf(n);
+            System.arraycopy(data, bytes, data, 0, dataSize - bytes);
+            dataSize -= bytes;
+            System.arraycopy(ptsUs, n, ptsUs, 0, count - n);
+            System.arraycopy(sizes, n, sizes, 0, count - n);
+            System.arraycopy(keys, n, keys, 0, count - n);
+            count -= n;
+        }
+
+        private int bytesOf(int n) {
+            int bytes = 0;
+            for (int i = 0; i < n; i++) {
+                bytes += sizes[i];
+            }
+            return bytes;
+        }
+
+        private void growData(int extra) {
+            if (dataSize + extra > data.length) {
+                byte[] grown = new byte[Math.max(data.length * 2, dataSize + extra)];
+                System.arraycopy(data, 0, grown, 0, dataSize);
+                data = grown;
+            }
+        }
+
+        private void growSamples() {
+            if (count == ptsUs.length) {
+                int capacity = count * 2;
+                long[] grownPts = new long[capacity];
+                int[] grownSizes = new int[capacity];
+                boolean[] grownKeys = new boolean[capacity];
+                System.arraycopy(ptsUs, 0, grownPts, 0, count);
+                System.arraycopy(sizes, 0, grownSizes, 0, count);
+                System.arraycopy(keys, 0, grownKeys, 0, count);
+                ptsUs = grownPts;
+                sizes = grownSizes;
+                keys = grownKeys;
+            }
+        }
+    }
+
+    /** Whether a NAL unit is an access unit delimiter, which carries nothing an MP4 needs. */
+    public static boolean isDelimiter(boolean hevc, byte nalHeader) {
+        return hevc
+                ? NalScanner.hevcType(nalHeader) == NalScanner.HEVC_TYPE_AUD
+                : NalScanner.avcType(nalHeader) == NalScanner.AVC_TYPE_AUD;
+    }
+
+    /**
+     * The ftyp and sample-less moov describing a single track, as an
+     * initialization segment of its own.
+     */
+    public static byte[] initSegment(Track track) {
+        track.id = 1;
+        BoxBuffer box = new BoxBuffer(1024);
+        putInitSegment(box, new Track[]{track});
+        return box.toByteArray();
+    }
+
+    private final FileChannel channel;
+    private final Track[] tracks;
+    private int trackCount;
+    private Allocator allocator = EXTEND;
+    private long preallocateBytes = DEFAULT_PREALLOCATE_BYTES;
+    private int forceFragments = DEFAULT_FORCE_FRAGMENTS;
+    private long forceBytes = DEFAULT_FORCE_BYTES;
+    private final BoxBuffer box = new BoxBuffer(4096);
+    private final NalScanner scanner = new NalScanner();
+    private final int[] flushCounts;
+    private final int[] dataOffsetFields;
+    private final int[] payloadOffsets;
+    private final ByteBuffer[] payload;
+    private boolean headerWritten;
+    private boolean closed;
+    private long startUs = Long.MIN_VALUE;
+    private long position;
+    private long allocated;
+    private int sequenceNumber;
+    private int unforcedFragments;
+    private long unforcedBytes;
+    private int fragmentCount;
+    private long droppedSamples;
+    private int forceCount;
+    private long forceTimeNs;
+    private long maxForceTimeNs;
+
+    /**
+     * @param channel    an empty file, owned by the writer from now on
+     * @param trackCount tracks that will be added; nothing is written before all are known
+     */
+    public FragmentedMp4Writer(FileChannel channel, int trackCount) {
+        this.channel = channel;
+        tracks = new Track[trackCount];
+        flushCounts = new int[trackCount];
+        dataOffsetFields = new int[trackCount];
+        payloadOffsets = new int[trackCount];
+        payload = new ByteBuffer[trackCount];
+    }
+
+    /** How file space is reserved, and in steps of how many bytes; 0 bytes grows the file with each write. */
+    public synchronized void setPreallocation(Allocator allocator, long bytes) {
+        this.allocator = allocator;
+        this.preallocateBytes = bytes;
+    }
+
+    /** Forces the data to storage after this many fragments or bytes, whichever comes first. */
+    public synchronized void setForceInterval(int fragments, long bytes) {
+        this.forceFragments = fragments;
+        this.forceBytes = bytes;
+    }
+
+    /** Adds a track once its encoder reported its format; returns the index for {@link #writeSample}. */
+    public synchronized int addTrack(Track track) {
+        if (trackCount == tracks.length) {
+            throw new IllegalStateException("All " + tracks.length + " tracks already added");
+        }
+        track.id = trackCount + 1;
+        tracks[trackCount] = track;
+        return trackCount++;
+    }
+
+    /** Same as {@link #writeSample(int, ByteBuffer, NalScanner, long, boolean)}, scanning video here. */
+    public void writeSample(int trackIndex, ByteBuffer sample, long presentationTimeUs,
+                            boolean keyFrame) throws IOException {
+        writeSample(trackIndex, sample, null, presentationTimeUs, keyFrame);
+    }
+
+    /**
+     * Queues one sample for the current fragment, writing the previous fragment
+     * first if this sample starts a new one. Video before the first key frame
+     * is dropped.
+     *
+     * @param nals NAL units of a video {@code sample} relative to the start of its buffer, or null to scan it here
+     */
+    public synchronized void writeSample(int trackIndex, ByteBuffer sample, NalScanner nals, long presentationTimeUs,
+                                         boolean keyFrame) throws IOException {
+        if (closed) {
+            return;
+        }
+        Track track = tracks[trackIndex];
+        if (track.isVideo() && !track.keyFrameSeen) {
+            if (!keyFrame) {
+                droppedSamples++;
+                return;
+            }
+            track.keyFrameSeen = true;
+        }
+        if (startUs == Long.MIN_VALUE) {
+            startUs = presentationTimeUs;
+        }
+        if (track.count > 0 && ((track.isVideo() && keyFrame)
+                || presentationTimeUs - track.ptsUs[0] >= MAX_FRAGMENT_DURATION_US
+                || track.dataSize >= MAX_FRAGMENT_BYTES)) {
+            writeFragment(trackIndex, presentationTimeUs, false);
+        }
+        if (nals == null && track.isVideo()) {
+            scanner.scan(sample);
+            nals = scanner;
+        }
+        track.append(sample, nals, presentationTimeUs, keyFrame);
+    }
+
+    /** Writes the last fragment, trims the preallocated tail and closes the file. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeFragment(-1, 0, true);
+            channel.truncate(position);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** Bytes of complete fragments, also the size the file is trimmed to on close. */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    public synchronized int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    public synchronized int getForceCount() {
+        return forceCount;
+    }
+
+    public synchronized long getForceTimeNs() {
+        return forceTimeNs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FragmentedMp4Writer: " + fragmentCount + " fragments, " + position + " B"
+                + ", " + forceCount + " forces in " + forceTimeNs / 1_000_000 + " ms (max "
+                + maxForceTimeNs / 1_000_000 + " ms), dropped " + droppedSamples + " samples before the first key frame";
+    }
+
+    /**
+     * Trims a recording the writer never closed back to its last complete
+     * fragment and returns its new size, 0 if not even the moov made it.
+     */
+    public static long recover(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long pos = 0;
+        long end = 0;
+        long moof = -1;
+        boolean moov = false;
+        while (pos + 8 <= size) {
+            header.clear().limit(8);
+            readFully(channel, header, pos);
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(header.array(), 4, 4, StandardCharsets.US_ASCII);
+            int headerSize = 8;
+            if (boxSize == 1 && pos + 16 <= size) {
+                header.limit(16);
+                readFully(channel, header, pos + 8);
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            }
+            // Zeros of the preallocated tail or of a fragment whose moof never got written
+            if (boxSize < headerSize || pos + boxSize > size) {
+                break;
+            }
+            if (type.equals("moov")) {
+                moov = true;
+                end = pos + boxSize;
+            } else if (type.equals("moof")) {
+                moof = pos;
+            } else if (type.equals("mdat") && moof >= 0) {
+                end = pos + boxSize;
+                moof = -1;
+            } else if (!type.equals("ftyp")) {
+                break;
+            }
+            pos += boxSize;
+        }
+        if (!moov) {
+            end = 0;
+        }
+        channel.truncate(end);
+        channel.force(true);
+        return end;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, at);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            at += read;
+        }
+    }
+
+    private long ticks(Track track, long ptsUs) {
+        return (Math.max(0, ptsUs - startUs) * track.timescale + 500_000) / 1_000_000;
+    }
+
+    /**
+     * Writes the pending samples. Every track but the one that triggered the
+     * fragment keeps its last sample, whose duration is only known once the
+     * next one arrives; the trigger track's last sample ends at nextPtsUs.
+     */
+    private void writeFragment(int triggerTrack, long nextPtsUs, boolean last) throws IOException {
+        if (!headerWritten) {
+            if (trackCount < tracks.length) {
+                // Keep collecting until every encoder has reported its format
+                return;
+            }
+            writeHeader();
+        }
+        box.clear();
+        int moof = box.start("moof");
+        int mfhd = box.startFull("mfhd", 0, 0);
+        box.putInt(sequenceNumber + 1);
+        box.end(mfhd);
+        int payloadSize = 0;
+        for (int i = 0; i < tracks.length; i++) {
+            Track track = tracks[i];
+            int n = last || i == triggerTrack ? track.count : Math.max(0, track.count - 1);
+            flushCounts[i] = n;
+            if (n == 0) {
+                continue;
+            }
+            int traf = box.start("traf");
+            int tfhd = box.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            box.putInt(track.id);
+            box.end(tfhd);
+            int tfdt = box.startFull("tfdt", 1, 0);
+            box.putLong(ticks(track, track.ptsUs[0]));
+            box.end(tfdt);
+            int trun = box.startFull("trun", 0, TRUN_DATA_OFFSET_DURATION_SIZE_FLAGS);
+            box.putInt(n);
+            dataOffsetFields[i] = box.size();
+            box.putInt(0);
+            for (int s = 0; s < n; s++) {
+                long duration;
+                if (s + 1 < track.count) {
+                    duration = ticks(track, track.ptsUs[s + 1]) - ticks(track, track.ptsUs[s]);
+                } else if (i == triggerTrack) {
+                    duration = ticks(track, nextPtsUs) - ticks(track, track.ptsUs[s]);
+                } else {
+                    duration = track.lastDuration;
+                }
+                if (duration <= 0) {
+                    duration = Math.max(1, track.lastDuration);
+                }
+                track.lastDuration = duration;
+                box.putInt((int) duration);
+                box.putInt(track.sizes[s]);
+                box.putInt(track.keys[s] || !track.isVideo() ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            box.end(trun);
+            box.end(traf);
+            payloadOffsets[i] = payloadSize;
+            int bytes = track.bytesOf(n);
+            payload[i] = ByteBuffer.wrap(track.data, 0, bytes);
+            payloadSize += bytes;
+        }
+        box.end(moof);
+        if (payloadSize == 0) {
+            return;
+        }
+        int moofSize = box.size();
+        for (int i = 0; i < tracks.length; i++) {
+            if (flushCounts[i] > 0) {
+                box.setInt(dataOffsetFields[i], moofSize + 8 + payloadOffsets[i]);
+            } else {
+                payload[i] = EMPTY;
+            }
+        }
+        box.putInt(8 + payloadSize);
+        box.putType("mdat");
+
+        long fragmentSize = box.size() + (long) payloadSize;
+        reserve(position + fragmentSize);
+        // Media data first, the moof that makes it part of the file last
+        channel.position(position + box.size());
+        long remaining = payloadSize;
+        while (remaining > 0) {
+            remaining -= channel.write(payload);
+        }
+        writeFully(box.wrap(), position);
+        position += fragmentSize;
+        sequenceNumber++;
+        fragmentCount++;
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i].removeFirst(flushCounts[i]);
+            payload[i] = null;
+        }
+
+        unforcedFragments++;
+        unforcedBytes += fragmentSize;
+        if (unforcedFragments >= forceFragments || unforcedBytes >= forceBytes) {
+            long startNs = System.nanoTime();
+            channel.force(false);
+            long elapsedNs = System.nanoTime() - startNs;
+            forceCount++;
+            forceTimeNs += elapsedNs;
+            maxForceTimeNs = Math.max(maxForceTimeNs, elapsedNs);
+            unforcedFragments = 0;
+            unforcedBytes = 0;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        box.clear();
+        putInitSegment(box, tracks);
+        reserve(box.size());
+        writeFully(box.wrap(), 0);
+        position = box.size();
+        headerWritten = true;
+    }
+
+    private static void putInitSegment(BoxBuffer box, Track[] tracks) {
+        int ftyp = box.start("ftyp");
+        box.putType("iso6");
+        box.putInt(0);
+        box.putType("iso6");
+        box.putType("isom");
+        box.putType("avc1");
+        box.putType("hvc1");
+        box.putType("mp41");
+        box.end(ftyp);
+
+        int moov = box.start("moov");
+        int mvhd = box.startFull("mvhd", 0, 0);
+        box.putInt(0); // creation and modification time
+        box.putInt(0);
+        box.putInt(MOVIE_TIMESCALE);
+        box.putInt(0); // duration, the fragments carry it
+        box.putInt(0x00010000); // rate 1.0
+        box.putShort(0x0100); // volume 1.0
+        box.putZeros(10);
+        putMatrix(box);
+        box.putZeros(24);
+        box.putInt(tracks.length + 1); // next_track_ID
+        box.end(mvhd);
+        for (Track track : tracks) {
+            putTrak(box, track);
+        }
+        int mvex = box.start("mvex");
+        for (Track track : tracks) {
+            int trex = box.startFull("trex", 0, 0);
+            box.putInt(track.id);
+            box.putInt(1); // sample description index
+            box.putInt(0);
+            box.putInt(0);
+            box.putInt(0);
+            box.end(trex);
+        }
+        box.end(mvex);
+        box.end(moov);
+    }
+
+    private static void putTrak(BoxBuffer box, Track track) {
+        int trak = box.start("trak");
+        int tkhd = box.startFull("tkhd", 0, 3); // enabled, in movie
+        box.putInt(0);
+        box.putInt(0);
+        box.putInt(track.id);
+        box.putInt(0);
+        box.putInt(0); // duration
+        box.putZeros(8);
+        box.putShort(0); // layer
+        box.putShort(0); // alternate group
+        box.putShort(track.isVideo() ? 0 : 0x0100); // volume
+        box.putShort(0);
+        putMatrix(box);
+        box.putInt(track.width << 16);
+        box.putInt(track.height << 16);
+        box.end(tkhd);
+
+        int mdia = box.start("mdia");
+        int mdhd = box.startFull("mdhd", 0, 0);
+        box.putInt(0);
+        box.putInt(0);
+        box.putInt(track.timescale);
+        box.putInt(0);
+        box.putShort(0x55C4); // "und"
+        box.putShort(0);
+        box.end(mdhd);
+        int hdlr = box.startFull("hdlr", 0, 0);
+        box.putInt(0);
+        box.putType(track.isVideo() ? "vide" : "soun");
+        box.putZeros(12);
+        box.put((track.isVideo() ? "VideoHandler\0" : "SoundHandler\0").getBytes(StandardCharsets.US_ASCII));
+        box.end(hdlr);
+
+        int minf = box.start("minf");
+        if (track.isVideo()) {
+            int vmhd = box.startFull("vmhd", 0, 1);
+            box.putZeros(8);
+            box.end(vmhd);
+        } else {
+            int smhd = box.startFull("smhd", 0, 0);
+            box.putZeros(4);
+            box.end(smhd);
+        }
+        int dinf = box.start("dinf");
+        int dref = box.startFull("dref", 0, 0);
+        box.putInt(1);
+        box.end(box.startFull("url ", 0, 1)); // media in this file
+        box.end(dref);
+        box.end(dinf);
+
+        int stbl = box.start("stbl");
+        int stsd = box.startFull("stsd", 0, 0);
+        box.putInt(1);
+        box.put(track.sampleEntry);
+        box.end(stsd);
+        // The samples are all in the fragments
+        for (String empty : new String[]{"stts", "stsc", "stco"}) {
+            int table = box.startFull(empty, 0, 0);
+            box.putInt(0);
+            box.end(table);
+        }
+        int stsz = box.startFull("stsz", 0, 0);
+        box.putInt(0);
+        box.putInt(0);
+        box.end(stsz);
+        box.end(stbl);
+        box.end(minf);
+        box.end(mdia);
+        box.end(trak);
+    }
+
+    private static void putMatrix(BoxBuffer box) {
+        int[] identity = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int value : identity) {
+            box.putInt(value);
+        }
+    }
+
+    private void reserve(long end) throws IOException {
+        if (preallocateBytes <= 0 || end <= allocated) {
+            return;
+        }
+        long length = Math.max(preallocateBytes, end - allocated);
+        allocator.allocate(channel, allocated, length);
+        allocated += length;
+    }
+
+    private void writeFully(ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+    }
+
+    /** Copies a csd buffer without its leading start code. */
+    public static byte[] stripStartCode(ByteBuffer csd) {
+        ByteBuffer buffer = csd.duplicate();
+        int skip = 0;
+        while (skip < buffer.remaining() && buffer.get(buffer.position() + skip) == 0) {
+            skip++;
+        }
+        if (skip >= 2 && skip < buffer.remaining() && buffer.get(buffer.position() + skip) == 1) {
+            buffer.position(buffer.position() + skip + 1);
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
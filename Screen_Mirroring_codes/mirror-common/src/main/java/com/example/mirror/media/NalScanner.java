@@ -0,0 +1,164 @@
+package com.example.mirror.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the NAL units of an Annex-B access unit in place. One {@link #scan}
+ * per encoder output buffer records offset and length of every NAL unit into
+ * reusable int arrays, so the packetizer and any other consumer of the same
+ * frame can walk the result without copying or re-parsing the buffer.
+ *
+ * H.264 and HEVC share the start codes, so scanning works for both, but their
+ * NAL unit headers differ: use {@link #avcType} and the {@code AVC_} constants
+ * for H.264 only, {@link #hevcType} and the {@code HEVC_} constants for HEVC
+ * only.
+ *
+ * Offsets are absolute indexes into the scanned buffer and exclude the start
+ * code. An instance is not thread-safe and allocates only when a frame has more
+ * NAL units than ever seen before.
+ */
+public final class NalScanner {
+    public static final int AVC_TYPE_NON_IDR = 1;
+    public static final int AVC_TYPE_IDR = 5;
+    public static final int AVC_TYPE_SEI = 6;
+    public static final int AVC_TYPE_SPS = 7;
+    public static final int AVC_TYPE_PPS = 8;
+    public static final int AVC_TYPE_AUD = 9;
+    public static final int HEVC_TYPE_VPS = 32;
+    public static final int HEVC_TYPE_SPS = 33;
+    public static final int HEVC_TYPE_PPS = 34;
+    public static final int HEVC_TYPE_AUD = 35;
+
+    private ByteBuffer buffer;
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private int count;
+
+    /**
+     * Scans the bytes between position and limit of {@code buffer} without
+     * changing its position. Bytes before the first start code are ignored.
+     *
+     * @return number of NAL units found
+     */
+    public int scan(ByteBuffer buffer) {
+        return scan(buffer, buffer.position(), buffer.limit());
+    }
+
+    public int scan(ByteBuffer buffer, int from, int limit) {
+        this.buffer = buffer;
+        count = 0;
+        int nalStart = -1;
+        int i = from;
+        while (i + 2 < limit) {
+            // The third byte of a start code is 1, anything above lets us skip ahead
+            int b2 = buffer.get(i + 2);
+            if (b2 > 1 || b2 < 0) {
+                i += 3;
+            } else if (b2 == 0) {
+                i++;
+            } else if (buffer.get(i + 1) != 0 || buffer.get(i) != 0) {
+                i += 3;
+            } else {
+                if (nalStart >= 0) {
+                    // Zero bytes in front of 00 00 01 belong to the start code, not the NAL
+                    int nalEnd = i;
+                    while (nalEnd > nalStart && buffer.get(nalEnd - 1) == 0) {
+                        nalEnd--;
+                    }
+                    add(nalStart, nalEnd - nalStart);
+                }
+                nalStart = i + 3;
+                i += 3;
+            }
+        }
+        if (nalStart >= 0 && nalStart < limit) {
+            add(nalStart, limit - nalStart);
+        }
+        return count;
+    }
+
+    private void add(int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (count == offsets.length) {
+            int[] newOffsets = new int[count * 2];
+            int[] newLengths = new int[count * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            System.arraycopy(lengths, 0, newLengths, 0, count);
+            offsets = newOffsets;
+            lengths = newLengths;
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        count++;
+    }
+
+    /**
+     * Takes over the result of another scanner after its buffer was copied to
+     * {@code buffer}, with every offset moved by {@code shift}.
+     */
+    public void copyFrom(NalScanner other, ByteBuffer buffer, int shift) {
+        this.buffer = buffer;
+        count = 0;
+        for (int i = 0; i < other.count; i++) {
+            add(other.offsets[i] + shift, other.lengths[i]);
+        }
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int offset(int index) {
+        return offsets[index];
+    }
+
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    /** The H.264 nal_unit_type of the NAL unit at {@code index}; meaningless for HEVC. */
+    public int avcType(int index) {
+        return avcType(buffer.get(offsets[index]));
+    }
+
+    /** The HEVC nal_unit_type of the NAL unit at {@code index}; meaningless for H.264. */
+    public int hevcType(int index) {
+        return hevcType(buffer.get(offsets[index]));
+    }
+
+    /** H.264 nal_unit_type of a NAL unit starting with {@code header}. */
+    public static int avcType(byte header) {
+        return header & 0x1F;
+    }
+
+    /** HEVC nal_unit_type of a NAL unit starting with {@code header}. */
+    public static int hevcType(byte header) {
+        return (header >> 1) & 0x3F;
+    }
+
+    /** Index of the first NAL unit of the given H.264 type, or -1. Only valid for H.264. */
+    public int indexOfAvcType(int type) {
+        for (int i = 0; i < count; i++) {
+            if (avcType(i) == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Whether an H.264 access unit holds an IDR slice. Only valid for H.264. */
+    public boolean containsAvcIdr() {
+        return indexOfAvcType(AVC_TYPE_IDR) >= 0;
+    }
+
+    /** Copies the NAL unit at {@code index} without its start code. */
+    public byte[] copy(int index) {
+        byte[] nal = new byte[lengths[index]];
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offsets[index] + lengths[index]).position(offsets[index]);
+        view.get(nal);
+        return nal;
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.mirror.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * NTP-style clock exchange on the port-5090 connection. The receiver writes a
+ * request carrying its clock (t1) back to the sender. The sender notes when it
+ * read the request (t2) and answers with a {@link FrameHeader#TYPE_CONTROL}
+ * frame holding t1, t2 and the time it wrote the reply (t3). With the arrival
+ * time t4 the receiver gets the offset of the sender's clock,
+ * ((t2 - t1) + (t3 - t4)) / 2, and the round trip, (t4 - t1) - (t3 - t2).
+ *
+ * All times are microseconds on each side's monotonic clock.
+ * <pre>
+ *   request:        magic:u16 "SM"  version:u8  type:u8  t1:u64
+ *   reply payload:  t1:u64  t2:u64  t3:u64
+ * </pre>
+ */
+public final class ClockSync {
+    public static final int REQUEST_SIZE = 12;
+    public static final int REPLY_SIZE = 24;
+    private static final int VERSION = 1;
+    private static final int TYPE_REQUEST = 1;
+
+    private ClockSync() {
+    }
+
+    public static void writeRequest(ByteBuffer buffer, long t1) {
+        buffer.putShort((short) FrameHeader.MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) TYPE_REQUEST);
+        buffer.putLong(t1);
+    }
+
+    /** Reads a request of {@link #REQUEST_SIZE} bytes and returns its t1. */
+    public static long readRequest(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < REQUEST_SIZE || (buffer.getShort() & 0xFFFF) != FrameHeader.MAGIC) {
+            throw new IOException("Bad clock request");
+        }
+        buffer.get();
+        if (buffer.get() != TYPE_REQUEST) {
+            throw new IOException("Unknown control request");
+        }
+        return buffer.getLong();
+    }
+
+    public static void writeReply(ByteBuffer buffer, long t1, long t2, long t3) {
+        buffer.putLong(t1);
+        buffer.putLong(t2);
+        buffer.putLong(t3);
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.mirror.protocol;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * ByteArrayOutputStream that gives access to its internal array, so the
+ * compressed frame can be sent without the copy made by toByteArray().
+ */
+public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public ExposedByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+    /** The backing array; only the first {@link #size()} bytes are valid. */
+    public byte[] buffer() {
+        return buf;
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.mirror.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Header written in front of every frame on the port-5090 stream. Plain Java
+ * in the mirror-common module, so the same class serves the ScreenStreaming
+ * sender and the ScreenReceiver viewer.
+ *
+ * Layout, all values big-endian:
+ * <pre>
+ *   magic:u16 "SM"  version:u8  headerLength:u8  frameType:u8  codec:u8  flags:u16
+ *   width:u16  height:u16  sequence:u32  captureTimeUs:u64  payloadLength:u32
+ *   version 2:  encodeDoneUs:u32  enqueueUs:u32  sendUs:u32
+ * </pre>
+ * The version 2 stamps are offsets from the capture time on the sender's
+ * clock, so the receiver can split the latency of a frame into stages.
+ * Readers skip header bytes beyond the ones they know, so later versions can
+ * append fields. The legacy stream, a bare 4-byte length before each JPEG, can
+ * never start with the magic because that would be a frame of over 1 GB.
+ *
+ * Instances are mutable and meant to be reused for every frame.
+ */
+public final class FrameHeader {
+    public static final int MAGIC = 0x534D; // "SM"
+    public static final int VERSION = 2;
+    public static final int SIZE_V1 = 28;
+    public static final int SIZE = 40;
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+    /** Frame can be shown on its own. */
+    public static final int TYPE_KEY = 1;
+    /** Frame only updates the previous ones. */
+    public static final int TYPE_DELTA = 2;
+    /** Not a picture, the payload belongs to the control exchange, see {@link ClockSync}. */
+    public static final int TYPE_CONTROL = 3;
+
+    public static final int CODEC_JPEG = 1;
+    /** {@link TileDeltaEncoder} message with JPEG tiles. */
+    public static final int CODEC_TILES_JPEG = 2;
+    /** {@link TileDeltaEncoder} message with raw RGBA tiles. */
+    public static final int CODEC_TILES_RAW = 3;
+    /** Reply to a {@link ClockSync} request. */
+    public static final int CODEC_CLOCK_SYNC = 16;
+
+    /** Value of a stamp the sender did not record. */
+    public static final int NO_STAMP = -1;
+
+    private int version = VERSION;
+    private int frameType = TYPE_KEY;
+    private int codec = CODEC_JPEG;
+    private int flags;
+    private int width;
+    private int height;
+    private long sequence;
+    private long captureTimeUs;
+    private int payloadLength;
+    private int encodeDoneUs = NO_STAMP;
+    private int enqueueUs = NO_STAMP;
+    private int sendUs = NO_STAMP;
+
+    public FrameHeader set(int frameType, int codec, int flags, int width, int height, long sequence,
+                           long captureTimeUs, int payloadLength) {
+        this.version = VERSION;
+        this.frameType = frameType;
+        this.codec = codec;
+        this.flags = flags;
+        this.width = width;
+        this.height = height;
+        this.sequence = sequence;
+        this.captureTimeUs = captureTimeUs;
+        this.payloadLength = payloadLength;
+        this.encodeDoneUs = NO_STAMP;
+        this.enqueueUs = NO_STAMP;
+        this.sendUs = NO_STAMP;
+        return this;
+    }
+
+    /** Sets the stage stamps, each in microseconds after the capture time or {@link #NO_STAMP}. */
+    public FrameHeader setStamps(int encodeDoneUs, int enqueueUs, int sendUs) {
+        this.encodeDoneUs = encodeDoneUs;
+        this.enqueueUs = enqueueUs;
+        this.sendUs = sendUs;
+        return this;
+    }
+
+    /** True if {@code buffer} starts with the header magic at its position. */
+    public static boolean startsWithMagic(ByteBuffer buffer) {
+        return buffer.remaining() >= 2 && (buffer.getShort(buffer.position()) & 0xFFFF) == MAGIC;
+    }
+
+    /** Writes {@link #SIZE} bytes at the position of {@code buffer}. */
+    public void write(ByteBuffer buffer) {
+        buffer.putShort((short) MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) SIZE);
+        buffer.put((byte) frameType);
+        buffer.put((byte) codec);
+        buffer.putShort((short) flags);
+        buffer.putShort((short) width);
+        buffer.putShort((short) height);
+        buffer.putInt((int) sequence);
+        buffer.putLong(captureTimeUs);
+        buffer.putInt(payloadLength);
+        buffer.putInt(encodeDoneUs);
+        buffer.putInt(enqueueUs);
+        buffer.putInt(sendUs);
+    }
+
+    /**
+     * Number of header bytes the header at the position of {@code buffer}
+     * declares, or -1 if fewer than four bytes are available.
+     */
+    public static int peekLength(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        int position = buffer.position();
+        if ((buffer.getShort(position) & 0xFFFF) != MAGIC) {
+            throw new IOException("Bad frame magic");
+        }
+        int length = buffer.get(position + 3) & 0xFF;
+        if (length < SIZE_V1) {
+            throw new IOException("Header length " + length + " too short");
+        }
+        return length;
+    }
+
+    /**
+     * Reads a header at the position of {@code buffer} and moves past it,
+     * including bytes added by later versions.
+     *
+     * @throws IOException if the header is malformed or incomplete
+     */
+    public void read(ByteBuffer buffer) throws IOException {
+        int length = peekLength(buffer);
+        if (length < 0 || buffer.remaining() < length) {
+            throw new IOException("Truncated frame header");
+        }
+        int start = buffer.position();
+        buffer.getShort();
+        int readVersion = buffer.get() & 0xFF;
+        buffer.get();
+        if (readVersion < 1) {
+            throw new IOException("Bad header version " + readVersion);
+        }
+        int readType = buffer.get() & 0xFF;
+        int readCodec = buffer.get() & 0xFF;
+        int readFlags = buffer.getShort() & 0xFFFF;
+        int readWidth = buffer.getShort() & 0xFFFF;
+        int readHeight = buffer.getShort() & 0xFFFF;
+        long readSequence = buffer.getInt() & 0xFFFFFFFFL;
+        long readCaptureTimeUs = buffer.getLong();
+        int readPayloadLength = buffer.getInt();
+        if (readPayloadLength < 0 || readPayloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Bad payload length " + readPayloadLength);
+        }
+        int readEncodeDone = NO_STAMP;
+        int readEnqueue = NO_STAMP;
+        int readSend = NO_STAMP;
+        if (readVersion >= 2 && length >= SIZE) {
+            readEncodeDone = buffer.getInt();
+            readEnqueue = buffer.getInt();
+            readSend = buffer.getInt();
+        }
+        buffer.position(start + length);
+
+        version = readVersion;
+        frameType = readType;
+        codec = readCodec;
+        flags = readFlags;
+        width = readWidth;
+        height = readHeight;
+        sequence = readSequence;
+        captureTimeUs = readCaptureTimeUs;
+        payloadLength = readPayloadLength;
+        encodeDoneUs = readEncodeDone;
+        enqueueUs = readEnqueue;
+        sendUs = readSend;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getFrameType() {
+        return frameType;
+    }
+
+    public boolean isKeyFrame() {
+        return frameType == TYPE_KEY;
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Capture sequence number, gaps are frames the sender replaced before sending. */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /** Capture time on the sender's monotonic clock. */
+    public long getCaptureTimeUs() {
+        return captureTimeUs;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /** Microseconds from capture until compression finished, or {@link #NO_STAMP}. */
+    public int getEncodeDoneUs() {
+        return encodeDoneUs;
+    }
+
+    /** Microseconds from capture until the frame was handed to the sender, or {@link #NO_STAMP}. */
+    public int getEnqueueUs() {
+        return enqueueUs;
+    }
+
+    /** Microseconds from capture until the frame was written to the socket, or {@link #NO_STAMP}. */
+    public int getSendUs() {
+        return sendUs;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameHeader v" + version + " type=" + frameType + " codec=" + codec + " flags=" + flags
+                + " " + width + "x" + height + " seq=" + sequence + " t=" + captureTimeUs
+                + "us payload=" + payloadLength + " stamps=" + encodeDoneUs + "/" + enqueueUs + "/" + sendUs;
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.mirror.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** Lossless tile codec that sends the RGBA bytes as they are. */
+public class RawTileCodec implements TileCodec {
+
+    @Override
+    public int id() {
+        return ID_RAW;
+    }
+
+    @Override
+    public void encode(ByteBuffer rgba, int width, int height, OutputStream out) throws IOException {
+        if (rgba.hasArray()) {
+            out.write(rgba.array(), rgba.arrayOffset(), width * height * 4);
+        } else {
+            for (int i = 0; i < width * height * 4; i++) {
+                out.write(rgba.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length, int width, int height, byte[] rgba) throws IOException {
+        if (length != width * height * 4) {
+            throw new IOException("Raw tile has " + length + " bytes, expected " + width * height * 4);
+        }
+        System.arraycopy(data, offset, rgba, 0, length);
+    }
+}
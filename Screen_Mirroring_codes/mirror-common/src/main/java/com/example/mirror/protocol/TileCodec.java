@@ -0,0 +1,23 @@
+package com.example.mirror.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** Compresses the pixels of a single tile for {@link TileDeltaEncoder}. */
+public interface TileCodec {
+    int ID_RAW = 0;
+    int ID_JPEG = 1;
+
+    /** Written into every delta message so the decoder can check it has the right codec. */
+    int id();
+
+    /**
+     * Writes the tile held in {@code rgba} from position 0 to limit, tightly
+     * packed rows of {@code width * 4} bytes.
+     */
+    void encode(ByteBuffer rgba, int width, int height, OutputStream out) throws IOException;
+
+    /** Decodes a tile into tightly packed RGBA rows. */
+    void decode(byte[] data, int offset, int length, int width, int height, byte[] rgba) throws IOException;
+}
@@ -0,0 +1,116 @@
+package com.example.mirror.protocol;
+
+import java.io.IOException;
+
+/**
+ * Rebuilds frames from {@link TileDeltaEncoder} messages into one RGBA frame
+ * of tightly packed rows. Delta messages that arrive before the first key
+ * frame are ignored.
+ */
+public class TileDeltaDecoder {
+    private final TileCodec codec;
+    private byte[] frame;
+    private byte[] tile;
+    private int width;
+    private int height;
+    private boolean haveKeyFrame;
+
+    public TileDeltaDecoder(TileCodec codec) {
+        this.codec = codec;
+    }
+
+    public static boolean isDeltaMessage(byte[] data, int offset, int length) {
+        return length >= TileDeltaEncoder.HEADER_SIZE && readInt(data, offset) == TileDeltaEncoder.MAGIC;
+    }
+
+    /**
+     * Applies one message to the frame.
+     *
+     * @return false if the message was a delta and no key frame was seen yet
+     * @throws IOException if the message is malformed
+     */
+    public boolean decode(byte[] data, int offset, int length) throws IOException {
+        if (!isDeltaMessage(data, offset, length)) {
+            throw new IOException("Not a tile delta message");
+        }
+        int end = offset + length;
+        int flags = data[offset + 4] & 0xFF;
+        int codecId = data[offset + 5] & 0xFF;
+        int frameWidth = readShort(data, offset + 6);
+        int frameHeight = readShort(data, offset + 8);
+        int tileSize = readShort(data, offset + 10);
+        int tileCount = readShort(data, offset + 12);
+        if (codecId != codec.id()) {
+            throw new IOException("Tile codec " + codecId + " but decoder has " + codec.id());
+        }
+        if (frameWidth == 0 || frameHeight == 0 || tileSize == 0) {
+            throw new IOException("Bad frame size " + frameWidth + "x" + frameHeight + " tile " + tileSize);
+        }
+
+        boolean keyFrame = (flags & TileDeltaEncoder.FLAG_KEY_FRAME) != 0;
+        if (keyFrame) {
+            if (frame == null || frameWidth != width || frameHeight != height) {
+                width = frameWidth;
+                height = frameHeight;
+                frame = new byte[width * height * 4];
+            }
+            haveKeyFrame = true;
+        } else if (!haveKeyFrame) {
+            return false;
+        } else if (frameWidth != width || frameHeight != height) {
+            throw new IOException("Delta for " + frameWidth + "x" + frameHeight + " on a "
+                    + width + "x" + height + " frame");
+        }
+        if (tile == null || tile.length < tileSize * tileSize * 4) {
+            tile = new byte[tileSize * tileSize * 4];
+        }
+
+        int columns = (width + tileSize - 1) / tileSize;
+        int rows = (height + tileSize - 1) / tileSize;
+        int pos = offset + TileDeltaEncoder.HEADER_SIZE;
+        for (int i = 0; i < tileCount; i++) {
+            if (pos + TileDeltaEncoder.TILE_HEADER_SIZE > end) {
+                throw new IOException("Truncated tile header");
+            }
+            int column = readShort(data, pos);
+            int row = readShort(data, pos + 2);
+            int tileLength = readInt(data, pos + 4);
+            pos += TileDeltaEncoder.TILE_HEADER_SIZE;
+            if (column >= columns || row >= rows || tileLength < 0 || tileLength > end - pos) {
+                throw new IOException("Bad tile " + column + "," + row + " length " + tileLength);
+            }
+            int tileWidth = Math.min(tileSize, width - column * tileSize);
+            int tileHeight = Math.min(tileSize, height - row * tileSize);
+            codec.decode(data, pos, tileLength, tileWidth, tileHeight, tile);
+            int rowBytes = tileWidth * 4;
+            for (int y = 0; y < tileHeight; y++) {
+                System.arraycopy(tile, y * rowBytes, frame,
+                        ((row * tileSize + y) * width + column * tileSize) * 4, rowBytes);
+            }
+            pos += tileLength;
+        }
+        return true;
+    }
+
+    /** The current frame, {@link #getWidth()} * 4 bytes per row, or null before the first key frame. */
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.mirror.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits RGBA frames into square tiles and only encodes the tiles whose
+ * contents changed since the previous frame. Each tile is fingerprinted with a
+ * 64-bit hash over its rows, read straight from the capture buffer, so an
+ * unchanged screen costs one pass over memory and no compression at all.
+ *
+ * Message layout, all values big-endian:
+ * <pre>
+ *   "TIL1"  flags:u8  codec:u8  width:u16  height:u16  tileSize:u16  tileCount:u16
+ *   tileCount x { column:u16  row:u16  length:u32  payload }
+ * </pre>
+ * A key frame ({@link #FLAG_KEY_FRAME}) carries every tile. Tiles on the
+ * right and bottom edge are cut to the frame size.
+ *
+ * Not thread-safe except for {@link #requestKeyFrame()}.
+ */
+public class TileDeltaEncoder {
+    public static final int MAGIC = 0x54494C31; // "TIL1"
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final int HEADER_SIZE = 14;
+    public static final int TILE_HEADER_SIZE = 8;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int columns;
+    private final int rows;
+    private final int keyFrameInterval;
+    private final TileCodec codec;
+
+    private final long[] hashes;
+    private final boolean[] dirty;
+    // Tiles of the last message, resent if that message never left the mailbox
+    private final boolean[] lastSent;
+    private boolean lastWasKeyFrame;
+    private final ByteBuffer tile;
+
+    private final AtomicBoolean keyFrameRequested = new AtomicBoolean(true);
+    private int framesSinceKeyFrame;
+
+    /**
+     * @param keyFrameInterval a key frame is sent at least every this many frames, 0 for never
+     */
+    public TileDeltaEncoder(int width, int height, int tileSize, int keyFrameInterval, TileCodec codec) {
+        if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF || tileSize <= 0) {
+            throw new IllegalArgumentException("Bad frame or tile size");
+        }
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.columns = (width + tileSize - 1) / tileSize;
+        this.rows = (height + tileSize - 1) / tileSize;
+        this.keyFrameInterval = keyFrameInterval;
+        this.codec = codec;
+        hashes = new long[columns * rows];
+        dirty = new boolean[columns * rows];
+        lastSent = new boolean[columns * rows];
+        tile = ByteBuffer.allocate(tileSize * tileSize * 4);
+    }
+
+    /** True if the last message written was a key frame. */
+    public boolean isKeyFrame() {
+        return lastWasKeyFrame;
+    }
+
+    public TileCodec getCodec() {
+        return codec;
+    }
+
+    public int getTileCount() {
+        return columns * rows;
+    }
+
+    /** Makes the next message a key frame, e.g. after a viewer connected. */
+    public void requestKeyFrame() {
+        keyFrameRequested.set(true);
+    }
+
+    /**
+     * Encodes the changed tiles of a frame.
+     *
+     * @param rgba frame pixels starting at position 0, rows {@code rowStride} bytes apart
+     * @param previousUnsent true if the last message may still be replaced
+     *                       before it is sent, its tiles are then sent again
+     * @return number of tiles written, 0 if nothing changed and no message was written
+     */
+    public int encode(ByteBuffer rgba, int rowStride, boolean previousUnsent,
+                      ExposedByteArrayOutputStream out) throws IOException {
+        boolean keyFrame = keyFrameRequested.getAndSet(false)
+                || (keyFrameInterval > 0 && framesSinceKeyFrame >= keyFrameInterval)
+                || (previousUnsent && lastWasKeyFrame);
+
+        int changed = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int index = row * columns + column;
+                long hash = hashTile(rgba, rowStride, column, row);
+                boolean tileDirty = keyFrame || hash != hashes[index] || (previousUnsent && lastSent[index]);
+                hashes[index] = hash;
+                dirty[index] = tileDirty;
+                if (tileDirty) {
+                    changed++;
+                }
+            }
+        }
+        if (changed == 0) {
+            // The previous message, sent or not, is still up to date
+            return 0;
+        }
+
+        writeInt(out, MAGIC);
+        out.write(keyFrame ? FLAG_KEY_FRAME : 0);
+        out.write(codec.id());
+        writeShort(out, width);
+        writeShort(out, height);
+        writeShort(out, tileSize);
+        writeShort(out, changed);
+        for (int index = 0; index < dirty.length; index++) {
+            lastSent[index] = dirty[index];
+            if (!dirty[index]) {
+                continue;
+            }
+            int column = index % columns;
+            int row = index / columns;
+            int tileWidth = Math.min(tileSize, width - column * tileSize);
+            int tileHeight = Math.min(tileSize, height - row * tileSize);
+            copyTile(rgba, rowStride, column, row, tileWidth, tileHeight);
+
+            writeShort(out, column);
+            writeShort(out, row);
+            int lengthAt = out.size();
+            writeInt(out, 0);
+            codec.encode(tile, tileWidth, tileHeight, out);
+            putInt(out.buffer(), lengthAt, out.size() - lengthAt - 4);
+        }
+
+        lastWasKeyFrame = keyFrame;
+        framesSinceKeyFrame = keyFrame ? 0 : framesSinceKeyFrame + 1;
+        return changed;
+    }
+
+    private long hashTile(ByteBuffer rgba, int rowStride, int column, int row) {
+        int x = column * tileSize * 4;
+        int y0 = row * tileSize;
+        int rowBytes = Math.min(tileSize, width - column * tileSize) * 4;
+        int yEnd = Math.min(height, y0 + tileSize);
+        long h = 0x9E3779B97F4A7C15L;
+        for (int y = y0; y < yEnd; y++) {
+            int pos = y * rowStride + x;
+            int end = pos + rowBytes;
+            // Pixels are 4 bytes, so a row is a whole number of ints
+            for (; pos + 8 <= end; pos += 8) {
+                h = (h ^ rgba.getLong(pos)) * 0xFF51AFD7ED558CCDL;
+                h ^= h >>> 29;
+            }
+            if (pos < end) {
+                h = (h ^ rgba.getInt(pos)) * 0xC4CEB9FE1A85EC53L;
+                h ^= h >>> 29;
+            }
+        }
+        return h;
+    }
+
+    private void copyTile(ByteBuffer rgba, int rowStride, int column, int row, int tileWidth, int tileHeight) {
+        byte[] dst = tile.array();
+        int rowBytes = tileWidth * 4;
+        int limit = rgba.limit();
+        for (int y = 0; y < tileHeight; y++) {
+            int pos = (row * tileSize + y) * rowStride + column * tileSize * 4;
+            rgba.limit(pos + rowBytes).position(pos);
+            rgba.get(dst, y * rowBytes, rowBytes);
+            rgba.limit(limit);
+        }
+        rgba.position(0);
+        tile.clear();
+        tile.limit(tileWidth * tileHeight * 4);
+    }
+
+    private static void writeShort(ExposedByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ExposedByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
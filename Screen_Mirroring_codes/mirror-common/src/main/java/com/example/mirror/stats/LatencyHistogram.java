@@ -0,0 +1,132 @@
+package com.example.mirror.stats;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Fixed-size histogram of durations in microseconds. Buckets are linear up to
+ * 64 us and then split every power of two into 32 sub-buckets, so percentiles
+ * are accurate to about 3% from microseconds up to hours without allocating
+ * while recording.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+    private final String name;
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized void record(long valueUs) {
+        if (valueUs < 0) {
+            valueUs = 0;
+        }
+        counts[bucketIndex(valueUs)]++;
+        count++;
+        sum += valueUs;
+        if (valueUs < min) {
+            min = valueUs;
+        }
+        if (valueUs > max) {
+            max = valueUs;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /** Value at the given percentile (0-100), or 0 if nothing was recorded. */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, Math.max(min, bucketMidpoint(i)));
+            }
+        }
+        return max;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /** Adds all samples of {@code other} to this histogram. */
+    public void add(LatencyHistogram other) {
+        long[] otherCounts;
+        long otherCount, otherSum, otherMin, otherMax;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherCount = other.count;
+            otherSum = other.sum;
+            otherMin = other.min;
+            otherMax = other.max;
+        }
+        synchronized (this) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] += otherCounts[i];
+            }
+            count += otherCount;
+            sum += otherSum;
+            min = Math.min(min, otherMin);
+            max = Math.max(max, otherMax);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                name, count, getMean() / 1000.0, getPercentile(50) / 1000.0, getPercentile(95) / 1000.0,
+                getPercentile(99) / 1000.0, max / 1000.0);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    static long bucketMidpoint(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.mirror.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Write throughput and cost of force() of {@link FragmentedMp4Writer} under
+ * several preallocation and force policies.
+ *
+ * Run from the IDE or with
+ * {@code java -cp <test and main classes> com.example.screenrecoder.FragmentedMp4Benchmark [directory]}.
+ * The directory should be on the file system being measured, /tmp is often
+ * tmpfs where force() costs nothing. The stream is two minutes at 30 fps with
+ * one-second GOPs: a 200 KB key frame and 29 delta frames of 20 KB each.
+ */
+public class FragmentedMp4Benchmark {
+    private static final int KEY_FRAME_SIZE = 200 * 1024;
+    private static final int DELTA_FRAME_SIZE = 20 * 1024;
+    private static final int GOP = 30;
+    private static final int FRAMES = 120 * GOP;
+    private static final long FRAME_US = 33_333;
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    private static ByteBuffer frame(int size, int nalHeader) {
+        byte[] frame = new byte[size];
+        frame[3] = 1;
+        frame[4] = (byte) nalHeader;
+        for (int i = 5; i < size; i++) {
+            frame[i] = (byte) (i % 251 + 2);
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static void run(File directory, String name, long preallocateBytes, int forceFragments) throws IOException {
+        File file = File.createTempFile("fmp4-bench", ".mp4", directory);
+        ByteBuffer keyFrame = frame(KEY_FRAME_SIZE, 0x65);
+        ByteBuffer deltaFrame = frame(DELTA_FRAME_SIZE, 0x41);
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, 1);
+            writer.setPreallocation(FragmentedMp4Writer.EXTEND, preallocateBytes);
+            writer.setForceInterval(forceFragments, Long.MAX_VALUE);
+            int track = writer.addTrack(FragmentedMp4Writer.Track.avc(1080, 2340, SPS, PPS));
+            long startNs = System.nanoTime();
+            for (int i = 0; i < FRAMES; i++) {
+                boolean key = i % GOP == 0;
+                ByteBuffer frame = key ? keyFrame : deltaFrame;
+                frame.rewind();
+                writer.writeSample(track, frame, i * FRAME_US, key);
+            }
+            writer.close();
+            long elapsedNs = System.nanoTime() - startNs;
+            double megabytes = writer.getPosition() / (1024.0 * 1024.0);
+            System.out.println(String.format(Locale.US,
+                    "%-34s %6.1f MB in %6.0f ms = %7.1f MB/s, %3d forces, mean %6.2f ms",
+                    name, megabytes, elapsedNs / 1e6, megabytes / (elapsedNs / 1e9), writer.getForceCount(),
+                    writer.getForceCount() > 0 ? writer.getForceTimeNs() / 1e6 / writer.getForceCount() : 0.0));
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        System.out.println("Writing to " + directory.getAbsolutePath());
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT and the page cache
+            run(directory, "no force", FragmentedMp4Writer.DEFAULT_PREALLOCATE_BYTES, Integer.MAX_VALUE);
+            run(directory, "force every fragment, growing", 0, 1);
+            run(directory, "force every fragment, prealloc", FragmentedMp4Writer.DEFAULT_PREALLOCATE_BYTES, 1);
+            run(directory, "force every 4 fragments, prealloc", FragmentedMp4Writer.DEFAULT_PREALLOCATE_BYTES,
+                    FragmentedMp4Writer.DEFAULT_FORCE_FRAGMENTS);
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.mirror.media;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUDIO_CONFIG = {0x12, 0x10};
+    private static final long FRAME_US = 33_333;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** A box found in the file, with the offset of its payload. */
+    private static final class Box {
+        final String type;
+        final int offset;
+        final int size;
+
+        Box(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        int payload() {
+            return offset + 8;
+        }
+    }
+
+    private static List<Box> boxes(byte[] file, int from, int to) {
+        List<Box> boxes = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        int pos = from;
+        while (pos + 8 <= to) {
+            int size = buffer.getInt(pos);
+            assertTrue("Box at " + pos + " has size " + size, size >= 8 && pos + size <= to);
+            boxes.add(new Box(new String(file, pos + 4, 4, StandardCharsets.US_ASCII), pos, size));
+            pos += size;
+        }
+        assertEquals(to, pos);
+        return boxes;
+    }
+
+    private static List<Box> children(byte[] file, Box box) {
+        return boxes(file, box.payload(), box.offset + box.size);
+    }
+
+    private static Box child(byte[] file, Box box, String type) {
+        for (Box child : children(file, box)) {
+            if (child.type.equals(type)) {
+                return child;
+            }
+        }
+        throw new AssertionError("No " + type + " in " + box.type);
+    }
+
+    private static String types(List<Box> boxes) {
+        StringBuilder types = new StringBuilder();
+        for (Box box : boxes) {
+            types.append(types.length() > 0 ? " " : "").append(box.type);
+        }
+        return types.toString();
+    }
+
+    // A frame as MediaCodec outputs it: one slice behind a 4-byte start code
+    private static ByteBuffer frame(int nalHeader, int size, int seed) {
+        byte[] frame = new byte[4 + size];
+        frame[3] = 1;
+        frame[4] = (byte) nalHeader;
+        for (int i = 5; i < frame.length; i++) {
+            frame[i] = (byte) ((i + seed) % 200 + 3);
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    private FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void writeGops(FragmentedMp4Writer writer, int videoTrack, int gops, int framesPerGop) throws IOException {
+        for (int i = 0; i < gops * framesPerGop; i++) {
+            boolean key = i % framesPerGop == 0;
+            writer.writeSample(videoTrack, frame(key ? 0x65 : 0x41, 500, i), i * FRAME_US, key);
+        }
+    }
+
+    @Test
+    public void writesOneFragmentPerGop() throws IOException {
+        File file = folder.newFile("recording.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(open(file), 1);
+        int video = writer.addTrack(FragmentedMp4Writer.Track.avc(1080, 2340, SPS, PPS));
+        // Delta frames before the first key frame cannot be decoded
+        writer.writeSample(video, frame(0x41, 100, 0), 0, false);
+        writeGops(writer, video, 3, 5);
+        writer.close();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(writer.getPosition(), bytes.length);
+        List<Box> top = boxes(bytes, 0, bytes.length);
+        assertEquals("ftyp moov moof mdat moof mdat moof mdat", types(top));
+        Box moov = top.get(1);
+        assertEquals("mvhd trak mvex", types(children(bytes, moov)));
+
+        Box moof = top.get(2);
+        Box trun = child(bytes, child(bytes, moof, "traf"), "trun");
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int sampleCount = buffer.getInt(trun.payload() + 4);
+        assertEquals(5, sampleCount);
+        int dataOffset = buffer.getInt(trun.payload() + 8);
+        assertEquals(top.get(3).payload(), moof.offset + dataOffset);
+        for (int s = 0; s < sampleCount; s++) {
+            int entry = trun.payload() + 12 + s * 12;
+            // 33333 us at 90 kHz, rounded so the durations add up to the timestamps
+            assertEquals(3000, buffer.getInt(entry), 1);
+            // Start code replaced by the NAL unit length
+            assertEquals(4 + 500, buffer.getInt(entry + 4));
+            assertEquals(s == 0 ? 0x02000000 : 0x01010000, buffer.getInt(entry + 8));
+        }
+        assertEquals(500, buffer.getInt(top.get(3).payload()));
+        assertEquals(0x65, bytes[top.get(3).payload() + 4]);
+        assertEquals(3, writer.getFragmentCount());
+    }
+
+    @Test
+    public void tracksStayContinuousAcrossFragments() throws IOException {
+        File file = folder.newFile("recording.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(open(file), 2);
+        int video = writer.addTrack(FragmentedMp4Writer.Track.avc(1280, 720, SPS, PPS));
+        int audio = writer.addTrack(FragmentedMp4Writer.Track.aac(48000, 1, AUDIO_CONFIG));
+        long audioUs = 0;
+        for (int i = 0; i < 30; i++) {
+            long videoUs = i * FRAME_US;
+            while (audioUs <= videoUs) {
+                writer.writeSample(audio, ByteBuffer.wrap(new byte[50]), audioUs, true);
+                audioUs += 21_333;
+            }
+            writer.writeSample(video, frame(i % 10 == 0 ? 0x65 : 0x41, 200, i), videoUs, i % 10 == 0);
+        }
+        writer.close();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long[] nextDecodeTime = {-1, -1};
+        int[] samples = new int[2];
+        for (Box box : boxes(bytes, 0, bytes.length)) {
+            if (!box.type.equals("moof")) {
+                continue;
+            }
+            for (Box traf : children(bytes, box)) {
+                if (!traf.type.equals("traf")) {
+                    continue;
+                }
+                int track = buffer.getInt(child(bytes, traf, "tfhd").payload() + 4) - 1;
+                long decodeTime = buffer.getLong(child(bytes, traf, "tfdt").payload() + 4);
+                if (nextDecodeTime[track] >= 0) {
+                    assertEquals("track " + track, nextDecodeTime[track], decodeTime);
+                }
+                Box trun = child(bytes, traf, "trun");
+                int count = buffer.getInt(trun.payload() + 4);
+                for (int s = 0; s < count; s++) {
+                    decodeTime += buffer.getInt(trun.payload() + 12 + s * 12);
+                }
+                nextDecodeTime[track] = decodeTime;
+                samples[track] += count;
+            }
+        }
+        assertEquals(30, samples[0]);
+        assertEquals((int) (29 * FRAME_US / 21_333) + 1, samples[1]);
+    }
+
+    @Test
+    public void unclosedRecordingIsRecoveredToItsLastFragment() throws IOException {
+        File file = folder.newFile("recording.mp4.part");
+        FileChannel channel = open(file);
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, 1);
+        int video = writer.addTrack(FragmentedMp4Writer.Track.avc(640, 480, SPS, PPS));
+        writeGops(writer, video, 3, 5);
+        // Killed here: two fragments written, the third still collecting, the file preallocated
+        long written = writer.getPosition();
+        assertEquals(FragmentedMp4Writer.DEFAULT_PREALLOCATE_BYTES, channel.size());
+
+        assertEquals(written, FragmentedMp4Writer.recover(channel));
+        channel.close();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals("ftyp moov moof mdat moof mdat", types(boxes(bytes, 0, bytes.length)));
+    }
+
+    @Test
+    public void tornFragmentIsCutOff() throws IOException {
+        File file = folder.newFile("recording.mp4.part");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(open(file), 1);
+        writer.setPreallocation(FragmentedMp4Writer.EXTEND, 0);
+        int video = writer.addTrack(FragmentedMp4Writer.Track.avc(640, 480, SPS, PPS));
+        writeGops(writer, video, 2, 5);
+        writer.close();
+        long complete = file.length();
+
+        try (FileChannel channel = open(file)) {
+            // A moof whose mdat only partly made it
+            ByteBuffer torn = ByteBuffer.allocate(24);
+            torn.putInt(16).put("moof".getBytes(StandardCharsets.US_ASCII)).putLong(0);
+            torn.putInt(1000).put("mdat".getBytes(StandardCharsets.US_ASCII)).flip();
+            channel.write(torn, complete);
+            assertEquals(complete, FragmentedMp4Writer.recover(channel));
+            assertEquals(complete, channel.size());
+        }
+    }
+
+    @Test
+    public void recordingWithoutHeaderIsEmptied() throws IOException {
+        File file = folder.newFile("recording.mp4.part");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(open(file), 2);
+        int video = writer.addTrack(FragmentedMp4Writer.Track.avc(640, 480, SPS, PPS));
+        // The audio encoder never reported its format, so nothing could be written
+        writeGops(writer, video, 2, 5);
+        assertEquals(0, writer.getPosition());
+
+        try (FileChannel channel = open(file)) {
+            assertEquals(0, FragmentedMp4Writer.recover(channel));
+        }
+        writer.close();
+    }
+
+    @Test
+    public void forcesAreBatched() throws IOException {
+        File file = folder.newFile("recording.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(open(file), 1);
+        writer.setForceInterval(2, Long.MAX_VALUE);
+        int video = writer.addTrack(FragmentedMp4Writer.Track.avc(640, 480, SPS, PPS));
+        writeGops(writer, video, 6, 3);
+        // Five fragments written, the sixth is still collecting
+        assertEquals(5, writer.getFragmentCount());
+        assertEquals(2, writer.getForceCount());
+        writer.close();
+    }
+
+    @Test
+    public void parameterSetsStayInBandOnlyWhereAsked() throws IOException {
+        byte[] keyFrame = {0, 0, 0, 1, 0x09, (byte) 0xF0, 0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22,
+                0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80, 0, 0, 0, 1, 0x65, 0x10, 0x20};
+        String[] entries = {"avc1", "avc3"};
+        int[] sizes = {4 + 3, 3 * 4 + SPS.length + PPS.length + 3};
+        for (int t = 0; t < entries.length; t++) {
+            File file = folder.newFile(entries[t] + ".mp4");
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(open(file), 1);
+            int video = writer.addTrack(t == 0
+                    ? FragmentedMp4Writer.Track.avc(640, 480, SPS, PPS)
+                    : FragmentedMp4Writer.Track.avcInBand(640, 480, SPS, PPS));
+            writer.writeSample(video, ByteBuffer.wrap(keyFrame), 0, true);
+            writer.close();
+
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            List<Box> top = boxes(bytes, 0, bytes.length);
+            Box stbl = child(bytes, child(bytes, child(bytes, child(bytes, top.get(1), "trak"), "mdia"), "minf"), "stbl");
+            Box stsd = child(bytes, stbl, "stsd");
+            assertEquals(entries[t], new String(bytes, stsd.payload() + 12, 4, StandardCharsets.US_ASCII));
+            // The access unit delimiter is always dropped
+            assertEquals(8 + sizes[t], top.get(3).size);
+        }
+    }
+
+    @Test
+    public void hevcDelimitersAreRecognised() {
+        assertTrue(FragmentedMp4Writer.isDelimiter(true, (byte) (35 << 1)));
+        assertFalse(FragmentedMp4Writer.isDelimiter(true, (byte) 0x09));
+        assertTrue(FragmentedMp4Writer.isDelimiter(false, (byte) 0x09));
+    }
+
+    @Test
+    public void startCodeIsStrippedFromCodecSpecificData() {
+        assertArrayEquals(SPS, FragmentedMp4Writer.stripStartCode(ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22})));
+        assertArrayEquals(PPS, FragmentedMp4Writer.stripStartCode(ByteBuffer.wrap(new byte[]{0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80})));
+        assertArrayEquals(AUDIO_CONFIG, FragmentedMp4Writer.stripStartCode(ByteBuffer.wrap(AUDIO_CONFIG)));
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.mirror.media;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NalScannerTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] out = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            out[i] = (byte) values[i];
+        }
+        return out;
+    }
+
+    private static List<byte[]> nals(NalScanner scanner, ByteBuffer buffer) {
+        List<byte[]> nals = new ArrayList<>();
+        for (int i = 0; i < scanner.scan(buffer); i++) {
+            nals.add(scanner.copy(i));
+        }
+        return nals;
+    }
+
+    @Test
+    public void findsThreeAndFourByteStartCodes() {
+        byte[] stream = bytes(0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1F,
+                0, 0, 1, 0x68, 0xCE,
+                0, 0, 0, 1, 0x65, 0x88, 0x84);
+        NalScanner scanner = new NalScanner();
+        assertEquals(3, scanner.scan(ByteBuffer.wrap(stream)));
+        assertEquals(NalScanner.AVC_TYPE_SPS, scanner.avcType(0));
+        assertEquals(NalScanner.AVC_TYPE_PPS, scanner.avcType(1));
+        assertEquals(NalScanner.AVC_TYPE_IDR, scanner.avcType(2));
+        assertEquals(4, scanner.offset(0));
+        assertEquals(4, scanner.length(0));
+        assertEquals(11, scanner.offset(1));
+        assertEquals(2, scanner.length(1));
+        assertEquals(17, scanner.offset(2));
+        assertEquals(3, scanner.length(2));
+        assertTrue(scanner.containsAvcIdr());
+        assertEquals(1, scanner.indexOfAvcType(NalScanner.AVC_TYPE_PPS));
+        assertEquals(-1, scanner.indexOfAvcType(NalScanner.AVC_TYPE_SEI));
+    }
+
+    @Test
+    public void hevcTypesComeFromTheirOwnHeaderBits() {
+        // VPS, SPS, PPS and an IDR_W_RADL slice, each with a two-byte header
+        byte[] stream = bytes(0, 0, 0, 1, 0x40, 0x01, 0x0C,
+                0, 0, 0, 1, 0x42, 0x01, 0x01,
+                0, 0, 0, 1, 0x44, 0x01, 0xC1,
+                0, 0, 0, 1, 0x26, 0x01, 0xAF);
+        NalScanner scanner = new NalScanner();
+        assertEquals(4, scanner.scan(ByteBuffer.wrap(stream)));
+        assertEquals(NalScanner.HEVC_TYPE_VPS, scanner.hevcType(0));
+        assertEquals(NalScanner.HEVC_TYPE_SPS, scanner.hevcType(1));
+        assertEquals(NalScanner.HEVC_TYPE_PPS, scanner.hevcType(2));
+        assertEquals(19, scanner.hevcType(3));
+        // The H.264 reading of the same headers is wrong, which is why it has its own name
+        assertNotEquals(NalScanner.HEVC_TYPE_SPS, scanner.avcType(1));
+    }
+
+    @Test
+    public void emulationPreventionBytesDoNotSplitNalUnits() {
+        byte[] stream = bytes(0, 0, 1, 0x41, 0, 0, 3, 1, 0, 0, 3, 0, 0x12);
+        List<byte[]> nals = nals(new NalScanner(), ByteBuffer.wrap(stream));
+        assertEquals(1, nals.size());
+        assertArrayEquals(Arrays.copyOfRange(stream, 3, stream.length), nals.get(0));
+    }
+
+    @Test
+    public void trailingZerosBeforeStartCodeAreNotPartOfNal() {
+        byte[] stream = bytes(0, 0, 1, 0x09, 0xF0, 0, 0, 0, 0, 1, 0x41, 0x9A);
+        List<byte[]> nals = nals(new NalScanner(), ByteBuffer.wrap(stream));
+        assertEquals(2, nals.size());
+        assertArrayEquals(bytes(0x09, 0xF0), nals.get(0));
+        assertArrayEquals(bytes(0x41, 0x9A), nals.get(1));
+    }
+
+    @Test
+    public void bytesBeforeFirstStartCodeAreIgnored() {
+        byte[] stream = bytes(0x12, 0x34, 0, 0, 1, 0x41, 0x01);
+        List<byte[]> nals = nals(new NalScanner(), ByteBuffer.wrap(stream));
+        assertEquals(1, nals.size());
+        assertArrayEquals(bytes(0x41, 0x01), nals.get(0));
+    }
+
+    @Test
+    public void degenerateInputs() {
+        NalScanner scanner = new NalScanner();
+        assertEquals(0, scanner.scan(ByteBuffer.allocate(0)));
+        assertEquals(0, scanner.scan(ByteBuffer.wrap(bytes(0, 0))));
+        assertEquals(0, scanner.scan(ByteBuffer.wrap(bytes(0, 0, 1))));
+        assertEquals(0, scanner.scan(ByteBuffer.wrap(bytes(0, 0, 0, 1, 0, 0, 0, 1))));
+        assertEquals(0, scanner.scan(ByteBuffer.wrap(bytes(0x41, 0x42, 0x43, 0x44))));
+    }
+
+    @Test
+    public void offsetsAreAbsoluteAndPositionIsNotConsumed() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+        buffer.put(new byte[10]).put(bytes(0, 0, 0, 1, 0x65, 0x77, 0, 0, 1, 0x41, 0x66));
+        buffer.flip().position(10);
+        NalScanner scanner = new NalScanner();
+        assertEquals(2, scanner.scan(buffer));
+        assertEquals(10, buffer.position());
+        assertEquals(14, scanner.offset(0));
+        assertEquals(19, scanner.offset(1));
+        assertArrayEquals(bytes(0x41, 0x66), scanner.copy(1));
+    }
+
+    @Test
+    public void growsForFramesWithManySlices() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            out.write(bytes(0, 0, 1, 0x41, i + 1), 0, 5);
+        }
+        NalScanner scanner = new NalScanner();
+        assertEquals(100, scanner.scan(ByteBuffer.wrap(out.toByteArray())));
+        assertEquals(99 * 5 + 3, scanner.offset(99));
+        assertEquals(2, scanner.length(99));
+    }
+
+    @Test
+    public void randomStreamsMatchReferenceParser() {
+        Random random = new Random(42);
+        NalScanner scanner = new NalScanner();
+        for (int round = 0; round < 500; round++) {
+            List<byte[]> expected = new ArrayList<>();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            int nalCount = 1 + random.nextInt(8);
+            for (int n = 0; n < nalCount; n++) {
+                byte[] nal = randomEscapedNal(random, 1 + random.nextInt(3000));
+                expected.add(nal);
+                if (random.nextBoolean()) {
+                    stream.write(0);
+                }
+                stream.write(0);
+                stream.write(0);
+                stream.write(1);
+                stream.write(nal, 0, nal.length);
+            }
+            List<byte[]> actual = nals(scanner, ByteBuffer.wrap(stream.toByteArray()));
+            assertEquals(expected.size(), actual.size());
+            for (int n = 0; n < expected.size(); n++) {
+                assertArrayEquals(expected.get(n), actual.get(n));
+            }
+        }
+    }
+
+    // Random payload that is a valid NAL: no 00 00 0x sequences and no trailing zero
+    private static byte[] randomEscapedNal(Random random, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x01 + random.nextInt(0x1F) | 0x60);
+        int zeros = 0;
+        while (out.size() < size) {
+            int b = random.nextInt(4) == 0 ? 0 : random.nextInt(256);
+            if (zeros == 2 && b <= 3) {
+                out.write(3);
+                zeros = 0;
+            }
+            out.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        if (zeros > 0) {
+            out.write(0x80);
+        }
+        return out.toByteArray();
+    }
+}
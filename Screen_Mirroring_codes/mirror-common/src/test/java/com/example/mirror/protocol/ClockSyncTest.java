@@ -0,0 +1,18 @@
+package com.example.mirror.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ClockSyncTest {
+
+    @Test
+    public void clockRequestRoundTrips() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(ClockSync.REQUEST_SIZE);
+        ClockSync.writeRequest(buffer, 123_456_789L);
+        buffer.flip();
+        assertEquals(123_456_789L, ClockSync.readRequest(buffer));
+    }
+}
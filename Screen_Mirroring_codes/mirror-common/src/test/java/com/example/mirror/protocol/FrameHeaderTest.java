@@ -0,0 +1,122 @@
+package com.example.mirror.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameHeaderTest {
+
+    @Test
+    public void roundTripsRandomHeaders() throws Exception {
+        Random random = new Random(11);
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.SIZE);
+        FrameHeader in = new FrameHeader();
+        FrameHeader out = new FrameHeader();
+        for (int i = 0; i < 10_000; i++) {
+            long sequence = random.nextInt() & 0xFFFFFFFFL;
+            long time = random.nextLong();
+            int length = random.nextInt(FrameHeader.MAX_PAYLOAD_LENGTH + 1);
+            int type = random.nextInt(256);
+            int codec = random.nextInt(256);
+            int flags = random.nextInt(0x10000);
+            int width = random.nextInt(0x10000);
+            int height = random.nextInt(0x10000);
+            int encodeDone = random.nextInt(100_000);
+            int enqueue = encodeDone + random.nextInt(100);
+            int send = random.nextBoolean() ? FrameHeader.NO_STAMP : enqueue + random.nextInt(1_000_000);
+            in.set(type, codec, flags, width, height, sequence, time, length).setStamps(encodeDone, enqueue, send);
+            buffer.clear();
+            in.write(buffer);
+            assertEquals(FrameHeader.SIZE, buffer.position());
+            buffer.flip();
+            assertTrue(FrameHeader.startsWithMagic(buffer));
+            out.read(buffer);
+            assertFalse(buffer.hasRemaining());
+            assertEquals(FrameHeader.VERSION, out.getVersion());
+            assertEquals(type, out.getFrameType());
+            assertEquals(codec, out.getCodec());
+            assertEquals(flags, out.getFlags());
+            assertEquals(width, out.getWidth());
+            assertEquals(height, out.getHeight());
+            assertEquals(sequence, out.getSequence());
+            assertEquals(time, out.getCaptureTimeUs());
+            assertEquals(length, out.getPayloadLength());
+            assertEquals(encodeDone, out.getEncodeDoneUs());
+            assertEquals(enqueue, out.getEnqueueUs());
+            assertEquals(send, out.getSendUs());
+        }
+    }
+
+    @Test
+    public void skipsFieldsOfLaterVersions() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.SIZE + 8);
+        new FrameHeader().set(FrameHeader.TYPE_DELTA, FrameHeader.CODEC_TILES_JPEG, 0, 480, 720, 7, 1234, 99)
+                .write(buffer);
+        buffer.putLong(-1L);
+        buffer.put(2, (byte) 3);
+        buffer.put(3, (byte) (FrameHeader.SIZE + 8));
+        buffer.flip();
+        FrameHeader header = new FrameHeader();
+        header.read(buffer);
+        assertEquals(3, header.getVersion());
+        assertEquals(7, header.getSequence());
+        assertEquals(99, header.getPayloadLength());
+        assertEquals(FrameHeader.SIZE + 8, buffer.position());
+    }
+
+    @Test
+    public void readsVersionOneHeaderWithoutStamps() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.SIZE);
+        new FrameHeader().set(FrameHeader.TYPE_KEY, FrameHeader.CODEC_JPEG, 0, 480, 720, 3, 5, 10)
+                .setStamps(1, 2, 3).write(buffer);
+        buffer.put(2, (byte) 1);
+        buffer.put(3, (byte) FrameHeader.SIZE_V1);
+        buffer.flip().limit(FrameHeader.SIZE_V1);
+        FrameHeader header = new FrameHeader();
+        header.read(buffer);
+        assertEquals(1, header.getVersion());
+        assertEquals(10, header.getPayloadLength());
+        assertEquals(FrameHeader.NO_STAMP, header.getEncodeDoneUs());
+        assertEquals(FrameHeader.NO_STAMP, header.getSendUs());
+        assertEquals(FrameHeader.SIZE_V1, buffer.position());
+    }
+
+    @Test
+    public void legacyLengthPrefixIsNotMistakenForHeader() {
+        ByteBuffer legacy = ByteBuffer.allocate(4).putInt(FrameHeader.MAX_PAYLOAD_LENGTH);
+        legacy.flip();
+        assertFalse(FrameHeader.startsWithMagic(legacy));
+    }
+
+    @Test
+    public void corruptedHeadersFailCleanly() {
+        Random random = new Random(12);
+        ByteBuffer valid = ByteBuffer.allocate(FrameHeader.SIZE);
+        new FrameHeader().set(FrameHeader.TYPE_KEY, FrameHeader.CODEC_JPEG, 0, 480, 720, 1, 2, 3).write(valid);
+        FrameHeader header = new FrameHeader();
+        int accepted = 0;
+        for (int i = 0; i < 20_000; i++) {
+            byte[] bytes = valid.array().clone();
+            int flips = 1 + random.nextInt(4);
+            for (int f = 0; f < flips; f++) {
+                bytes[random.nextInt(bytes.length)] = (byte) random.nextInt();
+            }
+            int length = random.nextInt(bytes.length + 1);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            try {
+                header.read(buffer);
+                accepted++;
+                assertTrue(header.getPayloadLength() >= 0);
+                assertTrue(header.getPayloadLength() <= FrameHeader.MAX_PAYLOAD_LENGTH);
+                assertTrue(buffer.position() <= length);
+            } catch (IOException expected) {
+                // Any other exception type is a bug
+            }
+        }
+        assertTrue(accepted > 0);
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.mirror.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TileDeltaTest {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 150;
+    private static final int TILE = 32;
+
+    // Frame with rows padded to rowStride, like an ImageReader plane
+    private static ByteBuffer frame(byte[] pixels, int rowStride) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            buffer.position(y * rowStride);
+            buffer.put(pixels, y * WIDTH * 4, WIDTH * 4);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void paint(byte[] pixels, int x0, int y0, int w, int h, Random random) {
+        for (int y = y0; y < Math.min(HEIGHT, y0 + h); y++) {
+            for (int x = x0; x < Math.min(WIDTH, x0 + w); x++) {
+                int i = (y * WIDTH + x) * 4;
+                pixels[i] = (byte) random.nextInt();
+                pixels[i + 1] = (byte) random.nextInt();
+                pixels[i + 2] = (byte) random.nextInt();
+                pixels[i + 3] = (byte) 0xFF;
+            }
+        }
+    }
+
+    @Test
+    public void reconstructsFramesBitExactly() throws Exception {
+        Random random = new Random(42);
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        paint(pixels, 0, 0, WIDTH, HEIGHT, random);
+        int rowStride = WIDTH * 4 + 64;
+
+        TileDeltaEncoder encoder = new TileDeltaEncoder(WIDTH, HEIGHT, TILE, 0, new RawTileCodec());
+        TileDeltaDecoder decoder = new TileDeltaDecoder(new RawTileCodec());
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(1024);
+
+        assertEquals(encoder.getTileCount(), encoder.encode(frame(pixels, rowStride), rowStride, false, out));
+        assertTrue(decoder.decode(out.buffer(), 0, out.size()));
+        assertArrayEquals(pixels, decoder.getFrame());
+
+        for (int i = 0; i < 50; i++) {
+            // Small updates anywhere, including the cut edge tiles
+            paint(pixels, random.nextInt(WIDTH), random.nextInt(HEIGHT), 1 + random.nextInt(40),
+                    1 + random.nextInt(40), random);
+            out.reset();
+            int tiles = encoder.encode(frame(pixels, rowStride), rowStride, false, out);
+            assertTrue(tiles > 0 && tiles < encoder.getTileCount());
+            assertTrue(decoder.decode(out.buffer(), 0, out.size()));
+            assertArrayEquals("frame " + i, pixels, decoder.getFrame());
+        }
+    }
+
+    @Test
+    public void unchangedFrameWritesNothing() throws Exception {
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        paint(pixels, 0, 0, WIDTH, HEIGHT, new Random(1));
+        TileDeltaEncoder encoder = new TileDeltaEncoder(WIDTH, HEIGHT, TILE, 0, new RawTileCodec());
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(1024);
+        encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out);
+        out.reset();
+        assertEquals(0, encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void smallChangeSendsFractionOfTheFrame() throws Exception {
+        Random random = new Random(3);
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        paint(pixels, 0, 0, WIDTH, HEIGHT, random);
+        TileDeltaEncoder encoder = new TileDeltaEncoder(WIDTH, HEIGHT, TILE, 0, new RawTileCodec());
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(1024);
+        encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out);
+        int keySize = out.size();
+
+        // A clock in the corner
+        paint(pixels, WIDTH - 8, 0, 8, 10, random);
+        out.reset();
+        assertEquals(1, encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out));
+        assertTrue(out.size() * 10 < keySize);
+    }
+
+    @Test
+    public void tilesOfReplacedMessageAreSentAgain() throws Exception {
+        Random random = new Random(5);
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        paint(pixels, 0, 0, WIDTH, HEIGHT, random);
+        TileDeltaEncoder encoder = new TileDeltaEncoder(WIDTH, HEIGHT, TILE, 0, new RawTileCodec());
+        TileDeltaDecoder decoder = new TileDeltaDecoder(new RawTileCodec());
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(1024);
+        encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out);
+        decoder.decode(out.buffer(), 0, out.size());
+
+        // This delta never reaches the viewer
+        paint(pixels, 0, 0, 10, 10, random);
+        out.reset();
+        assertEquals(1, encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out));
+
+        paint(pixels, 100, 100, 10, 10, random);
+        out.reset();
+        assertEquals(2, encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, true, out));
+        decoder.decode(out.buffer(), 0, out.size());
+        assertArrayEquals(pixels, decoder.getFrame());
+    }
+
+    @Test
+    public void replacedKeyFrameIsSentAgainAsKeyFrame() throws Exception {
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        paint(pixels, 0, 0, WIDTH, HEIGHT, new Random(6));
+        TileDeltaEncoder encoder = new TileDeltaEncoder(WIDTH, HEIGHT, TILE, 0, new RawTileCodec());
+        TileDeltaDecoder decoder = new TileDeltaDecoder(new RawTileCodec());
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(1024);
+        encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out);
+        out.reset();
+        assertEquals(encoder.getTileCount(), encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, true, out));
+        assertTrue(decoder.decode(out.buffer(), 0, out.size()));
+        assertArrayEquals(pixels, decoder.getFrame());
+    }
+
+    @Test
+    public void keyFrameOnRequestAndInterval() throws Exception {
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        TileDeltaEncoder encoder = new TileDeltaEncoder(WIDTH, HEIGHT, TILE, 3, new RawTileCodec());
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(1024);
+        Random random = new Random(7);
+        int[] tiles = new int[8];
+        for (int i = 0; i < tiles.length; i++) {
+            if (i == 6) {
+                encoder.requestKeyFrame();
+            }
+            paint(pixels, 0, 0, 5, 5, random);
+            out.reset();
+            tiles[i] = encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out);
+        }
+        int all = encoder.getTileCount();
+        assertArrayEquals(new int[]{all, 1, 1, 1, all, 1, all, 1}, tiles);
+    }
+
+    @Test
+    public void decoderIgnoresDeltaBeforeKeyFrame() throws Exception {
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        TileDeltaEncoder encoder = new TileDeltaEncoder(WIDTH, HEIGHT, TILE, 0, new RawTileCodec());
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(1024);
+        encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out);
+        paint(pixels, 0, 0, 5, 5, new Random(8));
+        out.reset();
+        encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out);
+
+        TileDeltaDecoder decoder = new TileDeltaDecoder(new RawTileCodec());
+        assertFalse(decoder.decode(out.buffer(), 0, out.size()));
+        assertNull(decoder.getFrame());
+    }
+
+    @Test
+    public void decoderRejectsTruncatedMessage() throws Exception {
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        TileDeltaEncoder encoder = new TileDeltaEncoder(WIDTH, HEIGHT, TILE, 0, new RawTileCodec());
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(1024);
+        encoder.encode(frame(pixels, WIDTH * 4), WIDTH * 4, false, out);
+        byte[] message = Arrays.copyOf(out.buffer(), out.size() - 1);
+        try {
+            new TileDeltaDecoder(new RawTileCodec()).decode(message, 0, message.length);
+            fail();
+        } catch (java.io.IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.mirror.stats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram("empty");
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMin());
+    }
+
+    @Test
+    public void percentilesOfUniformDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram("uniform");
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i * 10L);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(50_000, histogram.getPercentile(50), 50_000 * 0.04);
+        assertEquals(95_000, histogram.getPercentile(95), 95_000 * 0.04);
+        assertEquals(99_000, histogram.getPercentile(99), 99_000 * 0.04);
+        assertEquals(100_000, histogram.getPercentile(100), 100_000 * 0.04);
+        assertEquals(10, histogram.getMin());
+        assertEquals(100_000, histogram.getMax());
+        assertEquals(50_005, histogram.getMean(), 0.01);
+    }
+
+    @Test
+    public void bucketsCoverWholeRange() {
+        int previous = -1;
+        for (long value = 0; value < 1L << 40; value = value * 3 / 2 + 1) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index >= previous);
+            long midpoint = LatencyHistogram.bucketMidpoint(index);
+            assertEquals(value, midpoint, Math.max(1, value / 32.0));
+            previous = index;
+        }
+        LatencyHistogram histogram = new LatencyHistogram("huge");
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+    }
+
+    @Test
+    public void addMergesSamples() {
+        LatencyHistogram a = new LatencyHistogram("a");
+        LatencyHistogram b = new LatencyHistogram("b");
+        a.record(1000);
+        b.record(3000);
+        a.add(b);
+        assertEquals(2, a.getCount());
+        assertEquals(3000, a.getMax());
+        assertEquals(1000, a.getMin());
+        a.reset();
+        assertEquals(0, a.getCount());
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.rtspserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends AAC access units as RTP packets in the AAC-hbr mode of RFC 3640, one
+ * access unit per packet. Each payload starts with a 16-bit AU-headers-length
+ * and one AU-header: a 13-bit size and a 3-bit index. An access unit larger
+ * than a packet is fragmented, every fragment carrying the full size and the
+ * marker bit set on the last one.
+ */
+public class AacPacketizer extends RtpPacketizer {
+    public static final int PAYLOAD_TYPE = 97;
+    private static final int AU_HEADER_BYTES = 4;
+
+    public AacPacketizer(int ssrc, int initialSequenceNumber, int sampleRate) {
+        this(ssrc, initialSequenceNumber, sampleRate, DEFAULT_MAX_PACKET_SIZE);
+    }
+
+    public AacPacketizer(int ssrc, int initialSequenceNumber, int sampleRate, int maxPacketSize) {
+        super(ssrc, PAYLOAD_TYPE, sampleRate, maxPacketSize, initialSequenceNumber);
+    }
+
+    @Override
+    public void packetize(ByteBuffer sample, long rtpTimestamp, boolean sync, PacketSink sink) throws IOException {
+        int size = sample.remaining();
+        ByteBuffer payload = sample.duplicate();
+        int pos = sample.position();
+        int end = sample.limit();
+        int fragmentSize = maxPayloadSize - AU_HEADER_BYTES;
+        do {
+            int length = Math.min(fragmentSize, end - pos);
+            writeHeader(rtpTimestamp, pos + length == end);
+            // 16 bits of AU headers: size << 3 | index 0
+            header[RTP_HEADER_SIZE] = 0;
+            header[RTP_HEADER_SIZE + 1] = 16;
+            header[RTP_HEADER_SIZE + 2] = (byte) (size >> 5);
+            header[RTP_HEADER_SIZE + 3] = (byte) (size << 3);
+            send(sink, RTP_HEADER_SIZE + AU_HEADER_BYTES, payload, pos, length);
+            pos += length;
+        } while (pos < end);
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.rtspserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits length-prefixed H.264 samples from an MP4 into RTP packets as
+ * described in RFC 6184. NAL units that fit into one packet are sent as
+ * single NAL unit packets, larger ones are fragmented into FU-A packets. The
+ * parameter sets go in front of every sync sample, so a client can start
+ * decoding after a seek without its SDP.
+ */
+public class H264Packetizer extends RtpPacketizer {
+    public static final int PAYLOAD_TYPE = 96;
+    public static final int CLOCK_RATE = 90000;
+    private static final int NAL_TYPE_FU_A = 28;
+
+    private final int nalLengthSize;
+    private final ByteBuffer sps;
+    private final ByteBuffer pps;
+
+    public H264Packetizer(int ssrc, int initialSequenceNumber, Mp4File.Track track) {
+        this(ssrc, initialSequenceNumber, track, DEFAULT_MAX_PACKET_SIZE);
+    }
+
+    public H264Packetizer(int ssrc, int initialSequenceNumber, Mp4File.Track track, int maxPacketSize) {
+        super(ssrc, PAYLOAD_TYPE, CLOCK_RATE, maxPacketSize, initialSequenceNumber);
+        this.nalLengthSize = track.getNalLengthSize();
+        this.sps = track.getSps() != null ? ByteBuffer.wrap(track.getSps()) : null;
+        this.pps = track.getPps() != null ? ByteBuffer.wrap(track.getPps()) : null;
+    }
+
+    @Override
+    public void packetize(ByteBuffer sample, long rtpTimestamp, boolean sync, PacketSink sink) throws IOException {
+        if (sync && sps != null && pps != null) {
+            sendNal(sps, 0, sps.capacity(), rtpTimestamp, false, sink);
+            sendNal(pps, 0, pps.capacity(), rtpTimestamp, false, sink);
+        }
+        ByteBuffer payload = sample.duplicate();
+        int position = sample.position();
+        int end = sample.limit();
+        while (position + nalLengthSize <= end) {
+            int length = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                length = (length << 8) | (sample.get(position + i) & 0xFF);
+            }
+            position += nalLengthSize;
+            if (length <= 0 || position + length > end) {
+                // Truncated sample: send what is whole, the decoder conceals the rest
+                break;
+            }
+            sendNal(payload, position, length, rtpTimestamp, position + length + nalLengthSize > end, sink);
+            position += length;
+        }
+    }
+
+    private void sendNal(ByteBuffer src, int offset, int length, long rtpTimestamp,
+                         boolean lastOfSample, PacketSink sink) throws IOException {
+        if (length <= maxPayloadSize) {
+            writeHeader(rtpTimestamp, lastOfSample);
+            send(sink, RTP_HEADER_SIZE, src, offset, length);
+            return;
+        }
+
+        // FU-A: the original NAL header is rebuilt from the FU indicator and header
+        int nalHeader = src.get(offset) & 0xFF;
+        int fuIndicator = (nalHeader & 0xE0) | NAL_TYPE_FU_A;
+        int nalType = nalHeader & 0x1F;
+        int fragmentSize = maxPayloadSize - 2;
+        int pos = offset + 1;
+        int end = offset + length;
+        boolean first = true;
+        while (pos < end) {
+            int size = Math.min(fragmentSize, end - pos);
+            boolean lastFragment = pos + size == end;
+            writeHeader(rtpTimestamp, lastOfSample && lastFragment);
+            header[RTP_HEADER_SIZE] = (byte) fuIndicator;
+            header[RTP_HEADER_SIZE + 1] = (byte) ((first ? 0x80 : 0) | (lastFragment ? 0x40 : 0) | nalType);
+            send(sink, RTP_HEADER_SIZE + 2, src, pos, size);
+            pos += size;
+            first = false;
+        }
+    }
+}
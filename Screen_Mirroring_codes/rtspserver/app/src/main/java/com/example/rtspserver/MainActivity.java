@@ -5,6 +5,9 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.widget.Button;
@@ -18,23 +21,51 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFprobeKit;
+import com.arthenica.ffmpegkit.MediaInformation;
 import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.StreamInformation;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends AppCompatActivity {
     private static final int VIDEO_PICK_REQUEST = 1;
     private static final String TAG = "RTSPVLC";
     private boolean isStreaming = false;
     private String streamCommand;
+    // Opening the picked video, and any copy, never runs on the UI thread
+    private final ExecutorService ingestExecutor = Executors.newCachedThreadPool();
+    private final AtomicBoolean streamStartReported = new AtomicBoolean();
+    private volatile long pickedNs;
+    private volatile long videoSize = -1;
+    private volatile String inputMode;
+    // Set while a pipe is being copied, so the probe can read the copy's front
+    private volatile ProgressiveCopy pipeCopy;
+    private volatile String pipeCopyPath;
+    private volatile long cpuAtStartMs;
+    private volatile double streamedMs;
+    private VodRtspServer vodServer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -95,19 +126,104 @@ public class MainActivity extends AppCompatActivity {
         if (requestCode == VIDEO_PICK_REQUEST && resultCode == RESULT_OK && data != null) {
             Uri videoUri = data.getData();
             if (videoUri != null) {
-                String videoPath = getPathFromUri(videoUri);
-                if (videoPath != null) {
-                    Log.d(TAG, "video selected");
-                    startRtspServer(videoPath);
-                } else {
-                    Toast.makeText(this, "Failed to get video path", Toast.LENGTH_SHORT).show();
+                pickedNs = SystemClock.elapsedRealtimeNanos();
+                ingestExecutor.execute(() -> {
+                    String videoPath = getPathFromUri(videoUri);
+                    RemuxPlan plan = videoPath != null ? probe(videoUri, videoPath) : null;
+                    Mp4File vodFile = plan != null && plan.isPassthrough() ? openVodFile(videoUri, videoPath) : null;
+                    runOnUiThread(() -> {
+                        if (vodFile != null) {
+                            Log.d(TAG, "video selected");
+                            startVodServer(vodFile);
+                        } else if (videoPath != null) {
+                            Log.d(TAG, "video selected");
+                            startRtspServer(videoPath, plan);
+                        } else {
+                            Toast.makeText(this, "Failed to get video path", Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                });
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        ingestExecutor.shutdownNow();
+        if (vodServer != null) {
+            vodServer.stop();
+            try {
+                vodServer.getFile().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // FFmpeg's default probe size: enough for the moov of most phone videos
+    private static final long PROBE_BYTES = 5_000_000;
+
+    // Probe the video so streams RTSP can carry as they are get copied instead of re-encoded
+    private RemuxPlan probe(Uri uri, String videoPath) {
+        String input = videoPath;
+        if ("fd".equals(inputMode)) {
+            // FFmpeg closes a saf: descriptor after use, so the probe needs its own
+            input = FFmpegKitConfig.getSafParameterForRead(this, uri);
+        } else if ("pipe".equals(inputMode)) {
+            // The pipe belongs to the stream; probe the front of the copy instead
+            input = pipeCopyPath;
+            try {
+                long copied = 0;
+                while (copied < PROBE_BYTES) {
+                    long more = pipeCopy.awaitBytes(copied);
+                    if (more <= copied) {
+                        break;
+                    }
+                    copied = more;
                 }
+            } catch (IOException e) {
+                return RemuxPlan.transcodeAll("copy failed");
             }
         }
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        MediaInformation information = input != null ? FFprobeKit.getMediaInformation(input).getMediaInformation() : null;
+        RemuxPlan plan = information == null || information.getStreams() == null ? RemuxPlan.transcodeAll("probe failed")
+                : RemuxPlan.decide(information.getFormat(), toStreams(information.getStreams()));
+        Log.i(TAG, "Probed in " + (SystemClock.elapsedRealtimeNanos() - startNs) / 1_000_000 + " ms: " + plan);
+        return plan;
+    }
+
+    private static List<RemuxPlan.Stream> toStreams(List<StreamInformation> information) {
+        List<RemuxPlan.Stream> streams = new ArrayList<>();
+        for (StreamInformation stream : information) {
+            streams.add(new RemuxPlan.Stream(stream.getType(), stream.getCodec(), stream.getStringProperty("profile"),
+                    stream.getFormat(), stream.getWidth() != null ? stream.getWidth().intValue() : 0,
+                    stream.getHeight() != null ? stream.getHeight().intValue() : 0, rotationOf(stream)));
+        }
+        return streams;
+    }
+
+    // Older muxers write a rotate tag, newer FFmpeg reports a display matrix in the side data
+    private static int rotationOf(StreamInformation stream) {
+        JSONObject tags = stream.getTags();
+        if (tags != null && tags.has("rotate")) {
+            return tags.optInt("rotate");
+        }
+        JSONObject properties = stream.getAllProperties();
+        JSONArray sideData = properties != null ? properties.optJSONArray("side_data_list") : null;
+        if (sideData != null) {
+            for (int i = 0; i < sideData.length(); i++) {
+                JSONObject entry = sideData.optJSONObject(i);
+                if (entry != null && entry.has("rotation")) {
+                    return entry.optInt("rotation");
+                }
+            }
+        }
+        return 0;
     }
 
     // Start the RTSP server with the selected video
-    private void startRtspServer(String videoPath) {
+    private void startRtspServer(String videoPath, RemuxPlan plan) {
         if (isStreaming) {
             Toast.makeText(this, "Streaming is already running", Toast.LENGTH_SHORT).show();
             Log.d(TAG, "RTSP STARTED ");
@@ -124,8 +240,8 @@ public class MainActivity extends AppCompatActivity {
         Log.d(TAG, rtspUrl);
 
         @SuppressLint("DefaultLocale") String streamCommand = String.format(
-                "-re -i \"%s\" -rtsp_transport tcp -c:v libx264 -preset ultrafast -tune zerolatency -vf \"scale=ceil(iw/2)*2:ceil(ih/2)*2\" -f rtsp %s",
-                videoPath, rtspUrl
+                "-re -i \"%s\" -rtsp_transport tcp %s -f rtsp %s",
+                videoPath, plan.toArgs(), rtspUrl
         );
 
 
@@ -134,7 +250,11 @@ public class MainActivity extends AppCompatActivity {
         Toast.makeText(this, "Starting stream on " + rtspUrl, Toast.LENGTH_LONG).show();
         Log.d(TAG, "Starting stream on " + rtspUrl);
 
+        streamStartReported.set(false);
+        streamedMs = 0;
+        cpuAtStartMs = Process.getElapsedCpuTime();
         FFmpegKit.executeAsync(streamCommand, session -> {
+            reportCpuTime(plan);
             ReturnCode returnCode = session.getReturnCode();
             Log.d(TAG, "Return code: " + returnCode);
             if (ReturnCode.isSuccess(returnCode)) {
@@ -148,11 +268,101 @@ public class MainActivity extends AppCompatActivity {
                 Log.e(TAG, "Logs: " + session.getAllLogsAsString());
                 runOnUiThread(() -> Toast.makeText(this, "Failed to start streaming. Check logs.", Toast.LENGTH_SHORT).show());
             }
+        }, null, statistics -> {
+            streamedMs = statistics.getTime();
+            // The first encoded frame: report how long the viewer waited since the pick
+            if (statistics.getVideoFrameNumber() > 0 && streamStartReported.compareAndSet(false, true)) {
+                long startMs = (SystemClock.elapsedRealtimeNanos() - pickedNs) / 1_000_000;
+                Log.i(TAG, "Stream started " + startMs + " ms after picking a " + videoSize / (1024 * 1024)
+                        + " MB video (input: " + inputMode + ")");
+            }
         });
     }
 
-    private void stopStreaming() {
+    // CPU used per second of streamed video, to compare passthrough with re-encoding
+    private void reportCpuTime(RemuxPlan plan) {
+        long cpuMs = Process.getElapsedCpuTime() - cpuAtStartMs;
+        double seconds = streamedMs / 1000;
+        Log.i(TAG, String.format(Locale.US, "Streamed %.1f s with %d ms of CPU, %.0f ms per second: %s",
+                seconds, cpuMs, seconds > 0 ? cpuMs / seconds : 0, plan));
+    }
+
+    // An MP4 FFmpeg would only remux is served straight from the mapped file: seekable, no FFmpeg session
+    private Mp4File openVodFile(Uri uri, String videoPath) {
+        if ("pipe".equals(inputMode)) {
+            // Still being copied, the file cannot be mapped whole yet
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            if ("fd".equals(inputMode)) {
+                ParcelFileDescriptor descriptor = getContentResolver().openFileDescriptor(uri, "r");
+                if (descriptor == null) {
+                    return null;
+                }
+                channel = new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+            } else {
+                channel = new RandomAccessFile(videoPath, "r").getChannel();
+            }
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            Mp4File file = Mp4File.open(channel);
+            Log.i(TAG, "Parsed " + file.getFileSize() / (1024 * 1024) + " MB MP4 in "
+                    + (SystemClock.elapsedRealtimeNanos() - startNs) / 1_000_000 + " ms, sample tables "
+                    + file.getTableBytes() / 1024 + " KB: " + file.getTracks());
+            return file;
+        } catch (IOException e) {
+            Log.w(TAG, "Not serving the file directly: " + e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    // Serve the file from the phone itself, clients seek with PLAY Range
+    private void startVodServer(Mp4File file) {
         if (isStreaming) {
+            Toast.makeText(this, "Streaming is already running", Toast.LENGTH_SHORT).show();
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        vodServer = new VodRtspServer(file);
+        try {
+            vodServer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start the RTSP server", e);
+            Toast.makeText(this, "Failed to start streaming. Check logs.", Toast.LENGTH_SHORT).show();
+            vodServer = null;
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        isStreaming = true;
+        String rtspUrl = "rtsp://" + getLocalIpAddress() + ":" + vodServer.getPort() + VodRtspServer.PATH;
+        Log.d(TAG, "Serving directly on " + rtspUrl);
+        Toast.makeText(this, "Streaming on " + rtspUrl, Toast.LENGTH_LONG).show();
+    }
+
+    private void stopStreaming() {
+        if (isStreaming && vodServer != null) {
+            vodServer.stop();
+            try {
+                vodServer.getFile().close();
+            } catch (IOException ignored) {
+            }
+            vodServer = null;
+            isStreaming = false;
+            Toast.makeText(this, "Streaming stopped", Toast.LENGTH_SHORT).show();
+            Log.d(TAG, "Streaming stopped.");
+        } else if (isStreaming) {
             FFmpegKit.cancel(); // Cancel the FFmpeg process
             isStreaming = false;
             Toast.makeText(this, "Streaming stopped", Toast.LENGTH_SHORT).show();
@@ -162,24 +372,23 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    // Helper method to get the file path from the Uri
+    // Helper method to get an input FFmpeg can read for the Uri
     private String getPathFromUri(Uri uri) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
-                if (cursor != null && cursor.moveToFirst()) {
-                    int nameIndex = cursor.getColumnIndexOrThrow(MediaStore.Video.Media.DISPLAY_NAME);
-                    String fileName = cursor.getString(nameIndex);
-                    File file = new File(getExternalFilesDir(null), fileName);
-                    try (InputStream inputStream = getContentResolver().openInputStream(uri);
-                         OutputStream outputStream = new FileOutputStream(file)) {
-                        byte[] buffer = new byte[1024];
-                        int length;
-                        while ((length = inputStream.read(buffer)) > 0) {
-                            outputStream.write(buffer, 0, length);
-                        }
-                    }
-                    return file.getAbsolutePath();
+            try {
+                ParcelFileDescriptor descriptor = getContentResolver().openFileDescriptor(uri, "r");
+                if (descriptor == null) {
+                    return null;
                 }
+                videoSize = descriptor.getStatSize();
+                if (videoSize >= 0) {
+                    // A real file behind the provider: FFmpeg reads and seeks its descriptor, nothing is copied
+                    descriptor.close();
+                    inputMode = "fd";
+                    return FFmpegKitConfig.getSafParameterForRead(this, uri);
+                }
+                // A pipe can only be read once, front to back, so it has to be copied
+                return copyFromPipe(uri, descriptor);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to get path from Uri", e);
             }
@@ -197,4 +406,62 @@ public class MainActivity extends AppCompatActivity {
         }
         return null;
     }
+
+    // Copies the pipe into app storage in the background and returns the input to stream from
+    private String copyFromPipe(Uri uri, ParcelFileDescriptor descriptor) throws IOException {
+        String fileName = "picked_video";
+        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                fileName = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Video.Media.DISPLAY_NAME));
+            }
+        }
+        File file = new File(getExternalFilesDir(null), fileName);
+        pipeCopyPath = file.getAbsolutePath();
+        RandomAccessFile target = new RandomAccessFile(file, "rw");
+        target.setLength(0);
+        // A stream channel, so transferFrom reads to end of stream instead of stopping at the pipe's size of 0
+        ReadableByteChannel source = Channels.newChannel(new ParcelFileDescriptor.AutoCloseInputStream(descriptor));
+        ProgressiveCopy copy = new ProgressiveCopy(source, target.getChannel());
+        pipeCopy = copy;
+        ingestExecutor.execute(copy);
+
+        int layout;
+        long available = 0;
+        while ((layout = Mp4Layout.classify(target.getChannel(), available)) == Mp4Layout.UNDECIDED) {
+            long copied = copy.awaitBytes(available);
+            if (copied <= available) {
+                // Too short to tell, and already complete
+                layout = Mp4Layout.NEEDS_WHOLE_FILE;
+                break;
+            }
+            available = copied;
+        }
+        if (layout == Mp4Layout.NEEDS_WHOLE_FILE) {
+            // moov at the end: FFmpeg has to seek back to the samples, so wait for the whole file
+            videoSize = copy.awaitFinished();
+            target.close();
+            inputMode = "copy";
+            Log.d(TAG, "Copied " + videoSize / (1024 * 1024) + " MB in " + copy.getElapsedMs() + " ms before streaming");
+            return file.getAbsolutePath();
+        }
+        // Playable front to back: stream the copy while it is still being written
+        String pipe = FFmpegKitConfig.registerNewFFmpegPipe(this);
+        inputMode = "pipe";
+        ingestExecutor.execute(() -> {
+            try (FileOutputStream out = new FileOutputStream(pipe)) {
+                videoSize = copy.pipeTo(out.getChannel());
+                Log.d(TAG, "Fed " + videoSize / (1024 * 1024) + " MB to FFmpeg");
+            } catch (IOException e) {
+                // FFmpeg closed its end, usually because streaming was stopped
+                Log.w(TAG, "Feeding FFmpeg ended: " + e);
+            } finally {
+                FFmpegKitConfig.closeFFmpegPipe(pipe);
+                try {
+                    target.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        return pipe;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,644 @@
+package com.example.rtspserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a progressive MP4 without FFmpeg. The file is memory-mapped, the moov
+ * is parsed once into primitive sample tables, and samples are handed out as
+ * slices of the mapping, so nothing is copied on the way to the socket.
+ *
+ * Only H.264 video and AAC audio tracks are kept. Fragmented MP4 and edit
+ * lists are not supported.
+ */
+public final class Mp4File implements Closeable {
+    // A mapping is an int-indexed buffer, so large files are mapped in windows.
+    // Windows overlap by more than any sample, so every sample lies inside one
+    static final long WINDOW_BYTES = 1L << 30;
+    static final long WINDOW_OVERLAP = 64L * 1024 * 1024;
+
+    public static final String VIDEO = "vide";
+    public static final String AUDIO = "soun";
+
+    /** The sample tables of one track, indexed by sample number in decode order. */
+    public static final class Track {
+        final String handler;
+        final String codec;
+        final long timescale;
+        int width;
+        int height;
+        // From avcC
+        int nalLengthSize;
+        byte[] sps;
+        byte[] pps;
+        // From esds
+        byte[] audioSpecificConfig;
+        int sampleRate;
+        int channelCount;
+
+        long[] offsets;
+        int[] sizes;
+        long[] decodeTimes;
+        // Null when presentation and decode order are the same
+        int[] compositionOffsets;
+        // Zero-based and sorted, null when every sample is a sync sample
+        int[] syncSamples;
+        long durationUnits;
+
+        Track(String handler, String codec, long timescale) {
+            this.handler = handler;
+            this.codec = codec;
+            this.timescale = timescale;
+        }
+
+        public boolean isVideo() {
+            return VIDEO.equals(handler);
+        }
+
+        public String getCodec() {
+            return codec;
+        }
+
+        public long getTimescale() {
+            return timescale;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getNalLengthSize() {
+            return nalLengthSize;
+        }
+
+        public byte[] getSps() {
+            return sps;
+        }
+
+        public byte[] getPps() {
+            return pps;
+        }
+
+        public byte[] getAudioSpecificConfig() {
+            return audioSpecificConfig;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getChannelCount() {
+            return channelCount;
+        }
+
+        public int getSampleCount() {
+            return sizes.length;
+        }
+
+        public long getOffset(int sample) {
+            return offsets[sample];
+        }
+
+        public int getSize(int sample) {
+            return sizes[sample];
+        }
+
+        public long getDecodeTime(int sample) {
+            return decodeTimes[sample];
+        }
+
+        public long getPresentationTime(int sample) {
+            return decodeTimes[sample] + (compositionOffsets != null ? compositionOffsets[sample] : 0);
+        }
+
+        public long toUs(long units) {
+            return units * 1_000_000 / timescale;
+        }
+
+        public long getDurationUs() {
+            return toUs(durationUnits);
+        }
+
+        public boolean isSync(int sample) {
+            return syncSamples == null || Arrays.binarySearch(syncSamples, sample) >= 0;
+        }
+
+        /** The last sample decoded at or before {@code timeUs}, 0 when the time is before the first. */
+        public int sampleAt(long timeUs) {
+            long units = timeUs * timescale / 1_000_000;
+            int index = Arrays.binarySearch(decodeTimes, units);
+            if (index < 0) {
+                index = -index - 2;
+            } else {
+                // Zero-length samples share a time, take the last
+                while (index + 1 < decodeTimes.length && decodeTimes[index + 1] == units) {
+                    index++;
+                }
+            }
+            return Math.max(index, 0);
+        }
+
+        /** The first sample decoded at or after {@code timeUs}, the sample count when there is none. */
+        public int sampleFrom(long timeUs) {
+            long units = (timeUs * timescale + 999_999) / 1_000_000;
+            int index = Arrays.binarySearch(decodeTimes, units);
+            if (index < 0) {
+                return -index - 1;
+            }
+            while (index > 0 && decodeTimes[index - 1] == units) {
+                index--;
+            }
+            return index;
+        }
+
+        /** The sync sample at or before {@code timeUs}, found with two binary searches. */
+        public int syncSampleAt(long timeUs) {
+            int sample = sampleAt(timeUs);
+            if (syncSamples == null) {
+                return sample;
+            }
+            int index = Arrays.binarySearch(syncSamples, sample);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return index >= 0 ? syncSamples[index] : syncSamples.length > 0 ? syncSamples[0] : 0;
+        }
+
+        /** Bytes held by the sample tables. */
+        public long getTableBytes() {
+            long bytes = offsets.length * 8L + sizes.length * 4L + decodeTimes.length * 8L;
+            if (compositionOffsets != null) {
+                bytes += compositionOffsets.length * 4L;
+            }
+            if (syncSamples != null) {
+                bytes += syncSamples.length * 4L;
+            }
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return codec + " " + getSampleCount() + " samples, " + getDurationUs() / 1000 + " ms";
+        }
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private final MappedByteBuffer[] windows;
+    private final List<Track> tracks;
+
+    private Mp4File(FileChannel channel, long size, MappedByteBuffer[] windows, List<Track> tracks) {
+        this.channel = channel;
+        this.size = size;
+        this.windows = windows;
+        this.tracks = tracks;
+    }
+
+    /** Maps the file and parses its moov. The channel is closed by {@link #close()}. */
+    public static Mp4File open(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int count = (int) Math.max(1, (size + WINDOW_BYTES - 1) / WINDOW_BYTES);
+        MappedByteBuffer[] windows = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * WINDOW_BYTES;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_BYTES + WINDOW_OVERLAP, size - start));
+        }
+        ByteBuffer moov = findTopLevel(windows, size, "moov");
+        if (moov == null) {
+            throw new IOException("No moov box");
+        }
+        List<Track> tracks = new ArrayList<>();
+        try {
+            for (ByteBuffer trak = child(moov, "trak", 0); trak != null; trak = child(moov, "trak", end(trak))) {
+                Track track = parseTrak(trak.slice(), size);
+                if (track != null) {
+                    tracks.add(track);
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException
+                | NegativeArraySizeException e) {
+            // A field that points past its box, the file is cut short or corrupt
+            throw new IOException("Broken moov: " + e, e);
+        }
+        if (tracks.isEmpty()) {
+            throw new IOException("No H.264 or AAC track with samples");
+        }
+        return new Mp4File(channel, size, windows, Collections.unmodifiableList(tracks));
+    }
+
+    public List<Track> getTracks() {
+        return tracks;
+    }
+
+    public Track getVideoTrack() {
+        for (Track track : tracks) {
+            if (track.isVideo()) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    public Track getAudioTrack() {
+        for (Track track : tracks) {
+            if (!track.isVideo()) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    public long getDurationUs() {
+        long duration = 0;
+        for (Track track : tracks) {
+            duration = Math.max(duration, track.getDurationUs());
+        }
+        return duration;
+    }
+
+    public long getFileSize() {
+        return size;
+    }
+
+    /** Bytes held by all sample tables, the steady-state cost of an open file on the heap. */
+    public long getTableBytes() {
+        long bytes = 0;
+        for (Track track : tracks) {
+            bytes += track.getTableBytes();
+        }
+        return bytes;
+    }
+
+    /** A read-only slice of the mapping holding the sample, nothing is copied. */
+    public ByteBuffer getSample(Track track, int sample) {
+        long offset = track.offsets[sample];
+        int length = track.sizes[sample];
+        if (offset < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException("Sample " + sample + " lies outside the file");
+        }
+        return slice(windows, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static ByteBuffer slice(MappedByteBuffer[] windows, long offset, int length) {
+        int window = (int) (offset / WINDOW_BYTES);
+        ByteBuffer buffer = windows[window].duplicate();
+        int start = (int) (offset - window * WINDOW_BYTES);
+        buffer.limit(start + length).position(start);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer findTopLevel(MappedByteBuffer[] windows, long size, String type) throws IOException {
+        long offset = 0;
+        while (offset + 8 <= size) {
+            ByteBuffer header = slice(windows, offset, (int) Math.min(16, size - offset));
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (boxSize == 1) {
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - offset;
+            }
+            if (boxSize < headerSize || offset + boxSize > size) {
+                throw new IOException("Broken box at " + offset);
+            }
+            if (type.equals(typeOf(header, 4))) {
+                if (boxSize > Integer.MAX_VALUE) {
+                    throw new IOException(type + " too large");
+                }
+                // Only the payload, so children start at position 0
+                return slice(windows, offset + headerSize, (int) (boxSize - headerSize));
+            }
+            if ("moof".equals(typeOf(header, 4))) {
+                throw new IOException("Fragmented MP4 is not supported");
+            }
+            offset += boxSize;
+        }
+        return null;
+    }
+
+    private static String typeOf(ByteBuffer buffer, int index) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) (buffer.get(index + i) & 0xFF);
+        }
+        return new String(type);
+    }
+
+    // The payload of the first child box of that type at or after from, as a window of the parent
+    private static ByteBuffer child(ByteBuffer parent, String type, int from) {
+        int offset = from;
+        while (offset + 8 <= parent.limit()) {
+            long boxSize = parent.getInt(offset) & 0xFFFFFFFFL;
+            if (boxSize < 8 || offset + boxSize > parent.limit()) {
+                return null;
+            }
+            if (type.equals(typeOf(parent, offset + 4))) {
+                ByteBuffer box = parent.duplicate();
+                box.limit((int) (offset + boxSize)).position(offset + 8);
+                return box;
+            }
+            offset += (int) boxSize;
+        }
+        return null;
+    }
+
+    private static int end(ByteBuffer box) {
+        return box.limit();
+    }
+
+    private static ByteBuffer path(ByteBuffer parent, String... types) {
+        ByteBuffer box = parent;
+        for (String type : types) {
+            box = child(box.slice(), type, 0);
+            if (box == null) {
+                return null;
+            }
+        }
+        return box.slice();
+    }
+
+    private static Track parseTrak(ByteBuffer trak, long fileSize) throws IOException {
+        ByteBuffer mdhd = path(trak, "mdia", "mdhd");
+        ByteBuffer hdlr = path(trak, "mdia", "hdlr");
+        ByteBuffer stbl = path(trak, "mdia", "minf", "stbl");
+        if (mdhd == null || hdlr == null || stbl == null) {
+            return null;
+        }
+        String handler = typeOf(hdlr, 8);
+        if (!VIDEO.equals(handler) && !AUDIO.equals(handler)) {
+            return null;
+        }
+        boolean version1 = mdhd.get(0) == 1;
+        long timescale = mdhd.getInt(version1 ? 20 : 12) & 0xFFFFFFFFL;
+        ByteBuffer stsd = path(stbl, "stsd");
+        if (stsd == null || timescale == 0 || stsd.getInt(4) < 1) {
+            return null;
+        }
+        // The first sample entry
+        ByteBuffer entry = stsd.duplicate();
+        entry.position(8);
+        entry = entry.slice();
+        String codec = typeOf(entry, 4);
+        entry.limit(entry.getInt(0)).position(8);
+        entry = entry.slice();
+
+        Track track = new Track(handler, codec, timescale);
+        if (("avc1".equals(codec) || "avc3".equals(codec)) && track.isVideo()) {
+            track.width = entry.getShort(24) & 0xFFFF;
+            track.height = entry.getShort(26) & 0xFFFF;
+            ByteBuffer avcC = child(entry, "avcC", 78);
+            if (avcC == null) {
+                return null;
+            }
+            parseAvcC(avcC.slice(), track);
+        } else if ("mp4a".equals(codec) && !track.isVideo()) {
+            // QuickTime sound description versions 1 and 2 add fields
+            int version = entry.getShort(8);
+            track.channelCount = entry.getShort(16) & 0xFFFF;
+            track.sampleRate = (entry.getInt(24) >>> 16);
+            ByteBuffer esds = child(entry, "esds", version == 1 ? 44 : version == 2 ? 64 : 28);
+            if (esds == null) {
+                return null;
+            }
+            track.audioSpecificConfig = parseEsds(esds.slice());
+            if (track.audioSpecificConfig == null) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        parseSampleTables(stbl, track, fileSize);
+        return track.getSampleCount() > 0 ? track : null;
+    }
+
+    private static void parseAvcC(ByteBuffer avcC, Track track) {
+        track.nalLengthSize = (avcC.get(4) & 3) + 1;
+        int position = 5;
+        int spsCount = avcC.get(position++) & 0x1F;
+        for (int i = 0; i < spsCount; i++) {
+            int length = avcC.getShort(position) & 0xFFFF;
+            if (track.sps == null) {
+                track.sps = bytes(avcC, position + 2, length);
+            }
+            position += 2 + length;
+        }
+        int ppsCount = avcC.get(position++) & 0xFF;
+        for (int i = 0; i < ppsCount; i++) {
+            int length = avcC.getShort(position) & 0xFFFF;
+            if (track.pps == null) {
+                track.pps = bytes(avcC, position + 2, length);
+            }
+            position += 2 + length;
+        }
+    }
+
+    // ES_Descriptor > DecoderConfigDescriptor > DecoderSpecificInfo
+    private static byte[] parseEsds(ByteBuffer esds) {
+        int position = 4;
+        while (position < esds.limit()) {
+            int tag = esds.get(position++) & 0xFF;
+            int length = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = esds.get(position++) & 0xFF;
+                length = (length << 7) | (b & 0x7F);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (tag == 3) {
+                int flags = esds.get(position + 2) & 0xFF;
+                position += 3;
+                if ((flags & 0x80) != 0) {
+                    position += 2;
+                }
+                if ((flags & 0x40) != 0) {
+                    position += 1 + (esds.get(position) & 0xFF);
+                }
+                if ((flags & 0x20) != 0) {
+                    position += 2;
+                }
+            } else if (tag == 4) {
+                position += 13;
+            } else if (tag == 5) {
+                return bytes(esds, position, length);
+            } else {
+                position += length;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * The entry count of a table box, checked against the bytes the box
+     * holds so a corrupt count fails before anything is allocated for it.
+     */
+    private static int entryCount(ByteBuffer box, String type, int countAt, int entryBytes) throws IOException {
+        if (box.limit() < countAt + 4) {
+            throw new IOException(type + " too short");
+        }
+        long count = box.getInt(countAt) & 0xFFFFFFFFL;
+        if (count * entryBytes > box.limit() - countAt - 4) {
+            throw new IOException(type + " claims " + count + " entries, holds " + (box.limit() - countAt - 4) + " bytes");
+        }
+        return (int) count;
+    }
+
+    private static void parseSampleTables(ByteBuffer stbl, Track track, long fileSize) throws IOException {
+        ByteBuffer stsz = path(stbl, "stsz");
+        ByteBuffer stz2 = stsz == null ? path(stbl, "stz2") : null;
+        int[] sizes;
+        if (stsz != null) {
+            if (stsz.limit() < 12) {
+                throw new IOException("stsz too short");
+            }
+            int fixedSize = stsz.getInt(4);
+            if (fixedSize != 0) {
+                // No table, but every sample still has to fit in the file
+                long count = stsz.getInt(8) & 0xFFFFFFFFL;
+                if (fixedSize < 0 || count > Integer.MAX_VALUE || count * fixedSize > fileSize) {
+                    throw new IOException("stsz claims " + count + " samples of " + fixedSize + " bytes");
+                }
+                sizes = new int[(int) count];
+                Arrays.fill(sizes, fixedSize);
+            } else {
+                sizes = new int[entryCount(stsz, "stsz", 8, 4)];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = stsz.getInt(12 + i * 4);
+                }
+            }
+        } else if (stz2 != null) {
+            if (stz2.limit() < 12) {
+                throw new IOException("stz2 too short");
+            }
+            int fieldSize = stz2.get(7) & 0xFF;
+            long count = stz2.getInt(8) & 0xFFFFFFFFL;
+            if ((fieldSize != 4 && fieldSize != 8 && fieldSize != 16) || count * fieldSize > (stz2.limit() - 12) * 8L) {
+                throw new IOException("stz2 claims " + count + " entries of " + fieldSize + " bits");
+            }
+            sizes = new int[(int) count];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = fieldSize == 16 ? stz2.getShort(12 + i * 2) & 0xFFFF
+                        : fieldSize == 8 ? stz2.get(12 + i) & 0xFF
+                        : (stz2.get(12 + i / 2) >> (i % 2 == 0 ? 4 : 0)) & 0x0F;
+            }
+        } else {
+            throw new IOException("No sample sizes");
+        }
+        int count = sizes.length;
+        track.sizes = sizes;
+
+        // Decode times from the run-length coded durations
+        ByteBuffer stts = path(stbl, "stts");
+        long[] decodeTimes = new long[count];
+        long time = 0;
+        int sample = 0;
+        if (stts != null) {
+            int entries = entryCount(stts, "stts", 4, 8);
+            for (int e = 0; e < entries && sample < count; e++) {
+                int runLength = stts.getInt(8 + e * 8);
+                long delta = stts.getInt(12 + e * 8) & 0xFFFFFFFFL;
+                for (int i = 0; i < runLength && sample < count; i++) {
+                    decodeTimes[sample++] = time;
+                    time += delta;
+                }
+            }
+        }
+        while (sample < count) {
+            decodeTimes[sample++] = time;
+        }
+        track.decodeTimes = decodeTimes;
+        track.durationUnits = time;
+
+        ByteBuffer ctts = path(stbl, "ctts");
+        if (ctts != null) {
+            int[] offsets = new int[count];
+            int entries = entryCount(ctts, "ctts", 4, 8);
+            sample = 0;
+            for (int e = 0; e < entries && sample < count; e++) {
+                int runLength = ctts.getInt(8 + e * 8);
+                // Unsigned in version 0, but negative values in practice mean the same
+                int offset = ctts.getInt(12 + e * 8);
+                for (int i = 0; i < runLength && sample < count; i++) {
+                    offsets[sample++] = offset;
+                }
+            }
+            track.compositionOffsets = offsets;
+        }
+
+        ByteBuffer stss = path(stbl, "stss");
+        if (stss != null) {
+            int[] sync = new int[entryCount(stss, "stss", 4, 4)];
+            for (int i = 0; i < sync.length; i++) {
+                sync[i] = stss.getInt(8 + i * 4) - 1;
+                if (sync[i] < 0 || sync[i] >= count) {
+                    throw new IOException("Sync sample " + (sync[i] + 1) + " of " + count);
+                }
+            }
+            Arrays.sort(sync);
+            track.syncSamples = sync;
+        }
+
+        // Offsets: samples follow each other inside a chunk, stsc says how many per chunk
+        ByteBuffer stco = path(stbl, "stco");
+        ByteBuffer co64 = stco == null ? path(stbl, "co64") : null;
+        ByteBuffer stsc = path(stbl, "stsc");
+        if ((stco == null && co64 == null) || stsc == null) {
+            throw new IOException("No chunk offsets");
+        }
+        int chunkCount = stco != null ? entryCount(stco, "stco", 4, 4) : entryCount(co64, "co64", 4, 8);
+        int stscEntries = entryCount(stsc, "stsc", 4, 12);
+        long[] offsets = new long[count];
+        sample = 0;
+        for (int e = 0; e < stscEntries && sample < count; e++) {
+            int firstChunk = stsc.getInt(8 + e * 12) - 1;
+            int samplesPerChunk = stsc.getInt(12 + e * 12);
+            int lastChunk = e + 1 < stscEntries ? stsc.getInt(8 + (e + 1) * 12) - 1 : chunkCount;
+            if (firstChunk < 0 || lastChunk > chunkCount) {
+                throw new IOException("stsc chunks " + (firstChunk + 1) + "-" + lastChunk + " of " + chunkCount);
+            }
+            for (int chunk = firstChunk; chunk < lastChunk && sample < count; chunk++) {
+                long offset = stco != null ? stco.getInt(8 + chunk * 4) & 0xFFFFFFFFL : co64.getLong(8 + chunk * 8);
+                for (int i = 0; i < samplesPerChunk && sample < count; i++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample++];
+                }
+            }
+        }
+        if (sample < count) {
+            throw new IOException("Chunks hold " + sample + " of " + count + " samples");
+        }
+        for (int i = 0; i < count; i++) {
+            // Larger samples could straddle two mapping windows
+            if (sizes[i] < 0 || sizes[i] > WINDOW_OVERLAP || offsets[i] < 0 || offsets[i] + sizes[i] > fileSize) {
+                throw new IOException("Sample " + i + " of " + sizes[i] + " bytes at " + offsets[i] + " lies outside the file");
+            }
+        }
+        track.offsets = offsets;
+    }
+}
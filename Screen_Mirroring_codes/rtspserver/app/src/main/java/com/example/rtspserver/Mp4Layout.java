@@ -0,0 +1,59 @@
+package com.example.rtspserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tells from the first top-level boxes whether a file can be played while it
+ * is still being written. An MP4 with its moov at the end needs the whole
+ * file, because the demuxer has to seek back to the samples.
+ */
+public final class Mp4Layout {
+    /** The file can be read front to back: moov before mdat, or not an MP4 at all. */
+    public static final int PROGRESSIVE = 0;
+    /** mdat comes first, so the file must be complete before it can be opened. */
+    public static final int NEEDS_WHOLE_FILE = 1;
+    /** Not enough bytes yet to tell. */
+    public static final int UNDECIDED = 2;
+
+    private Mp4Layout() {
+    }
+
+    /** Classifies the file from its first {@code available} bytes. */
+    public static int classify(FileChannel channel, long available) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long offset = 0;
+        while (true) {
+            if (available - offset < 16) {
+                return UNDECIDED;
+            }
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, offset + header.position()) < 0) {
+                    return UNDECIDED;
+                }
+            }
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(header.array(), 4, 4, StandardCharsets.US_ASCII);
+            if (offset == 0 && !type.equals("ftyp")) {
+                return PROGRESSIVE;
+            }
+            if (type.equals("moov")) {
+                return PROGRESSIVE;
+            }
+            if (type.equals("mdat")) {
+                return NEEDS_WHOLE_FILE;
+            }
+            if (size == 1) {
+                size = header.getLong(8);
+            }
+            if (size < 8) {
+                // Runs to the end of the file, or is broken: no moov up front
+                return NEEDS_WHOLE_FILE;
+            }
+            offset += size;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.rtspserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Logger;
+
+/**
+ * Copies a video that can only be read front to back (a provider pipe, a
+ * download) into a local file with large-block transferFrom, and lets a
+ * reader stream the copied prefix while the rest is still arriving.
+ */
+public final class ProgressiveCopy implements Runnable {
+    private static final Logger LOG = Logger.getLogger(ProgressiveCopy.class.getName());
+
+    static final long BLOCK_BYTES = 8 * 1024 * 1024;
+    // transferFrom fills a whole block from a slow pipe before returning, so start small
+    static final long FIRST_BLOCK_BYTES = 256 * 1024;
+
+    private final ReadableByteChannel source;
+    private final FileChannel target;
+    private final Object lock = new Object();
+    // Guarded by lock
+    private long copied;
+    private boolean finished;
+    private IOException failure;
+    private volatile long elapsedMs;
+
+    public ProgressiveCopy(ReadableByteChannel source, FileChannel target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    @Override
+    public void run() {
+        long startNs = System.nanoTime();
+        IOException error = null;
+        try {
+            long position = 0;
+            long block = FIRST_BLOCK_BYTES;
+            while (true) {
+                // Returns 0 only once a blocking source reaches end of stream
+                long count = target.transferFrom(source, position, block);
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+                block = Math.min(block * 2, BLOCK_BYTES);
+                synchronized (lock) {
+                    copied = position;
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            try {
+                source.close();
+            } catch (IOException ignored) {
+            }
+            elapsedMs = (System.nanoTime() - startNs) / 1_000_000;
+            synchronized (lock) {
+                failure = error;
+                finished = true;
+                lock.notifyAll();
+            }
+        }
+        if (error != null) {
+            LOG.warning("Copy failed after " + copied + " bytes: " + error);
+        } else {
+            LOG.info("Copied " + copied / (1024 * 1024) + " MB in " + elapsedMs + " ms");
+        }
+    }
+
+    /**
+     * Blocks until more than {@code position} bytes are copied or the copy
+     * ends, and returns the number of bytes copied so far.
+     */
+    public long awaitBytes(long position) throws IOException {
+        synchronized (lock) {
+            while (copied <= position && !finished) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for copy");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Copy failed", failure);
+            }
+            return copied;
+        }
+    }
+
+    /** Blocks until the whole source is copied and returns its size. */
+    public long awaitFinished() throws IOException {
+        long position = 0;
+        while (true) {
+            long available = awaitBytes(position);
+            if (available <= position) {
+                return available;
+            }
+            position = available;
+        }
+    }
+
+    /**
+     * Streams the copy into {@code out} from the start, following the copy
+     * as it grows, until the whole source has been written.
+     */
+    public long pipeTo(WritableByteChannel out) throws IOException {
+        long position = 0;
+        while (true) {
+            long available = awaitBytes(position);
+            if (available <= position) {
+                return position;
+            }
+            while (position < available) {
+                position += target.transferTo(position, Math.min(available - position, BLOCK_BYTES), out);
+            }
+        }
+    }
+
+    public long getCopiedBytes() {
+        synchronized (lock) {
+            return copied;
+        }
+    }
+
+    public boolean isFinished() {
+        synchronized (lock) {
+            return finished;
+        }
+    }
+
+    /** How long the whole copy took, once finished. */
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+}
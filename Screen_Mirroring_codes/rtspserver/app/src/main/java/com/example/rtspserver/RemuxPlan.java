@@ -0,0 +1,163 @@
+package com.example.rtspserver;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides from a probe of the source which streams can go to the RTSP
+ * muxer untouched and which have to be re-encoded. Copying is preferred:
+ * re-encoding with libx264 costs the phone CPU, battery and quality.
+ */
+public final class RemuxPlan {
+    // The arguments every stream used before probing
+    static final String TRANSCODE_VIDEO_ARGS =
+            "-c:v libx264 -preset ultrafast -tune zerolatency -vf \"scale=ceil(iw/2)*2:ceil(ih/2)*2\"";
+    static final String TRANSCODE_AUDIO_ARGS = "-c:a aac";
+
+    // Containers FFmpeg demuxes with the parameters an RTP packetizer needs
+    private static final List<String> COPY_CONTAINERS = Arrays.asList("mov", "mp4", "matroska", "webm", "mpegts", "flv");
+    private static final List<String> COPY_H264_PROFILES = Arrays.asList("Constrained Baseline", "Baseline", "Main", "High");
+    private static final List<String> COPY_PIXEL_FORMATS = Arrays.asList("yuv420p", "yuvj420p");
+
+    /** What the probe reported for one stream. */
+    public static final class Stream {
+        final String type;
+        final String codec;
+        final String profile;
+        final String pixelFormat;
+        final int width;
+        final int height;
+        final int rotation;
+
+        public Stream(String type, String codec, String profile, String pixelFormat, int width, int height, int rotation) {
+            this.type = type;
+            this.codec = codec;
+            this.profile = profile;
+            this.pixelFormat = pixelFormat;
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+        }
+
+        public static Stream video(String codec, String profile, String pixelFormat, int width, int height, int rotation) {
+            return new Stream("video", codec, profile, pixelFormat, width, height, rotation);
+        }
+
+        public static Stream audio(String codec) {
+            return new Stream("audio", codec, null, null, 0, 0, 0);
+        }
+    }
+
+    private final boolean hasVideo;
+    private final boolean hasAudio;
+    private final boolean copyVideo;
+    private final boolean copyAudio;
+    private final String reason;
+
+    private RemuxPlan(boolean hasVideo, boolean hasAudio, boolean copyVideo, boolean copyAudio, String reason) {
+        this.hasVideo = hasVideo;
+        this.hasAudio = hasAudio;
+        this.copyVideo = copyVideo;
+        this.copyAudio = copyAudio;
+        this.reason = reason;
+    }
+
+    /** Re-encodes everything, as before probing. For when the probe fails. */
+    public static RemuxPlan transcodeAll(String reason) {
+        return new RemuxPlan(true, true, false, false, reason);
+    }
+
+    /**
+     * Plans the first video and first audio stream.
+     *
+     * @param formatName FFprobe's comma-separated format name, such as "mov,mp4,m4a,3gp,3g2,mj2"
+     */
+    public static RemuxPlan decide(String formatName, List<Stream> streams) {
+        if (formatName == null || streams == null) {
+            return transcodeAll("probe failed");
+        }
+        boolean knownContainer = false;
+        for (String name : formatName.split(",")) {
+            knownContainer |= COPY_CONTAINERS.contains(name);
+        }
+        if (!knownContainer) {
+            return transcodeAll("container " + formatName);
+        }
+        Stream video = null;
+        Stream audio = null;
+        for (Stream stream : streams) {
+            if (video == null && "video".equals(stream.type)) {
+                video = stream;
+            } else if (audio == null && "audio".equals(stream.type)) {
+                audio = stream;
+            }
+        }
+        String videoReason = video == null ? "no video" : videoTranscodeReason(video);
+        boolean copyAudio = audio != null && "aac".equals(audio.codec);
+        String audioReason = audio == null ? "no audio" : copyAudio ? "audio copied" : "audio " + audio.codec;
+        return new RemuxPlan(video != null, audio != null, video != null && videoReason == null, copyAudio,
+                (videoReason == null ? "video copied" : videoReason) + ", " + audioReason);
+    }
+
+    // Null when the stream can be copied
+    private static String videoTranscodeReason(Stream video) {
+        if (!"h264".equals(video.codec)) {
+            return "video " + video.codec;
+        }
+        if (!COPY_H264_PROFILES.contains(video.profile)) {
+            return "profile " + video.profile;
+        }
+        if (!COPY_PIXEL_FORMATS.contains(video.pixelFormat)) {
+            return "pixel format " + video.pixelFormat;
+        }
+        if (video.width % 2 != 0 || video.height % 2 != 0) {
+            return "odd size " + video.width + "x" + video.height;
+        }
+        if (video.rotation % 360 != 0) {
+            // RTSP has no rotation metadata; re-encoding applies it to the pixels
+            return "rotated " + video.rotation;
+        }
+        return null;
+    }
+
+    public boolean copiesVideo() {
+        return copyVideo;
+    }
+
+    public boolean copiesAudio() {
+        return copyAudio;
+    }
+
+    /** True when nothing is re-encoded. */
+    public boolean isPassthrough() {
+        return (!hasVideo || copyVideo) && (!hasAudio || copyAudio);
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /** The stream selection and codec arguments, for between the input and the output. */
+    public String toArgs() {
+        StringBuilder args = new StringBuilder();
+        if (hasVideo) {
+            args.append("-map 0:v:0 ");
+        }
+        if (hasAudio) {
+            // Optional, so a failed probe still works for silent videos
+            args.append("-map 0:a:0? ");
+        }
+        if (hasVideo) {
+            args.append(copyVideo ? "-c:v copy " : TRANSCODE_VIDEO_ARGS + " ");
+        }
+        if (hasAudio) {
+            args.append(copyAudio ? "-c:a copy" : TRANSCODE_AUDIO_ARGS);
+        }
+        return args.toString().trim();
+    }
+
+    @Override
+    public String toString() {
+        return (isPassthrough() ? "passthrough" : "transcode") + " (" + reason + ")";
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.rtspserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Common part of the RTP packetizers: the RTP header, sequence numbers and
+ * the counters a sender report needs. Subclasses split MP4 samples into
+ * payloads following their codec's payload format.
+ *
+ * Payloads are windows onto the sample, nothing is copied. The header array
+ * and payload window handed to the {@link PacketSink} are reused for every
+ * packet, so sinks must consume them before returning.
+ */
+public abstract class RtpPacketizer {
+    public static final int RTP_HEADER_SIZE = 12;
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1400;
+
+    public interface PacketSink {
+        /** One packet: the first {@code headerLength} bytes of {@code header}, then {@code payload}. */
+        void onPacket(byte[] header, int headerLength, ByteBuffer payload) throws IOException;
+    }
+
+    private final int ssrc;
+    private final int payloadType;
+    private final int clockRate;
+    protected final int maxPayloadSize;
+    // The RTP header and any payload header in front of the sample bytes
+    protected final byte[] header = new byte[RTP_HEADER_SIZE + 4];
+    private int sequenceNumber;
+    private long packetCount;
+    private long octetCount;
+
+    protected RtpPacketizer(int ssrc, int payloadType, int clockRate, int maxPacketSize, int initialSequenceNumber) {
+        if (maxPacketSize <= header.length) {
+            throw new IllegalArgumentException("Packet size too small: " + maxPacketSize);
+        }
+        this.ssrc = ssrc;
+        this.payloadType = payloadType;
+        this.clockRate = clockRate;
+        this.maxPayloadSize = maxPacketSize - RTP_HEADER_SIZE;
+        this.sequenceNumber = initialSequenceNumber;
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public int getClockRate() {
+        return clockRate;
+    }
+
+    /** Sequence number that will be used by the next packet. */
+    public int getSequenceNumber() {
+        return sequenceNumber & 0xFFFF;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /** Payload bytes sent, as counted by sender reports. */
+    public long getOctetCount() {
+        return octetCount;
+    }
+
+    /**
+     * Packetizes the bytes between position and limit of {@code sample}
+     * without changing its position.
+     *
+     * @param sync whether the sample can be decoded on its own
+     */
+    public abstract void packetize(ByteBuffer sample, long rtpTimestamp, boolean sync, PacketSink sink) throws IOException;
+
+    protected final void writeHeader(long rtpTimestamp, boolean marker) {
+        int seq = sequenceNumber++ & 0xFFFF;
+        header[0] = (byte) 0x80;
+        header[1] = (byte) ((marker ? 0x80 : 0) | payloadType);
+        header[2] = (byte) (seq >> 8);
+        header[3] = (byte) seq;
+        header[4] = (byte) (rtpTimestamp >> 24);
+        header[5] = (byte) (rtpTimestamp >> 16);
+        header[6] = (byte) (rtpTimestamp >> 8);
+        header[7] = (byte) rtpTimestamp;
+        header[8] = (byte) (ssrc >> 24);
+        header[9] = (byte) (ssrc >> 16);
+        header[10] = (byte) (ssrc >> 8);
+        header[11] = (byte) ssrc;
+    }
+
+    // Moves the payload window instead of slicing it. The limit is put back so absolute
+    // reads of later NAL headers stay in bounds
+    protected final void send(PacketSink sink, int headerLength, ByteBuffer payload, int offset, int length) throws IOException {
+        int limit = payload.limit();
+        payload.limit(offset + length).position(offset);
+        packetCount++;
+        octetCount += headerLength - RTP_HEADER_SIZE + length;
+        sink.onPacket(header, headerLength, payload);
+        payload.limit(limit);
+    }
+}
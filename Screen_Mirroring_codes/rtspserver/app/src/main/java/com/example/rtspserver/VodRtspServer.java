@@ -0,0 +1,206 @@
+package com.example.rtspserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Serves one MP4 file over RTSP without FFmpeg. Samples come straight from
+ * the memory-mapped {@link Mp4File} and go out as RTP interleaved on the
+ * RTSP connection, paced in real time. PLAY with a {@code Range: npt=}
+ * header seeks to the sync sample at or before that time.
+ *
+ * Each connection gets its own thread for requests and another while it
+ * plays. Only TCP transport is offered, UDP SETUPs are answered with 461 so
+ * clients retry over TCP.
+ */
+public class VodRtspServer {
+    private static final Logger LOG = Logger.getLogger("VodRtspServer");
+    static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+    public static final int DEFAULT_PORT = 8554;
+    public static final String PATH = "/stream";
+    static final int SESSION_TIMEOUT_SECONDS = 60;
+    private static final long REAPER_INTERVAL_MS = 5000;
+
+    private final Mp4File file;
+    private final int port;
+    private final Set<VodSession> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger sessionIds = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+    private ScheduledExecutorService reaper;
+    private volatile boolean running;
+
+    public VodRtspServer(Mp4File file) {
+        this(DEFAULT_PORT, file);
+    }
+
+    public VodRtspServer(int port, Mp4File file) {
+        this.port = port;
+        this.file = file;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+        acceptThread = new Thread(this::acceptLoop, "VodRtsp-accept");
+        acceptThread.start();
+        reaper = Executors.newSingleThreadScheduledExecutor();
+        reaper.scheduleWithFixedDelay(this::closeIdleSessions, REAPER_INTERVAL_MS, REAPER_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        LOG.info("Serving " + file.getTracks() + " on port " + getPort());
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        reaper.shutdownNow();
+        for (VodSession session : sessions) {
+            session.close();
+        }
+        sessions.clear();
+        try {
+            acceptThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel != null && channel.socket().isBound() ? channel.socket().getLocalPort() : port;
+    }
+
+    public Mp4File getFile() {
+        return file;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public int getPlayingSessionCount() {
+        int playing = 0;
+        for (VodSession session : sessions) {
+            if (session.isPlaying()) {
+                playing++;
+            }
+        }
+        return playing;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                VodSession session = new VodSession(this, channel, "s" + sessionIds.incrementAndGet());
+                sessions.add(session);
+                session.start();
+            } catch (IOException e) {
+                if (running) {
+                    LOG.warning("Accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void closeIdleSessions() {
+        long nowMs = System.currentTimeMillis();
+        for (VodSession session : sessions) {
+            if (nowMs - session.getLastActivityMs() > SESSION_TIMEOUT_SECONDS * 1000L) {
+                LOG.info("Closing idle session " + session.id);
+                session.close();
+            }
+        }
+    }
+
+    void onSessionClosed(VodSession session) {
+        sessions.remove(session);
+    }
+
+    /** The session description, {@code trackID=n} controls follow the order of {@link Mp4File#getTracks()}. */
+    String describe(String host) {
+        StringBuilder sdp = new StringBuilder();
+        sdp.append("v=0\r\n")
+                .append("o=- 0 0 IN IP4 ").append(host).append("\r\n")
+                .append("s=Screen Mirroring VOD\r\n")
+                .append("c=IN IP4 0.0.0.0\r\n")
+                .append("t=0 0\r\n")
+                .append(String.format(Locale.US, "a=range:npt=0-%.3f\r\n", file.getDurationUs() / 1e6))
+                .append("a=control:*\r\n");
+        for (int i = 0; i < file.getTracks().size(); i++) {
+            Mp4File.Track track = file.getTracks().get(i);
+            if (track.isVideo()) {
+                byte[] sps = track.getSps();
+                sdp.append("m=video 0 RTP/AVP ").append(H264Packetizer.PAYLOAD_TYPE).append("\r\n")
+                        .append("a=rtpmap:").append(H264Packetizer.PAYLOAD_TYPE).append(" H264/").append(H264Packetizer.CLOCK_RATE).append("\r\n")
+                        .append("a=fmtp:").append(H264Packetizer.PAYLOAD_TYPE).append(" packetization-mode=1");
+                if (sps != null && sps.length >= 4 && track.getPps() != null) {
+                    sdp.append(";profile-level-id=").append(hex(sps, 1, 3))
+                            .append(";sprop-parameter-sets=").append(base64(sps)).append(',').append(base64(track.getPps()));
+                }
+                sdp.append("\r\n");
+                if (track.getWidth() > 0) {
+                    sdp.append("a=framesize:").append(H264Packetizer.PAYLOAD_TYPE).append(' ')
+                            .append(track.getWidth()).append('-').append(track.getHeight()).append("\r\n");
+                }
+            } else {
+                byte[] config = track.getAudioSpecificConfig();
+                sdp.append("m=audio 0 RTP/AVP ").append(AacPacketizer.PAYLOAD_TYPE).append("\r\n")
+                        .append("a=rtpmap:").append(AacPacketizer.PAYLOAD_TYPE).append(" mpeg4-generic/")
+                        .append(track.getSampleRate()).append('/').append(track.getChannelCount()).append("\r\n")
+                        .append("a=fmtp:").append(AacPacketizer.PAYLOAD_TYPE)
+                        .append(" streamtype=5;profile-level-id=15;mode=AAC-hbr;sizelength=13;indexlength=3;indexdeltalength=3;config=")
+                        .append(hex(config, 0, config.length)).append("\r\n");
+            }
+            sdp.append("a=control:trackID=").append(i).append("\r\n");
+        }
+        return sdp.toString();
+    }
+
+    static String hex(byte[] bytes, int offset, int length) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = offset; i < offset + length; i++) {
+            hex.append(String.format(Locale.US, "%02X", bytes[i] & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    // java.util.Base64 needs API 26, this app supports 24
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    static String base64(byte[] bytes) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b0 = bytes[i] & 0xFF;
+            int b1 = i + 1 < bytes.length ? bytes[i + 1] & 0xFF : 0;
+            int b2 = i + 2 < bytes.length ? bytes[i + 2] & 0xFF : 0;
+            out.append(BASE64[b0 >> 2]).append(BASE64[(b0 & 3) << 4 | b1 >> 4]);
+            out.append(i + 1 < bytes.length ? BASE64[(b1 & 15) << 2 | b2 >> 6] : '=');
+            out.append(i + 2 < bytes.length ? BASE64[b2 & 63] : '=');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,486 @@
+package com.example.rtspserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * One RTSP client of the {@link VodRtspServer}. Requests are read on the
+ * session's own thread, samples are sent from a second thread while it
+ * plays. Both write to the socket under {@code writeLock}.
+ */
+class VodSession {
+    private static final Logger LOG = Logger.getLogger("VodSession");
+    private static final long SENDER_REPORT_INTERVAL_MS = 1000;
+    private static final int SENDER_REPORT_SIZE = 28;
+    // Seconds between 1900, the NTP epoch, and 1970
+    private static final long NTP_EPOCH_OFFSET = 2_208_988_800L;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    final String id;
+    private final VodRtspServer server;
+    private final SocketChannel channel;
+    private final Mp4File file;
+    private final List<Mp4File.Track> tracks;
+    private final String sessionId = Integer.toHexString(RANDOM.nextInt() & 0x7FFFFFFF);
+
+    // Per track, set up by SETUP
+    private final RtpPacketizer[] packetizers;
+    private final RtpPacketizer.PacketSink[] sinks;
+    private final int[] interleavedChannels;
+    private final String[] controlUrls;
+    private final long[] rtpBases;
+    private final int[] nextSamples;
+
+    private final Object writeLock = new Object();
+    // The interleaved header, then an RTP header or a whole sender report
+    private final ByteBuffer prefix = ByteBuffer.allocate(4 + Math.max(RtpPacketizer.RTP_HEADER_SIZE + 4, SENDER_REPORT_SIZE));
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private final byte[] senderReport = new byte[SENDER_REPORT_SIZE];
+
+    // Guarded by this
+    private Thread sender;
+    private boolean playing;
+    private long positionUs;
+
+    private volatile long lastActivityMs = System.currentTimeMillis();
+    private volatile boolean closed;
+    volatile long samplesSent;
+    volatile long bytesSent;
+
+    VodSession(VodRtspServer server, SocketChannel channel, String id) {
+        this.server = server;
+        this.channel = channel;
+        this.id = id;
+        this.file = server.getFile();
+        this.tracks = file.getTracks();
+        int count = tracks.size();
+        packetizers = new RtpPacketizer[count];
+        sinks = new RtpPacketizer.PacketSink[count];
+        interleavedChannels = new int[count];
+        controlUrls = new String[count];
+        rtpBases = new long[count];
+        nextSamples = new int[count];
+    }
+
+    void start() {
+        Thread thread = new Thread(this::readLoop, "VodRtsp-" + id);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    long getLastActivityMs() {
+        return lastActivityMs;
+    }
+
+    synchronized boolean isPlaying() {
+        return playing;
+    }
+
+    synchronized long getPositionUs() {
+        return positionUs;
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        stopSending();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        server.onSessionClosed(this);
+    }
+
+    private void readLoop() {
+        try {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+            while (!closed) {
+                int first = in.read();
+                if (first < 0) {
+                    break;
+                }
+                lastActivityMs = System.currentTimeMillis();
+                if (first == '$') {
+                    // Interleaved RTCP from the client, receiver reports are not used
+                    in.read();
+                    int length = (in.read() << 8) | in.read();
+                    skip(in, length);
+                    continue;
+                }
+                String requestLine = (char) first + readLine(in);
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                    }
+                }
+                String contentLength = headers.get("content-length");
+                if (contentLength != null) {
+                    skip(in, Integer.parseInt(contentLength));
+                }
+                String[] parts = requestLine.split(" ");
+                if (parts.length < 3) {
+                    respond("400 Bad Request", headers.get("cseq"), null, null);
+                    continue;
+                }
+                handle(parts[0], parts[1], headers);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                LOG.info("Session " + id + " ended: " + e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b < 0) {
+            throw new IOException("Connection closed");
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Connection closed");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private void handle(String method, String url, Map<String, String> headers) throws IOException {
+        String cseq = headers.get("cseq");
+        switch (method) {
+            case "OPTIONS":
+                respond("200 OK", cseq, "Public: OPTIONS, DESCRIBE, SETUP, TEARDOWN, PLAY, PAUSE, GET_PARAMETER\r\n", null);
+                break;
+            case "DESCRIBE":
+                if (!url.replaceAll("/+$", "").endsWith(VodRtspServer.PATH)) {
+                    respond("404 Not Found", cseq, null, null);
+                    break;
+                }
+                String sdp = server.describe(channel.socket().getLocalAddress().getHostAddress());
+                respond("200 OK", cseq, "Content-Base: " + url.replaceAll("/+$", "") + "/\r\nContent-Type: application/sdp\r\n", sdp);
+                break;
+            case "SETUP":
+                setup(url, headers, cseq);
+                break;
+            case "PLAY":
+                play(headers, cseq);
+                break;
+            case "PAUSE":
+                stopSending();
+                respond("200 OK", cseq, sessionHeader(), null);
+                break;
+            case "TEARDOWN":
+                respond("200 OK", cseq, sessionHeader(), null);
+                close();
+                break;
+            case "GET_PARAMETER":
+            case "SET_PARAMETER":
+                // Keep-alives
+                respond("200 OK", cseq, sessionHeader(), null);
+                break;
+            default:
+                respond("501 Not Implemented", cseq, null, null);
+                break;
+        }
+    }
+
+    private String sessionHeader() {
+        return "Session: " + sessionId + ";timeout=" + VodRtspServer.SESSION_TIMEOUT_SECONDS + "\r\n";
+    }
+
+    private void setup(String url, Map<String, String> headers, String cseq) throws IOException {
+        int track = -1;
+        int control = url.lastIndexOf("trackID=");
+        if (control >= 0) {
+            try {
+                track = Integer.parseInt(url.substring(control + 8).replaceAll("/+$", ""));
+            } catch (NumberFormatException ignored) {
+            }
+        } else if (tracks.size() == 1) {
+            track = 0;
+        }
+        if (track < 0 || track >= tracks.size()) {
+            respond("404 Not Found", cseq, null, null);
+            return;
+        }
+        String transport = headers.get("transport");
+        if (transport == null || !transport.contains("RTP/AVP/TCP")) {
+            respond("461 Unsupported Transport", cseq, null, null);
+            return;
+        }
+        int rtpChannel = 2 * track;
+        int interleaved = transport.indexOf("interleaved=");
+        if (interleaved >= 0) {
+            String range = transport.substring(interleaved + 12).split("[;,]")[0];
+            rtpChannel = Integer.parseInt(range.split("-")[0].trim());
+        }
+        synchronized (this) {
+            Mp4File.Track media = tracks.get(track);
+            int ssrc = RANDOM.nextInt();
+            int sequence = RANDOM.nextInt(0x10000);
+            packetizers[track] = media.isVideo() ? new H264Packetizer(ssrc, sequence, media)
+                    : new AacPacketizer(ssrc, sequence, media.getSampleRate());
+            int channelId = rtpChannel;
+            sinks[track] = (header, headerLength, payload) -> writeInterleaved(channelId, header, headerLength, payload);
+            interleavedChannels[track] = rtpChannel;
+            controlUrls[track] = url;
+            rtpBases[track] = RANDOM.nextInt() & 0xFFFFFFFFL;
+        }
+        respond("200 OK", cseq, String.format(Locale.US, "Transport: RTP/AVP/TCP;unicast;interleaved=%d-%d;ssrc=%08X\r\n%s",
+                rtpChannel, rtpChannel + 1, packetizers[track].getSsrc(), sessionHeader()), null);
+    }
+
+    private void play(Map<String, String> headers, String cseq) throws IOException {
+        StringBuilder extra = new StringBuilder();
+        // The sender is stopped before the lock is taken, it needs the lock to finish
+        boolean wasPlaying = isPlaying();
+        stopSending();
+        synchronized (this) {
+            int setUp = 0;
+            for (RtpPacketizer packetizer : packetizers) {
+                setUp += packetizer != null ? 1 : 0;
+            }
+            if (setUp == 0) {
+                respond("455 Method Not Valid in This State", cseq, null, null);
+                return;
+            }
+            long durationUs = file.getDurationUs();
+            long requestUs = parseRangeStart(headers.get("range"), positionUs);
+            if (requestUs >= durationUs) {
+                respond("457 Invalid Range", cseq, null, null);
+                return;
+            }
+            // A PLAY without Range resumes where PAUSE left off
+            long startUs = requestUs == positionUs && !wasPlaying && samplesSent > 0 ? positionUs : seek(requestUs);
+            extra.append(String.format(Locale.US, "Range: npt=%.3f-%.3f\r\n", startUs / 1e6, durationUs / 1e6));
+            extra.append("RTP-Info: ");
+            boolean first = true;
+            for (int i = 0; i < packetizers.length; i++) {
+                if (packetizers[i] == null) {
+                    continue;
+                }
+                extra.append(first ? "" : ",").append("url=").append(controlUrls[i])
+                        .append(";seq=").append(packetizers[i].getSequenceNumber())
+                        .append(";rtptime=").append(rtpTime(i, startUs));
+                first = false;
+            }
+            extra.append("\r\n").append(sessionHeader());
+            respond("200 OK", cseq, extra.toString(), null);
+            startSending(startUs);
+        }
+    }
+
+    // "npt=12.5-", "npt=12.5-20", "npt=now-" or none
+    private static long parseRangeStart(String range, long currentUs) {
+        if (range == null || !range.startsWith("npt=")) {
+            return currentUs;
+        }
+        String start = range.substring(4).split("-")[0].trim();
+        if (start.isEmpty() || start.equals("now")) {
+            return currentUs;
+        }
+        try {
+            return Math.max(0, (long) (Double.parseDouble(start) * 1_000_000));
+        } catch (NumberFormatException e) {
+            return currentUs;
+        }
+    }
+
+    /** Positions every set-up track for a start at the video sync sample at or before {@code timeUs}. */
+    private long seek(long timeUs) {
+        long startUs = timeUs;
+        for (int i = 0; i < tracks.size(); i++) {
+            Mp4File.Track track = tracks.get(i);
+            if (packetizers[i] != null && track.isVideo()) {
+                int sync = track.syncSampleAt(timeUs);
+                nextSamples[i] = sync;
+                startUs = track.toUs(track.getDecodeTime(sync));
+            }
+        }
+        for (int i = 0; i < tracks.size(); i++) {
+            Mp4File.Track track = tracks.get(i);
+            if (packetizers[i] != null && !track.isVideo()) {
+                nextSamples[i] = track.sampleFrom(startUs);
+            }
+        }
+        return startUs;
+    }
+
+    private long rtpTime(int track, long timeUs) {
+        return (rtpBases[track] + timeUs * packetizers[track].getClockRate() / 1_000_000) & 0xFFFFFFFFL;
+    }
+
+    private void startSending(long startUs) {
+        positionUs = startUs;
+        playing = true;
+        sender = new Thread(() -> sendLoop(startUs), "VodRtp-" + id);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    // Never called with the lock held, the sender thread is joined
+    private void stopSending() {
+        Thread thread;
+        synchronized (this) {
+            playing = false;
+            notifyAll();
+            thread = sender;
+            sender = null;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void sendLoop(long startUs) {
+        long wallStartNs = System.nanoTime();
+        long lastReportMs = 0;
+        try {
+            while (true) {
+                int next = -1;
+                long nextUs = Long.MAX_VALUE;
+                synchronized (this) {
+                    if (!playing) {
+                        return;
+                    }
+                    for (int i = 0; i < tracks.size(); i++) {
+                        Mp4File.Track track = tracks.get(i);
+                        if (packetizers[i] != null && nextSamples[i] < track.getSampleCount()) {
+                            long us = track.toUs(track.getDecodeTime(nextSamples[i]));
+                            if (us < nextUs) {
+                                next = i;
+                                nextUs = us;
+                            }
+                        }
+                    }
+                    if (next < 0) {
+                        LOG.info("Session " + id + " reached the end");
+                        playing = false;
+                        return;
+                    }
+                    // Real time: wait until the sample is due, PAUSE and seeks wake us up
+                    long waitNs = wallStartNs + (nextUs - startUs) * 1000 - System.nanoTime();
+                    if (waitNs > 0) {
+                        wait(waitNs / 1_000_000, (int) (waitNs % 1_000_000));
+                        continue;
+                    }
+                    positionUs = nextUs;
+                }
+                Mp4File.Track track = tracks.get(next);
+                int sample = nextSamples[next]++;
+                // Straight from track units, a detour through microseconds would round
+                long rtpTimestamp = (rtpBases[next] + track.getPresentationTime(sample)
+                        * packetizers[next].getClockRate() / track.getTimescale()) & 0xFFFFFFFFL;
+                packetizers[next].packetize(file.getSample(track, sample), rtpTimestamp, track.isSync(sample), sinks[next]);
+                samplesSent++;
+
+                long nowMs = System.currentTimeMillis();
+                if (nowMs - lastReportMs >= SENDER_REPORT_INTERVAL_MS) {
+                    lastReportMs = nowMs;
+                    long mediaUs = startUs + (System.nanoTime() - wallStartNs) / 1000;
+                    for (int i = 0; i < packetizers.length; i++) {
+                        if (packetizers[i] != null) {
+                            sendSenderReport(i, nowMs, mediaUs);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                LOG.info("Sending to " + id + " failed: " + e);
+                close();
+            }
+        }
+    }
+
+    // RFC 3550 sender report, so the client can line audio and video up
+    private void sendSenderReport(int track, long wallTimeMs, long mediaUs) throws IOException {
+        RtpPacketizer packetizer = packetizers[track];
+        ByteBuffer report = ByteBuffer.wrap(senderReport);
+        report.put((byte) 0x80).put((byte) 200).putShort((short) 6)
+                .putInt(packetizer.getSsrc())
+                .putInt((int) (wallTimeMs / 1000 + NTP_EPOCH_OFFSET))
+                .putInt((int) ((wallTimeMs % 1000) * (1L << 32) / 1000))
+                .putInt((int) rtpTime(track, mediaUs))
+                .putInt((int) packetizer.getPacketCount())
+                .putInt((int) packetizer.getOctetCount());
+        writeInterleaved(interleavedChannels[track] + 1, senderReport, senderReport.length, null);
+    }
+
+    private void writeInterleaved(int channelId, byte[] header, int headerLength, ByteBuffer payload) throws IOException {
+        int length = headerLength + (payload != null ? payload.remaining() : 0);
+        synchronized (writeLock) {
+            prefix.clear();
+            prefix.put((byte) '$').put((byte) channelId).putShort((short) length).put(header, 0, headerLength).flip();
+            gather[0] = prefix;
+            gather[1] = payload != null ? payload : EMPTY;
+            // The payload is a slice of the mapped file and goes to the socket without a heap copy
+            while (prefix.hasRemaining() || gather[1].hasRemaining()) {
+                channel.write(gather);
+            }
+        }
+        bytesSent += length + 4;
+    }
+
+    private void respond(String status, String cseq, String headers, String body) throws IOException {
+        StringBuilder response = new StringBuilder("RTSP/1.0 ").append(status).append("\r\n");
+        if (cseq != null) {
+            response.append("CSeq: ").append(cseq).append("\r\n");
+        }
+        if (headers != null) {
+            response.append(headers);
+        }
+        byte[] content = body != null ? body.getBytes(VodRtspServer.CHARSET) : null;
+        if (content != null) {
+            response.append("Content-Length: ").append(content.length).append("\r\n");
+        }
+        response.append("\r\n");
+        ByteBuffer text = ByteBuffer.wrap(response.toString().getBytes(VodRtspServer.CHARSET));
+        ByteBuffer payload = content != null ? ByteBuffer.wrap(content) : EMPTY;
+        synchronized (writeLock) {
+            gather[0] = text;
+            gather[1] = payload;
+            while (text.hasRemaining() || payload.hasRemaining()) {
+                channel.write(gather);
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.rtspserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Mp4FileTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("vod", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static Mp4File open(File file) throws IOException {
+        return Mp4File.open(new RandomAccessFile(file, "r").getChannel());
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void parsesSampleTablesAndSlicesSamples() throws IOException {
+        Mp4Fixture fixture = new Mp4Fixture();
+        fixture.write(file);
+        try (Mp4File mp4 = open(file)) {
+            Mp4File.Track video = mp4.getVideoTrack();
+            assertEquals("avc1", video.getCodec());
+            assertEquals(1280, video.getWidth());
+            assertEquals(720, video.getHeight());
+            assertEquals(4, video.getNalLengthSize());
+            assertArrayEquals(Mp4Fixture.SPS, video.getSps());
+            assertArrayEquals(Mp4Fixture.PPS, video.getPps());
+            assertEquals(300, video.getSampleCount());
+            assertEquals(10_000_000, video.getDurationUs());
+
+            Mp4File.Track audio = mp4.getAudioTrack();
+            assertArrayEquals(Mp4Fixture.AAC_CONFIG, audio.getAudioSpecificConfig());
+            assertEquals(44100, audio.getSampleRate());
+            assertEquals(2, audio.getChannelCount());
+            assertEquals(430, audio.getSampleCount());
+            assertEquals(mp4.getDurationUs(), Math.max(video.getDurationUs(), audio.getDurationUs()));
+
+            for (int i = 0; i < video.getSampleCount(); i++) {
+                assertEquals(fixture.videoOffsets[i], video.getOffset(i));
+                assertEquals(i % 30 == 0, video.isSync(i));
+                assertEquals(i * 1000L, video.getDecodeTime(i));
+                assertEquals(i * 1000L + 2000, video.getPresentationTime(i));
+            }
+            for (int i = 0; i < audio.getSampleCount(); i++) {
+                assertEquals(fixture.audioOffsets[i], audio.getOffset(i));
+                assertTrue(audio.isSync(i));
+            }
+
+            // Slices of the mapping, not copies
+            ByteBuffer key = mp4.getSample(video, 60);
+            assertTrue(key.isDirect());
+            assertTrue(key.isReadOnly());
+            assertArrayEquals(Mp4Fixture.videoSample(60, Mp4Fixture.videoSize(60, 500), true), toArray(key));
+            assertArrayEquals(Mp4Fixture.videoSample(61, Mp4Fixture.videoSize(61, 500), false), toArray(mp4.getSample(video, 61)));
+            assertArrayEquals(Mp4Fixture.audioSample(429, 200), toArray(mp4.getSample(audio, 429)));
+        }
+    }
+
+    @Test
+    public void seeksToSyncSamples() throws IOException {
+        new Mp4Fixture().write(file);
+        try (Mp4File mp4 = open(file)) {
+            Mp4File.Track video = mp4.getVideoTrack();
+            // Key frames every second
+            assertEquals(0, video.syncSampleAt(0));
+            assertEquals(0, video.syncSampleAt(999_999));
+            assertEquals(30, video.syncSampleAt(1_000_000));
+            assertEquals(120, video.syncSampleAt(4_500_000));
+            assertEquals(270, video.syncSampleAt(60_000_000));
+            assertEquals(135, video.sampleAt(4_500_000));
+            assertEquals(135, video.sampleFrom(4_500_000));
+            assertEquals(136, video.sampleFrom(4_500_001));
+
+            Mp4File.Track audio = mp4.getAudioTrack();
+            // 4 s is sample 172.27
+            assertEquals(173, audio.sampleFrom(4_000_000));
+            assertEquals(172, audio.sampleAt(4_000_000));
+            assertEquals(audio.getSampleCount(), audio.sampleFrom(60_000_000));
+        }
+    }
+
+    @Test
+    public void rejectsFilesWithoutMoov() throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.write(Mp4Fixture.box("ftyp", Mp4Fixture.ascii("isom")));
+            out.write(Mp4Fixture.box("mdat", new byte[100]));
+        }
+        try {
+            open(file).close();
+            fail();
+        } catch (IOException expected) {
+            assertEquals("No moov box", expected.getMessage());
+        }
+    }
+
+    // Overwrites the int at offset from the first box of that type, counted from its type field
+    private void corrupt(String type, int offset, int value) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        String text = new String(bytes, StandardCharsets.ISO_8859_1);
+        int at = text.indexOf(type, text.indexOf("moov")) + offset;
+        ByteBuffer.wrap(bytes).putInt(at, value);
+        Files.write(file.toPath(), bytes);
+    }
+
+    private void assertRejected(String message) throws IOException {
+        try {
+            open(file).close();
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith(message));
+        }
+    }
+
+    @Test
+    public void rejectsTableCountsLargerThanTheirBoxes() throws IOException {
+        new Mp4Fixture().write(file);
+        corrupt("stsz", 12, 301);
+        assertRejected("stsz claims 301 entries");
+
+        new Mp4Fixture().write(file);
+        corrupt("stsz", 12, 0x7FFFFFFF);
+        assertRejected("stsz claims 2147483647 entries");
+
+        new Mp4Fixture().write(file);
+        corrupt("stss", 8, -1);
+        assertRejected("stss claims 4294967295 entries");
+
+        new Mp4Fixture().write(file);
+        corrupt("stsc", 8, 1000);
+        assertRejected("stsc claims 1000 entries");
+    }
+
+    @Test
+    public void rejectsSamplesOutsideTheFile() throws IOException {
+        new Mp4Fixture().write(file);
+        corrupt("stco", 12, 0x7FFFFFF0);
+        assertRejected("Sample 0 of 2000 bytes at 2147483632 lies outside the file");
+
+        new Mp4Fixture().write(file);
+        // Sync sample 1000 of a 300 sample track
+        corrupt("stss", 12, 1000);
+        assertRejected("Sync sample 1000 of 300");
+    }
+
+    /**
+     * A two-hour recording with its samples past 4 GB: parse time, sample
+     * table memory and the cost of a seek. The gap in front is a sparse hole,
+     * so the file takes little disk space.
+     */
+    @Test
+    public void largeFileParseMemoryAndSeek() throws IOException {
+        Mp4Fixture fixture = new Mp4Fixture();
+        fixture.videoFrames = 2 * 60 * 60 * 30;
+        fixture.audioFrames = (int) (2L * 60 * 60 * Mp4Fixture.SAMPLE_RATE / Mp4Fixture.AAC_FRAME);
+        fixture.gop = 60;
+        fixture.videoSampleSize = 24;
+        fixture.audioSampleSize = 8;
+        fixture.gapBytes = 5L * 1024 * 1024 * 1024;
+        fixture.write(file);
+
+        long startNs = System.nanoTime();
+        Mp4File mp4 = open(file);
+        long parseMs = (System.nanoTime() - startNs) / 1_000_000;
+        try {
+            Mp4File.Track video = mp4.getVideoTrack();
+            Mp4File.Track audio = mp4.getAudioTrack();
+            int samples = video.getSampleCount() + audio.getSampleCount();
+            assertEquals(fixture.videoFrames, video.getSampleCount());
+            assertTrue(video.getOffset(0) > 0xFFFFFFFFL);
+            // Read across the mapping windows
+            int last = video.getSampleCount() - 1;
+            assertArrayEquals(Mp4Fixture.videoSample(last, Mp4Fixture.videoSize(last, 24), false),
+                    toArray(mp4.getSample(video, last)));
+
+            Random random = new Random(1);
+            int seeks = 100_000;
+            long[] targets = new long[seeks];
+            for (int i = 0; i < seeks; i++) {
+                targets[i] = (long) (random.nextDouble() * video.getDurationUs());
+            }
+            long checksum = 0;
+            long seekStartNs = System.nanoTime();
+            for (long target : targets) {
+                checksum += video.syncSampleAt(target);
+            }
+            long seekNs = (System.nanoTime() - seekStartNs) / seeks;
+            for (int i = 0; i < 100; i++) {
+                int sync = video.syncSampleAt(targets[i]);
+                assertTrue(video.isSync(sync));
+                assertTrue(video.toUs(video.getDecodeTime(sync)) <= targets[i]);
+                assertTrue(video.toUs(video.getDecodeTime(sync)) > targets[i] - 2_000_000);
+            }
+
+            System.out.println(file.length() / (1024 * 1024) + " MB file, " + samples + " samples: parsed in "
+                    + parseMs + " ms, tables " + mp4.getTableBytes() / 1024 + " KB ("
+                    + mp4.getTableBytes() / samples + " bytes per sample), seek " + seekNs + " ns (" + checksum % 10 + ")");
+            assertTrue(mp4.getTableBytes() <= samples * 24L + video.getSampleCount() * 4L);
+            assertTrue("Parsed in " + parseMs + " ms", parseMs < 5000);
+            assertTrue("Seek took " + seekNs + " ns", seekNs < 20_000);
+        } finally {
+            mp4.close();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.rtspserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes progressive MP4 files for the tests: H.264 video in chunks of five
+ * samples interleaved with AAC audio in chunks of seven, the moov at the end.
+ * A gap in front of the mdat (a sparse free box) pushes the samples past
+ * 4 GB to exercise co64 and the mapping windows.
+ */
+final class Mp4Fixture {
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    // AAC LC, 44.1 kHz, stereo
+    static final byte[] AAC_CONFIG = {0x12, 0x10};
+    static final int VIDEO_TIMESCALE = 30000;
+    static final int FRAME_DURATION = 1000;
+    static final int SAMPLE_RATE = 44100;
+    static final int AAC_FRAME = 1024;
+    static final int VIDEO_CHUNK = 5;
+    static final int AUDIO_CHUNK = 7;
+
+    int videoFrames = 300;
+    int audioFrames = 430;
+    int gop = 30;
+    int videoSampleSize = 500;
+    int audioSampleSize = 200;
+    // Two frames of reordering delay, as B-frames need
+    boolean compositionOffsets = true;
+    long gapBytes;
+
+    long[] videoOffsets;
+    long[] audioOffsets;
+
+    static int videoSize(int index, int base) {
+        return index % 30 == 0 ? base * 4 : base + index % 7;
+    }
+
+    // One NAL per sample, every byte derived from the sample index
+    static byte[] videoSample(int index, int size, boolean key) {
+        byte[] sample = new byte[size];
+        int nalSize = size - 4;
+        sample[0] = (byte) (nalSize >> 24);
+        sample[1] = (byte) (nalSize >> 16);
+        sample[2] = (byte) (nalSize >> 8);
+        sample[3] = (byte) nalSize;
+        sample[4] = (byte) (key ? 0x65 : 0x41);
+        for (int i = 5; i < size; i++) {
+            sample[i] = (byte) ((i + index) % 251);
+        }
+        return sample;
+    }
+
+    static byte[] audioSample(int index, int size) {
+        byte[] sample = new byte[size];
+        for (int i = 0; i < size; i++) {
+            sample[i] = (byte) (index * 7 + i);
+        }
+        return sample;
+    }
+
+    File write(File file) throws IOException {
+        videoOffsets = new long[videoFrames];
+        audioOffsets = new long[audioFrames];
+        int[] videoSizes = new int[videoFrames];
+        int[] audioSizes = new int[audioFrames];
+        for (int i = 0; i < videoFrames; i++) {
+            videoSizes[i] = videoSize(i, videoSampleSize);
+        }
+        for (int i = 0; i < audioFrames; i++) {
+            audioSizes[i] = audioSampleSize;
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            out.write(box("ftyp", ascii("isom"), new byte[]{0, 0, 2, 0}, ascii("isomavc1")));
+            if (gapBytes > 0) {
+                // Large-size free box, its payload left as a hole
+                out.writeInt(1);
+                out.write(ascii("free"));
+                out.writeLong(16 + gapBytes);
+                out.seek(out.getFilePointer() + gapBytes);
+            }
+            long mdatStart = out.getFilePointer();
+            out.writeInt(1);
+            out.write(ascii("mdat"));
+            out.writeLong(0);
+            int video = 0;
+            int audio = 0;
+            while (video < videoFrames || audio < audioFrames) {
+                for (int i = 0; i < VIDEO_CHUNK && video < videoFrames; i++, video++) {
+                    videoOffsets[video] = out.getFilePointer();
+                    out.write(videoSample(video, videoSizes[video], video % gop == 0));
+                }
+                for (int i = 0; i < AUDIO_CHUNK && audio < audioFrames; i++, audio++) {
+                    audioOffsets[audio] = out.getFilePointer();
+                    out.write(audioSample(audio, audioSizes[audio]));
+                }
+            }
+            long mdatEnd = out.getFilePointer();
+            out.seek(mdatStart + 8);
+            out.writeLong(mdatEnd - mdatStart);
+            out.seek(mdatEnd);
+            out.write(moov(videoSizes, audioSizes));
+        }
+        return file;
+    }
+
+    private byte[] moov(int[] videoSizes, int[] audioSizes) throws IOException {
+        return box("moov",
+                fullBox("mvhd", 0, new byte[96]),
+                trak("vide", VIDEO_TIMESCALE, (long) videoFrames * FRAME_DURATION, videoEntry(), videoTables(videoSizes)),
+                trak("soun", SAMPLE_RATE, (long) audioFrames * AAC_FRAME, audioEntry(), audioTables(audioSizes)));
+    }
+
+    private byte[] trak(String handler, int timescale, long duration, byte[] sampleEntry, byte[] tables) throws IOException {
+        ByteArrayOutputStream mdhd = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(mdhd);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(timescale);
+        out.writeInt((int) duration);
+        out.writeInt(0);
+        ByteArrayOutputStream hdlr = new ByteArrayOutputStream();
+        hdlr.write(new byte[4]);
+        hdlr.write(ascii(handler));
+        hdlr.write(new byte[13]);
+        return box("trak",
+                fullBox("tkhd", 0, new byte[80]),
+                box("mdia",
+                        fullBox("mdhd", 0, mdhd.toByteArray()),
+                        fullBox("hdlr", 0, hdlr.toByteArray()),
+                        box("minf", box("stbl", fullBox("stsd", 0, int32(1), sampleEntry), tables))));
+    }
+
+    private byte[] videoEntry() throws IOException {
+        ByteArrayOutputStream visual = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(visual);
+        out.write(new byte[6]);
+        out.writeShort(1);
+        out.write(new byte[16]);
+        out.writeShort(1280);
+        out.writeShort(720);
+        out.writeInt(0x00480000);
+        out.writeInt(0x00480000);
+        out.writeInt(0);
+        out.writeShort(1);
+        out.write(new byte[32]);
+        out.writeShort(0x18);
+        out.writeShort(-1);
+        ByteArrayOutputStream avcC = new ByteArrayOutputStream();
+        DataOutputStream c = new DataOutputStream(avcC);
+        c.write(new byte[]{1, SPS[1], SPS[2], SPS[3], (byte) 0xFF, (byte) 0xE1});
+        c.writeShort(SPS.length);
+        c.write(SPS);
+        c.write(1);
+        c.writeShort(PPS.length);
+        c.write(PPS);
+        return box("avc1", visual.toByteArray(), box("avcC", avcC.toByteArray()));
+    }
+
+    private byte[] audioEntry() throws IOException {
+        ByteArrayOutputStream audio = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(audio);
+        out.write(new byte[6]);
+        out.writeShort(1);
+        out.write(new byte[8]);
+        out.writeShort(2);
+        out.writeShort(16);
+        out.writeInt(0);
+        out.writeInt(SAMPLE_RATE << 16);
+        // ES_Descriptor with a DecoderConfigDescriptor holding the AudioSpecificConfig
+        byte[] specific = concat(new byte[]{5, (byte) AAC_CONFIG.length}, AAC_CONFIG);
+        byte[] decoderConfig = concat(new byte[]{4, (byte) (13 + specific.length), 0x40, 0x15, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}, specific);
+        byte[] es = concat(new byte[]{3, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) (3 + decoderConfig.length + 3), 0, 1, 0},
+                decoderConfig, new byte[]{6, 1, 2});
+        return box("mp4a", audio.toByteArray(), fullBox("esds", 0, es));
+    }
+
+    private byte[] videoTables(int[] sizes) throws IOException {
+        ByteArrayOutputStream ctts = new ByteArrayOutputStream();
+        DataOutputStream c = new DataOutputStream(ctts);
+        c.writeInt(1);
+        c.writeInt(videoFrames);
+        c.writeInt(2 * FRAME_DURATION);
+        ByteArrayOutputStream stss = new ByteArrayOutputStream();
+        DataOutputStream s = new DataOutputStream(stss);
+        s.writeInt((videoFrames + gop - 1) / gop);
+        for (int i = 0; i < videoFrames; i += gop) {
+            s.writeInt(i + 1);
+        }
+        return concat(stts(videoFrames, FRAME_DURATION),
+                compositionOffsets ? fullBox("ctts", 0, ctts.toByteArray()) : new byte[0],
+                fullBox("stss", 0, stss.toByteArray()),
+                stsc(videoFrames, VIDEO_CHUNK), stsz(sizes), chunkOffsets(videoOffsets, VIDEO_CHUNK));
+    }
+
+    private byte[] audioTables(int[] sizes) throws IOException {
+        return concat(stts(audioFrames, AAC_FRAME), stsc(audioFrames, AUDIO_CHUNK), stsz(sizes),
+                chunkOffsets(audioOffsets, AUDIO_CHUNK));
+    }
+
+    private static byte[] stts(int count, int delta) throws IOException {
+        return fullBox("stts", 0, int32(1), int32(count), int32(delta));
+    }
+
+    private static byte[] stsc(int count, int perChunk) throws IOException {
+        int chunks = (count + perChunk - 1) / perChunk;
+        int last = count - (chunks - 1) * perChunk;
+        if (last == perChunk) {
+            return fullBox("stsc", 0, int32(1), int32(1), int32(perChunk), int32(1));
+        }
+        return fullBox("stsc", 0, int32(2), int32(1), int32(perChunk), int32(1), int32(chunks), int32(last), int32(1));
+    }
+
+    private static byte[] stsz(int[] sizes) throws IOException {
+        ByteArrayOutputStream stsz = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(stsz);
+        out.writeInt(0);
+        out.writeInt(sizes.length);
+        for (int size : sizes) {
+            out.writeInt(size);
+        }
+        return fullBox("stsz", 0, stsz.toByteArray());
+    }
+
+    private static byte[] chunkOffsets(long[] offsets, int perChunk) throws IOException {
+        int chunks = (offsets.length + perChunk - 1) / perChunk;
+        boolean wide = offsets[offsets.length - 1] > 0xFFFFFFFFL;
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(table);
+        out.writeInt(chunks);
+        for (int i = 0; i < chunks; i++) {
+            if (wide) {
+                out.writeLong(offsets[i * perChunk]);
+            } else {
+                out.writeInt((int) offsets[i * perChunk]);
+            }
+        }
+        return fullBox(wide ? "co64" : "stco", 0, table.toByteArray());
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] int32(int value) {
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] box(String type, byte[]... payload) throws IOException {
+        byte[] content = concat(payload);
+        return concat(int32(8 + content.length), ascii(type), content);
+    }
+
+    static byte[] fullBox(String type, int version, byte[]... payload) throws IOException {
+        return box(type, concat(new byte[]{(byte) version, 0, 0, 0}), concat(payload));
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.rtspserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class Mp4LayoutTest {
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("layout", ".mp4");
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    private void box(String type, int size) throws IOException {
+        ByteBuffer box = ByteBuffer.allocate(size);
+        box.putInt(size).put(type.getBytes(StandardCharsets.US_ASCII));
+        raf.write(box.array());
+    }
+
+    private int classify() throws IOException {
+        FileChannel channel = raf.getChannel();
+        return Mp4Layout.classify(channel, channel.size());
+    }
+
+    @Test
+    public void moovBeforeMdatIsProgressive() throws IOException {
+        box("ftyp", 24);
+        box("free", 8);
+        box("moov", 2000);
+        box("mdat", 5000);
+        assertEquals(Mp4Layout.PROGRESSIVE, classify());
+    }
+
+    @Test
+    public void mdatBeforeMoovNeedsWholeFile() throws IOException {
+        box("ftyp", 24);
+        // 64-bit size
+        ByteBuffer mdat = ByteBuffer.allocate(16);
+        mdat.putInt(1).put("wide".getBytes(StandardCharsets.US_ASCII)).putLong(16);
+        raf.write(mdat.array());
+        box("mdat", 5000);
+        box("moov", 2000);
+        assertEquals(Mp4Layout.NEEDS_WHOLE_FILE, classify());
+    }
+
+    @Test
+    public void waitsForEnoughBytesAndPassesOtherFormats() throws IOException {
+        box("ftyp", 24);
+        box("moov", 200);
+        FileChannel channel = raf.getChannel();
+        assertEquals(Mp4Layout.UNDECIDED, Mp4Layout.classify(channel, 10));
+        assertEquals(Mp4Layout.UNDECIDED, Mp4Layout.classify(channel, 30));
+        assertEquals(Mp4Layout.PROGRESSIVE, Mp4Layout.classify(channel, 40));
+
+        // Matroska starts with its EBML header, MPEG-TS with sync bytes
+        raf.setLength(0);
+        raf.write(new byte[]{0x1A, 0x45, (byte) 0xDF, (byte) 0xA3, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        assertEquals(Mp4Layout.PROGRESSIVE, classify());
+    }
+}
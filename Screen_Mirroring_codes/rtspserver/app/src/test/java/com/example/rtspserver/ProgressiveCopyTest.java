@@ -0,0 +1,208 @@
+package com.example.rtspserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class ProgressiveCopyTest {
+    private File copyFile;
+    private RandomAccessFile target;
+
+    @Before
+    public void setUp() throws IOException {
+        copyFile = File.createTempFile("copy", ".mp4");
+        target = new RandomAccessFile(copyFile, "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        target.close();
+        copyFile.delete();
+    }
+
+    private static byte[] chunk(int index, int size) {
+        byte[] chunk = new byte[size];
+        for (int i = 0; i < size; i++) {
+            chunk[i] = (byte) (i * 31 + index);
+        }
+        return chunk;
+    }
+
+    /** Checksums what it is given and notes when the first byte arrived. */
+    private static final class Sink implements WritableByteChannel {
+        final CRC32 crc = new CRC32();
+        long bytes;
+        long firstByteNs;
+
+        @Override
+        public int write(ByteBuffer src) {
+            if (bytes == 0) {
+                firstByteNs = System.nanoTime();
+            }
+            int count = src.remaining();
+            crc.update(src);
+            bytes += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void readerStreamsWhileCopyIsInProgress() throws Exception {
+        // A provider pipe that delivers 1 MB every 10 ms
+        Pipe pipe = Pipe.open();
+        int chunks = 32;
+        int chunkSize = 1024 * 1024;
+        CRC32 expected = new CRC32();
+        Thread writer = new Thread(() -> {
+            try (WritableByteChannel out = pipe.sink()) {
+                for (int i = 0; i < chunks; i++) {
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk(i, chunkSize));
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    Thread.sleep(10);
+                }
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        for (int i = 0; i < chunks; i++) {
+            expected.update(chunk(i, chunkSize));
+        }
+        ProgressiveCopy copy = new ProgressiveCopy(pipe.source(), target.getChannel());
+        Thread copier = new Thread(copy);
+        writer.start();
+        copier.start();
+
+        Sink sink = new Sink();
+        long[] copiedAtFirstByte = new long[1];
+        Thread reader = new Thread(() -> {
+            try {
+                copiedAtFirstByte[0] = copy.awaitBytes(0);
+                copy.pipeTo(sink);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        reader.join(30_000);
+        copier.join(30_000);
+
+        assertTrue(copy.isFinished());
+        assertEquals((long) chunks * chunkSize, copy.getCopiedBytes());
+        assertEquals(copy.getCopiedBytes(), sink.bytes);
+        assertEquals(expected.getValue(), sink.crc.getValue());
+        assertEquals(copy.getCopiedBytes(), copyFile.length());
+        // The reader got going with a small prefix, not the whole video
+        assertTrue(copiedAtFirstByte[0] < copy.getCopiedBytes() / 4);
+    }
+
+    @Test
+    public void failureReachesTheReader() throws Exception {
+        ReadableByteChannel broken = new ReadableByteChannel() {
+            int reads;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (++reads > 3) {
+                    throw new IOException("Provider went away");
+                }
+                int count = Math.min(dst.remaining(), 1000);
+                dst.position(dst.position() + count);
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ProgressiveCopy copy = new ProgressiveCopy(broken, target.getChannel());
+        copy.run();
+        assertTrue(copy.isFinished());
+        try {
+            copy.pipeTo(new Sink());
+            fail();
+        } catch (IOException expected) {
+            assertEquals("Provider went away", expected.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Time to stream start for a large video: the old path copied all of it
+     * through a 1 KB buffer first, the new one starts on the first block.
+     */
+    @Test
+    public void timeToStreamStartForLargeFile() throws Exception {
+        File source = File.createTempFile("source", ".mp4");
+        File oldCopy = File.createTempFile("oldcopy", ".mp4");
+        try {
+            int chunkSize = 4 * 1024 * 1024;
+            int chunks = 64;
+            try (FileOutputStream out = new FileOutputStream(source)) {
+                for (int i = 0; i < chunks; i++) {
+                    out.write(chunk(i, chunkSize));
+                }
+            }
+
+            long oldStartNs = System.nanoTime();
+            try (InputStream in = new FileInputStream(source); OutputStream out = new FileOutputStream(oldCopy)) {
+                byte[] buffer = new byte[1024];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, length);
+                }
+            }
+            long oldMs = (System.nanoTime() - oldStartNs) / 1_000_000;
+
+            long startNs = System.nanoTime();
+            // A stream channel, as the activity wraps the provider's pipe
+            ProgressiveCopy copy = new ProgressiveCopy(Channels.newChannel(new FileInputStream(source)), target.getChannel());
+            Thread copier = new Thread(copy);
+            copier.start();
+            Sink sink = new Sink();
+            copy.pipeTo(sink);
+            copier.join();
+            long startMs = (sink.firstByteNs - startNs) / 1_000_000;
+            long totalMs = (System.nanoTime() - startNs) / 1_000_000;
+            System.out.println(source.length() / (1024 * 1024) + " MB: 1 KB copy before start " + oldMs
+                    + " ms, progressive start " + startMs + " ms, " + ProgressiveCopy.BLOCK_BYTES / (1024 * 1024)
+                    + " MB block copy " + copy.getElapsedMs() + " ms, fully streamed " + totalMs + " ms");
+
+            assertEquals(source.length(), sink.bytes);
+            assertTrue(startMs < oldMs);
+        } finally {
+            source.delete();
+            oldCopy.delete();
+        }
+    }
+}
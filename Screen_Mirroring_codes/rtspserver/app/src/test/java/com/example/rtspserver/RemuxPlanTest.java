@@ -0,0 +1,70 @@
+package com.example.rtspserver;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class RemuxPlanTest {
+    private static final String MP4 = "mov,mp4,m4a,3gp,3g2,mj2";
+
+    private static RemuxPlan.Stream h264(int width, int height, int rotation) {
+        return RemuxPlan.Stream.video("h264", "High", "yuv420p", width, height, rotation);
+    }
+
+    @Test
+    public void phoneRecordingIsPassedThrough() {
+        RemuxPlan plan = RemuxPlan.decide(MP4, Arrays.asList(h264(1920, 1080, 0), RemuxPlan.Stream.audio("aac")));
+        assertTrue(plan.isPassthrough());
+        assertEquals("-map 0:v:0 -map 0:a:0? -c:v copy -c:a copy", plan.toArgs());
+        assertEquals("passthrough (video copied, audio copied)", plan.toString());
+    }
+
+    @Test
+    public void onlyTheStreamThatNeedsItIsReencoded() {
+        RemuxPlan hevc = RemuxPlan.decide(MP4, Arrays.asList(
+                RemuxPlan.Stream.video("hevc", "Main", "yuv420p", 1920, 1080, 0), RemuxPlan.Stream.audio("aac")));
+        assertFalse(hevc.copiesVideo());
+        assertTrue(hevc.copiesAudio());
+        assertEquals("-map 0:v:0 -map 0:a:0? " + RemuxPlan.TRANSCODE_VIDEO_ARGS + " -c:a copy", hevc.toArgs());
+
+        RemuxPlan mp3 = RemuxPlan.decide("matroska,webm", Arrays.asList(h264(1280, 720, 0), RemuxPlan.Stream.audio("mp3")));
+        assertTrue(mp3.copiesVideo());
+        assertFalse(mp3.copiesAudio());
+        assertFalse(mp3.isPassthrough());
+        assertEquals("-map 0:v:0 -map 0:a:0? -c:v copy -c:a aac", mp3.toArgs());
+    }
+
+    @Test
+    public void incompatibleH264IsReencoded() {
+        assertEquals("odd size 1279x720", RemuxPlan.decide(MP4, Collections.singletonList(h264(1279, 720, 0))).getReason().split(",")[0]);
+        assertEquals("rotated 90", RemuxPlan.decide(MP4, Collections.singletonList(h264(1920, 1080, 90))).getReason().split(",")[0]);
+        assertTrue(RemuxPlan.decide(MP4, Collections.singletonList(h264(1920, 1080, -360))).copiesVideo());
+        assertFalse(RemuxPlan.decide(MP4, Collections.singletonList(
+                RemuxPlan.Stream.video("h264", "High 4:2:2", "yuv422p", 1920, 1080, 0))).copiesVideo());
+        assertFalse(RemuxPlan.decide(MP4, Collections.singletonList(
+                RemuxPlan.Stream.video("h264", "High", "yuv420p10le", 1920, 1080, 0))).copiesVideo());
+        assertTrue(RemuxPlan.decide(MP4, Collections.singletonList(
+                RemuxPlan.Stream.video("h264", "Constrained Baseline", "yuvj420p", 640, 480, 0))).copiesVideo());
+    }
+
+    @Test
+    public void silentVideoMapsNoAudio() {
+        RemuxPlan plan = RemuxPlan.decide("mpegts", Collections.singletonList(h264(1280, 720, 0)));
+        assertTrue(plan.isPassthrough());
+        assertEquals("-map 0:v:0 -c:v copy", plan.toArgs());
+    }
+
+    @Test
+    public void failedProbeOrUnknownContainerReencodesAsBefore() {
+        RemuxPlan failed = RemuxPlan.decide(null, null);
+        assertFalse(failed.isPassthrough());
+        assertEquals("-map 0:v:0 -map 0:a:0? " + RemuxPlan.TRANSCODE_VIDEO_ARGS + " " + RemuxPlan.TRANSCODE_AUDIO_ARGS, failed.toArgs());
+        RemuxPlan avi = RemuxPlan.decide("avi", Arrays.asList(h264(1280, 720, 0), RemuxPlan.Stream.audio("aac")));
+        assertFalse(avi.copiesVideo());
+        assertFalse(avi.copiesAudio());
+        assertEquals("container avi", avi.getReason());
+    }
+}
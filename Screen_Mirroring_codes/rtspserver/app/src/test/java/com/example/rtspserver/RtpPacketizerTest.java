@@ -0,0 +1,149 @@
+package com.example.rtspserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RtpPacketizerTest {
+    /** Copies every packet, as a socket would. */
+    private static final class Capture implements RtpPacketizer.PacketSink {
+        final List<byte[]> packets = new ArrayList<>();
+
+        @Override
+        public void onPacket(byte[] header, int headerLength, ByteBuffer payload) {
+            byte[] packet = new byte[headerLength + payload.remaining()];
+            System.arraycopy(header, 0, packet, 0, headerLength);
+            payload.duplicate().get(packet, headerLength, payload.remaining());
+            packets.add(packet);
+        }
+
+        boolean marker(int i) {
+            return (packets.get(i)[1] & 0x80) != 0;
+        }
+
+        int sequence(int i) {
+            return ((packets.get(i)[2] & 0xFF) << 8) | (packets.get(i)[3] & 0xFF);
+        }
+
+        long timestamp(int i) {
+            return ByteBuffer.wrap(packets.get(i)).getInt(4) & 0xFFFFFFFFL;
+        }
+
+        byte[] payload(int i, int skip) {
+            byte[] packet = packets.get(i);
+            return Arrays.copyOfRange(packet, RtpPacketizer.RTP_HEADER_SIZE + skip, packet.length);
+        }
+    }
+
+    private static Mp4File.Track videoTrack() throws IOException {
+        File file = File.createTempFile("packetizer", ".mp4");
+        try {
+            new Mp4Fixture().write(file);
+            try (Mp4File mp4 = Mp4File.open(new RandomAccessFile(file, "r").getChannel())) {
+                return mp4.getVideoTrack();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] avcc(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(nal.length >> 24);
+            out.write(nal.length >> 16);
+            out.write(nal.length >> 8);
+            out.write(nal.length);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] nal(int header, int length) {
+        byte[] nal = new byte[length];
+        nal[0] = (byte) header;
+        for (int i = 1; i < length; i++) {
+            nal[i] = (byte) (i % 199);
+        }
+        return nal;
+    }
+
+    @Test
+    public void syncSampleStartsWithParameterSetsAndFragmentsLargeNals() throws IOException {
+        H264Packetizer packetizer = new H264Packetizer(0x1234, 65530, videoTrack());
+        byte[] sei = nal(0x06, 20);
+        byte[] idr = nal(0x65, 4000);
+        ByteBuffer sample = ByteBuffer.wrap(avcc(sei, idr));
+        Capture capture = new Capture();
+        packetizer.packetize(sample, 90_000, true, capture);
+        assertEquals(0, sample.position());
+
+        assertArrayEquals(Mp4Fixture.SPS, capture.payload(0, 0));
+        assertArrayEquals(Mp4Fixture.PPS, capture.payload(1, 0));
+        assertArrayEquals(sei, capture.payload(2, 0));
+        // FU-A fragments of the IDR rebuild it, with the marker on the very last packet
+        ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        rebuilt.write(0x65);
+        for (int i = 3; i < capture.packets.size(); i++) {
+            byte[] packet = capture.packets.get(i);
+            assertTrue(packet.length <= RtpPacketizer.DEFAULT_MAX_PACKET_SIZE);
+            assertEquals(28, packet[12] & 0x1F);
+            assertEquals(i == 3, (packet[13] & 0x80) != 0);
+            assertEquals(i == capture.packets.size() - 1, (packet[13] & 0x40) != 0);
+            byte[] fragment = capture.payload(i, 2);
+            rebuilt.write(fragment, 0, fragment.length);
+        }
+        assertArrayEquals(idr, rebuilt.toByteArray());
+        for (int i = 0; i < capture.packets.size(); i++) {
+            assertEquals(i == capture.packets.size() - 1, capture.marker(i));
+            assertEquals(90_000, capture.timestamp(i));
+            // Sequence numbers wrap at 16 bits
+            assertEquals((65530 + i) & 0xFFFF, capture.sequence(i));
+        }
+        assertEquals(capture.packets.size(), packetizer.getPacketCount());
+
+        // No parameter sets in front of other samples
+        Capture delta = new Capture();
+        packetizer.packetize(ByteBuffer.wrap(avcc(nal(0x41, 300))), 93_000, false, delta);
+        assertEquals(1, delta.packets.size());
+        assertTrue(delta.marker(0));
+    }
+
+    @Test
+    public void aacUsesAuHeadersAndFragments() throws IOException {
+        AacPacketizer packetizer = new AacPacketizer(7, 0, 44100);
+        Capture capture = new Capture();
+        byte[] frame = nal(0x21, 371);
+        packetizer.packetize(ByteBuffer.wrap(frame), 1024, true, capture);
+        assertEquals(1, capture.packets.size());
+        assertTrue(capture.marker(0));
+        byte[] payload = capture.payload(0, 0);
+        // 16 bits of AU headers, then 371 << 3
+        assertEquals(0, payload[0]);
+        assertEquals(16, payload[1]);
+        assertEquals(371, ((payload[2] & 0xFF) << 5) | ((payload[3] & 0xFF) >> 3));
+        assertArrayEquals(frame, capture.payload(0, 4));
+
+        Capture large = new Capture();
+        byte[] big = nal(0x21, 3000);
+        packetizer.packetize(ByteBuffer.wrap(big), 2048, true, large);
+        assertEquals(3, large.packets.size());
+        ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            byte[] fragment = large.payload(i, 0);
+            assertEquals(3000, ((fragment[2] & 0xFF) << 5) | ((fragment[3] & 0xFF) >> 3));
+            assertEquals(i == 2, large.marker(i));
+            rebuilt.write(fragment, 4, fragment.length - 4);
+        }
+        assertArrayEquals(big, rebuilt.toByteArray());
+    }
+}
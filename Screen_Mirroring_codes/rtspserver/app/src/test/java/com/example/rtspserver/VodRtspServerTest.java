@@ -0,0 +1,277 @@
+package com.example.rtspserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class VodRtspServerTest {
+    private File file;
+    private Mp4File mp4;
+    private VodRtspServer server;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private String url;
+    private int cseq;
+    private String session;
+    // Interleaved packets that arrived while waiting for a response
+    private final List<Packet> early = new ArrayList<>();
+
+    private static final class Packet {
+        final int channel;
+        final byte[] data;
+
+        Packet(int channel, byte[] data) {
+            this.channel = channel;
+            this.data = data;
+        }
+
+        int sequence() {
+            return ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        }
+
+        long timestamp() {
+            return ByteBuffer.wrap(data).getInt(4) & 0xFFFFFFFFL;
+        }
+
+        int payloadType() {
+            return data[1] & 0x7F;
+        }
+    }
+
+    private static final class Response {
+        final int status;
+        final Map<String, String> headers = new HashMap<>();
+        String body = "";
+
+        Response(int status) {
+            this.status = status;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("vod", ".mp4");
+        new Mp4Fixture().write(file);
+        mp4 = Mp4File.open(new RandomAccessFile(file, "r").getChannel());
+        server = new VodRtspServer(0, mp4);
+        server.start();
+        socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(5000);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        url = "rtsp://127.0.0.1:" + server.getPort() + VodRtspServer.PATH;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        server.stop();
+        mp4.close();
+        file.delete();
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private Packet readPacketAfterDollar() throws IOException {
+        int channel = in.read();
+        byte[] data = new byte[in.readUnsignedShort()];
+        in.readFully(data);
+        return new Packet(channel, data);
+    }
+
+    private Packet readPacket() throws IOException {
+        if (!early.isEmpty()) {
+            return early.remove(0);
+        }
+        int first = in.read();
+        assertEquals('$', first);
+        return readPacketAfterDollar();
+    }
+
+    private Response request(String method, String target, String... headers) throws IOException {
+        StringBuilder request = new StringBuilder(method).append(' ').append(target).append(" RTSP/1.0\r\n")
+                .append("CSeq: ").append(++cseq).append("\r\n");
+        if (session != null) {
+            request.append("Session: ").append(session).append("\r\n");
+        }
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        out.write(request.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        int first;
+        while ((first = in.read()) == '$') {
+            early.add(readPacketAfterDollar());
+        }
+        String statusLine = (char) first + readLine();
+        Response response = new Response(Integer.parseInt(statusLine.split(" ")[1]));
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon), line.substring(colon + 1).trim());
+        }
+        assertEquals(String.valueOf(cseq), response.headers.get("CSeq"));
+        String length = response.headers.get("Content-Length");
+        if (length != null) {
+            byte[] body = new byte[Integer.parseInt(length)];
+            in.readFully(body);
+            response.body = new String(body, StandardCharsets.ISO_8859_1);
+        }
+        return response;
+    }
+
+    private void setupBoth() throws IOException {
+        Response video = request("SETUP", url + "/trackID=0", "Transport: RTP/AVP/TCP;unicast;interleaved=0-1");
+        assertEquals(200, video.status);
+        session = video.headers.get("Session").split(";")[0];
+        assertTrue(video.headers.get("Transport").startsWith("RTP/AVP/TCP;unicast;interleaved=0-1;ssrc="));
+        assertEquals(200, request("SETUP", url + "/trackID=1", "Transport: RTP/AVP/TCP;unicast;interleaved=2-3").status);
+    }
+
+    // url=...;seq=N;rtptime=T for each track, in SETUP order
+    private static long[][] rtpInfo(Response response) {
+        Matcher matcher = Pattern.compile("seq=(\\d+);rtptime=(\\d+)").matcher(response.headers.get("RTP-Info"));
+        List<long[]> tracks = new ArrayList<>();
+        while (matcher.find()) {
+            tracks.add(new long[]{Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))});
+        }
+        return tracks.toArray(new long[0][]);
+    }
+
+    @Test
+    public void describesTheFileAndOffersOnlyTcp() throws IOException {
+        assertTrue(request("OPTIONS", url).headers.get("Public").contains("PLAY, PAUSE"));
+        Response describe = request("DESCRIBE", url, "Accept: application/sdp");
+        assertEquals(200, describe.status);
+        assertEquals("application/sdp", describe.headers.get("Content-Type"));
+        String sdp = describe.body;
+        assertTrue(sdp, sdp.contains("a=range:npt=0-10.000\r\n"));
+        assertTrue(sdp, sdp.contains("a=rtpmap:96 H264/90000\r\n"));
+        assertTrue(sdp, sdp.contains("packetization-mode=1;profile-level-id=42C01F;sprop-parameter-sets=Z0LAHxEi,aM48gA==\r\n"));
+        assertTrue(sdp, sdp.contains("a=rtpmap:97 mpeg4-generic/44100/2\r\n"));
+        assertTrue(sdp, sdp.contains("mode=AAC-hbr;sizelength=13;indexlength=3;indexdeltalength=3;config=1210\r\n"));
+        assertTrue(sdp, sdp.contains("a=control:trackID=1\r\n"));
+
+        assertEquals(404, request("DESCRIBE", "rtsp://127.0.0.1/other").status);
+        assertEquals(461, request("SETUP", url + "/trackID=0", "Transport: RTP/AVP;unicast;client_port=5000-5001").status);
+        assertEquals(455, request("PLAY", url).status);
+    }
+
+    @Test
+    public void playSeeksToSyncSampleAndPacesInRealTime() throws IOException {
+        setupBoth();
+        Response play = request("PLAY", url, "Range: npt=4.5-");
+        assertEquals(200, play.status);
+        // Key frames every second, so 4.5 s starts at 4 s
+        assertEquals("npt=4.000-10.000", play.headers.get("Range"));
+        long[][] info = rtpInfo(play);
+        assertEquals(2, info.length);
+
+        long startNs = System.nanoTime();
+        List<Packet> packets = new ArrayList<>();
+        while (System.nanoTime() - startNs < 600_000_000L) {
+            packets.add(readPacket());
+        }
+        Packet firstVideo = null;
+        Packet firstAudio = null;
+        Packet lastVideo = null;
+        boolean senderReport = false;
+        for (Packet packet : packets) {
+            if (packet.channel == 0) {
+                firstVideo = firstVideo == null ? packet : firstVideo;
+                lastVideo = packet;
+            } else if (packet.channel == 2 && firstAudio == null) {
+                firstAudio = packet;
+            } else if (packet.channel == 1) {
+                senderReport |= packet.payloadType() == 200 - 128;
+            }
+        }
+        assertNotNull(firstVideo);
+        assertNotNull(firstAudio);
+        // The sync sample opens with its SPS, timestamped with its presentation time two frames later
+        assertEquals(7, firstVideo.data[12] & 0x1F);
+        assertEquals(info[0][0], firstVideo.sequence());
+        assertEquals((info[0][1] + 6000) & 0xFFFFFFFFL, firstVideo.timestamp());
+        // The first audio frame at or after 4 s is 173, 752 samples later
+        assertEquals(info[1][0], firstAudio.sequence());
+        assertEquals((info[1][1] + 752) & 0xFFFFFFFFL, firstAudio.timestamp());
+        assertTrue(senderReport);
+
+        // Real time: about 0.6 s of video in 0.6 s, not the remaining 6 s at once
+        double sentSeconds = ((lastVideo.timestamp() - firstVideo.timestamp()) & 0xFFFFFFFFL) / 90000.0;
+        assertTrue("Sent " + sentSeconds + " s", sentSeconds > 0.3 && sentSeconds < 1.0);
+        assertEquals(1, server.getPlayingSessionCount());
+    }
+
+    @Test
+    public void pauseResumeAndTeardown() throws IOException {
+        setupBoth();
+        assertEquals(200, request("PLAY", url, "Range: npt=0-").status);
+        int lastVideoSequence = -1;
+        long startNs = System.nanoTime();
+        while (System.nanoTime() - startNs < 300_000_000L) {
+            Packet packet = readPacket();
+            if (packet.channel == 0) {
+                lastVideoSequence = packet.sequence();
+            }
+        }
+        assertEquals(200, request("PAUSE", url).status);
+        for (Packet packet : early) {
+            if (packet.channel == 0) {
+                lastVideoSequence = packet.sequence();
+            }
+        }
+        early.clear();
+        // Nothing after the PAUSE response
+        socket.setSoTimeout(400);
+        try {
+            fail("Received " + in.read());
+        } catch (SocketTimeoutException expected) {
+        }
+        socket.setSoTimeout(5000);
+        assertEquals(0, server.getPlayingSessionCount());
+
+        // Resumes from where it paused, sequence numbers carry on
+        Response resume = request("PLAY", url);
+        assertEquals(200, resume.status);
+        assertEquals((lastVideoSequence + 1) & 0xFFFF, rtpInfo(resume)[0][0]);
+        double resumedAt = Double.parseDouble(resume.headers.get("Range").substring(4).split("-")[0]);
+        assertTrue("Resumed at " + resumedAt, resumedAt > 0.1 && resumedAt < 0.6);
+
+        assertEquals(200, request("TEARDOWN", url).status);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (server.getSessionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(0, server.getSessionCount());
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.screenrecoder;
+
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records the microphone and encodes it to AAC on a thread of its own, the
+ * audio that MediaRecorder used to add to recordings.
+ */
+final class MicrophoneEncoder {
+    private static final String TAG = "MicrophoneEncoder";
+    private static final long DEQUEUE_TIMEOUT_US = 10_000;
+
+    interface Listener {
+        void onFormat(MediaFormat format);
+
+        /** The buffer holds one AAC frame between position and limit. */
+        void onSample(ByteBuffer sample, long presentationTimeUs);
+    }
+
+    private final int sampleRate;
+    private final int bitRate;
+    private final Listener listener;
+    private AudioRecord audioRecord;
+    private MediaCodec codec;
+    private Thread thread;
+    private volatile boolean running;
+
+    MicrophoneEncoder(int sampleRate, int bitRate, Listener listener) {
+        this.sampleRate = sampleRate;
+        this.bitRate = bitRate;
+        this.listener = listener;
+    }
+
+    /** Opens the microphone and the encoder, false if either is not available. */
+    @SuppressLint("MissingPermission") // Checked by the service before
+    boolean prepare() {
+        int minBuffer = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBuffer <= 0) {
+            return false;
+        }
+        audioRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, minBuffer * 2);
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            release();
+            return false;
+        }
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, 1);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, minBuffer * 2);
+        try {
+            codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            Log.e(TAG, "Cannot set up the AAC encoder", e);
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this::run, "MicrophoneEncoder");
+        thread.start();
+    }
+
+    /** Stops recording and waits for the last frames to reach the listener. */
+    void stop() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        release();
+    }
+
+    private void run() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            audioRecord.startRecording();
+            codec.start();
+            while (running) {
+                int input = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                if (input >= 0) {
+                    ByteBuffer buffer = codec.getInputBuffer(input);
+                    int read = audioRecord.read(buffer, buffer.remaining());
+                    // The samples just read started this long ago
+                    long nowUs = System.nanoTime() / 1000;
+                    long ptsUs = nowUs - Math.max(0, read) / 2 * 1_000_000L / sampleRate;
+                    codec.queueInputBuffer(input, 0, Math.max(0, read), ptsUs, 0);
+                }
+                drain(info);
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Microphone recording failed", e);
+        } finally {
+            try {
+                audioRecord.stop();
+            } catch (IllegalStateException e) {
+                Log.d(TAG, "Microphone was not recording");
+            }
+        }
+    }
+
+    private void drain(MediaCodec.BufferInfo info) {
+        while (true) {
+            int output = codec.dequeueOutputBuffer(info, 0);
+            if (output == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                listener.onFormat(codec.getOutputFormat());
+            } else if (output >= 0) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                    ByteBuffer buffer = codec.getOutputBuffer(output);
+                    buffer.limit(info.offset + info.size).position(info.offset);
+                    listener.onSample(buffer, info.presentationTimeUs);
+                }
+                codec.releaseOutputBuffer(output, false);
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // Never started
+            }
+            codec.release();
+            codec = null;
+        }
+        if (audioRecord != null) {
+            audioRecord.release();
+            audioRecord = null;
+        }
+    }
+}
@@ -3,29 +3,62 @@ package com.example.screenrecoder;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.Manifest;
 import android.app.Service;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.hardware.display.DisplayManager;
-import android.media.MediaRecorder;
+import android.hardware.display.VirtualDisplay;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
+import android.view.Surface;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import com.example.mirror.media.FragmentedMp4Writer;
+
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class ScreenRecordService extends Service {
     private static final String CHANNEL_ID = "ScreenRecorderChannel";
     private static final String TAG = "ScreenRecordService";
+    // A recording keeps this suffix until it is closed, one left behind is recovered on the next start
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final int VIDEO_BIT_RATE = 6_000_000;
+    private static final int VIDEO_FRAME_RATE = 30;
+    // One GOP per fragment, so a killed service loses about a second
+    private static final int KEY_FRAME_INTERVAL_SECONDS = 1;
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final int AUDIO_BIT_RATE = 128_000;
     private MediaProjection mediaProjection;
-    private MediaRecorder mediaRecorder;
+    private MediaCodec videoEncoder;
+    private HandlerThread videoThread;
+    private Surface inputSurface;
+    private VirtualDisplay virtualDisplay;
+    private MicrophoneEncoder microphone;
+    private volatile FragmentedMp4Writer writer;
+    private volatile int videoTrack = -1;
+    private volatile int audioTrack = -1;
+    private File partialFile;
     private String filePath;
     private int mWidth;
     private int mHeight;
@@ -55,9 +88,9 @@ public class ScreenRecordService extends Service {
         if (projectionManager != null) {
             assert data != null;
             mediaProjection = projectionManager.getMediaProjection(resultCode, data);
-            Log.d(TAG, "MediaProjection obtained. Setting up MediaRecorder...");
-            setupMediaRecorder();
-            if (mediaRecorder != null) { // Check if setup was successful
+            Log.d(TAG, "MediaProjection obtained. Setting up the encoders...");
+            setupRecorder();
+            if (videoEncoder != null) { // Check if setup was successful
                 startRecording();
             }
         } else {
@@ -67,15 +100,17 @@ public class ScreenRecordService extends Service {
         return START_NOT_STICKY;
     }
 
-    private void setupMediaRecorder() {
+    private void setupRecorder() {
         try {
             File directory = new File("/storage/self/primary/Movies", "ScreenRecordings");
             if (!directory.exists() && !directory.mkdirs()) {
                 Log.e(TAG, "Failed to create directory for recordings.");
                 return;
             }
+            recoverPartialRecordings(directory);
 
             filePath = directory + "/ScreenRecording_" + System.currentTimeMillis() + ".mp4";
+            partialFile = new File(filePath + PARTIAL_SUFFIX);
 
             // Correct way to get display metrics
             DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
@@ -92,28 +127,153 @@ public class ScreenRecordService extends Service {
             Log.d(TAG, "WIDTH VALUE : " + mWidth);
             Log.d(TAG, "HEIGHT VALUE : " + mHeight);
 
-            mediaRecorder = new MediaRecorder();
-            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
-            mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mediaRecorder.setOutputFile(filePath);
-            mediaRecorder.setVideoSize(mWidth, mHeight);  // Correct way of setting resolution
-            mediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            mediaRecorder.setVideoFrameRate(30);
+            if (checkSelfPermission(Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED) {
+                microphone = new MicrophoneEncoder(AUDIO_SAMPLE_RATE, AUDIO_BIT_RATE, new MicrophoneEncoder.Listener() {
+                    @Override
+                    public void onFormat(MediaFormat format) {
+                        FragmentedMp4Writer mp4 = writer;
+                        if (mp4 == null) {
+                            return;
+                        }
+                        byte[] config = FragmentedMp4Writer.stripStartCode(format.getByteBuffer("csd-0"));
+                        audioTrack = mp4.addTrack(FragmentedMp4Writer.Track.aac(
+                                format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), config));
+                    }
+
+                    @Override
+                    public void onSample(ByteBuffer sample, long presentationTimeUs) {
+                        writeSample(audioTrack, sample, presentationTimeUs, true);
+                    }
+                });
+                if (!microphone.prepare()) {
+                    Log.w(TAG, "Microphone not available, recording without audio.");
+                    microphone = null;
+                }
+            }
+            writer = openWriter(partialFile, microphone != null ? 2 : 1);
+
+            MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, mWidth, mHeight);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, VIDEO_BIT_RATE);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, VIDEO_FRAME_RATE);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL_SECONDS);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                // The writer stores samples in decoding order without composition offsets
+                format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
+            }
 
+            videoThread = new HandlerThread("RecorderVideo");
+            videoThread.start();
+            videoEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            videoEncoder.setCallback(new VideoCallback(), new Handler(videoThread.getLooper()));
+            videoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = videoEncoder.createInputSurface();
+            Log.d(TAG, "Encoders set up. File path: " + partialFile);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            Log.e(TAG, "Failed to set up the encoders.", e);
+            releaseEncoders();
+        }
+    }
 
-            mediaRecorder.prepare();
-            Log.d(TAG, "MediaRecorder setup completed. File path: " + filePath);
+    private FragmentedMp4Writer openWriter(File file, int trackCount) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        FileChannel channel = output.getChannel();
+        FileDescriptor fd = output.getFD();
+        FragmentedMp4Writer mp4 = new FragmentedMp4Writer(channel, trackCount);
+        // Real allocation where the file system supports it, so forcing a fragment never has to grow the file
+        mp4.setPreallocation((ch, offset, length) -> {
+            try {
+                Os.posix_fallocate(fd, offset, length);
+            } catch (ErrnoException e) {
+                FragmentedMp4Writer.EXTEND.allocate(ch, offset, length);
+            }
+        }, FragmentedMp4Writer.DEFAULT_PREALLOCATE_BYTES);
+        return mp4;
+    }
+
+    // Trims recordings of a service that was killed to their last complete fragment
+    private void recoverPartialRecordings(File directory) {
+        File[] partials = directory.listFiles((dir, name) -> name.endsWith(PARTIAL_SUFFIX));
+        if (partials == null) {
+            return;
+        }
+        for (File partial : partials) {
+            long size;
+            try (RandomAccessFile file = new RandomAccessFile(partial, "rw")) {
+                size = FragmentedMp4Writer.recover(file.getChannel());
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot recover " + partial, e);
+                continue;
+            }
+            String name = partial.getPath();
+            File recovered = new File(name.substring(0, name.length() - PARTIAL_SUFFIX.length()));
+            if (size == 0) {
+                Log.w(TAG, "Nothing to recover in " + partial);
+                if (!partial.delete()) {
+                    Log.e(TAG, "Cannot delete " + partial);
+                }
+            } else if (partial.renameTo(recovered)) {
+                Log.d(TAG, "Recovered " + size + " bytes into " + recovered);
+            }
+        }
+    }
+
+    private void writeSample(int track, ByteBuffer sample, long presentationTimeUs, boolean keyFrame) {
+        FragmentedMp4Writer mp4 = writer;
+        if (track < 0 || mp4 == null) {
+            return;
+        }
+        try {
+            mp4.writeSample(track, sample, presentationTimeUs, keyFrame);
         } catch (IOException e) {
-            Log.e(TAG, "Failed to set up MediaRecorder.", e);
-            mediaRecorder = null; // Ensure mediaRecorder is null if it failed.
+            // Probably out of space, what is on disk stays playable
+            Log.e(TAG, "Cannot write recording", e);
+            new Handler(getMainLooper()).post(this::stopSelf);
+        }
+    }
+
+    private final class VideoCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // Input comes from the surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                if (buffer != null) {
+                    buffer.limit(info.offset + info.size).position(info.offset);
+                    writeSample(videoTrack, buffer, info.presentationTimeUs,
+                            (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Video encoder failed", e);
+            new Handler(getMainLooper()).post(ScreenRecordService.this::stopSelf);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            FragmentedMp4Writer mp4 = writer;
+            if (videoTrack >= 0 || mp4 == null) {
+                return;
+            }
+            byte[] sps = FragmentedMp4Writer.stripStartCode(format.getByteBuffer("csd-0"));
+            byte[] pps = FragmentedMp4Writer.stripStartCode(format.getByteBuffer("csd-1"));
+            videoTrack = mp4.addTrack(FragmentedMp4Writer.Track.avc(
+                    format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT), sps, pps));
         }
     }
 
     private void startRecording() {
         try {
-            if (mediaProjection != null && mediaRecorder != null) { // Check for both MediaProjection and MediaRecorder
+            if (mediaProjection != null && videoEncoder != null) { // Check for both MediaProjection and the encoder
                 // Register the callback to manage the media projection lifecycle
                 mediaProjection.registerCallback(new MediaProjection.Callback() {
                     @Override
@@ -141,18 +301,21 @@ public class ScreenRecordService extends Service {
                 Log.d(TAG,"display Height " + displayHeight);
                 Log.d(TAG,"display density " + densityDpi);
                 Log.d(TAG, "Creating virtual display for recording...");
-                mediaProjection.createVirtualDisplay(
+                virtualDisplay = mediaProjection.createVirtualDisplay(
                         "ScreenRecordService",
                         displayWidth, displayHeight, densityDpi,
                         DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                        mediaRecorder.getSurface(),
+                        inputSurface,
                         null, null
                 );
-                mediaRecorder.start();
+                videoEncoder.start();
+                if (microphone != null) {
+                    microphone.start();
+                }
                 isRecording = true;
                 Log.d(TAG, "Screen recording started.");
             }else{
-                Log.e(TAG, "MediaProjection or MediaRecorder is null");
+                Log.e(TAG, "MediaProjection or the encoder is null");
             }
         } catch (Exception e) {
             Log.e(TAG, "Error starting screen recording.", e);
@@ -160,18 +323,15 @@ public class ScreenRecordService extends Service {
     }
     private void stopRecording() {
         if (isRecording) {
-            try {
-                Log.d(TAG, "Stopping MediaRecorder...");
-                mediaRecorder.stop();
-                mediaRecorder.release();
-                isRecording = false;
+            Log.d(TAG, "Stopping the encoders...");
+            isRecording = false;
+            releaseEncoders();
+            if (partialFile != null && partialFile.renameTo(new File(filePath))) {
                 Log.d(TAG, "Recording saved to: " + filePath);
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "IllegalStateException while stopping MediaRecorder: ", e);
             }
-            mediaRecorder = null;
         } else {
-            Log.d(TAG, "MediaRecorder is not recording, so stop was skipped.");
+            Log.d(TAG, "Encoders are not recording, so stop was skipped.");
+            releaseEncoders();
         }
 
         if (mediaProjection != null) {
@@ -184,6 +344,44 @@ public class ScreenRecordService extends Service {
 
 
 
+    // Stops the producers before the writer, which then writes the last fragment
+    private void releaseEncoders() {
+        if (microphone != null) {
+            microphone.stop();
+            microphone = null;
+        }
+        if (videoEncoder != null) {
+            try {
+                videoEncoder.stop();
+            } catch (IllegalStateException e) {
+                Log.d(TAG, "Video encoder was not started");
+            }
+            videoEncoder.release();
+            videoEncoder = null;
+        }
+        if (videoThread != null) {
+            videoThread.quitSafely();
+            videoThread = null;
+        }
+        if (virtualDisplay != null) {
+            virtualDisplay.release();
+            virtualDisplay = null;
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+        if (writer != null) {
+            try {
+                writer.close();
+                Log.d(TAG, writer.toString());
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing the recording", e);
+            }
+            writer = null;
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
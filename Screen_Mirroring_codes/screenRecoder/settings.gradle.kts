@@ -21,4 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "screenRecoder"
 include(":app")
- 
\ No newline at end of file
+include(":mirror-common")
+project(":mirror-common").projectDir = file("../mirror-common")